@@ -1,15 +1,12 @@
 package edu.umich.eecs.gridwatch;
 
+import java.io.File;
 import java.text.DateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.Hashtable;
-import java.util.TimeZone;
+import java.util.Locale;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.os.Build;
+import android.os.Environment;
 import android.os.IBinder;
 
 import android.app.Activity;
@@ -17,7 +14,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.graphics.Color;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
@@ -25,17 +21,15 @@ import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 public class GridWatch extends Activity {
 	private final static String INTENT_NAME = "GridWatch-update-event";
 	private final static String INTENT_EXTRA_EVENT_TYPE = "event_type";
-	private final static String INTENT_EXTRA_EVENT_INFO = "event_info";
 	
 	private final static String INTENT_EXTRA_EVENT_MANUAL_ON = "event_manual_on";
 	private final static String INTENT_EXTRA_EVENT_MANUAL_OFF = "event_manual_off";
@@ -65,6 +59,7 @@ public class GridWatch extends Activity {
 
 	// FileIO objects
 	private GridWatchLogger mGWLogger;
+	private GridWatchLogAdapter mLogAdapter;
 	private GridWatchID mGWID;
 	private GridWatchSync mGWSync;
 
@@ -86,12 +81,18 @@ public class GridWatch extends Activity {
 		// so we can display this copy of the log.
 		mLogView = inflater.inflate(R.layout.log, null);
 
+		// The log is paged in newest first as the list scrolls
+		File sdCard = Environment.getExternalStorageDirectory();
+		GridWatchStore store = GridWatchStore.getInstance(sdCard);
+		mLogAdapter = new GridWatchLogAdapter(this, new GridWatchLogIndex(store, GridWatchStore.CHANNEL_LOG));
+		((ListView) mLogView.findViewById(R.id.log_list)).setAdapter(mLogAdapter);
+
 		// Register that we want to receive notices from the service.
 		//	LocalBroadcastManager.getInstance(this).registerReceiver(mServiceMessageReceiver,
 		//			new IntentFilter(INTENT_NAME));
 
-		mGWLogger = new GridWatchLogger();
-		mGWID = new GridWatchID();
+		mGWLogger = new GridWatchLogger(store);
+		mGWID = new GridWatchID(store, sdCard);
 
 		// Set up the phone ID
 		setupID();
@@ -107,10 +108,6 @@ public class GridWatch extends Activity {
 		} else{
 			Log.w(noteTag, "disabling all sensors");
 		}		
-		
-		
-		// Configure the Watchdog
-		setupAlarm(AlarmManager.INTERVAL_DAY);
 
 	}
 
@@ -118,12 +115,9 @@ public class GridWatch extends Activity {
 		id_field = (EditText) mMainView.findViewById(R.id.id_field);
 		id_display = (TextView) mMainView.findViewById(R.id.id_display);
 		
-		// Deal with registering an ID
-		ArrayList<String> ids = mGWID.read();
-		
 		// Create a default ID if none is present, otherwise get the last ID
-		if (ids.isEmpty()) {
-			mGWID.log(mDateFormat.format(new Date()), "-1", null);
+		if (mGWID.isEmpty()) {
+			mGWID.log("-1", null);
 			id_display.setText("-1");
 		}
 		else {
@@ -147,18 +141,6 @@ public class GridWatch extends Activity {
 	}
 	
 	
-	private void setupAlarm(long ms) {
-		// Set up Watchdog
-		Calendar updateTime = Calendar.getInstance();
-		updateTime.setTimeZone(TimeZone.getDefault());
-		Intent intent = new Intent(GridWatch.this, AlarmReceiver.class);
-		intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(GridWatch.this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-		
-		// Change this to change WD frequency
-		alarmManager.setRepeating(AlarmManager.RTC_WAKEUP, updateTime.getTimeInMillis(), ms, pendingIntent); 
-	}
 	
 	
 	@Override
@@ -174,6 +156,12 @@ public class GridWatch extends Activity {
 		registerReceiver(mServiceMessageReceiver, new IntentFilter(INTENT_NAME));
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mLogAdapter.close();
+	}
+
 	@Override
 	protected void onPause() {
 		super.onPause();
@@ -198,24 +186,15 @@ public class GridWatch extends Activity {
 			// Update the front display
 			if (intent.getStringExtra(INTENT_EXTRA_EVENT_TYPE).equals("event_post")) {
 
-				Hashtable<String, String> result = new Hashtable<String, String>();
+				String eventType = intent.getStringExtra(GridWatchEventRecord.KEY_EVENT_TYPE);
+				long time = intent.getLongExtra(GridWatchEventRecord.KEY_TIME, 0);
 
-				// Create hashtable from the result string
-				String event_info = intent.getStringExtra(INTENT_EXTRA_EVENT_INFO);
-				String[] info_items = event_info.split("\\,\\ ");
-				for (String item : info_items) {
-					String[] kv = item.split("\\=");
-					if (kv.length == 2) {
-						result.put(kv[0], kv[1]);
-					}
-				}
-
-				String display = result.get("event_type") + " at ";
-				display += mDateFormat.format(new Date(Long.valueOf(result.get("time")))) + "\n";
-				if (result.get("event_type").equals("unplugged")) {
-					display += "movement: " + result.get("moved") + "\n";
-					//display += "60 hz: " + result.get("sixty_hz") + "\n";
-					display += "60 hz: not implemented" + "\n";
+				StringBuilder display = new StringBuilder(96);
+				display.append(eventType).append(" at ").append(mDateFormat.format(new Date(time))).append('\n');
+				if ("unplugged".equals(eventType)) {
+					display.append("movement: ").append(intent.getIntExtra(GridWatchEventRecord.KEY_MOVED, -1) == 1).append('\n');
+					display.append("60 hz: ").append(String.format(Locale.US, "%.2f",
+							intent.getFloatExtra(GridWatchEventRecord.KEY_SIXTY_HZ, Float.NaN))).append('\n');
 				}
 
 				((TextView) mMainView.findViewById(R.id.txt_status)).setText(display);
@@ -247,61 +226,11 @@ public class GridWatch extends Activity {
 		return true;
 	}
 
-	// Remove all text elements in the log linear items view
-	private void clearLog () {
-		LinearLayout log_linear_layout = (LinearLayout) mLogView.findViewById(R.id.log_linear);
-		LinearLayout log_linear_items_layout = (LinearLayout) log_linear_layout.findViewById(R.id.log_linear_items);
-		log_linear_items_layout.removeAllViews();
-	}
-
-	// Add a log line to the log view
-	private void addLogItem (String time, String event_type, String info) {
-		Context context = getApplicationContext();
-
-		LinearLayout log_linear_layout = (LinearLayout) mLogView.findViewById(R.id.log_linear_items);
-		View ruler = new View(context);
-		ruler.setBackgroundColor(Color.DKGRAY);
-		log_linear_layout.addView(ruler, 0, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 2));
-		// Add the date timestamp
-		TextView text_log_time = new TextView(context);
-		text_log_time.setBackgroundColor(Color.WHITE);
-		text_log_time.setTextColor(Color.BLACK);
-		text_log_time.setText(time);
-		log_linear_layout.addView(text_log_time, 1);
-		// Add any information about what happened
-		TextView text_log_entry = new TextView(context);
-		text_log_entry.setBackgroundColor(Color.WHITE);
-		text_log_entry.setTextColor(Color.BLACK);
-		String log_entry = event_type;
-		if (info != null) {
-			log_entry += " - " + info;
-		}
-		text_log_entry.setText(log_entry);
-		log_linear_layout.addView(text_log_entry, 2);
-	}
-
 	// Read in the log file and write it to the log view
 	private View.OnClickListener refreshLog = new View.OnClickListener() {
 		@Override
 		public void onClick (View v) {
-			clearLog();
-
-			ArrayList<String> log = mGWLogger.read();
-
-			for (String line : log) {
-				String[] log_fields = line.split("\\|");
-				if (log_fields.length > 1) {
-					String time = log_fields[0];
-					String event_type = log_fields[1];
-					String info;
-					if (log_fields.length > 2) {
-						info = log_fields[2];
-					} else {
-						info = null;
-					}
-					addLogItem(time, event_type, info);
-				}
-			}
+			mLogAdapter.reload();
 		}
 	};
 	
@@ -335,7 +264,7 @@ public class GridWatch extends Activity {
 			if (id.length() > 3) {
 				if (id.subSequence(0, 3).toString().equals("000")) {
 					Log.w(noteTag, "new id is: " + id.substring(3, id.length()));
-					mGWID.log(mDateFormat.format(new Date()), id.substring(3), null);			
+					mGWID.log(id.substring(3), null);			
 					id_display.setText(mGWID.get_last_value());
 				} 
 				else {
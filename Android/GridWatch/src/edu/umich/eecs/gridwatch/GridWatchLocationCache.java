@@ -0,0 +1,208 @@
+package edu.umich.eecs.gridwatch;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+// Keeps the freshest fix from each location provider, so events can read a
+// location without waiting on, or even calling into, the location manager.
+//
+// A passive listener picks up the fixes other apps ask for at no cost to
+// us. refresh() asks the GPS and network providers for a new fix only when
+// the one we hold is older than the staleness budget, and with at most one
+// listener per provider. That listener is removed on the first fix, or
+// after the request timeout if none comes, so the GPS isn't left running
+// indoors and repeated events don't pile up callbacks.
+public class GridWatchLocationCache implements GridWatchLocationSource {
+
+	// Fixes younger than this are good enough for an alert
+	public final static long DEFAULT_STALENESS = 300000l;
+
+	// How long to keep a provider listening for a fix that isn't coming
+	public final static long DEFAULT_REQUEST_TIMEOUT = 120000l;
+
+	private final static String[] PROVIDERS = { GPS, NETWORK };
+
+	// The single listener for one provider's requests
+	private class ProviderListener implements LocationListener, Runnable {
+		String mProvider;
+		boolean mRequested = false;
+		GridWatchFix mFix;
+
+		ProviderListener (String provider) {
+			mProvider = provider;
+		}
+
+		@Override
+		public void onLocationChanged (Location location) {
+			update(location, mProvider);
+			cancel();
+		}
+
+		// The request timed out
+		@Override
+		public void run () {
+			cancel();
+		}
+
+		void cancel () {
+			if (!mRequested) return;
+			mRequested = false;
+			mHandler.removeCallbacks(this);
+			mLocationManager.removeUpdates(this);
+		}
+
+		@Override
+		public void onProviderDisabled (String provider) {
+			cancel();
+		}
+
+		@Override
+		public void onProviderEnabled (String provider) { }
+
+		@Override
+		public void onStatusChanged (String provider, int status, Bundle extras) { }
+	}
+
+	// Fixes other apps requested, from whichever provider they came from
+	private LocationListener mPassiveListener = new LocationListener() {
+		@Override
+		public void onLocationChanged (Location location) {
+			update(location, location.getProvider());
+		}
+
+		@Override
+		public void onProviderDisabled (String provider) { }
+
+		@Override
+		public void onProviderEnabled (String provider) { }
+
+		@Override
+		public void onStatusChanged (String provider, int status, Bundle extras) { }
+	};
+
+	private LocationManager mLocationManager;
+	private GridWatchClock mClock;
+	private Looper mLooper;
+	private Handler mHandler;
+	private long mStaleness;
+	private long mRequestTimeout;
+	private ProviderListener[] mListeners = new ProviderListener[PROVIDERS.length];
+	private boolean mStarted = false;
+
+	// How many provider requests refresh() has made, for the logs
+	private int mRequests = 0;
+
+	public GridWatchLocationCache (LocationManager locationManager, GridWatchClock clock, Looper looper) {
+		this(locationManager, clock, looper, DEFAULT_STALENESS, DEFAULT_REQUEST_TIMEOUT);
+	}
+
+	// Listener callbacks and timeouts run on looper; call the other methods
+	// from its thread too. getLastFix can be called from any thread.
+	public GridWatchLocationCache (LocationManager locationManager, GridWatchClock clock, Looper looper,
+			long staleness, long requestTimeout) {
+		mLocationManager = locationManager;
+		mClock = clock;
+		mLooper = looper;
+		mHandler = new Handler(looper);
+		mStaleness = staleness;
+		mRequestTimeout = requestTimeout;
+		for (int i = 0; i < PROVIDERS.length; i++) {
+			mListeners[i] = new ProviderListener(PROVIDERS[i]);
+		}
+	}
+
+	// Seed the cache with the last known fixes and start listening passively
+	public void start () {
+		if (mStarted) return;
+		mStarted = true;
+		for (ProviderListener listener : mListeners) {
+			try {
+				Location location = mLocationManager.getLastKnownLocation(listener.mProvider);
+				if (location != null) update(location, listener.mProvider);
+			} catch (IllegalArgumentException e) {
+				// The phone doesn't have this provider
+			} catch (SecurityException e) { }
+		}
+		try {
+			mLocationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0.0f, mPassiveListener, mLooper);
+		} catch (IllegalArgumentException e) {
+		} catch (SecurityException e) { }
+	}
+
+	// Remove every listener
+	public void stop () {
+		mStarted = false;
+		for (ProviderListener listener : mListeners) {
+			listener.cancel();
+		}
+		mLocationManager.removeUpdates(mPassiveListener);
+	}
+
+	// Ask for a new fix from each enabled provider whose fix is stale and
+	// that isn't already looking for one
+	public void refresh () {
+		long now = mClock.currentTimeMillis();
+		for (ProviderListener listener : mListeners) {
+			if (listener.mRequested) continue;
+			GridWatchFix fix = getLastFix(listener.mProvider);
+			if (fix != null && now - fix.time < mStaleness) continue;
+			try {
+				if (!mLocationManager.isProviderEnabled(listener.mProvider)) continue;
+				mLocationManager.requestLocationUpdates(listener.mProvider, 0, 0.0f, listener, mLooper);
+			} catch (IllegalArgumentException e) {
+				continue;
+			} catch (SecurityException e) {
+				continue;
+			}
+			listener.mRequested = true;
+			mHandler.postDelayed(listener, mRequestTimeout);
+			mRequests++;
+		}
+	}
+
+	public int getRequests () {
+		return mRequests;
+	}
+
+	// The freshest fix we have from provider, which may be old; check its
+	// time. Never blocks on the location manager.
+	@Override
+	public GridWatchFix getLastFix (String provider) {
+		ProviderListener listener = listener(provider);
+		if (listener == null) return null;
+		synchronized (this) {
+			return listener.mFix;
+		}
+	}
+
+	private ProviderListener listener (String provider) {
+		for (ProviderListener listener : mListeners) {
+			if (listener.mProvider.equals(provider)) return listener;
+		}
+		return null;
+	}
+
+	// Keep location if it's newer than the fix we hold for provider. Fixes
+	// are never changed once stored, so readers can keep the one they get.
+	private void update (Location location, String provider) {
+		ProviderListener listener = provider == null ? null : listener(provider);
+		if (listener == null) return;
+		GridWatchFix fix = new GridWatchFix();
+		fix.provider = provider;
+		fix.latitude = location.getLatitude();
+		fix.longitude = location.getLongitude();
+		fix.accuracy = location.getAccuracy();
+		fix.altitude = location.getAltitude();
+		fix.speed = location.getSpeed();
+		fix.time = location.getTime();
+		synchronized (this) {
+			if (listener.mFix == null || fix.time >= listener.mFix.time) {
+				listener.mFix = fix;
+			}
+		}
+	}
+}
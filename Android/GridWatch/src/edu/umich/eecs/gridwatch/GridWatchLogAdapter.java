@@ -0,0 +1,137 @@
+package edu.umich.eecs.gridwatch;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+// Shows the event log newest first in a ListView. Pages come from a
+// GridWatchLogIndex on a background thread; the next page is asked for
+// when the list gets near the end of what is loaded, and rows reuse the
+// views the list hands back.
+public class GridWatchLogAdapter extends BaseAdapter {
+
+	private final static int PAGE_SIZE = 50;
+
+	// Start loading the next page this many rows before the end
+	private final static int PREFETCH = 10;
+
+	private static class ViewHolder {
+		TextView time;
+		TextView entry;
+	}
+
+	private LayoutInflater mInflater;
+	private GridWatchLogIndex mIndex;
+	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+
+	private HandlerThread mLoaderThread;
+	private Handler mLoader;
+	private Handler mMain = new Handler();
+
+	// Only touched on the UI thread
+	private ArrayList<GridWatchStorage.Record> mRecords = new ArrayList<GridWatchStorage.Record>();
+	private boolean mLoading = false;
+	private boolean mDone = false;
+
+	// Bumped by reload() so pages for an earlier load are dropped
+	private int mGeneration = 0;
+
+	// Create on the UI thread
+	public GridWatchLogAdapter (Context context, GridWatchLogIndex index) {
+		mInflater = LayoutInflater.from(context);
+		mIndex = index;
+		mLoaderThread = new HandlerThread("GridWatchLogLoader");
+		mLoaderThread.start();
+		mLoader = new Handler(mLoaderThread.getLooper());
+	}
+
+	// Start over from the newest entry
+	public void reload () {
+		mGeneration++;
+		mRecords.clear();
+		mLoading = false;
+		mDone = false;
+		notifyDataSetChanged();
+		load(true);
+	}
+
+	public void close () {
+		mGeneration++;
+		mLoaderThread.quit();
+	}
+
+	private void load (final boolean refresh) {
+		if (mLoading || mDone) return;
+		mLoading = true;
+		final int generation = mGeneration;
+		final int from = mRecords.size();
+		mLoader.post(new Runnable() {
+			@Override
+			public void run () {
+				if (refresh) mIndex.refresh();
+				final List<GridWatchStorage.Record> page = new ArrayList<GridWatchStorage.Record>(PAGE_SIZE);
+				final int count = mIndex.page(from, PAGE_SIZE, page);
+				mMain.post(new Runnable() {
+					@Override
+					public void run () {
+						if (generation != mGeneration) return;
+						mLoading = false;
+						mRecords.addAll(page);
+						if (count < PAGE_SIZE) mDone = true;
+						notifyDataSetChanged();
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public int getCount () {
+		return mRecords.size();
+	}
+
+	@Override
+	public Object getItem (int position) {
+		return mRecords.get(position);
+	}
+
+	@Override
+	public long getItemId (int position) {
+		return position;
+	}
+
+	@Override
+	public View getView (int position, View convertView, ViewGroup parent) {
+		if (position >= mRecords.size() - PREFETCH) load(false);
+
+		ViewHolder holder;
+		if (convertView == null) {
+			convertView = mInflater.inflate(R.layout.log_item, parent, false);
+			holder = new ViewHolder();
+			holder.time = (TextView) convertView.findViewById(R.id.log_item_time);
+			holder.entry = (TextView) convertView.findViewById(R.id.log_item_entry);
+			convertView.setTag(holder);
+		} else {
+			holder = (ViewHolder) convertView.getTag();
+		}
+
+		GridWatchStorage.Record record = mRecords.get(position);
+		holder.time.setText(mDateFormat.format(new Date(record.time)));
+		if (record.info != null) {
+			holder.entry.setText(record.type + " - " + record.info);
+		} else {
+			holder.entry.setText(record.type);
+		}
+		return convertView;
+	}
+}
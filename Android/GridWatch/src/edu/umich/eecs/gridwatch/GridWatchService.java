@@ -1,29 +1,21 @@
 package edu.umich.eecs.gridwatch;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -35,8 +27,6 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -44,11 +34,12 @@ import android.media.MediaRecorder;
 import android.media.MediaRecorder.OnInfoListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.AsyncTask;
 import android.os.Build;
-import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Environment;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Settings.Secure;
 import android.util.Log;
@@ -59,47 +50,80 @@ public class GridWatchService extends Service implements SensorEventListener {
 	// Constants for transmitting data to the main thred
 	private final static String INTENT_NAME = "GridWatch-update-event";
 	private final static String INTENT_EXTRA_EVENT_TYPE = "event_type";
-	private final static String INTENT_EXTRA_EVENT_INFO = "event_info";
-	private final static String INTENT_EXTRA_EVENT_TIME = "event_time";
 
 	private final static String INTENT_EXTRA_EVENT_MANUAL_ON = "event_manual_on";
 	private final static String INTENT_EXTRA_EVENT_MANUAL_OFF = "event_manual_off";
 	private final static String INTENT_EXTRA_EVENT_MANUAL_WD = "event_manual_wd";
 	private final static String INTENT_MANUAL_KEY = "manual_state";
 	
-	// How long to wait before forcing the phone to update locations.
-	// This is not set to immediate in case another app does the update
-	// first and we can just use that.
+	// How old a location fix can get before we ask for a new one. Fixes
+	// other apps ask for arrive passively, so often we never need to.
 	private final static long LOCATION_WAIT_TIME = 300000l;
 
-	// How long to wait between checks of the event list
-	// for events that are finished and can be sent to the
-	// server.
-	private final static int EVENT_PROCESS_TIMER_PERIOD = 1000;
-
 	// Audio recording
 
 	//private final static int TIME_MS = 3000;
 	//private static MediaRecorder mRecorder = null;
 	
-	private AudioRecord mRecorder = null;
 	private final static int SAMPLE_FREQUENCY = 44100;
-	private final static int BIT_RATE = 16;
 	private final static int RECORDER_CHANNELS = AudioFormat.CHANNEL_IN_STEREO;
+	private final static int RECORDER_CHANNEL_COUNT = 2;
 	private final static int RECORDER_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 	private final static int RECORDER_TIME = 3000;
+
+	// Unplugs close together share one recording, stretched to at most
+	// this long
+	private final static int RECORDER_MAX_TIME = 2 * RECORDER_TIME;
 	
-	private static String recordingFileName = null;
-	private final static String recordingFileTmpName = "gw_tmp.raw";
 	private final static String recordingFolder = "GW_recordings";
 	private final static String recordingExtension = ".wav"; 
+
+	// Size of the buffer between the recorder and the WAV file
+	private final static int WAV_BUFFER_SIZE = 32 * 1024;
+
+	// Recordings are kept as mono IMA ADPCM at about this rate, overridden
+	// by the "recording_rate_hz" preference. Mains hum and its harmonics
+	// are all well under its Nyquist frequency.
+	private final static int RECORDING_RATE = 4000;
+
+	// Recordings are deleted to stay under these quotas, overridden by the
+	// "recording_quota_mb" and "recording_quota_count" preferences
+	private final static int RECORDING_QUOTA_MB = 50;
+	private final static int RECORDING_QUOTA_COUNT = 2000;
+
+	// Folder (in app private storage) holding alerts waiting to be sent
+	private final static String outboxFolder = "GW_outbox";
+
+	// Batch upload flush policy. When batch uploads are enabled alerts are
+	// held until this many are waiting, they add up to this many bytes, or
+	// the oldest has waited this long. Losing connectivity and getting it
+	// back always sends everything.
+	private final static int BATCH_MAX_EVENTS = 50;
+	private final static long BATCH_MAX_BYTES = 16 * 1024;
+	private final static long BATCH_MAX_AGE = 60000l;
+
+	// Power flap suppression. A transition within FLAP_SETTLE of the
+	// previous one is held and folded into a flap record, which is sent
+	// once the power has been steady for FLAP_SETTLE or FLAP_MAX_DELAY
+	// after the first held transition. Both can be overridden with the
+	// "flap_settle_seconds" and "flap_max_delay_seconds" preferences.
+	private final static int FLAP_SETTLE = 20;
+	private final static int FLAP_MAX_DELAY = 120;
+
+	// Watchdog heartbeat interval, overridden by the "heartbeat_hours"
+	// preference. The alarm is inexact so the system can fold it into
+	// other wakeups.
+	private final static int HEARTBEAT_HOURS = 24;
 	
 	// Debug Tags
 	private static String errorTag = "error";
 	private static String noteTag = "note";
 	
-	// List of all of the active events we are currently handling
-	private ArrayList<GridWatchEvent> mEvents = new ArrayList<GridWatchEvent>();
+	// The event loop: a single thread that owns the event list, receives
+	// sensor samples, and sends events once they are ready.
+	private HandlerThread mEventThread;
+	private Handler mEventHandler;
+	private GridWatchEventLoop mEventLoop;
 
 	// State for the accelerometer
 	private SensorManager mSensorManager;
@@ -108,28 +132,204 @@ public class GridWatchService extends Service implements SensorEventListener {
 	// Tool to get the location
 	private LocationManager mLocationManager;
 
-	// Timer that is fired to check if each event is ready to be sent to
-	// the server.
-	private Timer mEventProcessTimer = new Timer();
+	// On-disk queue of messages ready to send to the server that are
+	// waiting for Internet connectivity. This survives the service being
+	// killed, which is likely to happen during an actual outage.
+	private GridWatchOutbox mOutbox;
+
+	// Index and quota for the recordings on external storage
+	private GridWatchRecordingStore mRecordings;
+
+	// Records the microphone for unplug events, and listens for mains hum
+	// once per capture for all the events that share it
+	private GridWatchCaptureEngine mCapture;
+	private GridWatchMainsAnalysis mMainsAnalysis;
+
+	// Decides when queued alerts are sent together in batch upload mode
+	private GridWatchBatch mBatch = new GridWatchBatch(BATCH_MAX_EVENTS, BATCH_MAX_BYTES, BATCH_MAX_AGE);
 
-	// Array of messages ready to send to the server that are waiting for
-	// Internet connectivity.
-	private LinkedBlockingQueue<HttpPost> mAlertQ = new LinkedBlockingQueue<HttpPost>();
+	// Shared HTTP client and worker thread for all uploads
+	private GridWatchTransport mTransport;
 
-	// Tool for getting a pretty date
-	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+	// Binary alert encoders. Codecs reuse their buffers, so the event loop
+	// and the transport's worker each get their own.
+	private GridWatchCodec mEventCodec = new GridWatchCodec();
+	private GridWatchCodec mUploadCodec = new GridWatchCodec();
+
+	// Whether watchdog heartbeats are needed, and what they cost
+	private GridWatchHeartbeat mHeartbeat;
+
+	// True if the outbox held alerts from before we were started. We don't
+	// know how old those are so they are sent as soon as possible. Cleared
+	// by the transport's worker.
+	private volatile boolean mOutboxRestored = false;
+
+	// Platform services the event logic uses, behind interfaces so the
+	// logic can also run on a plain JVM
+	private GridWatchClock mClock = new GridWatchClock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	// Freshest fix per provider, read by the alert builder
+	private GridWatchLocationCache mLocationCache;
+
+	private Runnable mLocationRefreshRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mLocationCache.refresh();
+		}
+	};
+
+	private GridWatchConnectivity mConnectivity = new GridWatchConnectivity() {
+		@Override
+		public String getConnectionType() {
+			String connection_type = "unknown";
+			ConnectivityManager cm = (ConnectivityManager) getBaseContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+			if (cm != null) {
+				NetworkInfo active_net_info = cm.getActiveNetworkInfo();
+				if (active_net_info != null) {
+					if (active_net_info.isConnected()) {
+						if (active_net_info.getType() == ConnectivityManager.TYPE_WIFI) {
+							connection_type = "wifi";
+						} else if (active_net_info.getType() == ConnectivityManager.TYPE_MOBILE) {
+							connection_type = "mobile";
+						} else {
+							connection_type = "other";
+						}
+					} else {
+						connection_type = "disconnected";
+					}
+				}
+			}
+			return connection_type;
+		}
+	};
+
+	// Builds alerts from events. Set up in onCreate once the phone's
+	// identifiers can be read.
+	private GridWatchAlertBuilder mAlertBuilder;
+	private String mAndroidId;
 
 	// Object that handles writing and retrieving log messages
 	private GridWatchLogger mGWLogger;
 
+	// The running service's logger, for the process-wide crash handler
+	private static volatile GridWatchLogger sCrashLogger;
+	private static boolean sCrashHandlerInstalled = false;
+
 	// Object that handles writing and retrieving a 
 	private GridWatchID mGWID;
 
 	@Override
 	public void onCreate() {
 		
-		mGWLogger = new GridWatchLogger();
-		mGWLogger.log(mDateFormat.format(new Date()), "created", null);
+		// Platform-free classes report problems through GridWatchLog
+		GridWatchLog.setSink(new GridWatchLog.Sink() {
+			@Override
+			public void warn(String tag, String message) {
+				Log.w(tag, message);
+			}
+		});
+
+		File sdCard = Environment.getExternalStorageDirectory();
+		GridWatchStore store = GridWatchStore.getInstance(sdCard);
+		mGWLogger = new GridWatchLogger(store);
+		mGWLogger.log("created", null);
+		mGWID = new GridWatchID(store, sdCard);
+
+		// Get buffered log lines onto disk if we are about to crash. The
+		// handler outlives this instance, so it is installed once per
+		// process and logs to whichever service is running.
+		sCrashLogger = mGWLogger;
+		installCrashHandler();
+
+		mEventThread = new HandlerThread("GridWatchEventLoop");
+		mEventThread.start();
+		mEventHandler = new Handler(mEventThread.getLooper());
+
+		// Get a reference to the location manager. Location callbacks run on
+		// the event thread, like everything else that touches the cache.
+		mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+		mLocationCache = new GridWatchLocationCache(mLocationManager, mClock, mEventThread.getLooper(),
+				LOCATION_WAIT_TIME, GridWatchLocationCache.DEFAULT_REQUEST_TIMEOUT);
+		mEventHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mLocationCache.start();
+			}
+		});
+
+		mTransport = new GridWatchTransport(new ProcessAlertQTask());
+
+		mAndroidId = Secure.getString(getBaseContext().getContentResolver(), Secure.ANDROID_ID);
+		String version;
+		try {
+			version = getPackageManager().getPackageInfo(getPackageName(), 0).versionName.replace(".", "");
+		} catch (NameNotFoundException e) {
+			version = "u";
+		}
+		mAlertBuilder = new GridWatchAlertBuilder(mLocationCache, mConnectivity, mAndroidId.substring(0, 3), version);
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		long heartbeatInterval = settings.getInt("heartbeat_hours", HEARTBEAT_HOURS) * AlarmManager.INTERVAL_HOUR;
+		mHeartbeat = new GridWatchHeartbeat(heartbeatInterval, mClock.elapsedRealtime());
+		scheduleHeartbeat(heartbeatInterval);
+
+		// Reopen any alerts left over from before we were restarted
+		try {
+			mOutbox = new GridWatchOutbox(new File(getFilesDir(), outboxFolder));
+			mOutboxRestored = !mOutbox.isEmpty();
+		} catch (IOException e) {
+			Log.e(errorTag, "Could not open the outbox: " + e.getMessage());
+		}
+
+		try {
+			File recordings = new File(Environment.getExternalStorageDirectory().getPath(), recordingFolder);
+			mRecordings = new GridWatchRecordingStore(recordings,
+					settings.getInt("recording_quota_mb", RECORDING_QUOTA_MB) * 1024l * 1024l,
+					settings.getInt("recording_quota_count", RECORDING_QUOTA_COUNT));
+		} catch (IOException e) {
+			Log.e(errorTag, "Could not open the recordings: " + e.getMessage());
+		}
+
+		// TODO should never be false... cut this off earlier. Hack
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD) {
+			int recBufferSize = AudioRecord.getMinBufferSize(SAMPLE_FREQUENCY,
+					RECORDER_CHANNELS,
+					RECORDER_ENCODING);
+			mMainsAnalysis = new GridWatchMainsAnalysis(SAMPLE_FREQUENCY, RECORDER_CHANNEL_COUNT,
+					new RecordingSink(settings.getInt("recording_rate_hz", RECORDING_RATE), recBufferSize));
+			mCapture = new GridWatchCaptureEngine(mClock, new AudioRecordSource(recBufferSize),
+					mMainsAnalysis, recBufferSize, RECORDER_TIME, RECORDER_MAX_TIME);
+		}
+
+		mEventLoop = new GridWatchEventLoop(new GridWatchEventLoop.Scheduler() {
+			@Override
+			public void post(Runnable r) {
+				mEventHandler.post(r);
+			}
+
+			@Override
+			public void postDelayed(Runnable r, long delayMs) {
+				mEventHandler.postDelayed(r, delayMs);
+			}
+
+			@Override
+			public void removeCallbacks(Runnable r) {
+				mEventHandler.removeCallbacks(r);
+			}
+		}, mClock,
+				settings.getInt("flap_settle_seconds", FLAP_SETTLE) * 1000l,
+				settings.getInt("flap_max_delay_seconds", FLAP_MAX_DELAY) * 1000l,
+				mCapture, mMainsAnalysis, mEventListener);
 		
 		// Receive a callback when Internet connectivity is restored
 		IntentFilter cfilter = new IntentFilter();
@@ -152,16 +352,32 @@ public class GridWatchService extends Service implements SensorEventListener {
 			mAccel = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
 		}
 
-		// Get a reference to the location manager
-		mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-
 		Toast.makeText(this, "GridWatch started", Toast.LENGTH_SHORT).show();
 		
 	}
 
+	private static synchronized void installCrashHandler () {
+		if (sCrashHandlerInstalled) return;
+		sCrashHandlerInstalled = true;
+		final Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread thread, Throwable ex) {
+				GridWatchLogger logger = sCrashLogger;
+				if (logger != null) {
+					logger.log("crashed", String.valueOf(ex));
+					logger.flush();
+				}
+				if (defaultHandler != null) {
+					defaultHandler.uncaughtException(thread, ex);
+				}
+			}
+		});
+	}
+
 	@Override
 	public void onDestroy() {
-		mGWLogger.log(mDateFormat.format(new Date()), "destroyed", null);
+		mGWLogger.log("destroyed", null);
 
 
 		Log.d("GridWatchService", "service destroyed");
@@ -170,6 +386,26 @@ public class GridWatchService extends Service implements SensorEventListener {
 		// Unregister us from different events
 		this.unregisterReceiver(mPowerActionReceiver);
 		this.unregisterReceiver(mConnectionListenerReceiver);
+
+		if (mSensorManager != null) {
+			mSensorManager.unregisterListener(this);
+		}
+		mEventLoop.stop();
+		mLocationCache.stop();
+		mEventThread.quit();
+		// Only close the outbox once no upload can be peeking at or acking
+		// it. If the worker won't stop, leave it open for the worker.
+		if (mTransport.shutdown() && mOutbox != null) {
+			mOutbox.close();
+		}
+		if (mCapture != null) {
+			mCapture.shutdown();
+		}
+		if (mRecordings != null) {
+			mRecordings.close();
+		}
+		sCrashLogger = null;
+		mGWLogger.close();
 	}
 
 	// This is the old onStart method that will be called on the pre-2.0
@@ -177,22 +413,22 @@ public class GridWatchService extends Service implements SensorEventListener {
 	// method will not be called.
 	@Override
 	public void onStart(Intent intent, int startId) {
-		mGWLogger.log(mDateFormat.format(new Date()), "started_old", null);
+		mGWLogger.log("started_old", null);
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		mGWLogger.log(mDateFormat.format(new Date()), "started", null);
+		mGWLogger.log("started", null);
 
 
 		if (intent != null && intent.getExtras() != null) {
 			if (intent.getExtras().getString(INTENT_MANUAL_KEY).equals(INTENT_EXTRA_EVENT_MANUAL_ON)) {
 				Log.w(noteTag, "power connected");
-				onPowerConnected();
+				onPowerChanged(true);
 			}
 			else if (intent.getExtras().getString(INTENT_MANUAL_KEY).equals(INTENT_EXTRA_EVENT_MANUAL_OFF)) {
 				Log.w(noteTag, "power disconnected");
-				onPowerDisconnected();
+				onPowerChanged(false);
 			} 
 			else if (intent.getExtras().getString(INTENT_MANUAL_KEY).equals(INTENT_EXTRA_EVENT_MANUAL_WD)) {
 				Log.w(noteTag, "power WD");
@@ -214,9 +450,9 @@ public class GridWatchService extends Service implements SensorEventListener {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			if (intent.getAction().equals(Intent.ACTION_POWER_CONNECTED)) {
-				onPowerConnected();
+				onPowerChanged(true);
 			} else if (intent.getAction().equals(Intent.ACTION_POWER_DISCONNECTED)) {
-				onPowerDisconnected();
+				onPowerChanged(false);
 			} else if (intent.getAction().equals(Intent.ACTION_DOCK_EVENT)) {
 				onDockEvent(intent);
 			} else {
@@ -236,7 +472,7 @@ public class GridWatchService extends Service implements SensorEventListener {
 				// If we have regained Internet connectivity, process any backlog of alerts
 				// we need to send.
 				if (cm.getActiveNetworkInfo() != null && cm.getActiveNetworkInfo().isConnected()) {
-					new ProcessAlertQTask().execute();
+					queueDrainOutbox();
 				}
 		}
 	};
@@ -248,60 +484,93 @@ public class GridWatchService extends Service implements SensorEventListener {
 		sendBroadcast(lIntent);
 	}
 
-	private void onPowerConnected() {
-
-		// Take the opportunity to try to update our location. Since we now have
-		// power (the device was just plugged in), getting a GPS lock shouldn't
-		// be an issue. Also, since the phone won't move between now and when
-		// it is unplugged (given how power cables work) the location should
-		// be valid when the device is unplugged.
-		updateLocation();
+	// Power transitions go through the event loop's flap filter
+	private void onPowerChanged (boolean powered) {
+		mEventLoop.onPowerChanged(powered);
+	}
 
-		// Create the plug event
-		GridWatchEvent gwevent = new GridWatchEvent(GridWatchEventType.PLUGGED);
-		mEvents.add(gwevent);
+	// What the event loop needs from the phone. Called on the event loop
+	// thread, except onRecorded().
+	private GridWatchEventLoop.Listener mEventListener = new GridWatchEventLoop.Listener() {
+		// Raw transitions are logged so traces can be replayed through the
+		// filter offline
+		@Override
+		public void onPowerChanged(boolean powered, long time) {
+			mGWLogger.log("power", (powered ? "1 " : "0 ") + time);
+		}
 
-		// This one we don't need any sensors so go ahead and process the event
-		// list because we can send the plugged event.
-		
-		processEvents();
-	}
-	
-	private void onWD() {
-		updateLocation();
+		@Override
+		public void onFlaps(boolean powered, int flaps, long first, long last) {
+			Log.w(noteTag, "Collapsed " + flaps + " power transitions");
+			mGWLogger.log("flaps", flaps + " from " + first + " to " + last);
+		}
 
-		// Create the plug event
-		GridWatchEvent gwevent = new GridWatchEvent(GridWatchEventType.WD);
-		mEvents.add(gwevent);
+		@Override
+		public void onEvent(GridWatchEvent gwevent) {
+			// Take the opportunity to try to update our location. Since we
+			// now have power (the device was just plugged in), getting a GPS
+			// lock shouldn't be an issue. Also, since the phone won't move
+			// between now and when it is unplugged (given how power cables
+			// work) the location should be valid when the device is
+			// unplugged.
+			if ("plugged".equals(gwevent.getEventType()) && gwevent.getFlaps() == 0) {
+				updateLocation();
+			}
+		}
 
-		// This one we don't need any sensors so go ahead and process the event
-		// list because we can send the plugged event.
-		processEvents();
-		
-	}
+		@Override
+		public void onRecorded(long time, GridWatchEvent gwevent) {
+			noteVerdict(time, gwevent);
+		}
 
-	private void onPowerDisconnected() {
+		// Samples are delivered on the event loop thread
+		@Override
+		public boolean startMotion() {
+			if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.GINGERBREAD || mAccel == null) {
+				return false;
+			}
+			mSensorManager.registerListener(GridWatchService.this, mAccel, SensorManager.SENSOR_DELAY_NORMAL, mEventHandler);
+			return true;
+		}
 
-		Log.w(noteTag, "onPowerDisconnected");
-		
-		// Create the unplugged event
-		GridWatchEvent gwevent = new GridWatchEvent(GridWatchEventType.UNPLUGGED);
-		mEvents.add(gwevent);
-		
-		// Start the accelerometer getting samples
-		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD) {
-			mSensorManager.registerListener(this, mAccel, SensorManager.SENSOR_DELAY_NORMAL);
+		@Override
+		public void stopMotion() {
+			mSensorManager.unregisterListener(GridWatchService.this);
 		}
-		
-		// Sample the microphone TODO
-		int currentapiVersion = android.os.Build.VERSION.SDK_INT;
-		if (currentapiVersion >= android.os.Build.VERSION_CODES.GINGERBREAD){ // Disable sensors on old API
-			Thread audioThread = new Thread(new GridWatchEventThread(gwevent));
-			audioThread.start();
+
+		@Override
+		public void onReady(GridWatchEvent gwevent) {
+			postEvent(gwevent);
 		}
-		
-		// Make sure the event queue is processed until it is empty
-		startEventProcessTimer();
+	};
+
+	// The heartbeat alarm went off. Nothing is sent if an alert reached
+	// the server recently enough to show we're alive.
+	private void onWD() {
+		long now = mClock.elapsedRealtime();
+		boolean send = mHeartbeat.onAlarm(now);
+		mGWLogger.log("heartbeat", mHeartbeat.report(now));
+		if (!send) return;
+
+		updateLocation();
+
+		// Create the watchdog event, which also needs no sensors
+		mEventLoop.addEvent(new GridWatchEvent(GridWatchEventType.WD, mClock.currentTimeMillis()));
+	}
+
+	// Arm the repeating heartbeat alarm, unless it already is with this
+	// interval. Re-arming would push the next heartbeat back.
+	private void scheduleHeartbeat (long interval) {
+		Intent intent = new Intent(this, AlarmReceiver.class);
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		boolean armed = PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_NO_CREATE) != null;
+		if (armed && settings.getLong("heartbeat_armed_interval", 0) == interval) return;
+
+		PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+				SystemClock.elapsedRealtime() + interval, interval, pendingIntent);
+		settings.edit().putLong("heartbeat_armed_interval", interval).commit();
 	}
 
 	private void onDockEvent(Intent intent) {
@@ -310,348 +579,443 @@ public class GridWatchService extends Service implements SensorEventListener {
 		Log.d("GridWatchService", "mDockCar set to " + dockCar);
 	}
 
-	// Iterate over the list of pending events and determine if any
-	// should be transmitted to the server
-	private void processEvents () {
-		boolean done = true;
-			
-		/*
-		for(Iterator<GridWatchEvent> gwevent = mEvents.iterator(); gwevent.hasNext();){
-			if (((GridWatchEvent) gwevent).readyForTransmission()) {
-				postEvent((GridWatchEvent) gwevent);
-				mEvents.remove(gwevent);
-			} else {
-				done = false;
+	// This is called on the event loop thread when new samples arrive from
+	// the accelerometer
+	@Override
+	public final void onSensorChanged(SensorEvent event) {
+		mEventLoop.onSensorChanged(mClock.elapsedRealtime(), event.values[0], event.values[1], event.values[2]);
+	}
+
+	// The microphone, kept for as long as the service runs and started and
+	// stopped for each capture
+	private class AudioRecordSource implements GridWatchCaptureEngine.Source {
+		private int mBufferSize;
+		private AudioRecord mRecorder = null;
+
+		AudioRecordSource (int bufferSize) {
+			mBufferSize = bufferSize;
+		}
+
+		@Override
+		public boolean start () {
+			if (mRecorder == null) {
+				mRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC,
+						SAMPLE_FREQUENCY,
+						RECORDER_CHANNELS,
+						RECORDER_ENCODING,
+						mBufferSize * 2);
 			}
-		} 
-		*/
-		
-		for (int i = 0; i < mEvents.size(); i++) {
-			GridWatchEvent gwevent = mEvents.get(i);
-			if (gwevent.readyForTransmission()) {
-				postEvent(gwevent);
-				mEvents.remove(gwevent);
-			} else {
-				done = false;
+			if (mRecorder.getState() != AudioRecord.STATE_INITIALIZED) {
+				Log.w(errorTag, "AudioRecord could not be initialized");
+				release();
+				return false;
 			}
+			mRecorder.startRecording();
+			Log.w(noteTag, "Starting Recording");
+			return true;
 		}
-		
-		/*
-		for (GridWatchEvent gwevent : mEvents) {
-			if (gwevent.readyForTransmission()) {
-				postEvent(gwevent);
-				mEvents.remove(gwevent);
-			} else {
-				done = false;
+
+		@Override
+		public int read (byte[] buffer, int len) {
+			int read = mRecorder.read(buffer, 0, len);
+			if (read <= 0) {
+				Log.w(errorTag, "AudioRecord read failed: " + read);
 			}
+			return read;
 		}
-		*/
-		
-		if (!done) {
-			// If there are still events in the queue make sure the
-			// timer fires again.
-			startEventProcessTimer();
+
+		@Override
+		public void stop () {
+			mRecorder.stop();
+			Log.w(noteTag, "Done Recording");
 		}
-	}
 
-	// Create a timer to check the events queue when it fires
-	private void startEventProcessTimer () {
-		mEventProcessTimer.schedule(new TimerTask () {
-			@Override
-			public void run () {
-				processEvents();
+		@Override
+		public void release () {
+			if (mRecorder != null) {
+				mRecorder.release();
+				mRecorder = null;
 			}
-		}, EVENT_PROCESS_TIMER_PERIOD);
+		}
 	}
 
-	// This is called when new samples arrive from the accelerometer
-	@Override
-	public final void onSensorChanged(SensorEvent event) {
-		
-		// TODO this should never be false... cut of the sensor early at the top. Hack
-		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD) {
-			boolean done = true; // assume we are done until proven otherwise
-
-			
-			/*
-			// Loop through all of our active events and pass them accelerometer data
-			for (GridWatchEvent gwevent : mEvents) {
-				boolean gwevent_done = gwevent.addAccelerometerSample(event.timestamp,
-						event.values[0], event.values[1], event.values[2]);
+	// Downmixes and decimates each capture and writes it straight into a
+	// WAV file as ADPCM. The header is filled in once we know how much we
+	// recorded. The decimator, buffers and writer are reused.
+	private class RecordingSink implements GridWatchCaptureEngine.Sink {
+		private GridWatchDecimator mDecimator;
+		private GridWatchAdpcmWriter mWriter;
+		private short[] mMono;
+		private File mFile = null;
+		private long mTime;
+
+		RecordingSink (int rate, int bufferSize) {
+			mDecimator = new GridWatchDecimator(SAMPLE_FREQUENCY, RECORDER_CHANNEL_COUNT, rate);
+			mWriter = new GridWatchAdpcmWriter(mDecimator.getOutputRate(), WAV_BUFFER_SIZE);
+			mMono = new short[mDecimator.maxOutput(bufferSize)];
+		}
 
-				if (!gwevent_done) {
-					done = false;
+		@Override
+		public void begin (long time) {
+			mTime = time;
+			mDecimator.reset();
+			if (mRecordings != null) {
+				mFile = mRecordings.file(time);
+				try {
+					// Make room for about what we're going to write
+					long samples = (long) mDecimator.getOutputRate() * RECORDER_TIME / 1000;
+					mRecordings.makeRoom(GridWatchAdpcmWriter.HEADER_SIZE + GridWatchAdpcmWriter.BLOCK_ALIGN
+							* (samples / GridWatchAdpcmWriter.SAMPLES_PER_BLOCK + 2));
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
+			} else {
+				File fileFolder = new File(Environment.getExternalStorageDirectory().getPath(), recordingFolder);
+				if (!fileFolder.exists()) fileFolder.mkdirs();
+				mFile = new File(fileFolder, time + recordingExtension);
 			}
-			*/
-			
-			for (int i = 0; i < mEvents.size(); i++) {
-				GridWatchEvent gwevent = mEvents.get(i);
-				boolean gwevent_done = gwevent.addAccelerometerSample(event.timestamp,
-						event.values[0], event.values[1], event.values[2]);
 
-				if (!gwevent_done) {
-					done = false;
-				}
+			try {
+				mWriter.open(mFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mFile = null;
 			}
-			
-			
-			/*
-			for(Iterator<GridWatchEvent> gwevent = mEvents.iterator(); gwevent.hasNext();){
-				GridWatchEvent cur = (GridWatchEvent) gwevent;
-				boolean gwevent_done = cur.addAccelerometerSample(event.timestamp,
-						event.values[0], event.values[1], event.values[2]);
-				if (!gwevent_done) {
-					done = false;
-				}
-			} 
-			*/
+		}
 
-			if (done) {
-				// All events are finished getting accelerometer samples, so go
-				// ahead and stop this listener
-				mSensorManager.unregisterListener(this);
+		@Override
+		public void write (byte[] buffer, int len) {
+			if (mFile == null) return;
+			try {
+				int samples = mDecimator.process(buffer, len, mMono);
+				mWriter.write(mMono, 0, samples);
+			} catch (IOException e) {
+				e.printStackTrace();
+				end();
 			}
 		}
 
+		@Override
+		public void end () {
+			if (mFile == null) return;
+			try {
+				mWriter.close();
+				if (mWriter.getSamples() == 0) {
+					// The microphone gave us nothing; don't keep an empty
+					// recording
+					Log.w(noteTag, "Nothing recorded, deleting " + mFile);
+					mFile.delete();
+				} else {
+					Log.w(noteTag, "Wrote " + mWriter.getSamples() + " samples at " + mDecimator.getOutputRate()
+							+ " Hz, " + mWriter.getFileLength() + " bytes to " + mFile);
+					if (mRecordings != null) {
+						mRecordings.add(mTime);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mFile = null;
+		}
 	}
 
-	// This thread handles getting audio data from the microphone
-	class GridWatchEventThread implements Runnable {
-		GridWatchEvent mThisEvent;
+	// Record what the mains detector heard, so recordings of the phone just
+	// being unplugged are the first to go. The events sharing a recording
+	// share its result, so the first of them to finish sets the verdict.
+	private void noteVerdict (long recordingTime, GridWatchEvent gwevent) {
+		if (mRecordings == null || recordingTime == 0) return;
+		float confidence = gwevent.getSixtyHzConfidence();
+		if (Float.isNaN(confidence)) return;
+		try {
+			if (confidence < GridWatchMainsDetector.HUM_THRESHOLD) {
+				mRecordings.setVerdict(recordingTime, GridWatchRecordingStore.VERDICT_OUTAGE);
+			} else if (mRecordings.getVerdict(recordingTime) == GridWatchRecordingStore.VERDICT_UNKNOWN) {
+				mRecordings.setVerdict(recordingTime, GridWatchRecordingStore.VERDICT_NOT_OUTAGE);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	// Save an alert to the outbox so it survives a failed POST or the
+	// service being killed, then have the transport's worker send
+	// everything pending if it is time to. Called on the event loop; the
+	// only I/O here is the local append.
+	//
+	// heartbeatOnly is set for watchdog events, which can wait for the
+	// next upload if alerts are already waiting for one
+	private void queueAlert (byte[] payload, boolean heartbeatOnly) {
+		if (mOutbox == null) {
+			Log.e("GridWatchService", "No outbox, dropping alert");
+			return;
+		}
+
+		try {
+			// Alerts already waiting will bring the radio up anyway, when
+			// connectivity returns or their batch is due
+			boolean uploadPending = !mOutbox.isEmpty();
+			mOutbox.append(payload);
+			mBatch.noteQueued(mClock.currentTimeMillis());
+			if (heartbeatOnly && uploadPending) {
+				mHeartbeat.notePiggybacked();
+				return;
+			}
 
-		public GridWatchEventThread (GridWatchEvent gwevent) {
-			mThisEvent = gwevent;
+			if (isBatchUpload()) {
+				// Hold the alert until the flush policy says the batch is
+				// ready, and make sure the age limit gets checked even if
+				// nothing else is queued.
+				long now = mClock.currentTimeMillis();
+				if (!mBatch.shouldFlush(mOutbox.pendingCount(), mOutbox.pendingBytes(), now, mOutboxRestored)) {
+					startBatchFlushTimer(mBatch.timeUntilDue(now));
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Log.e("GridWatchService", "Failed to add element to outbox: " + e.getMessage());
+			return;
 		}
 
+		queueDrainOutbox();
+	}
+
+	// This class handles iterating through a backlog of messages to send.
+	// The transport runs it on its worker thread whenever a drain is
+	// requested.
+	private class ProcessAlertQTask implements Runnable {
+
 		@Override
 		public void run() {
+			Log.d("GridWatchService", "ProcessAlertQTask Start");
 
-			// TODO should never be false... cut this off earlier. Hack
-			if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD) {
-				int recBufferSize = AudioRecord.getMinBufferSize(SAMPLE_FREQUENCY,
-						RECORDER_CHANNELS,
-						RECORDER_ENCODING);
-
-				mRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, 
-						SAMPLE_FREQUENCY,
-						RECORDER_CHANNELS,
-						RECORDER_ENCODING, 
-						recBufferSize*2);
+			if (mOutbox != null) {
+				drainOutbox();
+			}
+		}
+	}
 
-				// Set up the tmp file before WAV conversation
-				String tmpFilePath = Environment.getExternalStorageDirectory().getPath();
-				File fileFolder = new File(tmpFilePath, recordingFolder);
-				if (!fileFolder.exists()) fileFolder.mkdirs();
-				File tmpFile = new File(tmpFilePath, recordingFileTmpName);
-				if (!tmpFile.exists()) tmpFile.delete();
-				String tmpFileName = fileFolder.getAbsolutePath() + "/" + recordingFileTmpName;
+	// Ask the transport's worker to send whatever is in the outbox, unless
+	// it is already going to. Never blocks, so it is safe on any thread.
+	private void queueDrainOutbox () {
+		mTransport.requestDrain();
+	}
 
-				byte tmpData[] = new byte[recBufferSize];
-				FileOutputStream os = null;
-				try {
-					os = new FileOutputStream(tmpFileName);
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				}
+	// True if alerts should be grouped into batch uploads rather than sent
+	// as one POST each. The deployed server only understands single
+	// POSTs, so this is off unless the alert_server supports batches.
+	private boolean isBatchUpload () {
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		return settings.getBoolean("batch_upload", false);
+	}
 
-				// Get that recording going
-				if (mRecorder != null) {
-					mRecorder.startRecording();
-					Log.w(noteTag, "Starting Recording");
-				}
+	// True if batches should be sent in the compressed binary format of
+	// GridWatchCodec instead of as lines of forms. Only used in batch
+	// upload mode, and only for servers that understand it.
+	private boolean isBinaryUpload () {
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		return settings.getBoolean("binary_upload", false);
+	}
 
-				// Take RECORDER_TIME worth of data
-				int read = 0;
-				if (os != null) {
-					if (AudioRecord.ERROR_INVALID_OPERATION != read) {
-						long t = System.currentTimeMillis();
-						while (System.currentTimeMillis() - t <= RECORDER_TIME) {
-							read = mRecorder.read(tmpData, 0, recBufferSize);
-							try {
-								os.write(tmpData);
-							} catch (IOException e) {
-								e.printStackTrace();
-							}
-						}
-					}
-				}
-				Log.w(noteTag, "Done Recording");
+	// Create a timer to flush a waiting batch once its age limit is reached
+	private void startBatchFlushTimer (long delay) {
+		mEventHandler.removeCallbacks(mBatchFlushRunnable);
+		mEventHandler.postDelayed(mBatchFlushRunnable, delay);
+	}
 
-				// Stop recording
-				mRecorder.stop();
-				mRecorder.release();
+	private Runnable mBatchFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			queueDrainOutbox();
+		}
+	};
 
-				// Make a WAV file
-				recordingFileName = fileFolder.getAbsolutePath() + "/" + System.currentTimeMillis() + recordingExtension;	
+	// Send queued alerts oldest first, removing each from the outbox only
+	// after the server has taken it. Stops at the first network failure and
+	// leaves the rest for the next time we get connectivity.
+	private void drainOutbox () {
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		String alertServerURL = settings.getString("alert_server", getString(R.string.default_alert_server));
 
-				// Convert RAW to WAV
-				FileInputStream in = null;
-				FileOutputStream out = null;
-				long totalAudioLen = 0;
-				long totalDataLen = totalAudioLen + 36;
-				long longSampleRate = SAMPLE_FREQUENCY;
-				int channels = 2;
-				long byteRate = BIT_RATE * SAMPLE_FREQUENCY * channels/8;
+		// Only the transport's worker drains, so an alert is never sent
+		// twice. The outbox isn't locked across uploads, so the event loop
+		// can keep appending while this waits on the network.
+		boolean hadPending = !mOutbox.isEmpty();
+		if (hadPending) mHeartbeat.noteRadioSession();
+		try {
+			if (isBatchUpload() && isBinaryUpload()) {
+				postBinaryBatches(alertServerURL);
+			} else if (isBatchUpload()) {
+				postBatches(alertServerURL);
+			} else {
+				postSingles(alertServerURL);
+			}
+		} catch (IOException e) {
+			Log.d("GridWatchService", "IO Exception, leaving alerts queued for later delivery");
+		}
 
-				byte[] wavData = new byte[recBufferSize];
+		if (mOutbox.isEmpty()) {
+			mBatch.noteFlushed();
+			mOutboxRestored = false;
+			if (hadPending) mHeartbeat.noteDelivered(mClock.elapsedRealtime());
+		}
+	}
 
-				try {
-					in = new FileInputStream(tmpFileName);
-					out = new FileOutputStream(recordingFileName);
-					totalAudioLen = in.getChannel().size();
-					totalDataLen = totalAudioLen + 36;
+	// Send each queued alert as its own form POST. An alert is removed once
+	// the server takes it (2xx) or refuses it as bad (4xx); on anything else,
+	// such as the 503 of a server that is full, it stays queued like a
+	// refused batch and we stop until the next drain.
+	private void postSingles (String alertServerURL) throws IOException {
+		List<byte[]> pending;
+		while (!(pending = mOutbox.peek(1)).isEmpty()) {
+			byte[] form = toForm(pending.get(0));
+			if (form == null) {
+				mOutbox.ack(1);
+				continue;
+			}
 
-					WriteWavHeader(out, totalAudioLen, totalDataLen,
-							longSampleRate, channels, byteRate);
+			HttpPost httppost = new HttpPost(alertServerURL);
+			ByteArrayEntity postparams = new ByteArrayEntity(form);
+			postparams.setContentType(URLEncodedUtils.CONTENT_TYPE);
+			httppost.setEntity(postparams);
 
-					while(in.read(wavData) != -1){
-						out.write(wavData);
-					}
-					in.close();
-					out.close();
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+			try {
+				HttpResponse response = mTransport.execute(httppost);
+				//Log.d("GridWatchService", "POST response: " + response);
+				if (response.getEntity() != null) {
+					response.getEntity().consumeContent();
 				}
-				Log.w(noteTag, "Done Transfering TMP to WAV");
-
-				// Delete the tmp file
-				if (tmpFile.exists()) tmpFile.delete();
+				int status = response.getStatusLine().getStatusCode();
+				if (status >= 400 && status < 500) {
+					Log.w(errorTag, "Server rejected alert with " + response.getStatusLine() + ": " + new String(form, "UTF-8"));
+				} else if (status < 200 || status >= 300) {
+					Log.d("GridWatchService", "Alert refused with " + response.getStatusLine() + ", leaving alerts queued");
+					return;
+				}
+			} catch (ClientProtocolException e) {
+				// Retrying will not help with a malformed request
+				e.printStackTrace();
 			}
+			mOutbox.ack(1);
 		}
-	
-	}
-	
-	private void WriteWavHeader(
-			FileOutputStream out, long totalAudioLen,
-			long totalDataLen, long longSampleRate, int channels,
-			long byteRate) throws IOException {
-		
-		byte[] header = new byte[44];
-		
-        header[0] = 'R';  // RIFF/WAVE header
-        header[1] = 'I';
-        header[2] = 'F';
-        header[3] = 'F';
-        header[4] = (byte) (totalDataLen & 0xff);
-        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
-        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
-        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
-        header[8] = 'W';
-        header[9] = 'A';
-        header[10] = 'V';
-        header[11] = 'E';
-        header[12] = 'f';  // 'fmt ' chunk
-        header[13] = 'm';
-        header[14] = 't';
-        header[15] = ' ';
-        header[16] = 16;  // 4 bytes: size of 'fmt ' chunk
-        header[17] = 0;
-        header[18] = 0;
-        header[19] = 0;
-        header[20] = 1;  // format = 1
-        header[21] = 0;
-        header[22] = (byte) channels;
-        header[23] = 0;
-        header[24] = (byte) (longSampleRate & 0xff);
-        header[25] = (byte) ((longSampleRate >> 8) & 0xff);
-        header[26] = (byte) ((longSampleRate >> 16) & 0xff);
-        header[27] = (byte) ((longSampleRate >> 24) & 0xff);
-        header[28] = (byte) (byteRate & 0xff);
-        header[29] = (byte) ((byteRate >> 8) & 0xff);
-        header[30] = (byte) ((byteRate >> 16) & 0xff);
-        header[31] = (byte) ((byteRate >> 24) & 0xff);
-        header[32] = (byte) (2 * 16 / 8);  // block align
-        header[33] = 0;
-        header[34] = BIT_RATE;  // bits per sample
-        header[35] = 0;
-        header[36] = 'd';
-        header[37] = 'a';
-        header[38] = 't';
-        header[39] = 'a';
-        header[40] = (byte) (totalAudioLen & 0xff);
-        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
-        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
-        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
-
-        out.write(header, 0, 44);
-		
 	}
-	
-	
-	// Class that handles transmitting information about events. This
-	// operates asynchronously at some point in the future.
-	private class PostAlertTask extends AsyncTask<HttpPost, Void, Void> {
-		
-		// This gets called by the OS
-		@Override
-		protected Void doInBackground(HttpPost... httpposts) {
-			Log.w("GridWatchService", "PostAlertTask start");
 
-			HttpClient httpclient = new DefaultHttpClient();
+	// Send queued alerts several at a time. The server replies with which
+	// alerts it accepted; the rest were rejected outright so they are
+	// logged and dropped rather than retried forever.
+	private void postBatches (String alertServerURL) throws IOException {
+		List<byte[]> pending;
+		while (!(pending = mOutbox.peek(mBatch.getMaxEvents())).isEmpty()) {
+			List<byte[]> forms = new ArrayList<byte[]>(pending.size());
+			for (byte[] payload : pending) {
+				byte[] form = toForm(payload);
+				if (form == null) break;
+				forms.add(form);
+			}
+			if (forms.isEmpty()) {
+				// The oldest alert can't be read; drop it and carry on
+				mOutbox.ack(1);
+				continue;
+			}
 
-			try {
-				// Execute the HTTP POST request
-				@SuppressWarnings("unused")
-				HttpResponse response = httpclient.execute(httpposts[0]);
-				//Log.d("GridWatchService", "POST response: " + response);
+			byte[] body = mBatch.encode(forms);
+			int count = GridWatchBatch.countRecords(body);
 
-			} catch (ClientProtocolException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				// Handle when the POST fails
-				Log.d("GridWatchService", "IO Exception, queuing for later delivery");
-				if (mAlertQ.offer(httpposts[0]) == false) {
-					Log.e("GridWatchService", "Failed to add element to alertQ?");
-				}
+			HttpPost httppost = new HttpPost(alertServerURL);
+			ByteArrayEntity postparams = new ByteArrayEntity(body);
+			postparams.setContentType(GridWatchBatch.CONTENT_TYPE);
+			httppost.setEntity(postparams);
+
+			HttpResponse response = mTransport.execute(httppost);
+			String reply = "";
+			if (response.getEntity() != null) {
+				reply = EntityUtils.toString(response.getEntity());
+			}
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+				Log.d("GridWatchService", "Batch refused with " + response.getStatusLine() + ", leaving alerts queued");
+				return;
 			}
 
-			return null;
+			boolean[] accepted = GridWatchBatch.parseAccepted(reply, count);
+			for (int i = 0; i < count; i++) {
+				if (!accepted[i]) {
+					Log.w(errorTag, "Server rejected alert: " + new String(forms.get(i), "UTF-8"));
+				}
+			}
+			Log.d("GridWatchService", "Batch of " + count + " alerts sent in " + body.length + " bytes");
+			mOutbox.ack(count);
 		}
 	}
 
-	// This class handles iterating through a backlog of messages to send
-	// once Internet connectivity has been restored.
-	private class ProcessAlertQTask extends AsyncTask<Void, Void, Void> {
+	// Like postBatches, but each batch is sent as one deflated
+	// GridWatchCodec batch.
+	private void postBinaryBatches (String alertServerURL) throws IOException {
+		List<byte[]> pending;
+		while (!(pending = mOutbox.peek(mBatch.getMaxEvents())).isEmpty()) {
+			List<GridWatchAlert> alerts = new ArrayList<GridWatchAlert>(pending.size());
+			for (byte[] payload : pending) {
+				GridWatchAlert alert = toAlert(payload);
+				if (alert == null) break;
+				alerts.add(alert);
+			}
+			if (alerts.isEmpty()) {
+				mOutbox.ack(1);
+				continue;
+			}
 
-		@Override
-		protected Void doInBackground(Void... arg0) {
-			Log.d("GridWatchService", "ProcessAlertQTask Start");
+			byte[] body = mUploadCodec.encodeBatch(alerts, true);
+			int count = alerts.size();
 
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpPost post = null;
+			HttpPost httppost = new HttpPost(alertServerURL);
+			ByteArrayEntity postparams = new ByteArrayEntity(body);
+			postparams.setContentType(GridWatchCodec.CONTENT_TYPE);
+			httppost.setEntity(postparams);
 
-			try {
-				while (mAlertQ.size() > 0) {
-					post = mAlertQ.poll();
-					if (post == null) {
-						break;
-					}
-					@SuppressWarnings("unused")
-					HttpResponse response = httpclient.execute(post);
-					//Log.d("GridWatchService", "POST response: " + response);
-				}
-			} catch (ClientProtocolException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				//e.printStackTrace();
-				Log.d("GridWatchService", "IO Exception, queuing for later delivery");
-				if (post == null) {
-					Log.w("GridWatchService", "Caught post is null?");
-				} else if (mAlertQ.offer(post) == false) {
-					// Worth noting the lack of offerFirst will put elements in
-					// the alertQ out of order w.r.t. when they first fired, but
-					// the server will re-order based on timestamp anyway
-					Log.e("GridWatchService", "Failed to add element to alertQ?");
+			HttpResponse response = mTransport.execute(httppost);
+			String reply = "";
+			if (response.getEntity() != null) {
+				reply = EntityUtils.toString(response.getEntity());
+			}
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+				Log.d("GridWatchService", "Batch refused with " + response.getStatusLine() + ", leaving alerts queued");
+				return;
+			}
+
+			boolean[] accepted = GridWatchBatch.parseAccepted(reply, count);
+			for (int i = 0; i < count; i++) {
+				if (!accepted[i]) {
+					Log.w(errorTag, "Server rejected alert: " + alerts.get(i).toForm());
 				}
 			}
+			Log.d("GridWatchService", "Binary batch of " + count + " alerts sent in " + body.length + " bytes");
+			mOutbox.ack(count);
+		}
+	}
+
+	// Read an outbox payload. Alerts queued by older versions of the app
+	// are stored as forms. Returns null if the payload can't be read.
+	private GridWatchAlert toAlert (byte[] payload) {
+		try {
+			if (GridWatchCodec.isEncoded(payload)) {
+				return mUploadCodec.decode(payload);
+			}
+			GridWatchAlert alert = GridWatchAlert.fromForm(new String(payload, "UTF-8"));
+			if (alert != null) return alert;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Log.e(errorTag, "Dropping unreadable alert of " + payload.length + " bytes");
+		return null;
+	}
 
-			return null;
+	// The form to POST for an outbox payload, or null if it can't be read
+	private byte[] toForm (byte[] payload) throws UnsupportedEncodingException {
+		if (!GridWatchCodec.isEncoded(payload)) {
+			return payload;
 		}
+		GridWatchAlert alert = toAlert(payload);
+		if (alert == null) return null;
+		return alert.toForm().getBytes("UTF-8");
 	}
 
 	// Function to call to notify the server than an event happened on this phone.
@@ -659,83 +1023,11 @@ public class GridWatchService extends Service implements SensorEventListener {
 		
 		Log.w(noteTag, "postEvent Hit");
 		
-		List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(15);
-		List<NameValuePair> dumbPairs = new ArrayList<NameValuePair>(4);
-
-
-		// Get the url of the server to post to
-		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-		String alertServerURL = settings.getString("alert_server", getString(R.string.default_alert_server));
-
-		// Get basics from the event
-		nameValuePairs.add(new BasicNameValuePair("time", String.valueOf(gwevent.getTimestampMilli())));
-		nameValuePairs.add(new BasicNameValuePair("event_type", gwevent.getEventType()));
-		
-		dumbPairs.add(new BasicNameValuePair("t", String.valueOf(gwevent.getTimestampMilli())));
-		dumbPairs.add(new BasicNameValuePair("e", gwevent.getEventType().substring(0, 1)));
-
-		// Get the phone's current location
-		Location gpsLocation = getLocationByProvider(LocationManager.GPS_PROVIDER);
-		if (gpsLocation != null) {
-			nameValuePairs.add(new BasicNameValuePair("gps_latitude", String.valueOf(gpsLocation.getLatitude())));
-			nameValuePairs.add(new BasicNameValuePair("gps_longitude", String.valueOf(gpsLocation.getLongitude())));
-			nameValuePairs.add(new BasicNameValuePair("gps_accuracy", String.valueOf(gpsLocation.getAccuracy())));
-			nameValuePairs.add(new BasicNameValuePair("gps_time", String.valueOf(gpsLocation.getTime())));
-			nameValuePairs.add(new BasicNameValuePair("gps_altitude", String.valueOf(gpsLocation.getAltitude())));
-			nameValuePairs.add(new BasicNameValuePair("gps_speed", String.valueOf(gpsLocation.getSpeed())));
-			
-			dumbPairs.add(new BasicNameValuePair("l", String.valueOf(gpsLocation.getLatitude())));
-			dumbPairs.add(new BasicNameValuePair("n", String.valueOf(gpsLocation.getLongitude())));
-			dumbPairs.add(new BasicNameValuePair("a", String.valueOf(gpsLocation.getAccuracy())));
-			dumbPairs.add(new BasicNameValuePair("g", String.valueOf(gpsLocation.getTime())));
-		}
-		Location networkLocation = getLocationByProvider(LocationManager.NETWORK_PROVIDER);
-		if (networkLocation != null) {
-			nameValuePairs.add(new BasicNameValuePair("network_latitude", String.valueOf(networkLocation.getLatitude())));
-			nameValuePairs.add(new BasicNameValuePair("network_longitude", String.valueOf(networkLocation.getLongitude())));
-			nameValuePairs.add(new BasicNameValuePair("network_accuracy", String.valueOf(networkLocation.getAccuracy())));
-			nameValuePairs.add(new BasicNameValuePair("network_time", String.valueOf(networkLocation.getTime())));
-			nameValuePairs.add(new BasicNameValuePair("network_altitude", String.valueOf(networkLocation.getAltitude())));
-			nameValuePairs.add(new BasicNameValuePair("network_speed", String.valueOf(networkLocation.getSpeed())));
-		}
-
-		// Determine if we are on wifi, mobile, or have no connection
-		String connection_type = "unknown";
-		ConnectivityManager cm = (ConnectivityManager) getBaseContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-		if (cm != null) {
-			NetworkInfo active_net_info = cm.getActiveNetworkInfo();
-			if (active_net_info != null) {
-				if (active_net_info.isConnected()) {
-					if (active_net_info.getType() == ConnectivityManager.TYPE_WIFI) {
-						connection_type = "wifi";
-					} else if (active_net_info.getType() == ConnectivityManager.TYPE_MOBILE) {
-						connection_type = "mobile";
-					} else {
-						connection_type = "other";
-					}
-				} else {
-					connection_type = "disconnected";
-				}
-			}
-		}
-		nameValuePairs.add(new BasicNameValuePair("network", connection_type));
-		dumbPairs.add(new BasicNameValuePair("c", connection_type.substring(0, 1)));
-		
-		// Add any other key value pairs that the event needs to append
-		nameValuePairs.addAll(gwevent.getNameValuePairs());
+		GridWatchEventRecord record = new GridWatchEventRecord();
+		GridWatchAlert alert = mAlertBuilder.build(gwevent, mGWID.get_last_value(), record);
 
 		// Fill in other values to send to the server
-		nameValuePairs.add(new BasicNameValuePair("id", Secure.getString(getBaseContext().getContentResolver(), Secure.ANDROID_ID)));
-		dumbPairs.add(new BasicNameValuePair("h", Secure.getString(getBaseContext().getContentResolver(), Secure.ANDROID_ID).subSequence(0, 3).toString()));
-		
-		mGWID = new GridWatchID();
-		dumbPairs.add(new BasicNameValuePair("u", mGWID.get_last_value()));
-		
-		try {
-			dumbPairs.add(new BasicNameValuePair("v", getPackageManager().getPackageInfo(getPackageName(), 0).versionName.replace(".", "")));
-		} catch (NameNotFoundException e) {
-			dumbPairs.add(new BasicNameValuePair("v", "u"));
-		}
+		record.id = mAndroidId;
 		
 		/*
 		nameValuePairs.add(new BasicNameValuePair("phone_type", getDeviceName()));
@@ -748,35 +1040,20 @@ public class GridWatchService extends Service implements SensorEventListener {
 		}
 		*/
 
-		HttpPost httppost = new HttpPost(alertServerURL);
-		try {
-			UrlEncodedFormEntity postparams = new UrlEncodedFormEntity(dumbPairs);
-			httppost.setEntity(postparams);
-
-		} catch (UnsupportedEncodingException e1) {
-			e1.printStackTrace();
-		}
+		// Serialize the alert now so it can be stored in the outbox
+		byte[] payload = mEventCodec.encode(alert);
 
+		// The activity gets the fields it shows as typed extras, so nothing
+		// is formatted or parsed on the way
 		Intent lIntent = new Intent(INTENT_NAME);
 		lIntent.putExtra(INTENT_EXTRA_EVENT_TYPE, "event_post");
-		String post_info = "";
-		
-		for (int i = 0; i < nameValuePairs.size(); i++) {
-			NameValuePair item = nameValuePairs.get(i);
-			post_info += item.getName() + "=" + item.getValue() + ", ";
-		}
-		
-		/*
-		for (NameValuePair item : nameValuePairs) {
-			post_info += item.getName() + "=" + item.getValue() + ", ";
-		}
-		*/
-		
-		lIntent.putExtra(INTENT_EXTRA_EVENT_INFO, post_info);
-		lIntent.putExtra(INTENT_EXTRA_EVENT_TIME, mDateFormat.format(new Date()));
+		lIntent.putExtra(GridWatchEventRecord.KEY_TIME, record.time);
+		lIntent.putExtra(GridWatchEventRecord.KEY_EVENT_TYPE, record.eventType);
+		lIntent.putExtra(GridWatchEventRecord.KEY_MOVED, record.moved);
+		lIntent.putExtra(GridWatchEventRecord.KEY_SIXTY_HZ, record.sixtyHz);
 		broadcastIntent(lIntent);
 
-		mGWLogger.log(mDateFormat.format(new Date()), "event_post", post_info);
+		mGWLogger.log("event_post", record.appendTo(new StringBuilder(512)).toString());
 
 		// Debug
 		/*
@@ -785,13 +1062,10 @@ public class GridWatchService extends Service implements SensorEventListener {
 		}
 		*/
 		
-		for (int i = 0; i < dumbPairs.size(); i++) {
-			NameValuePair item = dumbPairs.get(i);
-			Log.w(noteTag, item.getName() + "=" + item.getValue());
-		}
+		Log.w(noteTag, alert.toForm());
 		
-		// Create the task to run in the background at some point in the future
-		new PostAlertTask().execute(httppost);
+		// Save it and let the transport's worker send it
+		queueAlert(payload, "wd".equals(gwevent.getEventType()));
 	}
 
 	// Returns the phone type for adding meta data to the transmitted packets
@@ -817,16 +1091,6 @@ public class GridWatchService extends Service implements SensorEventListener {
 		}
 	}
 
-	private Location getLocationByProvider(String provider) {
-		Location location = null;
-		try {
-			if (mLocationManager.isProviderEnabled(provider)) {
-				location = mLocationManager.getLastKnownLocation(provider);
-			}
-		} catch (IllegalArgumentException e) { }
-		return location;
-	}
-
 	@Override
 	public IBinder onBind(Intent arg0) {
 		// Service does not allow binding
@@ -838,27 +1102,9 @@ public class GridWatchService extends Service implements SensorEventListener {
 		// We don't really care about sensor accuracy that much; ignore
 	}
 
-	// Call to generate listeners that request the phones location.
+	// Ask for a new location if the one we have is stale. The cache keeps
+	// at most one request per provider going, however often this is called.
 	private void updateLocation () {
-
-		for (String s : mLocationManager.getAllProviders()) {
-			mLocationManager.requestLocationUpdates(s, LOCATION_WAIT_TIME, 0.0f, new LocationListener() {
-
-				@Override
-				public void onLocationChanged(Location location) {
-					// Once we get a new location cancel our location updating
-					mLocationManager.removeUpdates(this);
-				}
-
-				@Override
-				public void onProviderDisabled(String provider) { }
-
-				@Override
-				public void onProviderEnabled(String provider) { }
-
-				@Override
-				public void onStatusChanged(String provider, int status, Bundle extras) { }
-			});
-		}
+		mEventHandler.post(mLocationRefreshRunnable);
 	}
 }
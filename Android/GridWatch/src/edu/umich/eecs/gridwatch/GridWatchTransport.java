@@ -0,0 +1,195 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+// The one path all uploads to the alert server go through. It owns a single
+// HTTP client with a small connection pool so consecutive alerts reuse the
+// same TCP connection instead of paying connection setup (and sometimes a
+// DNS lookup) every time, and a single worker thread so uploads never race
+// each other on the network.
+//
+// The worker has one job: draining the outbox. Callers save their alerts
+// to the outbox themselves and then ask for a drain, which never blocks
+// and never runs on the caller, so the main thread and the event loop
+// never wait on the network.
+public class GridWatchTransport {
+
+	private final static String TAG = "GridWatchTransport";
+
+	// Uploads all go to one host, so a couple of connections is plenty
+	private final static int MAX_CONNECTIONS = 2;
+
+	private final static int CONNECT_TIMEOUT = 15000;
+	private final static int SOCKET_TIMEOUT = 30000;
+
+	// How long to hold an idle connection open if the server doesn't say
+	private final static long KEEP_ALIVE_DEFAULT = 30000l;
+
+	// How long shutdown() lets a drain finish before aborting its request,
+	// and then waits for it to stop. onDestroy runs on the main thread.
+	private final static long SHUTDOWN_DRAIN_WAIT = 2000l;
+	private final static long SHUTDOWN_ABORT_WAIT = 1000l;
+
+	private ThreadSafeClientConnManager mConnManager;
+	private DefaultHttpClient mHttpClient;
+	private ThreadPoolExecutor mExecutor;
+
+	// Sends everything in the outbox; run on the worker
+	private Runnable mDrain;
+
+	// Set while a drain is waiting to start. A drain sends everything
+	// queued before it starts, so there is never a reason to queue two.
+	private AtomicBoolean mDrainQueued = new AtomicBoolean(false);
+
+	// Request latency statistics, in milliseconds
+	private long mRequestCount = 0;
+	private long mFailureCount = 0;
+	private long mLatencyTotal = 0;
+	private long mLatencyMin = Long.MAX_VALUE;
+	private long mLatencyMax = 0;
+	private long mFirstLatency = -1;
+
+	public GridWatchTransport (Runnable drain) {
+		mDrain = drain;
+
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		mConnManager = new ThreadSafeClientConnManager(params, schemes);
+		mHttpClient = new DefaultHttpClient(mConnManager, params);
+		mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = new DefaultConnectionKeepAliveStrategy().getKeepAliveDuration(response, context);
+				return (duration > 0) ? duration : KEEP_ALIVE_DEFAULT;
+			}
+		});
+
+		// At most one drain is ever queued. Drains asked for after shutdown
+		// are dropped; whatever they would have sent stays in the outbox.
+		mExecutor = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	// Have the worker drain the outbox. Returns at once, and requests made
+	// while a drain is already waiting to start are folded into it.
+	public void requestDrain () {
+		if (mDrainQueued.compareAndSet(false, true)) {
+			mExecutor.execute(mDrainTask);
+		}
+	}
+
+	private Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			// Cleared first, so an alert saved while this drain runs gets a
+			// drain of its own
+			mDrainQueued.set(false);
+			mDrain.run();
+		}
+	};
+
+	// Execute a request on the shared client. Call this from the worker
+	// thread. The caller must consume the response entity so the connection
+	// can go back to the pool.
+	public HttpResponse execute (HttpUriRequest request) throws IOException {
+		long start = System.currentTimeMillis();
+		try {
+			HttpResponse response = mHttpClient.execute(request);
+			recordLatency(System.currentTimeMillis() - start);
+			return response;
+		} catch (IOException e) {
+			synchronized (this) {
+				mFailureCount++;
+			}
+			throw e;
+		} finally {
+			// Don't let a connection the server has dropped linger in the pool
+			mConnManager.closeExpiredConnections();
+		}
+	}
+
+	private synchronized void recordLatency (long latency) {
+		if (mFirstLatency < 0) {
+			mFirstLatency = latency;
+		}
+		mRequestCount++;
+		mLatencyTotal += latency;
+		mLatencyMin = Math.min(mLatencyMin, latency);
+		mLatencyMax = Math.max(mLatencyMax, latency);
+		Log.d(TAG, "request took " + latency + " ms, " + getLatencyReport());
+	}
+
+	// Summary of request latencies. The first request always has to open a
+	// connection, so comparing it to the average shows what reuse saves.
+	public synchronized String getLatencyReport () {
+		if (mRequestCount == 0) {
+			return "no requests, " + mFailureCount + " failed";
+		}
+		return "requests=" + mRequestCount
+				+ " failed=" + mFailureCount
+				+ " first=" + mFirstLatency
+				+ " avg=" + (mLatencyTotal / mRequestCount)
+				+ " min=" + mLatencyMin
+				+ " max=" + mLatencyMax;
+	}
+
+	// Stop the worker. A drain already running gets a moment to finish, and
+	// then its request is aborted by closing the connections. Returns false
+	// if the worker is still running after that, in which case it may still
+	// be using the outbox.
+	public boolean shutdown () {
+		Log.d(TAG, "shutting down, " + getLatencyReport());
+		mExecutor.shutdown();
+		boolean stopped = awaitWorker(SHUTDOWN_DRAIN_WAIT);
+		mConnManager.shutdown();
+		if (!stopped) {
+			stopped = awaitWorker(SHUTDOWN_ABORT_WAIT);
+		}
+		if (!stopped) {
+			Log.w(TAG, "upload worker still running after shutdown");
+		}
+		return stopped;
+	}
+
+	private boolean awaitWorker (long timeoutMs) {
+		try {
+			return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return mExecutor.isTerminated();
+		}
+	}
+}
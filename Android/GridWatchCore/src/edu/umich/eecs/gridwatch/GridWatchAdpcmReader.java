@@ -0,0 +1,139 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Decodes a recording written by GridWatchAdpcmWriter (or any mono IMA
+// ADPCM WAV file) back into 16-bit samples, and can write those out as a
+// plain PCM WAV file. Recordings are a few kilobytes, so the whole file
+// is read at once.
+public class GridWatchAdpcmReader {
+
+	private int mSampleRate;
+	private short[] mSamples;
+
+	public GridWatchAdpcmReader (File file) throws IOException {
+		byte[] bytes;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.remaining() < 12 || buffer.getInt(0) != 0x46464952 || buffer.getInt(8) != 0x45564157) {
+			throw new IOException(file + " is not a WAV file");
+		}
+		buffer.position(12);
+
+		int blockAlign = 0;
+		int samplesPerBlock = 0;
+		int factSamples = -1;
+		int dataStart = -1;
+		int dataLength = 0;
+		while (buffer.remaining() >= 8) {
+			int id = buffer.getInt();
+			int size = buffer.getInt();
+			int start = buffer.position();
+			if (size < 0 || size > buffer.remaining()) size = buffer.remaining();
+
+			if (id == 0x20746d66) {  // 'fmt '
+				short format = buffer.getShort();
+				short channels = buffer.getShort();
+				if (format != GridWatchAdpcmWriter.FORMAT_IMA_ADPCM || channels != 1) {
+					throw new IOException(file + " is not mono IMA ADPCM");
+				}
+				mSampleRate = buffer.getInt();
+				buffer.getInt();  // byte rate
+				blockAlign = buffer.getShort() & 0xffff;
+				buffer.getShort();  // bits per sample
+				samplesPerBlock = (blockAlign - 4) * 2 + 1;
+				if (size >= 20) {
+					buffer.getShort();
+					samplesPerBlock = buffer.getShort() & 0xffff;
+				}
+			} else if (id == 0x74636166) {  // 'fact'
+				factSamples = buffer.getInt();
+			} else if (id == 0x61746164) {  // 'data'
+				dataStart = start;
+				dataLength = size;
+			}
+			buffer.position(start + size + (size & 1));
+		}
+		if (blockAlign <= 4 || dataStart < 0) {
+			throw new IOException(file + " has no format or no samples");
+		}
+
+		int blocks = (dataLength + blockAlign - 1) / blockAlign;
+		short[] samples = new short[blocks * samplesPerBlock];
+		int count = 0;
+		for (int b = 0; b < blocks; b++) {
+			int pos = dataStart + b * blockAlign;
+			int end = Math.min(pos + blockAlign, dataStart + dataLength);
+			if (end - pos < 4) break;
+			count = decodeBlock(bytes, pos, end, samplesPerBlock, samples, count);
+		}
+		if (factSamples >= 0 && factSamples < count) count = factSamples;
+
+		mSamples = new short[count];
+		System.arraycopy(samples, 0, mSamples, 0, count);
+	}
+
+	public int getSampleRate () {
+		return mSampleRate;
+	}
+
+	public short[] getSamples () {
+		return mSamples;
+	}
+
+	// Write the samples out as 16-bit mono PCM
+	public void writeWav (File file) throws IOException {
+		GridWatchWavWriter wav = new GridWatchWavWriter(mSampleRate, 1, 16, 32 * 1024);
+		byte[] chunk = new byte[8192];
+		wav.open(file);
+		try {
+			for (int i = 0; i < mSamples.length; ) {
+				int n = 0;
+				for (; n < chunk.length && i < mSamples.length; n += 2, i++) {
+					chunk[n] = (byte) mSamples[i];
+					chunk[n + 1] = (byte) (mSamples[i] >> 8);
+				}
+				wav.write(chunk, 0, n);
+			}
+		} finally {
+			wav.close();
+		}
+	}
+
+	private static int decodeBlock (byte[] bytes, int pos, int end, int samplesPerBlock, short[] out, int count) {
+		int predictor = (short) ((bytes[pos] & 0xff) | (bytes[pos + 1] << 8));
+		int index = Math.min(Math.max(bytes[pos + 2], 0), 88);
+		out[count++] = (short) predictor;
+
+		int left = samplesPerBlock - 1;
+		for (int p = pos + 4; p < end && left > 0; p++) {
+			for (int shift = 0; shift < 8 && left > 0; shift += 4, left--) {
+				int nibble = (bytes[p] >> shift) & 0xf;
+				int step = GridWatchAdpcmWriter.STEP_TABLE[index];
+				int delta = step >> 3;
+				if ((nibble & 4) != 0) delta += step;
+				if ((nibble & 2) != 0) delta += step >> 1;
+				if ((nibble & 1) != 0) delta += step >> 2;
+				predictor += ((nibble & 8) != 0) ? -delta : delta;
+				if (predictor > Short.MAX_VALUE) predictor = Short.MAX_VALUE;
+				else if (predictor < Short.MIN_VALUE) predictor = Short.MIN_VALUE;
+				index += GridWatchAdpcmWriter.INDEX_TABLE[nibble];
+				if (index < 0) index = 0;
+				else if (index > 88) index = 88;
+				out[count++] = (short) predictor;
+			}
+		}
+		return count;
+	}
+}
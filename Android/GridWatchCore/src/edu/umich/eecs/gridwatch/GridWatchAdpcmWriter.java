@@ -0,0 +1,215 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Writes mono 16-bit samples as IMA ADPCM in a WAV file (format tag 0x11),
+// four bits a sample, in one pass like GridWatchWavWriter. Most audio tools
+// play these as they are, and GridWatchAdpcmReader turns them back into
+// plain PCM WAV.
+//
+// Samples go in blocks of BLOCK_ALIGN bytes. Each block starts with a
+// sample stored as is and the encoder's step index, so a damaged block
+// doesn't spoil the ones after it. The last block is padded with its last
+// sample; the 'fact' chunk holds the real number of samples.
+public class GridWatchAdpcmWriter {
+
+	public final static short FORMAT_IMA_ADPCM = 0x11;
+
+	public final static int BLOCK_ALIGN = 256;
+	public final static int SAMPLES_PER_BLOCK = (BLOCK_ALIGN - 4) * 2 + 1;
+
+	// RIFF + 'fmt ' (20 bytes) + 'fact' (4 bytes) + 'data' headers
+	public final static int HEADER_SIZE = 12 + 8 + 20 + 8 + 4 + 8;
+
+	final static int[] STEP_TABLE = {
+		7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+		50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+		253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+		1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+		3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442,
+		11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794,
+		32767
+	};
+
+	final static int[] INDEX_TABLE = { -1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8 };
+
+	private int mSampleRate;
+
+	private ByteBuffer mBuffer;
+	private ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	private RandomAccessFile mFile = null;
+	private FileChannel mChannel = null;
+	private long mSamples = 0;
+	private long mDataLength = 0;
+
+	// Encoder state and the block being filled
+	private byte[] mBlock = new byte[BLOCK_ALIGN];
+	private int mBlockSamples = 0;
+	private int mPredictor = 0;
+	private int mIndex = 0;
+
+	// bufferSize is rounded down to whole blocks
+	public GridWatchAdpcmWriter (int sampleRate, int bufferSize) {
+		mSampleRate = sampleRate;
+		mBuffer = ByteBuffer.allocateDirect(Math.max(1, bufferSize / BLOCK_ALIGN) * BLOCK_ALIGN);
+	}
+
+	public void open (File file) throws IOException {
+		if (mChannel != null) {
+			throw new IOException("ADPCM writer is already open");
+		}
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+		mChannel.position(HEADER_SIZE);
+		mBuffer.clear();
+		mSamples = 0;
+		mDataLength = 0;
+		mBlockSamples = 0;
+		mIndex = 0;
+	}
+
+	// Append len samples
+	public void write (short[] samples, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			add(samples[i]);
+		}
+		mSamples += len;
+	}
+
+	// Pad out the last block, fill in the header, and close the file
+	public void close () throws IOException {
+		if (mChannel == null) return;
+		try {
+			if (mBlockSamples > 0) {
+				short last = (short) mPredictor;
+				while (mBlockSamples > 0) add(last);
+			}
+			flushBuffer();
+			writeHeader();
+		} finally {
+			mChannel.close();
+			mFile.close();
+			mChannel = null;
+			mFile = null;
+		}
+	}
+
+	// Number of samples written to the current file
+	public long getSamples () {
+		return mSamples;
+	}
+
+	// Number of bytes of the current file, header included
+	public long getFileLength () {
+		return HEADER_SIZE + mDataLength;
+	}
+
+	private void add (short sample) throws IOException {
+		if (mBlockSamples == 0) {
+			// Block header: the sample as is, the step index, a zero byte
+			mPredictor = sample;
+			mBlock[0] = (byte) sample;
+			mBlock[1] = (byte) (sample >> 8);
+			mBlock[2] = (byte) mIndex;
+			mBlock[3] = 0;
+		} else {
+			int nibble = encode(sample);
+			int n = mBlockSamples - 1;
+			int pos = 4 + (n >> 1);
+			if ((n & 1) == 0) {
+				mBlock[pos] = (byte) nibble;
+			} else {
+				mBlock[pos] |= (byte) (nibble << 4);
+			}
+		}
+
+		if (++mBlockSamples == SAMPLES_PER_BLOCK) {
+			mBuffer.put(mBlock);
+			mDataLength += BLOCK_ALIGN;
+			mBlockSamples = 0;
+			if (!mBuffer.hasRemaining()) {
+				flushBuffer();
+			}
+		}
+	}
+
+	private int encode (int sample) {
+		int step = STEP_TABLE[mIndex];
+		int diff = sample - mPredictor;
+		int nibble = 0;
+		if (diff < 0) {
+			nibble = 8;
+			diff = -diff;
+		}
+
+		int delta = step >> 3;
+		if (diff >= step) {
+			nibble |= 4;
+			diff -= step;
+			delta += step;
+		}
+		step >>= 1;
+		if (diff >= step) {
+			nibble |= 2;
+			diff -= step;
+			delta += step;
+		}
+		step >>= 1;
+		if (diff >= step) {
+			nibble |= 1;
+			delta += step;
+		}
+
+		// Track what the decoder will reconstruct, not the input
+		mPredictor += ((nibble & 8) != 0) ? -delta : delta;
+		if (mPredictor > Short.MAX_VALUE) mPredictor = Short.MAX_VALUE;
+		else if (mPredictor < Short.MIN_VALUE) mPredictor = Short.MIN_VALUE;
+		mIndex += INDEX_TABLE[nibble];
+		if (mIndex < 0) mIndex = 0;
+		else if (mIndex > 88) mIndex = 88;
+		return nibble;
+	}
+
+	private void flushBuffer () throws IOException {
+		mBuffer.flip();
+		while (mBuffer.hasRemaining()) {
+			mChannel.write(mBuffer);
+		}
+		mBuffer.clear();
+	}
+
+	private void writeHeader () throws IOException {
+		mHeader.clear();
+		mHeader.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+		mHeader.putInt((int) (mDataLength + HEADER_SIZE - 8));
+		mHeader.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+		mHeader.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+		mHeader.putInt(20);  // size of 'fmt ' chunk
+		mHeader.putShort(FORMAT_IMA_ADPCM);
+		mHeader.putShort((short) 1);  // mono
+		mHeader.putInt(mSampleRate);
+		mHeader.putInt((int) ((long) mSampleRate * BLOCK_ALIGN / SAMPLES_PER_BLOCK));  // byte rate
+		mHeader.putShort((short) BLOCK_ALIGN);
+		mHeader.putShort((short) 4);  // bits per sample
+		mHeader.putShort((short) 2);  // size of the extra format bytes
+		mHeader.putShort((short) SAMPLES_PER_BLOCK);
+		mHeader.put((byte) 'f').put((byte) 'a').put((byte) 'c').put((byte) 't');
+		mHeader.putInt(4);
+		mHeader.putInt((int) mSamples);
+		mHeader.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+		mHeader.putInt((int) mDataLength);
+		mHeader.flip();
+
+		mChannel.position(0);
+		while (mHeader.hasRemaining()) {
+			mChannel.write(mHeader);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+// The fields we send to the alert server for one event. These are the
+// short form fields ("t", "e", "l", ...) the server has always taken, kept
+// as values rather than strings so they can be sent either as a form or
+// through GridWatchCodec.
+public class GridWatchAlert {
+
+	// Event time in milliseconds since the epoch
+	public long time;
+
+	// First letter of the event type, e.g. 'u' for unplugged
+	public char eventType;
+
+	// Location, only meaningful if hasLocation is set
+	public boolean hasLocation;
+	public double latitude;
+	public double longitude;
+	public float accuracy;
+	public long locationTime;
+
+	// Number of power transitions this alert stands for, and when the
+	// first and last of them happened, if it summarizes a burst of flaps
+	public int flaps;
+	public long flapFirst;
+	public long flapLast;
+
+	// What the unplug recording measured of the grid, if hasMains is set:
+	// frequency in Hz, hum level in dBFS, 2nd and 3rd harmonic to
+	// fundamental ratios and the hum's SNR in dB
+	public boolean hasMains;
+	public float mainsHz;
+	public float humDb;
+	public float harmonic2;
+	public float harmonic3;
+	public float humSnr;
+
+	// First letter of the connection type, e.g. 'w' for wifi
+	public char connection;
+
+	// Start of the phone's ANDROID_ID, the user's GridWatch ID and the app
+	// version without dots
+	public String hash;
+	public String id;
+	public String version;
+
+	// The form for this alert, with the fields in the order the app has
+	// always sent them
+	public String toForm () {
+		StringBuilder form = new StringBuilder(160);
+		appendField(form, "t", String.valueOf(time));
+		appendField(form, "e", String.valueOf(eventType));
+		if (hasLocation) {
+			appendField(form, "l", String.valueOf(latitude));
+			appendField(form, "n", String.valueOf(longitude));
+			appendField(form, "a", String.valueOf(accuracy));
+			appendField(form, "g", String.valueOf(locationTime));
+		}
+		appendField(form, "c", String.valueOf(connection));
+		appendField(form, "h", hash);
+		appendField(form, "u", id);
+		appendField(form, "v", version);
+		if (flaps > 0) {
+			appendField(form, "f", String.valueOf(flaps));
+			appendField(form, "fb", String.valueOf(flapFirst));
+			appendField(form, "fe", String.valueOf(flapLast));
+		}
+		if (hasMains) {
+			appendField(form, "mh", String.valueOf(mainsHz));
+			appendField(form, "md", String.valueOf(humDb));
+			appendField(form, "m2", String.valueOf(harmonic2));
+			appendField(form, "m3", String.valueOf(harmonic3));
+			appendField(form, "ms", String.valueOf(humSnr));
+		}
+		return form.toString();
+	}
+
+	// Build an alert from a form, e.g. a form payload queued by an older
+	// version of the app. Returns null if a required field is missing or
+	// unreadable.
+	public static GridWatchAlert fromForm (String form) {
+		GridWatchAlert alert = new GridWatchAlert();
+		alert.hash = "";
+		alert.id = "";
+		alert.version = "";
+		boolean hasTime = false;
+		boolean hasType = false;
+		try {
+			for (String field : form.split("&")) {
+				int eq = field.indexOf('=');
+				if (eq < 0) continue;
+				String name = URLDecoder.decode(field.substring(0, eq), "UTF-8");
+				String value = URLDecoder.decode(field.substring(eq + 1), "UTF-8");
+				if (name.equals("t")) {
+					alert.time = Long.parseLong(value);
+					hasTime = true;
+				} else if (name.equals("e") && value.length() > 0) {
+					alert.eventType = value.charAt(0);
+					hasType = true;
+				} else if (name.equals("l")) {
+					alert.latitude = Double.parseDouble(value);
+					alert.hasLocation = true;
+				} else if (name.equals("n")) {
+					alert.longitude = Double.parseDouble(value);
+				} else if (name.equals("a")) {
+					alert.accuracy = Float.parseFloat(value);
+				} else if (name.equals("g")) {
+					alert.locationTime = Long.parseLong(value);
+				} else if (name.equals("c") && value.length() > 0) {
+					alert.connection = value.charAt(0);
+				} else if (name.equals("h")) {
+					alert.hash = value;
+				} else if (name.equals("u")) {
+					alert.id = value;
+				} else if (name.equals("v")) {
+					alert.version = value;
+				} else if (name.equals("f")) {
+					alert.flaps = Integer.parseInt(value);
+				} else if (name.equals("fb")) {
+					alert.flapFirst = Long.parseLong(value);
+				} else if (name.equals("fe")) {
+					alert.flapLast = Long.parseLong(value);
+				} else if (name.equals("mh")) {
+					alert.mainsHz = Float.parseFloat(value);
+					alert.hasMains = true;
+				} else if (name.equals("md")) {
+					alert.humDb = Float.parseFloat(value);
+				} else if (name.equals("m2")) {
+					alert.harmonic2 = Float.parseFloat(value);
+				} else if (name.equals("m3")) {
+					alert.harmonic3 = Float.parseFloat(value);
+				} else if (name.equals("ms")) {
+					alert.humSnr = Float.parseFloat(value);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			// A bad number or % escape
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+		return (hasTime && hasType) ? alert : null;
+	}
+
+	private static void appendField (StringBuilder form, String name, String value) {
+		if (form.length() > 0) form.append('&');
+		form.append(name).append('=');
+		try {
+			form.append(URLEncoder.encode((value != null) ? value : "", "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// Every JVM has UTF-8
+		}
+	}
+}
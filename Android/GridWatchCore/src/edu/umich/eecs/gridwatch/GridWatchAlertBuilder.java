@@ -0,0 +1,83 @@
+package edu.umich.eecs.gridwatch;
+
+// Turns a finished GridWatchEvent into the alert we send to the server.
+// Everything it needs from the phone comes in through GridWatchLocationSource
+// and GridWatchConnectivity, so it runs the same on a plain JVM.
+public class GridWatchAlertBuilder {
+
+	private GridWatchLocationSource mLocation;
+	private GridWatchConnectivity mConnectivity;
+
+	// Fixed for the life of the service
+	private String mHash;
+	private String mVersion;
+
+	// hash is the start of the phone's ANDROID_ID and version is the app
+	// version without dots
+	public GridWatchAlertBuilder (GridWatchLocationSource location, GridWatchConnectivity connectivity, String hash, String version) {
+		mLocation = location;
+		mConnectivity = connectivity;
+		mHash = hash;
+		mVersion = version;
+	}
+
+	// Build the alert for an event. If record is not null the long form
+	// fields (every location provider, altitude, ...) are filled in for
+	// the log and the UI.
+	public GridWatchAlert build (GridWatchEvent gwevent, String id, GridWatchEventRecord record) {
+		GridWatchAlert alert = new GridWatchAlert();
+
+		// Get basics from the event
+		alert.time = gwevent.getTimestampMilli();
+		alert.eventType = gwevent.getEventType().charAt(0);
+		if (record != null) {
+			record.time = alert.time;
+			record.eventType = gwevent.getEventType();
+			record.moved = gwevent.getMoved();
+			record.sixtyHz = gwevent.getSixtyHzConfidence();
+		}
+
+		// Get the phone's current location
+		GridWatchFix gps = mLocation.getLastFix(GridWatchLocationSource.GPS);
+		if (gps != null) {
+			alert.hasLocation = true;
+			alert.latitude = gps.latitude;
+			alert.longitude = gps.longitude;
+			alert.accuracy = gps.accuracy;
+			alert.locationTime = gps.time;
+		}
+		if (record != null) {
+			record.gps = gps;
+			record.networkFix = mLocation.getLastFix(GridWatchLocationSource.NETWORK);
+		}
+
+		// Determine if we are on wifi, mobile, or have no connection
+		String connection_type = mConnectivity.getConnectionType();
+		alert.connection = connection_type.charAt(0);
+		if (record != null) {
+			record.network = connection_type;
+
+			// Add any other key value pairs that the event needs to append
+			gwevent.addExtras(record);
+		}
+
+		alert.hash = mHash;
+		alert.id = id;
+		alert.version = mVersion;
+
+		alert.flaps = gwevent.getFlaps();
+		alert.flapFirst = gwevent.getFlapFirst();
+		alert.flapLast = gwevent.getFlapLast();
+
+		if (gwevent.hasMainsFeatures()) {
+			alert.hasMains = true;
+			alert.mainsHz = (float) gwevent.getMainsHz();
+			alert.humDb = (float) gwevent.getHumDb();
+			alert.harmonic2 = (float) gwevent.getHarmonic2();
+			alert.harmonic3 = (float) gwevent.getHarmonic3();
+			alert.humSnr = (float) gwevent.getHumSnr();
+		}
+
+		return alert;
+	}
+}
@@ -0,0 +1,119 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+// Packs several queued alerts into one request body so a phone coming back
+// from a long outage wakes the radio once instead of once per event.
+//
+// The body is each alert's form-encoded payload on its own line (form
+// encoding never produces a raw newline). The server answers with the
+// comma separated indices of the alerts it accepted, e.g. "0,1,3". Any
+// alert it does not list was rejected and will never be accepted.
+//
+// This class also holds the flush policy: a batch is sent once enough
+// events or bytes are waiting, or once the oldest one has waited too long.
+public class GridWatchBatch {
+
+	public final static String CONTENT_TYPE = "application/x-gridwatch-batch";
+
+	private final static byte RECORD_SEPARATOR = '\n';
+
+	private int mMaxEvents;
+	private long mMaxBytes;
+	private long mMaxAgeMs;
+
+	// When the oldest alert not yet sent was queued, or 0 if nothing is
+	// known to be waiting.
+	private long mOldestQueued = 0;
+
+	public GridWatchBatch (int maxEvents, long maxBytes, long maxAgeMs) {
+		mMaxEvents = maxEvents;
+		mMaxBytes = maxBytes;
+		mMaxAgeMs = maxAgeMs;
+	}
+
+	public int getMaxEvents () {
+		return mMaxEvents;
+	}
+
+	public long getMaxBytes () {
+		return mMaxBytes;
+	}
+
+	public long getMaxAgeMs () {
+		return mMaxAgeMs;
+	}
+
+	// Call when an alert is added to the outbox
+	public synchronized void noteQueued (long now) {
+		if (mOldestQueued == 0) {
+			mOldestQueued = now;
+		}
+	}
+
+	// Call when the outbox has been emptied
+	public synchronized void noteFlushed () {
+		mOldestQueued = 0;
+	}
+
+	// Returns true if the pending alerts should be sent now. Alerts left
+	// over from before a restart have an unknown age, so pass
+	// oldestUnknown to have them sent right away.
+	public synchronized boolean shouldFlush (int pendingEvents, long pendingBytes, long now, boolean oldestUnknown) {
+		if (pendingEvents == 0) return false;
+		if (pendingEvents >= mMaxEvents) return true;
+		if (pendingBytes >= mMaxBytes) return true;
+		if (oldestUnknown || mOldestQueued == 0) return true;
+		return now - mOldestQueued >= mMaxAgeMs;
+	}
+
+	// Milliseconds until the age limit forces a flush
+	public synchronized long timeUntilDue (long now) {
+		if (mOldestQueued == 0) return mMaxAgeMs;
+		return Math.max(0, mMaxAgeMs - (now - mOldestQueued));
+	}
+
+	// Build the request body for the given payloads. Stops early if adding
+	// another payload would go over the byte limit, so check how many
+	// were included with countRecords().
+	public byte[] encode (List<byte[]> payloads) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+		for (int i = 0; i < payloads.size() && i < mMaxEvents; i++) {
+			byte[] payload = payloads.get(i);
+			if (i > 0 && body.size() + 1 + payload.length > mMaxBytes) break;
+			if (i > 0) body.write(RECORD_SEPARATOR);
+			body.write(payload, 0, payload.length);
+		}
+		return body.toByteArray();
+	}
+
+	// Number of payloads in a body built by encode()
+	public static int countRecords (byte[] body) {
+		if (body.length == 0) return 0;
+		int count = 1;
+		for (int i = 0; i < body.length; i++) {
+			if (body[i] == RECORD_SEPARATOR) count++;
+		}
+		return count;
+	}
+
+	// Parse the server's response into a per-alert accepted flag
+	public static boolean[] parseAccepted (String response, int count) {
+		boolean[] accepted = new boolean[count];
+		if (response == null) return accepted;
+
+		for (String index : response.trim().split(",")) {
+			if (index.length() == 0) continue;
+			try {
+				int i = Integer.parseInt(index.trim());
+				if (i >= 0 && i < count) {
+					accepted[i] = true;
+				}
+			} catch (NumberFormatException e) {
+				// Ignore anything we don't understand
+			}
+		}
+		return accepted;
+	}
+}
@@ -0,0 +1,215 @@
+package edu.umich.eecs.gridwatch;
+
+import java.util.ArrayList;
+
+// Records the microphone for unplug events on one worker thread, with one
+// audio source and one read buffer that live as long as the engine.
+//
+// Requests that overlap share a recording. A request that comes in while
+// a capture is running joins it if at least one full duration of that
+// capture is left, and otherwise waits for the next capture, which serves
+// every request waiting for it. A capture is stretched to end one duration
+// after the last request that joined it, up to maxDuration in all, so
+// every listener is sent at least a duration of audio from after its
+// request (less only if the source fails).
+//
+// Each capture also goes to one Sink, e.g. the recording file.
+public class GridWatchCaptureEngine {
+
+	// Where samples come from; an AudioRecord on the phone
+	public interface Source {
+		// Returns false if recording could not be started
+		boolean start ();
+
+		// Fill buffer with up to len bytes. Returns the number of bytes,
+		// or a negative number on error.
+		int read (byte[] buffer, int len);
+
+		void stop ();
+
+		void release ();
+	}
+
+	// Gets the samples of every capture the source could be started for.
+	// Called on the worker thread.
+	public interface Sink {
+		void begin (long time);
+
+		void write (byte[] buffer, int len);
+
+		void end ();
+	}
+
+	// Gets the samples for one request, then onFinished() exactly once,
+	// on the worker thread
+	public interface Listener {
+		void onSamples (byte[] buffer, int len);
+
+		// time identifies the capture, as passed to Sink.begin(), or is 0
+		// if nothing was recorded: the source failed to start or gave no
+		// samples
+		void onFinished (long time);
+	}
+
+	private GridWatchClock mClock;
+	private Source mSource;
+	private Sink mSink;
+	private long mDuration;
+	private long mMaxDuration;
+
+	private byte[] mBuffer;
+
+	// Guarded by this
+	private ArrayList<Listener> mWaiting = new ArrayList<Listener>();
+	private ArrayList<Listener> mJoined = new ArrayList<Listener>();
+	private boolean mCapturing = false;
+	private long mCaptureStart;
+	private long mCaptureEnd;
+	private boolean mShutdown = false;
+
+	// Counters
+	private int mRequests = 0;
+	private int mCaptures = 0;
+
+	// Only touched by the worker
+	private ArrayList<Listener> mActive = new ArrayList<Listener>();
+
+	public GridWatchCaptureEngine (GridWatchClock clock, Source source, Sink sink,
+			int bufferSize, long duration, long maxDuration) {
+		mClock = clock;
+		mSource = source;
+		mSink = sink;
+		mBuffer = new byte[bufferSize];
+		mDuration = duration;
+		mMaxDuration = Math.max(duration, maxDuration);
+
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				work();
+			}
+		}, "GridWatchCapture");
+		worker.start();
+	}
+
+	// Ask for the next duration of audio. After shutdown() the listener is
+	// finished right away with no samples.
+	public void request (Listener listener) {
+		synchronized (this) {
+			if (!mShutdown) {
+				mRequests++;
+				long now = mClock.elapsedRealtime();
+				if (mCapturing && mCaptureStart + mMaxDuration - now >= mDuration) {
+					mJoined.add(listener);
+					mCaptureEnd = Math.max(mCaptureEnd, now + mDuration);
+				} else {
+					mWaiting.add(listener);
+					notifyAll();
+				}
+				return;
+			}
+		}
+		listener.onFinished(0);
+	}
+
+	// Cut the capture in progress short, finish any waiting requests, and
+	// have the worker release the source and stop. Doesn't wait for it.
+	public synchronized void shutdown () {
+		mShutdown = true;
+		notifyAll();
+	}
+
+	public synchronized int getRequests () {
+		return mRequests;
+	}
+
+	public synchronized int getCaptures () {
+		return mCaptures;
+	}
+
+	private void work () {
+		try {
+			while (true) {
+				long time;
+				synchronized (this) {
+					while (mWaiting.isEmpty() && !mShutdown) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							mShutdown = true;
+						}
+					}
+					if (mShutdown) {
+						mActive.addAll(mWaiting);
+						mWaiting.clear();
+						break;
+					}
+
+					mJoined.addAll(mWaiting);
+					mWaiting.clear();
+					mCapturing = true;
+					mCaptureStart = mClock.elapsedRealtime();
+					mCaptureEnd = mCaptureStart + mDuration;
+					mCaptures++;
+					time = mClock.currentTimeMillis();
+				}
+				capture(time);
+			}
+		} finally {
+			mSource.release();
+			for (int i = 0; i < mActive.size(); i++) {
+				mActive.get(i).onFinished(0);
+			}
+			mActive.clear();
+		}
+	}
+
+	private void capture (long time) {
+		boolean started = false;
+		boolean recorded = false;
+		try {
+			started = mSource.start();
+			if (started) mSink.begin(time);
+			while (started) {
+				// Take in whoever joined since the last buffer
+				synchronized (this) {
+					for (int i = 0; i < mJoined.size(); i++) {
+						mActive.add(mJoined.get(i));
+					}
+					mJoined.clear();
+					if (mShutdown || mClock.elapsedRealtime() >= mCaptureEnd) {
+						mCapturing = false;
+						break;
+					}
+				}
+
+				int read = mSource.read(mBuffer, mBuffer.length);
+				if (read <= 0) break;
+				recorded = true;
+				mSink.write(mBuffer, read);
+				for (int i = 0; i < mActive.size(); i++) {
+					mActive.get(i).onSamples(mBuffer, read);
+				}
+			}
+		} finally {
+			if (started) {
+				mSource.stop();
+				mSink.end();
+			}
+
+			// Nobody joins from here on, so nobody is left waiting on this
+			// capture
+			synchronized (this) {
+				mCapturing = false;
+				for (int i = 0; i < mJoined.size(); i++) {
+					mActive.add(mJoined.get(i));
+				}
+				mJoined.clear();
+			}
+			for (int i = 0; i < mActive.size(); i++) {
+				mActive.get(i).onFinished(recorded ? time : 0);
+			}
+			mActive.clear();
+		}
+	}
+}
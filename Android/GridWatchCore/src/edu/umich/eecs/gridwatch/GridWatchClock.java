@@ -0,0 +1,14 @@
+package edu.umich.eecs.gridwatch;
+
+// Where the service gets the time from, so the event logic can run on a
+// plain JVM with a simulated clock.
+public interface GridWatchClock {
+
+	// Wall clock time in milliseconds since the epoch, used for event
+	// timestamps
+	long currentTimeMillis ();
+
+	// Milliseconds on a clock that never goes backwards, used for timeouts
+	// and sensor windows
+	long elapsedRealtime ();
+}
@@ -0,0 +1,347 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compact binary encoding of GridWatchAlerts, used for the outbox and for
+// binary batch uploads.
+//
+// A single alert is
+//   [byte version][record]
+// and a batch is
+//   [byte version][byte flags][varint count][records, deflated if flagged]
+//
+// A record is
+//   [byte flags][zigzag varint time delta][byte event type][byte connection]
+//   if it has a location:
+//     [zigzag varint latitude * 1e7][zigzag varint longitude * 1e7]
+//     [varint accuracy in decimeters][zigzag varint location time - time]
+//   [string hash][string id][string version]
+//   if it summarizes power flaps:
+//     [varint flaps][zigzag varint first - time][zigzag varint last - time]
+//   if it has the recording's mains features:
+//     [zigzag varint mains Hz * 1000][zigzag varint hum dBFS * 10]
+//     [zigzag varint 2nd harmonic * 1000][zigzag varint 3rd harmonic * 1000]
+//     [zigzag varint SNR dB * 10]
+// where a string is a varint length followed by UTF-8 bytes. The time
+// delta is from the previous record in a batch, or from 0 for the first.
+//
+// A form payload always starts with a letter, so the version byte also
+// tells binary alerts apart from forms queued by older versions of the app.
+//
+// A codec reuses its buffers and deflater, so use one per thread.
+public class GridWatchCodec {
+
+	public final static String CONTENT_TYPE = "application/x-gridwatch-binary";
+
+	public final static byte VERSION = 1;
+
+	private final static int BATCH_DEFLATE = 0x01;
+	private final static int RECORD_LOCATION = 0x01;
+	private final static int RECORD_FLAPS = 0x02;
+	private final static int RECORD_MAINS = 0x04;
+
+	private final static double FIXED_POINT_SCALE = 1e7;
+	private final static float ACCURACY_SCALE = 10f;
+	private final static float HZ_SCALE = 1000f;
+	private final static float DB_SCALE = 10f;
+	private final static float RATIO_SCALE = 1000f;
+
+	// Don't bother compressing batches smaller than this
+	private final static int MIN_DEFLATE_SIZE = 128;
+
+	private byte[] mBuf = new byte[256];
+	private int mLen = 0;
+
+	private byte[] mDeflated = new byte[256];
+	private Deflater mDeflater = null;
+	private Inflater mInflater = null;
+
+	// True if the payload was made by this codec rather than being a form
+	public static boolean isEncoded (byte[] payload) {
+		return payload.length > 0 && payload[0] == VERSION;
+	}
+
+	public byte[] encode (GridWatchAlert alert) {
+		mLen = 0;
+		writeByte(VERSION);
+		writeRecord(alert, 0);
+		return copy(mBuf, mLen);
+	}
+
+	public GridWatchAlert decode (byte[] payload) throws IOException {
+		Reader in = new Reader(payload, 0, payload.length);
+		checkVersion(in.readByte());
+		return readRecord(in, 0);
+	}
+
+	// Encode a batch, compressing it if deflate is set and it helps
+	public byte[] encodeBatch (List<GridWatchAlert> alerts, boolean deflate) {
+		// Records first, so the header can say whether they were deflated
+		mLen = 0;
+		long previous = 0;
+		for (GridWatchAlert alert : alerts) {
+			writeRecord(alert, previous);
+			previous = alert.time;
+		}
+		int recordsLength = mLen;
+
+		int flags = 0;
+		byte[] records = mBuf;
+		if (deflate && recordsLength >= MIN_DEFLATE_SIZE) {
+			int deflatedLength = deflate(mBuf, recordsLength);
+			if (deflatedLength < recordsLength) {
+				flags |= BATCH_DEFLATE;
+				records = mDeflated;
+				recordsLength = deflatedLength;
+			}
+		}
+
+		byte[] header = new byte[2 + 5];
+		int headerLength = 0;
+		header[headerLength++] = VERSION;
+		header[headerLength++] = (byte) flags;
+		headerLength = putVarint(header, headerLength, alerts.size());
+
+		byte[] body = new byte[headerLength + recordsLength];
+		System.arraycopy(header, 0, body, 0, headerLength);
+		System.arraycopy(records, 0, body, headerLength, recordsLength);
+		return body;
+	}
+
+	public List<GridWatchAlert> decodeBatch (byte[] body) throws IOException {
+		Reader in = new Reader(body, 0, body.length);
+		checkVersion(in.readByte());
+		int flags = in.readByte();
+		int count = (int) in.readVarint();
+		if (count < 0) throw new IOException("Bad batch count " + count);
+
+		if ((flags & BATCH_DEFLATE) != 0) {
+			byte[] inflated = inflate(body, in.pos, body.length - in.pos);
+			in = new Reader(inflated, 0, inflated.length);
+		}
+
+		ArrayList<GridWatchAlert> alerts = new ArrayList<GridWatchAlert>(count);
+		long previous = 0;
+		for (int i = 0; i < count; i++) {
+			GridWatchAlert alert = readRecord(in, previous);
+			alerts.add(alert);
+			previous = alert.time;
+		}
+		return alerts;
+	}
+
+	private void writeRecord (GridWatchAlert alert, long previousTime) {
+		writeByte((alert.hasLocation ? RECORD_LOCATION : 0) | (alert.flaps > 0 ? RECORD_FLAPS : 0)
+				| (alert.hasMains ? RECORD_MAINS : 0));
+		writeVarint(zigzag(alert.time - previousTime));
+		writeByte(alert.eventType);
+		writeByte(alert.connection);
+		if (alert.hasLocation) {
+			writeVarint(zigzag(Math.round(alert.latitude * FIXED_POINT_SCALE)));
+			writeVarint(zigzag(Math.round(alert.longitude * FIXED_POINT_SCALE)));
+			writeVarint(Math.max(0, Math.round(alert.accuracy * ACCURACY_SCALE)));
+			writeVarint(zigzag(alert.locationTime - alert.time));
+		}
+		writeString(alert.hash);
+		writeString(alert.id);
+		writeString(alert.version);
+		if (alert.flaps > 0) {
+			writeVarint(alert.flaps);
+			writeVarint(zigzag(alert.flapFirst - alert.time));
+			writeVarint(zigzag(alert.flapLast - alert.time));
+		}
+		if (alert.hasMains) {
+			writeVarint(zigzag(Math.round(alert.mainsHz * HZ_SCALE)));
+			writeVarint(zigzag(Math.round(alert.humDb * DB_SCALE)));
+			writeVarint(zigzag(Math.round(alert.harmonic2 * RATIO_SCALE)));
+			writeVarint(zigzag(Math.round(alert.harmonic3 * RATIO_SCALE)));
+			writeVarint(zigzag(Math.round(alert.humSnr * DB_SCALE)));
+		}
+	}
+
+	private GridWatchAlert readRecord (Reader in, long previousTime) throws IOException {
+		GridWatchAlert alert = new GridWatchAlert();
+		int flags = in.readByte();
+		alert.time = previousTime + unzigzag(in.readVarint());
+		alert.eventType = (char) in.readByte();
+		alert.connection = (char) in.readByte();
+		if ((flags & RECORD_LOCATION) != 0) {
+			alert.hasLocation = true;
+			alert.latitude = unzigzag(in.readVarint()) / FIXED_POINT_SCALE;
+			alert.longitude = unzigzag(in.readVarint()) / FIXED_POINT_SCALE;
+			alert.accuracy = in.readVarint() / ACCURACY_SCALE;
+			alert.locationTime = alert.time + unzigzag(in.readVarint());
+		}
+		alert.hash = in.readString();
+		alert.id = in.readString();
+		alert.version = in.readString();
+		if ((flags & RECORD_FLAPS) != 0) {
+			alert.flaps = (int) in.readVarint();
+			alert.flapFirst = alert.time + unzigzag(in.readVarint());
+			alert.flapLast = alert.time + unzigzag(in.readVarint());
+		}
+		if ((flags & RECORD_MAINS) != 0) {
+			alert.hasMains = true;
+			alert.mainsHz = unzigzag(in.readVarint()) / HZ_SCALE;
+			alert.humDb = unzigzag(in.readVarint()) / DB_SCALE;
+			alert.harmonic2 = unzigzag(in.readVarint()) / RATIO_SCALE;
+			alert.harmonic3 = unzigzag(in.readVarint()) / RATIO_SCALE;
+			alert.humSnr = unzigzag(in.readVarint()) / DB_SCALE;
+		}
+		return alert;
+	}
+
+	private static void checkVersion (int version) throws IOException {
+		if (version != VERSION) {
+			throw new IOException("Unknown alert encoding version " + version);
+		}
+	}
+
+	private static long zigzag (long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag (long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private void writeByte (int b) {
+		ensure(1);
+		mBuf[mLen++] = (byte) b;
+	}
+
+	private void writeVarint (long v) {
+		ensure(10);
+		while ((v & ~0x7fl) != 0) {
+			mBuf[mLen++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		mBuf[mLen++] = (byte) v;
+	}
+
+	private static int putVarint (byte[] buf, int pos, int v) {
+		while ((v & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+		return pos;
+	}
+
+	private void writeString (String s) {
+		if (s == null) s = "";
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = new byte[0];
+		}
+		writeVarint(bytes.length);
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, mBuf, mLen, bytes.length);
+		mLen += bytes.length;
+	}
+
+	private void ensure (int n) {
+		if (mLen + n > mBuf.length) {
+			byte[] bigger = new byte[Math.max(mBuf.length * 2, mLen + n)];
+			System.arraycopy(mBuf, 0, bigger, 0, mLen);
+			mBuf = bigger;
+		}
+	}
+
+	// Deflate len bytes of data into mDeflated and return the length
+	private int deflate (byte[] data, int len) {
+		if (mDeflater == null) {
+			mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+		}
+		mDeflater.reset();
+		mDeflater.setInput(data, 0, len);
+		mDeflater.finish();
+		int total = 0;
+		while (!mDeflater.finished()) {
+			if (total == mDeflated.length) {
+				mDeflated = copy(mDeflated, mDeflated.length * 2, total);
+			}
+			total += mDeflater.deflate(mDeflated, total, mDeflated.length - total);
+		}
+		return total;
+	}
+
+	private byte[] inflate (byte[] data, int off, int len) throws IOException {
+		if (mInflater == null) {
+			mInflater = new Inflater();
+		}
+		mInflater.reset();
+		mInflater.setInput(data, off, len);
+		byte[] out = new byte[Math.max(256, len * 4)];
+		int total = 0;
+		try {
+			while (!mInflater.finished()) {
+				if (total == out.length) {
+					out = copy(out, out.length * 2, total);
+				}
+				int n = mInflater.inflate(out, total, out.length - total);
+				if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+					throw new IOException("Truncated batch");
+				}
+				total += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt batch: " + e.getMessage());
+		}
+		return copy(out, total);
+	}
+
+	private static byte[] copy (byte[] data, int len) {
+		return copy(data, len, len);
+	}
+
+	private static byte[] copy (byte[] data, int size, int len) {
+		byte[] out = new byte[size];
+		System.arraycopy(data, 0, out, 0, len);
+		return out;
+	}
+
+	// Reads the fields of an encoded alert or batch
+	private static class Reader {
+		byte[] buf;
+		int pos;
+		int end;
+
+		Reader (byte[] buf, int off, int len) {
+			this.buf = buf;
+			this.pos = off;
+			this.end = off + len;
+		}
+
+		int readByte () throws IOException {
+			if (pos >= end) throw new IOException("Alert truncated");
+			return buf[pos++] & 0xff;
+		}
+
+		long readVarint () throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new IOException("Varint too long");
+		}
+
+		String readString () throws IOException {
+			long len = readVarint();
+			if (len < 0 || len > end - pos) throw new IOException("Alert truncated");
+			String s = new String(buf, pos, (int) len, "UTF-8");
+			pos += (int) len;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package edu.umich.eecs.gridwatch;
+
+// Reports how the phone is connected to the Internet
+public interface GridWatchConnectivity {
+
+	// One of "wifi", "mobile", "other", "disconnected" or "unknown"
+	String getConnectionType ();
+}
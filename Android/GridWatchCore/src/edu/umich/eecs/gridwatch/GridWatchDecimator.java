@@ -0,0 +1,132 @@
+package edu.umich.eecs.gridwatch;
+
+// Turns interleaved 16-bit little endian PCM straight from AudioRecord.read()
+// into mono at a lower sample rate, for recordings that only need to hold
+// mains hum and its harmonics.
+//
+// Each frame is downmixed to mono and pushed into a history of the last
+// taps samples. The rate is cut by a whole factor M = inputRate /
+// outputRate, and only every M-th output of the low pass filter is ever
+// computed, which is what a polyphase decimator saves over filtering at
+// the full rate and then dropping samples. The filter is a Blackman
+// windowed sinc with its cutoff at the new Nyquist frequency and a
+// transition band 20% of the new rate wide on each side of it, so
+// anything that would alias lands above 80% of the new Nyquist frequency.
+// It is symmetric, so each pair of taps costs one multiply. Coefficients
+// are Q15 and nothing is allocated after construction.
+public class GridWatchDecimator {
+
+	// Width of the filter's transition band as a fraction of the output rate
+	private final static double TRANSITION = 0.2;
+
+	// A Blackman window needs about this many taps per cycle/sample of
+	// transition width
+	private final static double BLACKMAN_WIDTH = 5.5;
+
+	private int mChannels;
+	private int mFactor;
+	private int mOutputRate;
+
+	// Coefficients h[0] to h[taps / 2], the rest mirror them
+	private int[] mCoeff;
+	private int mTaps;
+
+	// Mono history, stored twice so the last taps samples are always
+	// contiguous ending at mPos + mTaps - 1
+	private short[] mHistory;
+	private int mPos = 0;
+
+	// Input samples since the last output
+	private int mPhase = 0;
+
+	// outputRate is rounded so the input rate is a whole multiple of it.
+	// Asking for the input rate or more only downmixes.
+	public GridWatchDecimator (int inputRate, int channels, int outputRate) {
+		mChannels = channels;
+		mFactor = Math.max(1, inputRate / Math.max(outputRate, 1));
+		mOutputRate = inputRate / mFactor;
+
+		if (mFactor == 1) {
+			mTaps = 1;
+			mCoeff = new int[] { 32768 };
+		} else {
+			mTaps = (int) Math.ceil(BLACKMAN_WIDTH * mFactor / TRANSITION) | 1;
+			double cutoff = 0.5 / mFactor;
+			int middle = mTaps / 2;
+			double[] h = new double[middle + 1];
+			double sum = 0;
+			for (int k = 0; k <= middle; k++) {
+				int n = k - middle;
+				double sinc = (n == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+				double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * k / (mTaps - 1))
+						+ 0.08 * Math.cos(4 * Math.PI * k / (mTaps - 1));
+				h[k] = sinc * window;
+				sum += (k == middle) ? h[k] : 2 * h[k];
+			}
+			// Unity gain at DC
+			mCoeff = new int[middle + 1];
+			for (int k = 0; k <= middle; k++) {
+				mCoeff[k] = (int) Math.round(h[k] / sum * 32768);
+			}
+		}
+		mHistory = new short[2 * mTaps];
+	}
+
+	public int getOutputRate () {
+		return mOutputRate;
+	}
+
+	public int getFactor () {
+		return mFactor;
+	}
+
+	// The most samples process() can produce from len bytes of input
+	public int maxOutput (int len) {
+		return len / (2 * mChannels) / mFactor + 1;
+	}
+
+	// Feed len bytes of interleaved PCM and put the mono samples it
+	// completes in out, which must hold maxOutput(len). Returns how many.
+	public int process (byte[] buffer, int len, short[] out) {
+		int frameBytes = 2 * mChannels;
+		int frames = len / frameBytes;
+		int pos = 0;
+		int count = 0;
+		int middle = mTaps / 2;
+
+		for (int f = 0; f < frames; f++) {
+			int sum = 0;
+			for (int c = 0; c < mChannels; c++) {
+				sum += (short) ((buffer[pos] & 0xff) | (buffer[pos + 1] << 8));
+				pos += 2;
+			}
+			short x = (short) (sum / mChannels);
+			mHistory[mPos] = x;
+			mHistory[mPos + mTaps] = x;
+			if (++mPos == mTaps) mPos = 0;
+
+			if (++mPhase < mFactor) continue;
+			mPhase = 0;
+
+			// Oldest sample at mPos, newest at mPos + mTaps - 1
+			long acc = (long) mCoeff[middle] * mHistory[mPos + middle];
+			for (int k = 0, j = mPos + mTaps - 1, i = mPos; k < middle; k++, i++, j--) {
+				acc += (long) mCoeff[k] * (mHistory[i] + mHistory[j]);
+			}
+			int y = (int) ((acc + 16384) >> 15);
+			if (y > Short.MAX_VALUE) y = Short.MAX_VALUE;
+			else if (y < Short.MIN_VALUE) y = Short.MIN_VALUE;
+			out[count++] = (short) y;
+		}
+		return count;
+	}
+
+	// Forget the history so the decimator can be used for another recording
+	public void reset () {
+		for (int i = 0; i < mHistory.length; i++) {
+			mHistory[i] = 0;
+		}
+		mPos = 0;
+		mPhase = 0;
+	}
+}
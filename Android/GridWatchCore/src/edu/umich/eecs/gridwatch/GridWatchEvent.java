@@ -0,0 +1,271 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+public class GridWatchEvent {
+
+	private GridWatchEventType mEventType;
+	private long mTimestamp;
+
+	private boolean mMoved = false;
+	private volatile boolean mSixtyHz = false;
+	private volatile float mSixtyHzConfidence = Float.NaN;
+
+	// When we started watching the accelerometer for this event, on the
+	// motion detector's clock, or -1 if we aren't. Only touched on the
+	// service's event loop.
+	private long mAccelStart = -1l;
+	private boolean mAccelFinished = false;
+
+	// Set when a recording is started for this event. The event is held
+	// until the recording finishes so the hum result can be reported.
+	private volatile boolean mSixtyHzStarted = false;
+	private volatile boolean mSixtyHzFinished = false;
+
+	// Grid frequency, hum level and harmonics, measured from the same
+	// recording and copied out of the shared analysis. Only read once
+	// mSixtyHzFinished is set, and only if mHasMains.
+	private boolean mHasMains = false;
+	private double mMainsHz;
+	private double mHumDb;
+	private double mHarmonic2;
+	private double mHarmonic3;
+	private double mHumSnr;
+
+	// Set if this event stands for a burst of power flaps rather than a
+	// single transition
+	private int mFlaps = 0;
+	private long mFlapFirst = 0;
+	private long mFlapLast = 0;
+
+	SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+
+
+
+	FileWriter ascFW;
+
+	public GridWatchEvent (GridWatchEventType eventType) {
+		// Get the timestamp immediately after we determine
+		// that an event happened.
+		this(eventType, System.currentTimeMillis());
+	}
+
+	public GridWatchEvent (GridWatchEventType eventType, long timestamp) {
+		mEventType = eventType;
+		mTimestamp = timestamp;
+
+
+/*
+		File root = Environment.getExternalStorageDirectory();
+		String now = mDateFormat.format(new Date());
+//		File rawFile = new File(root, "microphone_" + now + ".s16");
+		File asciiFile = new File(root, "microphone_" + now + ".dat");
+
+		//FileOutputStream rawFW;
+
+		try {
+			//rawFW = new FileOutputStream(rawFile.getAbsolutePath());
+			ascFW = new FileWriter(asciiFile.getAbsolutePath());
+
+			ascFW.write("; Sample Rate 44100\n");
+			ascFW.write("; Channels 1\n");
+		} catch (IOException e){}*/
+	}
+
+	// Call when the accelerometer is turned on for this event, with the
+	// current time on the motion detector's clock. The event then waits
+	// for a motion verdict before it is sent.
+	public void startMotion (long now) {
+		if (!needAccelerometerSamples()) return;
+		mAccelStart = now;
+	}
+
+	// Look up this event's verdict in the shared motion detector.
+	// Returns true if we no longer need accelerometer samples.
+	public boolean checkMotion (GridWatchMotionDetector detector) {
+		if (mAccelStart < 0 || mAccelFinished) return true;
+
+		int verdict = detector.verdict(mAccelStart);
+		if (verdict == GridWatchMotionDetector.UNDECIDED) return false;
+
+		mMoved = (verdict == GridWatchMotionDetector.MOVED);
+		mAccelFinished = true;
+		return true;
+	}
+
+	// Stop waiting on the accelerometer, for example if samples stopped
+	// arriving. The event is reported as not moved.
+	public void finishMotion () {
+		mAccelFinished = true;
+	}
+
+	public boolean needsMotion () {
+		return mAccelStart >= 0 && !mAccelFinished;
+	}
+
+	public long getMotionStart () {
+		return mAccelStart;
+	}
+
+	// Mark this event as the summary of flaps transitions between first
+	// and last
+	public void setFlaps (int flaps, long first, long last) {
+		mFlaps = flaps;
+		mFlapFirst = first;
+		mFlapLast = last;
+	}
+
+	public int getFlaps () {
+		return mFlaps;
+	}
+
+	public long getFlapFirst () {
+		return mFlapFirst;
+	}
+
+	public long getFlapLast () {
+		return mFlapLast;
+	}
+
+	// Call when a recording is requested for this event so it knows to
+	// wait for the microphone results
+	public void startMicrophone () {
+		mSixtyHzStarted = true;
+	}
+
+	// Call when the recording is over, whether or not it succeeded, with
+	// the analysis of the capture it was part of, or null if there was
+	// none. The results are copied, since the analysis is reset for the
+	// next capture.
+	public void finishMicrophone (GridWatchMainsAnalysis analysis) {
+		if (analysis != null) {
+			GridWatchMainsDetector detector = analysis.getDetector();
+			GridWatchMainsFeatures features = analysis.getFeatures();
+			mSixtyHzConfidence = detector.getConfidence();
+			mSixtyHz = detector.humDetected();
+			mHasMains = features.hasResult();
+			if (mHasMains) {
+				mMainsHz = features.getFrequency();
+				mHumDb = features.getAmplitudeDb();
+				mHarmonic2 = features.getSecondHarmonicRatio();
+				mHarmonic3 = features.getThirdHarmonicRatio();
+				mHumSnr = features.getSnr();
+			}
+		}
+		mSixtyHzFinished = true;
+	}
+
+	// Returns true if this event is ready to be sent to the server,
+	// false if it needs more data
+	public boolean readyForTransmission () {
+		switch (mEventType) {
+		case PLUGGED:
+			return true;
+		case WD:
+			break;
+		case UNPLUGGED:
+			if (needsMotion()) return false;
+			if (mSixtyHzStarted && !mSixtyHzFinished) return false;
+			break;
+		}
+		return true;
+	}
+
+	public String getEventType () {
+		return String.valueOf(mEventType).toLowerCase(Locale.US);
+	}
+
+	public long getTimestampMilli () {
+		return mTimestamp;
+	}
+
+	// 1 if the device moved when it was unplugged, 0 if not, -1 for events
+	// that don't check
+	public int getMoved () {
+		if (mEventType != GridWatchEventType.UNPLUGGED) return -1;
+		return mMoved ? 1 : 0;
+	}
+
+	// Confidence that mains hum was heard when unplugged, NaN for events
+	// that don't listen
+	public float getSixtyHzConfidence () {
+		if (mEventType != GridWatchEventType.UNPLUGGED) return Float.NaN;
+		return mSixtyHzConfidence;
+	}
+
+	// True if the unplug recording gave the grid frequency, hum level and
+	// harmonics below. They are only meaningful if so.
+	public boolean hasMainsFeatures () {
+		return mEventType == GridWatchEventType.UNPLUGGED && mSixtyHzFinished && mHasMains;
+	}
+
+	public double getMainsHz () {
+		return mMainsHz;
+	}
+
+	public double getHumDb () {
+		return mHumDb;
+	}
+
+	public double getHarmonic2 () {
+		return mHarmonic2;
+	}
+
+	public double getHarmonic3 () {
+		return mHarmonic3;
+	}
+
+	public double getHumSnr () {
+		return mHumSnr;
+	}
+
+	// Add the extra values we report for this event to record, for
+	// example whether or not the device moved when it was unplugged
+	public void addExtras (GridWatchEventRecord record) {
+		switch (mEventType) {
+		case UNPLUGGED:
+			record.addExtra("moved", String.valueOf(mMoved));
+			// Left out if the microphone heard nothing
+			if (!Float.isNaN(mSixtyHzConfidence)) {
+				record.addExtra("sixty_hz", String.format(Locale.US, "%.2f", mSixtyHzConfidence));
+			}
+			if (hasMainsFeatures()) {
+				record.addExtra("mains_hz", String.format(Locale.US, "%.3f", mMainsHz));
+				record.addExtra("hum_dbfs", String.format(Locale.US, "%.1f", mHumDb));
+				record.addExtra("harmonic_2", String.format(Locale.US, "%.3f", mHarmonic2));
+				record.addExtra("harmonic_3", String.format(Locale.US, "%.3f", mHarmonic3));
+				record.addExtra("hum_snr_db", String.format(Locale.US, "%.1f", mHumSnr));
+			}
+			break;
+		case WD:
+			break;
+		case PLUGGED:
+			break;
+		}
+
+		if (mFlaps > 0) {
+			record.addExtra("flaps", String.valueOf(mFlaps));
+			record.addExtra("flap_first", String.valueOf(mFlapFirst));
+			record.addExtra("flap_last", String.valueOf(mFlapLast));
+		}
+	}
+
+	// Based on the event type determine if we need the service
+	// to hand us accelerometer samples.
+	private boolean needAccelerometerSamples () {
+		switch (mEventType) {
+		case PLUGGED:
+			return false;
+		case WD:
+			return false;
+		case UNPLUGGED:
+			return true;
+		}
+		return false;
+	}
+
+
+}
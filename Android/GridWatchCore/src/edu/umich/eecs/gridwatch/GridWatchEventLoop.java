@@ -0,0 +1,308 @@
+package edu.umich.eecs.gridwatch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+// The service's event logic: power transitions go through the flap
+// filter, the ones that get through become events, unplug events wait on
+// the microphone and the accelerometer, and every event is handed back to
+// be sent once it is ready.
+//
+// Everything runs on one thread, the loop, reached through a Scheduler;
+// on the phone it is a Handler on the service's HandlerThread. The event
+// list, the filter and the motion detector are only touched there.
+// onPowerChanged() and addEvent() may be called from any thread; the
+// other calls in are made on the loop.
+public class GridWatchEventLoop {
+
+	// The Handler calls the loop needs
+	public interface Scheduler {
+		void post (Runnable r);
+
+		void postDelayed (Runnable r, long delayMs);
+
+		void removeCallbacks (Runnable r);
+	}
+
+	// Called on the loop unless said otherwise
+	public interface Listener {
+		// A raw transition, as the filter sees it
+		void onPowerChanged (boolean powered, long time);
+
+		// Transitions collapsed into a flap record
+		void onFlaps (boolean powered, int flaps, long first, long last);
+
+		// An event joined the list
+		void onEvent (GridWatchEvent gwevent);
+
+		// An unplug event's recording finished, with the capture's time or
+		// 0 if nothing was recorded. Called on the capture engine's worker.
+		void onRecorded (long time, GridWatchEvent gwevent);
+
+		// Turn the accelerometer on, delivering samples to onSensorChanged()
+		// on the loop. Returns false if there is none.
+		boolean startMotion ();
+
+		void stopMotion ();
+
+		// An event is ready to send
+		void onReady (GridWatchEvent gwevent);
+	}
+
+	// The detector's buffer holds well over a motion window of samples at
+	// SENSOR_DELAY_NORMAL. Verdicts are only looked at when a window ends,
+	// or when the last MOTION_CHECK_WINDOW ms show movement, which is
+	// tested at most every MOTION_CHECK_INTERVAL ms.
+	public final static int MOTION_BUFFER_SIZE = 1024;
+	public final static long MOTION_CHECK_WINDOW = 1000l;
+	public final static long MOTION_CHECK_INTERVAL = 50l;
+	public final static long MOTION_TIMEOUT = GridWatchMotionDetector.MOTION_WINDOW_MS + 5000l;
+
+	private Scheduler mScheduler;
+	private GridWatchClock mClock;
+	private GridWatchCaptureEngine mCapture;
+	private GridWatchMainsAnalysis mMainsAnalysis;
+	private Listener mListener;
+
+	// Loop only
+	private ArrayList<GridWatchEvent> mEvents = new ArrayList<GridWatchEvent>();
+	private GridWatchTransitionFilter mTransitionFilter;
+	private GridWatchMotionDetector mMotionDetector = new GridWatchMotionDetector(MOTION_BUFFER_SIZE);
+	private long mMotionDeadline = Long.MAX_VALUE;
+	private long mNextMovingCheck = 0;
+	private boolean mSensing = false;
+
+	// capture may be null if there is no microphone, and then unplug events
+	// go without a recording
+	public GridWatchEventLoop (Scheduler scheduler, GridWatchClock clock, long flapSettleMs, long flapMaxDelayMs,
+			GridWatchCaptureEngine capture, GridWatchMainsAnalysis mainsAnalysis, Listener listener) {
+		mScheduler = scheduler;
+		mClock = clock;
+		mCapture = capture;
+		mMainsAnalysis = mainsAnalysis;
+		mListener = listener;
+		mTransitionFilter = new GridWatchTransitionFilter(flapSettleMs, flapMaxDelayMs, mTransitionListener);
+	}
+
+	// Pass a power transition through the flap filter on the loop.
+	// Transitions that get through become events; the rest are held and
+	// reported together once the power settles.
+	public void onPowerChanged (final boolean powered) {
+		final long now = mClock.currentTimeMillis();
+		mScheduler.post(new Runnable() {
+			@Override
+			public void run() {
+				mListener.onPowerChanged(powered, now);
+				mTransitionFilter.onTransition(powered, now);
+				scheduleFlapCheck();
+			}
+		});
+	}
+
+	// Drop everything scheduled. Call before the loop's thread is quit.
+	public void stop () {
+		mScheduler.removeCallbacks(mFlapRunnable);
+		mScheduler.removeCallbacks(mProcessEventsRunnable);
+		mScheduler.removeCallbacks(mMotionTimeoutRunnable);
+	}
+
+	private void scheduleFlapCheck () {
+		mScheduler.removeCallbacks(mFlapRunnable);
+		long deadline = mTransitionFilter.getDeadline();
+		if (deadline >= 0) {
+			mScheduler.postDelayed(mFlapRunnable, Math.max(0, deadline - mClock.currentTimeMillis()));
+		}
+	}
+
+	private Runnable mFlapRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mTransitionFilter.poll(mClock.currentTimeMillis());
+			scheduleFlapCheck();
+		}
+	};
+
+	private GridWatchTransitionFilter.Listener mTransitionListener = new GridWatchTransitionFilter.Listener() {
+		@Override
+		public void onTransition(boolean powered, long time) {
+			// The event is stamped with when the broadcast arrived, not when
+			// the filter let it through
+			if (powered) {
+				// Needs no sensors, so it can be sent as soon as the loop
+				// sees it
+				addEvent(new GridWatchEvent(GridWatchEventType.PLUGGED, time));
+			} else {
+				onPowerDisconnected(time);
+			}
+		}
+
+		// The flap record is sent as an event for the state the power
+		// ended up in. It is sent after the fact, so no sensors are run.
+		@Override
+		public void onFlaps(boolean powered, int flaps, long first, long last) {
+			mListener.onFlaps(powered, flaps, first, last);
+			GridWatchEvent gwevent = new GridWatchEvent(powered ? GridWatchEventType.PLUGGED : GridWatchEventType.UNPLUGGED, last);
+			gwevent.setFlaps(flaps, first, last);
+			addEvent(gwevent);
+		}
+	};
+
+	private void onPowerDisconnected (long time) {
+		final GridWatchEvent gwevent = new GridWatchEvent(GridWatchEventType.UNPLUGGED, time);
+
+		if (mCapture != null) {
+			gwevent.startMicrophone();
+			mCapture.request(new GridWatchCaptureEngine.Listener() {
+				@Override
+				public void onSamples (byte[] buffer, int len) {
+					// The capture's hum analysis sees every buffer once
+				}
+
+				@Override
+				public void onFinished (long time) {
+					// Never leave the event waiting on a recording that
+					// failed. time is 0 if nothing was recorded, and then
+					// there is no hum verdict either way.
+					gwevent.finishMicrophone(time != 0 ? mMainsAnalysis : null);
+					mListener.onRecorded(time, gwevent);
+					requestProcessEvents();
+				}
+			});
+		}
+
+		if (mListener.startMotion()) {
+			mSensing = true;
+			gwevent.startMotion(mClock.elapsedRealtime());
+			mMotionDeadline = Math.min(mMotionDeadline, gwevent.getMotionStart() + GridWatchMotionDetector.MOTION_WINDOW_MS);
+			mScheduler.removeCallbacks(mMotionTimeoutRunnable);
+			mScheduler.postDelayed(mMotionTimeoutRunnable, MOTION_TIMEOUT);
+		}
+
+		addEvent(gwevent);
+	}
+
+	// Hand a new event to the loop and check whether it can be sent
+	public void addEvent (final GridWatchEvent gwevent) {
+		mScheduler.post(new Runnable() {
+			@Override
+			public void run() {
+				mListener.onEvent(gwevent);
+				mEvents.add(gwevent);
+				processEvents();
+			}
+		});
+	}
+
+	// Call from any thread when something happened that may have made an
+	// event ready to send. Requests that arrive while one is already
+	// waiting are folded into it.
+	public void requestProcessEvents () {
+		mScheduler.removeCallbacks(mProcessEventsRunnable);
+		mScheduler.post(mProcessEventsRunnable);
+	}
+
+	private Runnable mProcessEventsRunnable = new Runnable() {
+		@Override
+		public void run() {
+			processEvents();
+		}
+	};
+
+	// Iterate over the list of pending events and send any that are ready.
+	// Events that are not ready yet stay in the list until whatever they
+	// are waiting on finishes and calls requestProcessEvents().
+	public void processEvents () {
+		for (Iterator<GridWatchEvent> it = mEvents.iterator(); it.hasNext();) {
+			GridWatchEvent gwevent = it.next();
+			if (gwevent.readyForTransmission()) {
+				mListener.onReady(gwevent);
+				it.remove();
+			}
+		}
+	}
+
+	// A new accelerometer sample, at elapsed realtime now
+	public void onSensorChanged (long now, float x, float y, float z) {
+		mMotionDetector.addSample(now, x, y, z);
+
+		// Verdicts can only change once a window has ended or the phone is
+		// moving, so most samples stop here
+		if (now >= mMotionDeadline) {
+			checkMotion(now, false, false);
+		} else if (now >= mNextMovingCheck) {
+			mNextMovingCheck = now + MOTION_CHECK_INTERVAL;
+			if (mMotionDetector.recentlyMoving(MOTION_CHECK_WINDOW)) {
+				checkMotion(now, true, false);
+			}
+		}
+	}
+
+	// Give waiting events their motion verdicts, send the ones that are
+	// now ready, and turn the accelerometer off once nobody needs it. Only
+	// events whose windows have ended are asked unless the phone is
+	// moving. With force, events still undecided are given up on.
+	private void checkMotion (long now, boolean moving, boolean force) {
+		boolean done = true; // assume we are done until proven otherwise
+		boolean decided = false;
+		mMotionDeadline = Long.MAX_VALUE;
+
+		for (GridWatchEvent gwevent : mEvents) {
+			if (!gwevent.needsMotion()) continue;
+			if (!moving && !force && now < gwevent.getMotionStart() + GridWatchMotionDetector.MOTION_WINDOW_MS) {
+				done = false;
+			} else if (gwevent.checkMotion(mMotionDetector)) {
+				decided = true;
+			} else if (force) {
+				gwevent.finishMotion();
+				decided = true;
+			} else {
+				done = false;
+			}
+		}
+
+		if (done) {
+			// All events are finished getting accelerometer samples, so go
+			// ahead and stop the sensor
+			if (mSensing) {
+				mListener.stopMotion();
+				mSensing = false;
+			}
+			mMotionDetector.reset();
+			mScheduler.removeCallbacks(mMotionTimeoutRunnable);
+		} else {
+			// The oldest undecided window ends first
+			for (GridWatchEvent gwevent : mEvents) {
+				if (gwevent.needsMotion()) {
+					mMotionDeadline = Math.min(mMotionDeadline, gwevent.getMotionStart() + GridWatchMotionDetector.MOTION_WINDOW_MS);
+				}
+			}
+		}
+		if (decided) {
+			processEvents();
+		}
+	}
+
+	// Fires if the accelerometer stops delivering samples before every
+	// waiting event has a verdict
+	private Runnable mMotionTimeoutRunnable = new Runnable() {
+		@Override
+		public void run() {
+			checkMotion(mClock.elapsedRealtime(), false, true);
+		}
+	};
+
+	// Events waiting to be sent. Loop only.
+	public int getWaiting () {
+		return mEvents.size();
+	}
+
+	// Transitions held for a flap record. Loop only.
+	public int getHeldFlaps () {
+		return mTransitionFilter.getHeldFlaps();
+	}
+
+	// Whether the accelerometer is on. Loop only.
+	public boolean isSensing () {
+		return mSensing;
+	}
+}
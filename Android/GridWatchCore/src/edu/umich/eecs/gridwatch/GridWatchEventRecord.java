@@ -0,0 +1,103 @@
+package edu.umich.eecs.gridwatch;
+
+// What the service tells the activity and the log about an event it has
+// sent: the long form fields, kept typed. The activity gets them as
+// intent extras under the KEY_ names, and text is only made, by
+// appendTo(), when the log asks for it.
+public class GridWatchEventRecord {
+
+	// Intent extra names for the fields the activity shows
+	public final static String KEY_TIME = "record_time";
+	public final static String KEY_EVENT_TYPE = "record_event_type";
+	public final static String KEY_MOVED = "record_moved";
+	public final static String KEY_SIXTY_HZ = "record_sixty_hz";
+
+	public long time;
+
+	// "unplugged", "plugged", "wd" or "api"
+	public String eventType;
+
+	// The connection type, e.g. "wifi"
+	public String network;
+
+	// Fixes from each provider, or null
+	public GridWatchFix gps;
+	public GridWatchFix networkFix;
+
+	// -1 if the event didn't check, otherwise 0 or 1
+	public int moved = -1;
+
+	// Confidence that mains hum was heard, or NaN if the event didn't listen
+	public float sixtyHz = Float.NaN;
+
+	// The phone's ANDROID_ID
+	public String id;
+
+	// Whatever else the event reports, as name=value pairs in order
+	private String[] mExtraNames = new String[8];
+	private String[] mExtraValues = new String[8];
+	private int mExtras = 0;
+
+	public void addExtra (String name, String value) {
+		if (mExtras == mExtraNames.length) {
+			String[] names = new String[mExtras * 2];
+			String[] values = new String[mExtras * 2];
+			System.arraycopy(mExtraNames, 0, names, 0, mExtras);
+			System.arraycopy(mExtraValues, 0, values, 0, mExtras);
+			mExtraNames = names;
+			mExtraValues = values;
+		}
+		mExtraNames[mExtras] = name;
+		mExtraValues[mExtras] = value;
+		mExtras++;
+	}
+
+	public int getExtraCount () {
+		return mExtras;
+	}
+
+	public String getExtraName (int i) {
+		return mExtraNames[i];
+	}
+
+	public String getExtraValue (int i) {
+		return mExtraValues[i];
+	}
+
+	// Append the record as the "name=value, " list the log has always had
+	public StringBuilder appendTo (StringBuilder out) {
+		pair(out, "time").append(time).append(", ");
+		pair(out, "event_type").append(eventType).append(", ");
+		appendFix(out, "gps", gps);
+		appendFix(out, "network", networkFix);
+		pair(out, "network").append(network).append(", ");
+		for (int i = 0; i < mExtras; i++) {
+			pair(out, mExtraNames[i]).append(mExtraValues[i]).append(", ");
+		}
+		if (id != null) pair(out, "id").append(id).append(", ");
+		return out;
+	}
+
+	@Override
+	public String toString () {
+		return appendTo(new StringBuilder(512)).toString();
+	}
+
+	private static void appendFix (StringBuilder out, String prefix, GridWatchFix fix) {
+		if (fix == null) return;
+		pair(out, prefix, "_latitude").append(fix.latitude).append(", ");
+		pair(out, prefix, "_longitude").append(fix.longitude).append(", ");
+		pair(out, prefix, "_accuracy").append(fix.accuracy).append(", ");
+		pair(out, prefix, "_time").append(fix.time).append(", ");
+		pair(out, prefix, "_altitude").append(fix.altitude).append(", ");
+		pair(out, prefix, "_speed").append(fix.speed).append(", ");
+	}
+
+	private static StringBuilder pair (StringBuilder out, String name) {
+		return out.append(name).append('=');
+	}
+
+	private static StringBuilder pair (StringBuilder out, String prefix, String name) {
+		return out.append(prefix).append(name).append('=');
+	}
+}
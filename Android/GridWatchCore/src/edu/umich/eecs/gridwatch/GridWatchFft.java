@@ -0,0 +1,127 @@
+package edu.umich.eecs.gridwatch;
+
+// Power spectrum of a real frame, by a complex FFT of half the length
+// (even samples as the real part, odd as the imaginary) and a split step
+// that separates the two. The bit reversal order, the twiddle factors and
+// a Hann window are worked out once per size and never change, so one
+// instance is shared by everything that uses that size; callers bring
+// their own work arrays.
+public class GridWatchFft {
+
+	private static GridWatchFft sShared = null;
+
+	private int mSize;
+	private int mHalf;
+
+	private int[] mBitReverse;
+
+	// e^(-2 pi i k / half) for the butterflies, k < half / 2
+	private double[] mCos;
+	private double[] mSin;
+
+	// e^(-2 pi i k / size) for the split step, k <= half
+	private double[] mSplitCos;
+	private double[] mSplitSin;
+
+	private double[] mWindow;
+
+	// size is a power of two, at least 4
+	public static synchronized GridWatchFft forSize (int size) {
+		if (sShared == null || sShared.mSize != size) {
+			sShared = new GridWatchFft(size);
+		}
+		return sShared;
+	}
+
+	private GridWatchFft (int size) {
+		if (size < 4 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+		}
+		mSize = size;
+		mHalf = size / 2;
+
+		int bits = Integer.numberOfTrailingZeros(mHalf);
+		mBitReverse = new int[mHalf];
+		for (int i = 0; i < mHalf; i++) {
+			mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+
+		mCos = new double[mHalf / 2];
+		mSin = new double[mHalf / 2];
+		for (int k = 0; k < mHalf / 2; k++) {
+			mCos[k] = Math.cos(2 * Math.PI * k / mHalf);
+			mSin[k] = Math.sin(2 * Math.PI * k / mHalf);
+		}
+
+		mSplitCos = new double[mHalf + 1];
+		mSplitSin = new double[mHalf + 1];
+		for (int k = 0; k <= mHalf; k++) {
+			mSplitCos[k] = Math.cos(2 * Math.PI * k / mSize);
+			mSplitSin[k] = Math.sin(2 * Math.PI * k / mSize);
+		}
+
+		mWindow = new double[mSize];
+		for (int n = 0; n < mSize; n++) {
+			mWindow[n] = 0.5 - 0.5 * Math.cos(2 * Math.PI * n / mSize);
+		}
+	}
+
+	public int getSize () {
+		return mSize;
+	}
+
+	// Sum of the window, which a sinusoid of amplitude a turns into a peak
+	// of a * sum / 2
+	public double getWindowSum () {
+		return mSize / 2.0;
+	}
+
+	// Add the power spectrum of the Hann windowed frame x (size samples) to
+	// power, bins 0 to size / 2. re and im are work space of size / 2.
+	public void addPowerSpectrum (double[] x, double[] re, double[] im, double[] power) {
+		for (int n = 0; n < mHalf; n++) {
+			int r = mBitReverse[n];
+			re[r] = x[2 * n] * mWindow[2 * n];
+			im[r] = x[2 * n + 1] * mWindow[2 * n + 1];
+		}
+
+		for (int span = 2; span <= mHalf; span <<= 1) {
+			int half = span >> 1;
+			int step = mHalf / span;
+			for (int start = 0; start < mHalf; start += span) {
+				for (int k = 0; k < half; k++) {
+					double wr = mCos[k * step];
+					double wi = -mSin[k * step];
+					int a = start + k;
+					int b = a + half;
+					double tr = wr * re[b] - wi * im[b];
+					double ti = wr * im[b] + wi * re[b];
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+
+		// Z[k] = E[k] + i O[k] where E and O are the spectra of the even and
+		// odd samples, and X[k] = E[k] + e^(-2 pi i k / size) O[k]
+		for (int k = 0; k <= mHalf; k++) {
+			int j = (k == 0 || k == mHalf) ? 0 : k;
+			int m = (k == 0 || k == mHalf) ? 0 : mHalf - k;
+			double zr = re[j];
+			double zi = im[j];
+			double cr = re[m];
+			double ci = -im[m];
+			double er = 0.5 * (zr + cr);
+			double ei = 0.5 * (zi + ci);
+			double dr = 0.5 * (zr - cr);
+			double di = 0.5 * (zi - ci);
+			double c = mSplitCos[k];
+			double s = mSplitSin[k];
+			double xr = er + c * di - s * dr;
+			double xi = ei - c * dr - s * di;
+			power[k] += xr * xr + xi * xi;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package edu.umich.eecs.gridwatch;
+
+// A location fix from one provider, copied out of the platform's location
+// object so the code that builds alerts doesn't depend on it.
+public class GridWatchFix {
+
+	public String provider;
+	public double latitude;
+	public double longitude;
+	public float accuracy;
+	public double altitude;
+	public float speed;
+
+	// When the fix was taken, in milliseconds since the epoch
+	public long time;
+}
@@ -0,0 +1,73 @@
+package edu.umich.eecs.gridwatch;
+
+import java.util.Locale;
+
+// Decides whether a watchdog heartbeat is worth sending when its alarm
+// goes off, and counts what the heartbeat costs the phone.
+//
+// The heartbeat only exists to tell the server the phone is still alive,
+// so it is skipped when the server has taken anything from us within half
+// an interval. Whether a heartbeat that is sent can ride along with alerts
+// already waiting for an upload is up to the sender; it reports that with
+// notePiggybacked(). Times are on a clock that never goes backwards, e.g.
+// elapsedRealtime().
+public class GridWatchHeartbeat {
+
+	private long mInterval;
+
+	// When the server last took an alert from us, or -1 if it hasn't since
+	// we started
+	private long mLastDelivered = -1;
+
+	// Counters since mStart
+	private long mStart;
+	private int mWakeups = 0;
+	private int mSkipped = 0;
+	private int mSent = 0;
+	private int mPiggybacked = 0;
+	private int mRadioSessions = 0;
+
+	public GridWatchHeartbeat (long interval, long now) {
+		mInterval = interval;
+		mStart = now;
+	}
+
+	public long getInterval () {
+		return mInterval;
+	}
+
+	// Call when the heartbeat alarm goes off. Returns true if a heartbeat
+	// should be sent.
+	public synchronized boolean onAlarm (long now) {
+		mWakeups++;
+		if (mLastDelivered >= 0 && now - mLastDelivered < mInterval / 2) {
+			mSkipped++;
+			return false;
+		}
+		mSent++;
+		return true;
+	}
+
+	// Call when the server has taken alerts from us
+	public synchronized void noteDelivered (long now) {
+		mLastDelivered = now;
+	}
+
+	// Call each time the radio is brought up to talk to the server
+	public synchronized void noteRadioSession () {
+		mRadioSessions++;
+	}
+
+	// Call when a heartbeat was queued behind alerts waiting for an upload
+	// instead of being sent on its own
+	public synchronized void notePiggybacked () {
+		mPiggybacked++;
+	}
+
+	public synchronized String report (long now) {
+		double days = Math.max(now - mStart, 1) / 86400000.0;
+		return String.format(Locale.US,
+				"wakeups/day=%.2f radio_sessions/day=%.2f heartbeats sent=%d skipped=%d piggybacked=%d",
+				mWakeups / days, mRadioSessions / days, mSent, mSkipped, mPiggybacked);
+	}
+}
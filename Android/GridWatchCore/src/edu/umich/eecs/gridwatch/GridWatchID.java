@@ -0,0 +1,16 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+
+// The user assigned ID for this phone
+public class GridWatchID extends GridWatchValueLog {
+
+	private final static String KEY = "id";
+	private final static String OLD_LOG_NAME = "gw_ID.log";
+
+	// oldLogDir is where the old text log was kept, the SD card
+	public GridWatchID (GridWatchStorage store, File oldLogDir) {
+		super(store, KEY, GridWatchStore.CHANNEL_ID, new File(oldLogDir, OLD_LOG_NAME));
+	}
+
+}
@@ -0,0 +1,13 @@
+package edu.umich.eecs.gridwatch;
+
+// Supplies the most recent location fix for a provider
+public interface GridWatchLocationSource {
+
+	// Provider names, the same strings the platform uses
+	public final static String GPS = "gps";
+	public final static String NETWORK = "network";
+
+	// The latest fix from provider, or null if there is none. Must not
+	// block waiting for a new fix.
+	GridWatchFix getLastFix (String provider);
+}
@@ -0,0 +1,26 @@
+package edu.umich.eecs.gridwatch;
+
+// Where the platform-free classes report problems they can carry on from.
+// The service points this at android.util.Log; anywhere else, e.g. the
+// server tools, messages go to standard error.
+public class GridWatchLog {
+
+	public interface Sink {
+		void warn (String tag, String message);
+	}
+
+	private static volatile Sink sSink = null;
+
+	public static void setSink (Sink sink) {
+		sSink = sink;
+	}
+
+	public static void w (String tag, String message) {
+		Sink sink = sSink;
+		if (sink != null) {
+			sink.warn(tag, message);
+		} else {
+			System.err.println(tag + ": " + message);
+		}
+	}
+}
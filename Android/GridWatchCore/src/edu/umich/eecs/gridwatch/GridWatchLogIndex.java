@@ -0,0 +1,119 @@
+package edu.umich.eecs.gridwatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Pages through one channel of the event log newest first, across the
+// current segment and the rotated ones, by record position rather than by
+// reading whole segments. The current segment's positions are extended
+// from where the last scan stopped, and an older segment is only indexed
+// when paging first reaches it, so a page costs about the same however
+// long the log is.
+//
+// Entries are numbered from 0, the newest as of the last refresh(). The
+// numbering holds until the next refresh(), however much is logged in the
+// meantime. Not for the UI thread: refresh() and page() do file IO.
+public class GridWatchLogIndex {
+
+	private GridWatchStore mStore;
+	private byte mChannel;
+
+	// Record positions for each segment, oldest first, or null for older
+	// segments not indexed yet
+	private int[][] mPositions = new int[GridWatchStore.MAX_SEGMENTS + 1][];
+
+	// How far into the current segment we have indexed, and its first
+	// record, to notice when it has been rotated
+	private long mCurrentEnd = 0;
+	private long mCurrentFirstTime = -1;
+
+	public GridWatchLogIndex (GridWatchStore store, byte channel) {
+		mStore = store;
+		mChannel = channel;
+	}
+
+	// Take in everything logged since the last refresh, which becomes the
+	// new entry 0
+	public synchronized void refresh () {
+		if (mPositions[0] != null && rotated()) {
+			// The segments all moved down one; start over
+			for (int i = 0; i < mPositions.length; i++) mPositions[i] = null;
+			mCurrentEnd = 0;
+			mCurrentFirstTime = -1;
+		}
+
+		long[] end = new long[1];
+		int[] added = mStore.indexLog(0, mChannel, mCurrentEnd, end);
+		mCurrentEnd = end[0];
+		int[] current = mPositions[0] == null ? new int[0] : mPositions[0];
+		if (added.length > 0) {
+			int[] grown = new int[current.length + added.length];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			System.arraycopy(added, 0, grown, current.length, added.length);
+			current = grown;
+		}
+		mPositions[0] = current;
+		if (mCurrentFirstTime < 0 && current.length > 0) {
+			mCurrentFirstTime = firstTime(current);
+		}
+	}
+
+	// Add up to count entries, starting at entry from and going back in
+	// time, to out. Returns how many were added; fewer than count means
+	// the start of the log was reached.
+	public synchronized int page (int from, int count, List<GridWatchStorage.Record> out) {
+		if (mPositions[0] == null) refresh();
+		int added = 0;
+		int skip = from;
+		for (int segment = 0; segment < mPositions.length && added < count; segment++) {
+			int[] positions = positions(segment);
+			int size = positions.length;
+			if (skip >= size) {
+				skip -= size;
+				continue;
+			}
+
+			// Entries newest first are positions[size - 1 - skip] and down
+			int to = size - skip;
+			int fromIndex = Math.max(0, to - (count - added));
+			int before = out.size();
+			if (!mStore.readLog(segment, positions, fromIndex, to, out)) {
+				// Rotated under us; the caller can refresh and start over
+				while (out.size() > before) out.remove(out.size() - 1);
+				break;
+			}
+			reverse(out, before, out.size());
+			added += to - fromIndex;
+			skip = 0;
+		}
+		return added;
+	}
+
+	private int[] positions (int segment) {
+		if (mPositions[segment] == null) {
+			mPositions[segment] = mStore.indexLog(segment, mChannel, 0, new long[1]);
+		}
+		return mPositions[segment];
+	}
+
+	// Whether the current segment has been replaced since we indexed it
+	private boolean rotated () {
+		// With nothing on our channel yet, rescanning from the start is cheap
+		if (mPositions[0].length == 0) return mCurrentEnd > 0;
+		return firstTime(mPositions[0]) != mCurrentFirstTime;
+	}
+
+	private long firstTime (int[] positions) {
+		List<GridWatchStorage.Record> first = new ArrayList<GridWatchStorage.Record>(1);
+		if (!mStore.readLog(0, positions, 0, 1, first)) return -2;
+		return first.get(0).time;
+	}
+
+	private static void reverse (List<GridWatchStorage.Record> list, int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--) {
+			GridWatchStorage.Record t = list.get(i);
+			list.set(i, list.get(j));
+			list.set(j, t);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package edu.umich.eecs.gridwatch;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// The app's activity log, kept on the event log channel of the
+// GridWatchStore. Entries are buffered by the store, so call flush() before
+// the process might go away.
+public class GridWatchLogger {
+
+	private GridWatchStorage mStore;
+
+	// Tool for getting a pretty date
+	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+
+	public GridWatchLogger (GridWatchStorage store) {
+		mStore = store;
+	}
+
+	// Log an entry stamped with the current time
+	public void log (String event_type, String info) {
+		mStore.append(GridWatchStore.CHANNEL_LOG, System.currentTimeMillis(), event_type, info);
+	}
+
+	public void flush () {
+		mStore.flush();
+	}
+
+	public void close () {
+		mStore.close();
+	}
+
+	// The entries in the current log segment as "time|event_type|info" lines
+	public ArrayList<String> read () {
+		List<GridWatchStorage.Record> records = mStore.read(GridWatchStore.CHANNEL_LOG);
+		ArrayList<String> ret = new ArrayList<String>(records.size());
+		for (GridWatchStorage.Record record : records) {
+			String l = mDateFormat.format(new Date(record.time)) + "|" + record.type;
+			if (record.info != null) {
+				l += "|" + record.info;
+			}
+			ret.add(l);
+		}
+		return ret;
+	}
+
+	public String get_last_value () {
+		List<GridWatchStorage.Record> records = mStore.read(GridWatchStore.CHANNEL_LOG);
+		if (!records.isEmpty()) {
+			return records.get(records.size() - 1).type;
+		}
+		return "-1";
+	}
+
+}
@@ -0,0 +1,53 @@
+package edu.umich.eecs.gridwatch;
+
+// Listens for mains hum in every capture the engine makes: the
+// GridWatchMainsDetector verdict and the GridWatchMainsFeatures
+// measurements, from the same audio. Sits in front of another Sink, e.g.
+// the recording file, and passes everything on to it.
+//
+// There is one detector and one feature extractor for the life of the
+// engine, reset at the start of each capture, so an unplug event costs no
+// analysis state of its own. All the events that share a capture share its
+// result: read it from Listener.onFinished(), which the engine calls after
+// end() and before the next capture begins.
+public class GridWatchMainsAnalysis implements GridWatchCaptureEngine.Sink {
+
+	private GridWatchMainsDetector mDetector;
+	private GridWatchMainsFeatures mFeatures;
+	private GridWatchCaptureEngine.Sink mNext;
+
+	public GridWatchMainsAnalysis (int sampleRate, int channels, GridWatchCaptureEngine.Sink next) {
+		mDetector = new GridWatchMainsDetector(sampleRate, channels);
+		mFeatures = new GridWatchMainsFeatures(sampleRate, channels);
+		mNext = next;
+	}
+
+	@Override
+	public void begin (long time) {
+		mDetector.reset();
+		mFeatures.reset();
+		mNext.begin(time);
+	}
+
+	@Override
+	public void write (byte[] buffer, int len) {
+		mDetector.addSamples(buffer, len);
+		mFeatures.addSamples(buffer, len);
+		mNext.write(buffer, len);
+	}
+
+	@Override
+	public void end () {
+		mFeatures.finish();
+		mNext.end();
+	}
+
+	// The last capture's results
+	public GridWatchMainsDetector getDetector () {
+		return mDetector;
+	}
+
+	public GridWatchMainsFeatures getFeatures () {
+		return mFeatures;
+	}
+}
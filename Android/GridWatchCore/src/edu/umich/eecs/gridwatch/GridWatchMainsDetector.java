@@ -0,0 +1,149 @@
+package edu.umich.eecs.gridwatch;
+
+// Streaming detector for mains hum (50 or 60 Hz and their 2nd and 3rd
+// harmonics) in 16-bit little endian PCM straight from AudioRecord.read().
+//
+// Each buffer is downmixed to mono and run through one Goertzel filter per
+// frequency as it arrives, so nothing is stored and nothing is allocated
+// after construction. The samples are split into fixed blocks; at the end
+// of each block the fraction of the block's energy that landed in the
+// 50 Hz family and the 60 Hz family is computed, and the confidence is the
+// average over all blocks of the larger of the two.
+public class GridWatchMainsDetector {
+
+	// Frequencies we look at. The first half are the 50 Hz family, the
+	// second half the 60 Hz family.
+	private final static float[] BIN_FREQUENCIES = {50f, 100f, 150f, 60f, 120f, 180f};
+	private final static int FAMILY_SIZE = 3;
+
+	// Length of one analysis block. 200 ms gives 5 Hz resolution which
+	// keeps 50 and 60 Hz well apart.
+	private final static int BLOCKS_PER_SECOND = 5;
+
+	// Blocks with less energy than this (per sample, full scale = 1) are
+	// silence and tell us nothing either way.
+	private final static double SILENCE_ENERGY = 1e-9;
+
+	// Confidence above which we say we heard the grid
+	public final static float HUM_THRESHOLD = 0.2f;
+
+	private int mChannels;
+	private int mBlockLength;
+
+	private double[] mCoeff = new double[BIN_FREQUENCIES.length];
+	private double[] mS1 = new double[BIN_FREQUENCIES.length];
+	private double[] mS2 = new double[BIN_FREQUENCIES.length];
+
+	// Progress through the current block
+	private int mBlockSamples = 0;
+	private double mBlockEnergy = 0;
+
+	// Results over all finished blocks
+	private int mBlocks = 0;
+	private double mConfidenceTotal = 0;
+	private double mFiftyTotal = 0;
+	private double mSixtyTotal = 0;
+
+	public GridWatchMainsDetector (int sampleRate, int channels) {
+		mChannels = channels;
+		mBlockLength = sampleRate / BLOCKS_PER_SECOND;
+		for (int i = 0; i < BIN_FREQUENCIES.length; i++) {
+			mCoeff[i] = 2.0 * Math.cos(2.0 * Math.PI * BIN_FREQUENCIES[i] / sampleRate);
+		}
+	}
+
+	// Feed len bytes of interleaved 16-bit little endian PCM
+	public void addSamples (byte[] buffer, int len) {
+		int frameBytes = 2 * mChannels;
+		int frames = len / frameBytes;
+		int pos = 0;
+
+		for (int f = 0; f < frames; f++) {
+			// Downmix to mono in the range [-1, 1)
+			int sum = 0;
+			for (int c = 0; c < mChannels; c++) {
+				sum += (short) ((buffer[pos] & 0xff) | (buffer[pos + 1] << 8));
+				pos += 2;
+			}
+			double x = sum / (32768.0 * mChannels);
+
+			mBlockEnergy += x * x;
+			for (int i = 0; i < mCoeff.length; i++) {
+				double s0 = x + mCoeff[i] * mS1[i] - mS2[i];
+				mS2[i] = mS1[i];
+				mS1[i] = s0;
+			}
+
+			if (++mBlockSamples == mBlockLength) {
+				finishBlock();
+			}
+		}
+	}
+
+	// Work out how much of the block's energy was mains hum and reset the
+	// filters for the next block.
+	private void finishBlock () {
+		if (mBlockEnergy / mBlockLength > SILENCE_ENERGY) {
+			// A sinusoid carrying all of the block's energy would give a
+			// Goertzel power of N * E / 2, so this scales each bin to the
+			// fraction of the energy it holds.
+			double scale = 2.0 / (mBlockLength * mBlockEnergy);
+			double fifty = 0;
+			double sixty = 0;
+			for (int i = 0; i < mCoeff.length; i++) {
+				double power = mS1[i] * mS1[i] + mS2[i] * mS2[i] - mCoeff[i] * mS1[i] * mS2[i];
+				if (i < FAMILY_SIZE) {
+					fifty += power * scale;
+				} else {
+					sixty += power * scale;
+				}
+			}
+			fifty = Math.min(fifty, 1.0);
+			sixty = Math.min(sixty, 1.0);
+
+			mBlocks++;
+			mFiftyTotal += fifty;
+			mSixtyTotal += sixty;
+			mConfidenceTotal += Math.max(fifty, sixty);
+		}
+
+		for (int i = 0; i < mCoeff.length; i++) {
+			mS1[i] = 0;
+			mS2[i] = 0;
+		}
+		mBlockSamples = 0;
+		mBlockEnergy = 0;
+	}
+
+	// Confidence in [0, 1] that mains hum was present. NaN, unknown, if we
+	// have not heard a full block of non-silent audio; that is not the
+	// same as hearing no hum.
+	public float getConfidence () {
+		if (mBlocks == 0) return Float.NaN;
+		return (float) (mConfidenceTotal / mBlocks);
+	}
+
+	// 50 or 60 depending on which family was stronger, or 0 if unknown
+	public int getMainsFrequency () {
+		if (mBlocks == 0) return 0;
+		return (mFiftyTotal > mSixtyTotal) ? 50 : 60;
+	}
+
+	public boolean humDetected () {
+		return getConfidence() >= HUM_THRESHOLD;
+	}
+
+	// Forget everything so the detector can be used for another recording
+	public void reset () {
+		for (int i = 0; i < mCoeff.length; i++) {
+			mS1[i] = 0;
+			mS2[i] = 0;
+		}
+		mBlockSamples = 0;
+		mBlockEnergy = 0;
+		mBlocks = 0;
+		mConfidenceTotal = 0;
+		mFiftyTotal = 0;
+		mSixtyTotal = 0;
+	}
+}
@@ -0,0 +1,202 @@
+package edu.umich.eecs.gridwatch;
+
+// Measures mains hum in 16-bit little endian PCM straight from
+// AudioRecord.read(): the grid frequency to a fraction of a hertz, how
+// loud the hum is, how strong its 2nd and 3rd harmonics are next to it,
+// and how far it stands out of the noise. A grid running slow or a hum
+// that has changed shape can tell the server about brownouts and
+// islanding that a yes or no hum flag can't.
+//
+// The audio is downmixed and decimated to about 1 kHz, which keeps the 3rd
+// harmonic of a 60 Hz grid well inside the band, and cut into frames of
+// FRAME_SIZE samples (about 2 s) that overlap by three quarters, so a 3 s
+// recording gives two of them. The Hann windowed power spectra of the
+// frames are averaged, and each peak is placed between bins by fitting a
+// Gaussian to it and its two neighbours, which is accurate to a few
+// hundredths of a bin for a Hann window. Buffers are allocated once per
+// instance and the FFT tables are shared.
+public class GridWatchMainsFeatures {
+
+	private final static int ANALYSIS_RATE = 1000;
+	private final static int FRAME_SIZE = 2048;
+	private final static int HOP = FRAME_SIZE / 4;
+
+	// Where to look for the fundamental, covering 50 and 60 Hz grids
+	private final static double FUNDAMENTAL_MIN = 40;
+	private final static double FUNDAMENTAL_MAX = 70;
+
+	// Bins around each harmonic that aren't noise
+	private final static int PEAK_BINS = 4;
+	private final static int HARMONIC_SEARCH_BINS = 3;
+
+	// The noise floor is measured over this band, less the harmonics
+	private final static double NOISE_MIN = 20;
+	private final static double NOISE_MAX = 300;
+
+	private GridWatchDecimator mDecimator;
+	private GridWatchFft mFft;
+	private double mBinHz;
+
+	private short[] mMono;
+	private double[] mFrame = new double[FRAME_SIZE];
+	private int mFrameSamples = 0;
+	private double[] mRe = new double[FRAME_SIZE / 2];
+	private double[] mIm = new double[FRAME_SIZE / 2];
+	private double[] mPower = new double[FRAME_SIZE / 2 + 1];
+	private int mFrames = 0;
+
+	// Results, set by finish()
+	private boolean mHasResult = false;
+	private double mFrequency;
+	private double mAmplitude;
+	private double mSecondRatio;
+	private double mThirdRatio;
+	private double mSnr;
+
+	// Filled by interpolate()
+	private double mPeakBin;
+	private double mPeakPower;
+
+	public GridWatchMainsFeatures (int sampleRate, int channels) {
+		mDecimator = new GridWatchDecimator(sampleRate, channels, ANALYSIS_RATE);
+		mFft = GridWatchFft.forSize(FRAME_SIZE);
+		mBinHz = (double) mDecimator.getOutputRate() / FRAME_SIZE;
+		mMono = new short[0];
+	}
+
+	// Feed len bytes of interleaved 16-bit little endian PCM
+	public void addSamples (byte[] buffer, int len) {
+		// AudioRecord hands back buffers of one size, so this grows once
+		if (mMono.length < mDecimator.maxOutput(len)) {
+			mMono = new short[mDecimator.maxOutput(len)];
+		}
+		int count = mDecimator.process(buffer, len, mMono);
+
+		for (int i = 0; i < count; i++) {
+			mFrame[mFrameSamples++] = mMono[i] / 32768.0;
+			if (mFrameSamples == FRAME_SIZE) {
+				mFft.addPowerSpectrum(mFrame, mRe, mIm, mPower);
+				mFrames++;
+				System.arraycopy(mFrame, HOP, mFrame, 0, FRAME_SIZE - HOP);
+				mFrameSamples = FRAME_SIZE - HOP;
+			}
+		}
+	}
+
+	// Work out the features from the frames so far. Returns false if there
+	// wasn't a whole frame of audio.
+	public boolean finish () {
+		mHasResult = false;
+		if (mFrames == 0) return false;
+
+		int last = mPower.length - 2;
+		int from = Math.max(1, (int) Math.floor(FUNDAMENTAL_MIN / mBinHz));
+		int to = Math.min(last, (int) Math.ceil(FUNDAMENTAL_MAX / mBinHz));
+		int peak = from;
+		for (int k = from + 1; k <= to; k++) {
+			if (mPower[k] > mPower[peak]) peak = k;
+		}
+		if (mPower[peak] <= 0) return false;
+
+		interpolate(peak);
+		double fundamental = mPeakBin;
+		double fundamentalPower = mPeakPower;
+		mFrequency = fundamental * mBinHz;
+		mAmplitude = amplitude(fundamentalPower);
+		mSecondRatio = harmonicRatio(2, fundamental, fundamentalPower);
+		mThirdRatio = harmonicRatio(3, fundamental, fundamentalPower);
+
+		// Mean power per bin away from the hum's harmonics
+		double noise = 0;
+		int noiseBins = 0;
+		int noiseTo = Math.min(last, (int) (NOISE_MAX / mBinHz));
+		for (int k = (int) Math.ceil(NOISE_MIN / mBinHz); k <= noiseTo; k++) {
+			double harmonic = k / fundamental;
+			double nearest = Math.max(1, Math.round(harmonic));
+			if (Math.abs(k - nearest * fundamental) <= PEAK_BINS) continue;
+			noise += mPower[k];
+			noiseBins++;
+		}
+		noise = (noiseBins > 0) ? noise / noiseBins : 0;
+		mSnr = (noise > 0) ? 10 * Math.log10(fundamentalPower / noise) : Double.POSITIVE_INFINITY;
+
+		mHasResult = true;
+		return true;
+	}
+
+	public boolean hasResult () {
+		return mHasResult;
+	}
+
+	// Mains frequency in Hz
+	public double getFrequency () {
+		return mFrequency;
+	}
+
+	// Peak amplitude of the fundamental, where full scale is 1
+	public double getAmplitude () {
+		return mAmplitude;
+	}
+
+	// Amplitude of the fundamental in dB relative to full scale
+	public double getAmplitudeDb () {
+		return 20 * Math.log10(Math.max(mAmplitude, 1e-10));
+	}
+
+	// Amplitude of the 2nd and 3rd harmonics over the fundamental's
+	public double getSecondHarmonicRatio () {
+		return mSecondRatio;
+	}
+
+	public double getThirdHarmonicRatio () {
+		return mThirdRatio;
+	}
+
+	// Power at the fundamental's peak over the mean noise power per bin, in dB
+	public double getSnr () {
+		return mSnr;
+	}
+
+	// Forget everything so this can be used for another recording
+	public void reset () {
+		mDecimator.reset();
+		mFrameSamples = 0;
+		mFrames = 0;
+		for (int k = 0; k < mPower.length; k++) {
+			mPower[k] = 0;
+		}
+		mHasResult = false;
+	}
+
+	private double harmonicRatio (int harmonic, double fundamental, double fundamentalPower) {
+		int center = (int) Math.round(harmonic * fundamental);
+		int from = Math.max(1, center - HARMONIC_SEARCH_BINS);
+		int to = Math.min(mPower.length - 2, center + HARMONIC_SEARCH_BINS);
+		if (from > to) return 0;
+		int peak = from;
+		for (int k = from + 1; k <= to; k++) {
+			if (mPower[k] > mPower[peak]) peak = k;
+		}
+		interpolate(peak);
+		return Math.sqrt(mPeakPower / fundamentalPower);
+	}
+
+	// Gaussian fit through bin k and its neighbours: sets mPeakBin and
+	// mPeakPower
+	private void interpolate (int k) {
+		double a = Math.log(Math.max(mPower[k - 1], Double.MIN_VALUE));
+		double b = Math.log(Math.max(mPower[k], Double.MIN_VALUE));
+		double c = Math.log(Math.max(mPower[k + 1], Double.MIN_VALUE));
+		double denominator = a - 2 * b + c;
+		double offset = (denominator < 0) ? 0.5 * (a - c) / denominator : 0;
+		if (offset > 0.5) offset = 0.5;
+		else if (offset < -0.5) offset = -0.5;
+		mPeakBin = k + offset;
+		mPeakPower = Math.exp(b - 0.25 * (a - c) * offset);
+	}
+
+	// Sinusoid amplitude from the averaged peak power
+	private double amplitude (double power) {
+		return 2 * Math.sqrt(power / mFrames) / mFft.getWindowSum();
+	}
+}
@@ -0,0 +1,196 @@
+package edu.umich.eecs.gridwatch;
+
+// Decides whether the phone moved after an unplug. All pending events share
+// one ring buffer of recent accelerometer magnitudes, so a sample is stored
+// once no matter how many events are waiting on it.
+//
+// Adding a sample only stores it. A verdict sums its window when it is
+// asked for, which the event loop does when a window ends or the phone is
+// moving, and finding the window's ends is a binary search on the
+// timestamps.
+//
+// recentlyMoving(), the test the loop makes between verdicts, looks at a
+// sparser copy: samples at least SPARSE_MS apart, each stored with the
+// running sums of magnitudes and squared magnitudes before it. The sums of
+// its window are then two lookups, and the window's start only ever moves
+// forward, so it is followed instead of searched for. At fast sensor rates
+// most samples never touch the copy.
+public class GridWatchMotionDetector {
+
+	public final static int UNDECIDED = 0;
+	public final static int STILL = 1;
+	public final static int MOVED = 2;
+
+	// How long after an unplug we watch for movement
+	public final static long MOTION_WINDOW_MS = 5000l;
+
+	// Standard deviation of the acceleration magnitude (m/s^2) above
+	// which we say the phone was picked up
+	private final static float MOTION_THRESHOLD = 0.3f;
+
+	// Don't call a window moving on fewer samples than this
+	private final static int MIN_SAMPLES = 3;
+
+	// Spacing of the samples recentlyMoving() looks at. SENSOR_DELAY_NORMAL
+	// is slower than this, so on the phone it sees every sample.
+	private final static long SPARSE_MS = 50l;
+
+	private int mCapacity;
+	private long[] mTime;
+	private float[] mMag;
+
+	// Total number of samples ever added; sample k lives in slot k % capacity
+	private long mCount = 0;
+	private int mNextSlot = 0;
+
+	// The sparse copy, laid out the same way, with the sums before each of
+	// its samples and of all of them
+	private long[] mSparseTime;
+	private double[] mSparseSumBefore;
+	private double[] mSparseSumSqBefore;
+	private long mSparseCount = 0;
+	private int mSparseNextSlot = 0;
+	private double mSparseSum = 0;
+	private double mSparseSumSq = 0;
+	private long mNextSparseTime = Long.MIN_VALUE;
+
+	// The oldest sparse sample in the last recentlyMoving() window, of
+	// mRecentMs, and its slot
+	private long mRecentMs = -1;
+	private long mRecentFirst = 0;
+	private int mRecentSlot = 0;
+
+	public GridWatchMotionDetector (int capacity) {
+		mCapacity = capacity;
+		mTime = new long[capacity];
+		mMag = new float[capacity];
+		mSparseTime = new long[capacity];
+		mSparseSumBefore = new double[capacity];
+		mSparseSumSqBefore = new double[capacity];
+	}
+
+	// Add a sample taken at time (milliseconds, same clock as the windows)
+	public void addSample (long time, float x, float y, float z) {
+		float mag = (float) Math.sqrt(x*x + y*y + z*z);
+		int slot = mNextSlot;
+		mTime[slot] = time;
+		mMag[slot] = mag;
+		mNextSlot = (slot + 1 == mCapacity) ? 0 : slot + 1;
+		mCount++;
+
+		if (time >= mNextSparseTime) {
+			mNextSparseTime = time + SPARSE_MS;
+			slot = mSparseNextSlot;
+			mSparseTime[slot] = time;
+			mSparseSumBefore[slot] = mSparseSum;
+			mSparseSumSqBefore[slot] = mSparseSumSq;
+			mSparseSum += mag;
+			mSparseSumSq += (double) mag * mag;
+			mSparseNextSlot = (slot + 1 == mCapacity) ? 0 : slot + 1;
+			mSparseCount++;
+		}
+	}
+
+	// Verdict for the window that starts at start and lasts MOTION_WINDOW_MS.
+	// MOVED as soon as the samples so far show movement, STILL once the
+	// window has passed without any, UNDECIDED while we are still waiting.
+	public int verdict (long start) {
+		long end = start + MOTION_WINDOW_MS;
+		if (mCount == 0) return UNDECIDED;
+
+		long first = firstAtOrAfter(mTime, mCount, mNextSlot, start);
+		long last = (latestTime() <= end) ? mCount - 1 : firstAtOrAfter(mTime, mCount, mNextSlot, end + 1) - 1;
+		if (first <= last && last - first + 1 >= MIN_SAMPLES) {
+			if (stddev(first, last) > MOTION_THRESHOLD) {
+				return MOVED;
+			}
+		}
+		return (latestTime() >= end) ? STILL : UNDECIDED;
+	}
+
+	// True if the recent samples within windowMs show movement. This is a
+	// cheap test of whether any pending verdict could have changed.
+	public boolean recentlyMoving (long windowMs) {
+		if (mSparseCount < MIN_SAMPLES) return false;
+		long since = latestTime() - windowMs;
+		if (windowMs != mRecentMs || mRecentFirst < mSparseCount - mCapacity) {
+			// A new window length, or the old start has been overwritten
+			mRecentMs = windowMs;
+			mRecentFirst = firstAtOrAfter(mSparseTime, mSparseCount, mSparseNextSlot, since);
+			mRecentSlot = (int) (mRecentFirst % mCapacity);
+		} else {
+			long first = mRecentFirst;
+			int slot = mRecentSlot;
+			while (first < mSparseCount && mSparseTime[slot] < since) {
+				first++;
+				slot = (slot + 1 == mCapacity) ? 0 : slot + 1;
+			}
+			mRecentFirst = first;
+			mRecentSlot = slot;
+		}
+
+		long n = mSparseCount - mRecentFirst;
+		if (n < MIN_SAMPLES) return false;
+		double sum = mSparseSum - mSparseSumBefore[mRecentSlot];
+		double sumSq = mSparseSumSq - mSparseSumSqBefore[mRecentSlot];
+
+		// The variance is over the threshold squared, without a divide or
+		// a square root
+		return sumSq * n - sum * sum > (double) MOTION_THRESHOLD * MOTION_THRESHOLD * n * n;
+	}
+
+	public long latestTime () {
+		return mTime[(mNextSlot == 0) ? mCapacity - 1 : mNextSlot - 1];
+	}
+
+	// Drop all samples. Call when nothing is waiting on a verdict.
+	public void reset () {
+		mCount = 0;
+		mNextSlot = 0;
+		mSparseCount = 0;
+		mSparseNextSlot = 0;
+		mSparseSum = 0;
+		mSparseSumSq = 0;
+		mNextSparseTime = Long.MIN_VALUE;
+		mRecentMs = -1;
+	}
+
+	// Standard deviation of samples first..last inclusive
+	private double stddev (long first, long last) {
+		double sum = 0;
+		double sumSq = 0;
+		int slot = (int) (first % mCapacity);
+		for (long k = first; k <= last; k++) {
+			float mag = mMag[slot];
+			sum += mag;
+			sumSq += (double) mag * mag;
+			slot = (slot + 1 == mCapacity) ? 0 : slot + 1;
+		}
+		double n = last - first + 1;
+		double mean = sum / n;
+		double variance = Math.max(0, sumSq / n - mean * mean);
+		return Math.sqrt(variance);
+	}
+
+	// Index of the oldest sample still in a ring of count samples, with the
+	// next one going in nextSlot, taken at or after time, or count if there
+	// is none
+	private long firstAtOrAfter (long[] times, long count, int nextSlot, long time) {
+		// Search offsets from the oldest sample, which is in oldestSlot
+		int size = (int) Math.min(count, mCapacity);
+		int oldestSlot = (count > mCapacity) ? nextSlot : 0;
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = oldestSlot + mid;
+			if (slot >= mCapacity) slot -= mCapacity;
+			if (times[slot] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return count - size + lo;
+	}
+}
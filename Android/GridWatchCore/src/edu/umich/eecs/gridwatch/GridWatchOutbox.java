@@ -0,0 +1,434 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// Persistent queue of alert payloads that have not yet been delivered to
+// the server. Payloads are appended to a series of segment files and an
+// acknowledgement offset records how far delivery has progressed, so
+// nothing queued while offline is lost if the OS kills the service.
+//
+// Each record in a segment is: [int length][int crc32][payload bytes].
+// Only the newest segment is ever written, so opening the outbox only has
+// to check that one segment for a torn final record. The ack file also
+// records how many undelivered records the older segments hold, and is
+// rewritten whenever a segment is finished, so counting what is pending on
+// open doesn't read them either.
+public class GridWatchOutbox {
+
+	private final static String SEGMENT_EXTENSION = ".seg";
+	private final static String ACK_NAME = "ack";
+	private final static String ACK_TMP_NAME = "ack.tmp";
+
+	// Start a new segment once the current one grows past this size
+	private final static long SEGMENT_SIZE = 64 * 1024;
+
+	// Records larger than this are treated as corruption
+	private final static int MAX_RECORD_SIZE = 64 * 1024;
+
+	private final static int RECORD_HEADER_SIZE = 8;
+
+	private static String noteTag = "note";
+
+	private File mDir;
+
+	// Sequence numbers of all segment files on disk, oldest first
+	private ArrayList<Long> mSegments = new ArrayList<Long>();
+
+	// Everything before (mAckSegment, mAckOffset) has been delivered
+	private long mAckSegment;
+	private long mAckOffset;
+
+	// Open channel for the segment currently being appended to
+	private FileChannel mTail;
+	private long mTailSize;
+
+	// Number of payloads appended but not yet acknowledged, and how many of
+	// them are in the tail
+	private int mPending = 0;
+	private int mTailPending = 0;
+
+	// From the ack file: the tail when it was written and the undelivered
+	// records in the segments before it, or -1 if it didn't say
+	private long mAckTail;
+	private int mAckSealedPending;
+
+	private ByteBuffer mHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+	private CRC32 mCrc = new CRC32();
+
+	// Read buffer and results for walk(). Alerts are small, so the buffer
+	// starts small and grows to fit the largest record read.
+	private byte[] mRecord = new byte[256];
+	private int mWalked;
+	private boolean mCorrupt;
+
+	public GridWatchOutbox (File dir) throws IOException {
+		mDir = dir;
+		if (!mDir.exists()) mDir.mkdirs();
+
+		// Find all of the existing segments
+		String[] names = mDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.endsWith(SEGMENT_EXTENSION)) continue;
+				try {
+					mSegments.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+				} catch (NumberFormatException e) {
+					GridWatchLog.w(noteTag, "Ignoring unknown outbox file " + name);
+				}
+			}
+		}
+		Collections.sort(mSegments);
+
+		readAck();
+
+		// Segments entirely before the ack point were already delivered
+		while (!mSegments.isEmpty() && mSegments.get(0) < mAckSegment) {
+			segmentFile(mSegments.remove(0)).delete();
+		}
+
+		if (mSegments.isEmpty()) {
+			mAckOffset = 0;
+			openTail(mAckSegment);
+		} else {
+			// The ack file's count only holds if its segment is still here
+			boolean ackValid = mSegments.get(0) == mAckSegment;
+			if (mSegments.get(0) > mAckSegment) {
+				mAckSegment = mSegments.get(0);
+				mAckOffset = 0;
+			}
+			openTail(mSegments.get(mSegments.size() - 1));
+			recoverTail();
+			if (ackValid && mAckSealedPending >= 0 && mAckTail == currentSegment()) {
+				mPending = mAckSealedPending + mTailPending;
+			} else {
+				// An old ack file, or we were killed while starting a
+				// segment: count the hard way
+				countPending();
+			}
+		}
+	}
+
+	// Add a payload to the end of the outbox. The record is on disk when
+	// this returns.
+	public synchronized void append (byte[] payload) throws IOException {
+		if (payload.length > MAX_RECORD_SIZE) {
+			throw new IOException("Outbox record too large: " + payload.length);
+		}
+		if (mTailSize >= SEGMENT_SIZE) {
+			// Everything pending is now in finished segments. Say so before
+			// the new segment exists, so a mismatch on open is noticed.
+			long next = currentSegment() + 1;
+			mTailPending = 0;
+			writeAck(next);
+			mTail.close();
+			openTail(next);
+		}
+
+		mCrc.reset();
+		mCrc.update(payload, 0, payload.length);
+		mHeader.clear();
+		mHeader.putInt(payload.length);
+		mHeader.putInt((int) mCrc.getValue());
+		mHeader.flip();
+
+		mTail.position(mTailSize);
+		while (mHeader.hasRemaining()) {
+			mTail.write(mHeader);
+		}
+		ByteBuffer body = ByteBuffer.wrap(payload);
+		while (body.hasRemaining()) {
+			mTail.write(body);
+		}
+		mTail.force(false);
+		mTailSize += RECORD_HEADER_SIZE + payload.length;
+		mPending++;
+		mTailPending++;
+	}
+
+	// Returns up to max of the oldest payloads that have not been
+	// acknowledged yet, without removing them.
+	public synchronized List<byte[]> peek (int max) throws IOException {
+		ArrayList<byte[]> ret = new ArrayList<byte[]>(Math.min(max, 16));
+		int index = mSegments.indexOf(mAckSegment);
+		long offset = mAckOffset;
+
+		while (index >= 0 && index < mSegments.size() && ret.size() < max) {
+			long segment = mSegments.get(index);
+			long length = segmentLength(segment);
+			if (offset < length) {
+				RandomAccessFile raf = new RandomAccessFile(segmentFile(segment), "r");
+				try {
+					walk(raf, offset, length, max - ret.size(), ret);
+				} finally {
+					raf.close();
+				}
+				if (mCorrupt) {
+					// The rest of this segment is skipped, here and in ack()
+					GridWatchLog.w(noteTag, "Corrupt outbox record in segment " + segment);
+				}
+			}
+			// Finished with this segment, move on to the next one
+			index++;
+			offset = 0;
+		}
+
+		return ret;
+	}
+
+	// Mark the oldest count payloads as delivered. Walks the segments the
+	// same way peek() does, so a corrupt record is skipped by both.
+	public synchronized void ack (int count) throws IOException {
+		while (count > 0) {
+			long length = segmentLength(mAckSegment);
+			if (mAckOffset < length) {
+				RandomAccessFile raf = new RandomAccessFile(segmentFile(mAckSegment), "r");
+				try {
+					mAckOffset = walk(raf, mAckOffset, length, count, null);
+				} finally {
+					raf.close();
+				}
+				count -= mWalked;
+				mPending -= mWalked;
+				if (mAckSegment == currentSegment()) mTailPending -= mWalked;
+				if (mCorrupt) mAckOffset = length;
+			}
+			if (count == 0 || mAckSegment == currentSegment()) break;
+
+			// This segment is fully delivered and will never be written again
+			mSegments.remove(Long.valueOf(mAckSegment));
+			segmentFile(mAckSegment).delete();
+			mAckSegment = mSegments.get(0);
+			mAckOffset = 0;
+		}
+
+		// Drop a fully delivered segment right away rather than waiting for
+		// the next ack
+		if (mAckSegment != currentSegment() && mAckOffset >= segmentLength(mAckSegment)) {
+			mSegments.remove(Long.valueOf(mAckSegment));
+			segmentFile(mAckSegment).delete();
+			mAckSegment = mSegments.get(0);
+			mAckOffset = 0;
+		}
+
+		// Corrupt records skipped above were never counted off
+		if (isEmpty()) {
+			mPending = 0;
+			mTailPending = 0;
+		}
+
+		writeAck(currentSegment());
+	}
+
+	// True if every appended payload has been acknowledged
+	public synchronized boolean isEmpty () {
+		return mAckSegment == currentSegment() && mAckOffset >= mTailSize;
+	}
+
+	// Number of payloads waiting to be delivered, without reading them
+	public synchronized int pendingCount () {
+		return mPending;
+	}
+
+	// Approximate number of bytes waiting to be delivered
+	public synchronized long pendingBytes () {
+		long total = 0;
+		for (Long segment : mSegments) {
+			if (segment < mAckSegment) continue;
+			total += segmentLength(segment);
+			if (segment == mAckSegment) total -= mAckOffset;
+		}
+		return total;
+	}
+
+	public synchronized void close () {
+		try {
+			mTail.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private long currentSegment () {
+		return mSegments.get(mSegments.size() - 1);
+	}
+
+	// The tail's length is known without asking the file system
+	private long segmentLength (long segment) {
+		return (segment == currentSegment()) ? mTailSize : segmentFile(segment).length();
+	}
+
+	private File segmentFile (long segment) {
+		return new File(mDir, String.format(Locale.US, "%010d", segment) + SEGMENT_EXTENSION);
+	}
+
+	private void openTail (long segment) throws IOException {
+		if (mSegments.isEmpty() || mSegments.get(mSegments.size() - 1) != segment) {
+			mSegments.add(segment);
+		}
+		mTail = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+		mTailSize = mTail.size();
+	}
+
+	// Walk the newest segment and cut off a partially written final record
+	// left behind if we were killed in the middle of an append, counting
+	// the records past the ack point as we go.
+	private void recoverTail () throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segmentFile(currentSegment()), "r");
+		long valid;
+		try {
+			long from = (mAckSegment == currentSegment()) ? mAckOffset : 0;
+			valid = walk(raf, from, raf.length(), Integer.MAX_VALUE, null);
+			mTailPending = mWalked;
+		} finally {
+			raf.close();
+		}
+
+		if (valid < mTailSize) {
+			GridWatchLog.w(noteTag, "Truncating torn outbox record at " + valid);
+			mTail.truncate(valid);
+			mTailSize = valid;
+		}
+		if (mAckSegment == currentSegment() && mAckOffset > mTailSize) {
+			mAckOffset = mTailSize;
+		}
+	}
+
+	// Count the records left from before we were opened, skipping corrupt
+	// ones the way peek() and ack() do. Only needed when the ack file
+	// doesn't have the count.
+	private void countPending () throws IOException {
+		mPending = 0;
+		long offset = mAckOffset;
+		for (int i = mSegments.indexOf(mAckSegment); i >= 0 && i < mSegments.size(); i++) {
+			long segment = mSegments.get(i);
+			long length = segmentLength(segment);
+			if (offset < length) {
+				RandomAccessFile raf = new RandomAccessFile(segmentFile(segment), "r");
+				try {
+					walk(raf, offset, length, Integer.MAX_VALUE, null);
+				} finally {
+					raf.close();
+				}
+				mPending += mWalked;
+			}
+			offset = 0;
+		}
+	}
+
+	// Walks up to max records of a segment from offset and returns the
+	// offset just past the last one, setting mWalked to how many there were.
+	// Payloads are added to out unless it is null. Stops at a record that is
+	// incomplete or does not match its checksum, and sets mCorrupt if so.
+	// peek(), ack() and recoverTail() all go through here so they agree on
+	// where the records are.
+	private long walk (RandomAccessFile raf, long offset, long length, int max, List<byte[]> out)
+			throws IOException {
+		mWalked = 0;
+		mCorrupt = false;
+		raf.seek(offset);
+		byte[] header = mHeader.array();
+		while (mWalked < max && offset + RECORD_HEADER_SIZE <= length) {
+			raf.readFully(header, 0, RECORD_HEADER_SIZE);
+			int len = mHeader.getInt(0);
+			int crc = mHeader.getInt(4);
+			if (len < 0 || len > MAX_RECORD_SIZE || RECORD_HEADER_SIZE + len > length - offset) {
+				mCorrupt = true;
+				break;
+			}
+			if (len > mRecord.length) {
+				mRecord = new byte[Math.max(len, 2 * mRecord.length)];
+			}
+			raf.readFully(mRecord, 0, len);
+			mCrc.reset();
+			mCrc.update(mRecord, 0, len);
+			if ((int) mCrc.getValue() != crc) {
+				mCorrupt = true;
+				break;
+			}
+			if (out != null) {
+				byte[] payload = new byte[len];
+				System.arraycopy(mRecord, 0, payload, 0, len);
+				out.add(payload);
+			}
+			offset += RECORD_HEADER_SIZE + len;
+			mWalked++;
+		}
+		return offset;
+	}
+
+	// The ack file is [long segment][long offset][long tail][int pending]
+	// [long check]. Older ones are just [segment][offset][check].
+	private void readAck () {
+		File ackFile = new File(mDir, ACK_NAME);
+		mAckSegment = 0;
+		mAckOffset = 0;
+		mAckTail = -1;
+		mAckSealedPending = -1;
+		if (!ackFile.exists()) return;
+
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(ackFile));
+			try {
+				long segment = in.readLong();
+				long offset = in.readLong();
+				long tail = in.readLong();
+				if ((segment ^ offset) == ~tail) {
+					mAckSegment = segment;
+					mAckOffset = offset;
+				} else {
+					int pending = in.readInt();
+					long check = in.readLong();
+					if ((segment ^ offset ^ tail ^ pending) == ~check) {
+						mAckSegment = segment;
+						mAckOffset = offset;
+						mAckTail = tail;
+						mAckSealedPending = pending;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			GridWatchLog.w(noteTag, "Outbox ack file is truncated, resending from the start");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Replace the ack file atomically so a crash never leaves it half
+	// written. tail is the segment appends go to from now on.
+	private void writeAck (long tail) throws IOException {
+		int pending = mPending - mTailPending;
+		File tmp = new File(mDir, ACK_TMP_NAME);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeLong(mAckSegment);
+			out.writeLong(mAckOffset);
+			out.writeLong(tail);
+			out.writeInt(pending);
+			out.writeLong(~(mAckSegment ^ mAckOffset ^ tail ^ pending));
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(new File(mDir, ACK_NAME))) {
+			throw new IOException("Could not update outbox ack file");
+		}
+	}
+}
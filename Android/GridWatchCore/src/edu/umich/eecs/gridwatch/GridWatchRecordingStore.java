@@ -0,0 +1,371 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+// Keeps the unplug recordings in one folder under a byte and count quota.
+// Recordings are named <event time>.wav; which ones exist, their sizes and
+// what the mains detector made of them are kept in an index journal in the
+// same folder, so opening the store reads one file and lists the folder's
+// names instead of stat-ing every recording. Only a recording the index
+// doesn't know about, left by being killed between writing it and add(),
+// is looked at, and it is indexed then.
+//
+// When over quota the store deletes first the recordings that have been
+// uploaded or that heard the grid (the phone was unplugged, not the power
+// cut), then the rest, least recently used first. The order is kept in a
+// TreeSet so each eviction is O(log n).
+//
+// Each journal record is: [byte op][long time][long size][byte flags]
+// [int crc32]. Replaying the journal in order rebuilds the index, and the
+// order records were written in is the use order. The journal is rewritten
+// with one record per recording once it holds a lot more than that.
+public class GridWatchRecordingStore {
+
+	public final static String EXTENSION = ".wav";
+
+	// What the mains detector made of a recording
+	public final static byte VERDICT_UNKNOWN = 0;
+	public final static byte VERDICT_OUTAGE = 1;
+	public final static byte VERDICT_NOT_OUTAGE = 2;
+
+	private final static byte FLAG_UPLOADED = 4;
+	private final static byte VERDICT_MASK = 3;
+
+	private final static byte OP_ADD = 1;
+	private final static byte OP_UPDATE = 2;
+	private final static byte OP_TOUCH = 3;
+	private final static byte OP_REMOVE = 4;
+
+	private final static String INDEX_NAME = "index";
+	private final static String INDEX_TMP_NAME = "index.tmp";
+
+	private final static int RECORD_SIZE = 1 + 8 + 8 + 1 + 4;
+
+	// Compact once the journal has this many records per recording, and at
+	// least COMPACT_MIN records
+	private final static int COMPACT_RATIO = 4;
+	private final static int COMPACT_MIN = 256;
+
+	private static String noteTag = "note";
+
+	private static class Entry {
+		long time;
+		long size;
+		byte flags;
+		long used;
+
+		// Recordings that can go first sort first
+		int rank () {
+			if ((flags & FLAG_UPLOADED) != 0 || (flags & VERDICT_MASK) == VERDICT_NOT_OUTAGE) return 0;
+			return 1;
+		}
+	}
+
+	private static class EvictionOrder implements Comparator<Entry> {
+		@Override
+		public int compare (Entry a, Entry b) {
+			int ra = a.rank();
+			int rb = b.rank();
+			if (ra != rb) return ra < rb ? -1 : 1;
+			if (a.used != b.used) return a.used < b.used ? -1 : 1;
+			return a.time < b.time ? -1 : a.time > b.time ? 1 : 0;
+		}
+	}
+
+	private File mDir;
+	private long mMaxBytes;
+	private int mMaxCount;
+
+	private HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+	private TreeSet<Entry> mEviction = new TreeSet<Entry>(new EvictionOrder());
+	private long mBytes = 0;
+
+	// Use counter; the next use gets mClock + 1
+	private long mClock = 0;
+
+	private FileChannel mJournal;
+	private long mJournalRecords = 0;
+
+	private ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+	private CRC32 mCrc = new CRC32();
+
+	public GridWatchRecordingStore (File dir, long maxBytes, int maxCount) throws IOException {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+		mMaxCount = maxCount;
+		if (!mDir.exists()) mDir.mkdirs();
+
+		File index = new File(mDir, INDEX_NAME);
+		boolean existed = index.exists();
+		mJournal = new RandomAccessFile(index, "rw").getChannel();
+		if (existed) {
+			replay();
+		}
+		adopt();
+		evict(0);
+	}
+
+	// The file to record an event at time into. Call add() once it is
+	// written.
+	public File file (long time) {
+		return new File(mDir, time + EXTENSION);
+	}
+
+	// Delete recordings until one of size bytes fits under the quota
+	public synchronized void makeRoom (long size) throws IOException {
+		evict(size);
+	}
+
+	// Index the recording written to file(time), and keep to the quota
+	public synchronized void add (long time) throws IOException {
+		File f = file(time);
+		if (!f.exists()) return;
+		Entry entry = mEntries.get(time);
+		if (entry != null) remove(entry);
+
+		entry = new Entry();
+		entry.time = time;
+		entry.size = f.length();
+		entry.used = ++mClock;
+		mEntries.put(time, entry);
+		mEviction.add(entry);
+		mBytes += entry.size;
+		write(OP_ADD, entry);
+		evict(0);
+	}
+
+	public synchronized void setVerdict (long time, byte verdict) throws IOException {
+		Entry entry = mEntries.get(time);
+		if (entry == null) return;
+		update(entry, (byte) ((entry.flags & ~VERDICT_MASK) | verdict));
+	}
+
+	public synchronized void markUploaded (long time) throws IOException {
+		Entry entry = mEntries.get(time);
+		if (entry == null) return;
+		update(entry, (byte) (entry.flags | FLAG_UPLOADED));
+	}
+
+	// Note that the recording was used, so it is kept longer
+	public synchronized void touch (long time) throws IOException {
+		Entry entry = mEntries.get(time);
+		if (entry == null) return;
+		mEviction.remove(entry);
+		entry.used = ++mClock;
+		mEviction.add(entry);
+		write(OP_TOUCH, entry);
+	}
+
+	public synchronized boolean contains (long time) {
+		return mEntries.containsKey(time);
+	}
+
+	public synchronized byte getVerdict (long time) {
+		Entry entry = mEntries.get(time);
+		return (entry == null) ? VERDICT_UNKNOWN : (byte) (entry.flags & VERDICT_MASK);
+	}
+
+	public synchronized int getCount () {
+		return mEntries.size();
+	}
+
+	public synchronized long getBytes () {
+		return mBytes;
+	}
+
+	public synchronized void close () {
+		try {
+			mJournal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void update (Entry entry, byte flags) throws IOException {
+		if (flags == entry.flags) return;
+		mEviction.remove(entry);
+		entry.flags = flags;
+		mEviction.add(entry);
+		write(OP_UPDATE, entry);
+	}
+
+	// Delete recordings, first in eviction order, until one more of size
+	// bytes would fit
+	private void evict (long size) throws IOException {
+		int count = (size > 0) ? 1 : 0;
+		while (!mEviction.isEmpty()
+				&& (mBytes + size > mMaxBytes || mEntries.size() + count > mMaxCount)) {
+			Entry entry = mEviction.first();
+			if (!file(entry.time).delete() && file(entry.time).exists()) {
+				GridWatchLog.w(noteTag, "Could not delete recording " + entry.time);
+			}
+			remove(entry);
+		}
+		if (mJournalRecords > COMPACT_MIN && mJournalRecords > COMPACT_RATIO * mEntries.size()) {
+			compact();
+		}
+	}
+
+	private void remove (Entry entry) throws IOException {
+		mEntries.remove(entry.time);
+		mEviction.remove(entry);
+		mBytes -= entry.size;
+		write(OP_REMOVE, entry);
+	}
+
+	private void write (byte op, Entry entry) throws IOException {
+		fill(op, entry);
+		mJournal.position(mJournalRecords * RECORD_SIZE);
+		while (mRecord.hasRemaining()) {
+			mJournal.write(mRecord);
+		}
+		mJournalRecords++;
+	}
+
+	private void fill (byte op, Entry entry) {
+		mRecord.clear();
+		mRecord.put(op);
+		mRecord.putLong(entry.time);
+		mRecord.putLong(entry.size);
+		mRecord.put(entry.flags);
+		mCrc.reset();
+		mCrc.update(mRecord.array(), 0, RECORD_SIZE - 4);
+		mRecord.putInt((int) mCrc.getValue());
+		mRecord.flip();
+	}
+
+	// Rebuild the index from the journal, and cut off a torn final record
+	private void replay () throws IOException {
+		long length = mJournal.size();
+		ByteBuffer buffer = ByteBuffer.allocate((int) (length / RECORD_SIZE) * RECORD_SIZE);
+		mJournal.position(0);
+		while (buffer.hasRemaining() && mJournal.read(buffer) >= 0) {
+		}
+		buffer.flip();
+
+		byte[] bytes = buffer.array();
+		long records = 0;
+		while (buffer.remaining() >= RECORD_SIZE) {
+			int start = buffer.position();
+			byte op = buffer.get();
+			long time = buffer.getLong();
+			long size = buffer.getLong();
+			byte flags = buffer.get();
+			int crc = buffer.getInt();
+			mCrc.reset();
+			mCrc.update(bytes, start, RECORD_SIZE - 4);
+			if ((int) mCrc.getValue() != crc) break;
+			records++;
+
+			Entry entry = mEntries.get(time);
+			if (entry != null) {
+				mEviction.remove(entry);
+				mBytes -= entry.size;
+			}
+			if (op == OP_REMOVE) {
+				mEntries.remove(time);
+				continue;
+			}
+			if (entry == null) {
+				entry = new Entry();
+				entry.time = time;
+				mEntries.put(time, entry);
+			}
+			if (op == OP_ADD) entry.size = size;
+			if (op != OP_TOUCH) entry.flags = flags;
+			if (op != OP_UPDATE) entry.used = ++mClock;
+			mEviction.add(entry);
+			mBytes += entry.size;
+		}
+
+		mJournalRecords = records;
+		if (records * RECORD_SIZE < length) {
+			GridWatchLog.w(noteTag, "Truncating torn recording index record at " + records * RECORD_SIZE);
+			mJournal.truncate(records * RECORD_SIZE);
+		}
+	}
+
+	// Take in the recordings the index doesn't know about, oldest first:
+	// all of them on the first run with an index, and after that any
+	// written by a capture we were killed before add()ing. Index entries
+	// whose recording is gone are dropped.
+	private void adopt () throws IOException {
+		String[] names = mDir.list();
+		if (names == null) return;
+		TreeSet<Long> times = new TreeSet<Long>();
+		for (String name : names) {
+			if (!name.endsWith(EXTENSION)) continue;
+			try {
+				times.add(Long.valueOf(name.substring(0, name.length() - EXTENSION.length())));
+			} catch (NumberFormatException e) {
+				GridWatchLog.w(noteTag, "Ignoring unknown recording " + name);
+			}
+		}
+		for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+			if (!times.contains(entry.time)) {
+				GridWatchLog.w(noteTag, "Recording " + entry.time + " is missing, dropping it from the index");
+				remove(entry);
+			}
+		}
+		for (Long time : times) {
+			if (mEntries.containsKey(time)) continue;
+			Entry entry = new Entry();
+			entry.time = time;
+			entry.size = file(time).length();
+			entry.used = ++mClock;
+			mEntries.put(time, entry);
+			mEviction.add(entry);
+			mBytes += entry.size;
+			write(OP_ADD, entry);
+		}
+	}
+
+	// Replace the journal with one record per recording, in use order, so
+	// replaying it gives the same index
+	private void compact () throws IOException {
+		File tmp = new File(mDir, INDEX_TMP_NAME);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			FileChannel out = fos.getChannel();
+			TreeSet<Entry> byUse = new TreeSet<Entry>(new Comparator<Entry>() {
+				@Override
+				public int compare (Entry a, Entry b) {
+					return a.used < b.used ? -1 : a.used > b.used ? 1 : 0;
+				}
+			});
+			byUse.addAll(mEntries.values());
+			for (Iterator<Entry> it = byUse.iterator(); it.hasNext(); ) {
+				fill(OP_ADD, it.next());
+				while (mRecord.hasRemaining()) {
+					out.write(mRecord);
+				}
+			}
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		// If the rename fails the old journal is still good, so keep using it
+		File index = new File(mDir, INDEX_NAME);
+		mJournal.close();
+		boolean replaced = tmp.renameTo(index);
+		mJournal = new RandomAccessFile(index, "rw").getChannel();
+		if (replaced) {
+			mJournalRecords = mEntries.size();
+		} else {
+			tmp.delete();
+			GridWatchLog.w(noteTag, "Could not replace the recording index");
+		}
+	}
+}
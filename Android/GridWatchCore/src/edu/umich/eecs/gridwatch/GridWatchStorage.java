@@ -0,0 +1,54 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+
+// Persistent key-value values and event log channels. GridWatchStore is
+// the implementation on the phone; anything that only needs to log or keep
+// a value takes one of these so it can be pointed at a scratch directory.
+public interface GridWatchStorage {
+
+	// Returns the current value for key, or null if it was never set
+	String get (String key);
+
+	// Set key to value. Later gets see it at once; it is on disk after the
+	// next flush.
+	void put (String key, String value);
+
+	// Add an entry to an event log channel. It may be buffered until the
+	// next flush.
+	void append (byte channel, long time, String type, String info);
+
+	// Write out all buffered event log entries
+	void flush ();
+
+	// The entries on one channel, oldest first. A negative channel returns
+	// every channel.
+	List<Record> read (byte channel);
+
+	void close ();
+
+	// One entry in the event log
+	public static class Record {
+		public long time;
+		public byte channel;
+		public String type;
+		public String info;
+
+		static Record decode (byte[] payload) {
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				Record r = new Record();
+				r.time = in.readLong();
+				r.channel = in.readByte();
+				r.type = in.readUTF();
+				r.info = in.readBoolean() ? in.readUTF() : null;
+				return r;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+}
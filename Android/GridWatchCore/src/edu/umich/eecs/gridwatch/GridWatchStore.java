@@ -0,0 +1,652 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+// Persistent storage for everything the app keeps on the SD card apart from
+// recordings. There are two areas:
+//
+//  - A small key-value area (current ID, sync cursor, ...). Puts are
+//    seen by this process at once and group committed: the next flush,
+//    at most KV_FLUSH_INTERVAL later, appends them all to state.kv and
+//    syncs it. The latest value for each key wins. When state.kv holds
+//    many more records than keys, the flush rewrites it with one record
+//    per key instead, so it doesn't grow without bound and a cold start
+//    doesn't replay the whole history. Opening the store reads nothing;
+//    state.kv is replayed by the first get or put.
+//  - An append-only event log (what GridWatchLogger used to write as text).
+//    Appends are buffered and written in batches, and the log is rotated
+//    into a bounded number of segments.
+//
+// Both files hold records of the form
+//   [short magic][int length][int crc32][payload]
+// and the event log is read through memory maps. A damaged or half written record is
+// skipped by searching forward for the next magic number with a matching
+// checksum, so a torn write only ever loses the records being written.
+//
+// The activity and the service run in different processes and both open
+// the store. Files are opened in append mode so each batch lands whole,
+// and the key-value area notices records appended by the other process by
+// watching the file length. Writing and rewriting state.kv take a file
+// lock, so nothing is appended to a file that is being replaced, and a
+// rewritten file starts with a generation record so the other process can
+// tell it has to read it from the start.
+public class GridWatchStore implements GridWatchStorage {
+
+	private final static String STORE_FOLDER = "GW_state";
+	private final static String KV_NAME = "state.kv";
+	private final static String LOG_NAME = "events.log";
+	private final static String KV_TMP_NAME = "state.kv.tmp";
+	private final static String LOCK_NAME = "state.lock";
+
+	// state.kv is rewritten by flush() once it has more than COMPACT_MIN
+	// records and COMPACT_RATIO times as many records as keys
+	private final static int COMPACT_MIN = 256;
+	private final static int COMPACT_RATIO = 4;
+
+	// Key of the first record of a rewritten state.kv
+	private final static String GENERATION_KEY = "\u0000generation";
+
+	// Channels in the event log, one per view
+	public final static byte CHANNEL_LOG = 0;
+	public final static byte CHANNEL_ID = 1;
+	public final static byte CHANNEL_SYNC = 2;
+
+	private final static short MAGIC = 0x4757;
+	private final static int HEADER_SIZE = 10;
+	private final static int MAX_RECORD_SIZE = 64 * 1024;
+
+	// Event log buffering and rotation
+	private final static int FLUSH_SIZE = 16 * 1024;
+	private final static long FLUSH_INTERVAL = 10000l;
+
+	// How long a put may wait to be written, and seen by the other process
+	private final static long KV_FLUSH_INTERVAL = 1000l;
+	private final static long MAX_LOG_SIZE = 256 * 1024;
+	public final static int MAX_SEGMENTS = 4;
+
+	private static GridWatchStore sInstance = null;
+
+	private File mKvFile;
+	private File mKvTmpFile;
+	private File mLockFile;
+	private File mLogFile;
+
+	// Key-value area and how much of state.kv has been applied to it: up
+	// to byte mKvApplied, mKvRecords records, of the file as it was when
+	// it was mKvScanned bytes long and last modified at mKvModified, and
+	// rewritten as mKvGeneration. Bytes between mKvApplied and mKvScanned
+	// are a torn record, or one the other process is still writing.
+	private HashMap<String, String> mValues = new HashMap<String, String>();
+	private long mKvApplied = 0;
+	private long mKvScanned = 0;
+	private long mKvModified = 0;
+	private int mKvRecords = 0;
+	private String mKvGeneration = null;
+
+	// Puts waiting to be written, as records and as values to keep over
+	// whatever is read from state.kv meanwhile
+	private ByteArrayOutputStream mKvUnwritten = new ByteArrayOutputStream(256);
+	private int mKvUnwrittenRecords = 0;
+	private HashMap<String, String> mKvOverlay = new HashMap<String, String>();
+	private FileChannel mKvChannel = null;
+	private FileChannel mLockChannel = null;
+
+	// Event log appends waiting to be written
+	private ByteArrayOutputStream mPending = new ByteArrayOutputStream(FLUSH_SIZE * 2);
+	private FileChannel mLogChannel = null;
+	private Timer mFlushTimer = null;
+	private TimerTask mFlushTask = null;
+	private long mFlushDeadline = 0;
+
+	private CRC32 mCrc = new CRC32();
+
+	// The store for this process, kept in root (the SD card, next to the
+	// old logs)
+	public static synchronized GridWatchStore getInstance (File root) {
+		if (sInstance == null) {
+			sInstance = new GridWatchStore(new File(root, STORE_FOLDER));
+		}
+		return sInstance;
+	}
+
+	public GridWatchStore (File dir) {
+		if (!dir.exists()) dir.mkdirs();
+		mKvFile = new File(dir, KV_NAME);
+		mKvTmpFile = new File(dir, KV_TMP_NAME);
+		mLockFile = new File(dir, LOCK_NAME);
+		mLogFile = new File(dir, LOG_NAME);
+	}
+
+	// Returns the current value for key, or null if it was never set
+	public synchronized String get (String key) {
+		refreshValues();
+		return mValues.get(key);
+	}
+
+	// Set key to value. Gets in this process see it at once; the next
+	// flush writes it out for the other process and syncs it.
+	public synchronized void put (String key, String value) {
+		try {
+			writeRecord(mKvUnwritten, encodeValue(key, value));
+			mKvUnwrittenRecords++;
+			mKvOverlay.put(key, value);
+		} catch (IOException e) {
+			// Keep the value for this run at least
+			e.printStackTrace();
+		}
+		mValues.put(key, value);
+		scheduleFlush(KV_FLUSH_INTERVAL);
+	}
+
+	// Add an entry to the event log. It is buffered until the next flush.
+	public synchronized void append (byte channel, long time, String type, String info) {
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeLong(time);
+			out.writeByte(channel);
+			out.writeUTF(type);
+			out.writeBoolean(info != null);
+			if (info != null) out.writeUTF(info);
+			out.flush();
+			writeRecord(mPending, payload.toByteArray());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		if (mPending.size() >= FLUSH_SIZE) {
+			flush();
+		} else {
+			scheduleFlush(FLUSH_INTERVAL);
+		}
+	}
+
+	// Write out and sync the puts since the last flush, rewriting state.kv
+	// instead if it is mostly stale records, and all buffered event log
+	// entries
+	public synchronized void flush () {
+		if (mFlushTask != null) {
+			mFlushTask.cancel();
+			mFlushTask = null;
+		}
+		if (!(needsCompaction() && compactValues())) {
+			writeValues();
+		}
+		if (mPending.size() == 0) return;
+
+		try {
+			// The other process may have rotated the log out from under us
+			if (mLogChannel != null && mLogChannel.size() != mLogFile.length()) {
+				mLogChannel.close();
+				mLogChannel = null;
+			}
+			if (mLogChannel == null) {
+				mLogChannel = new FileOutputStream(mLogFile, true).getChannel();
+			}
+			if (mLogChannel.size() > 0 && mLogChannel.size() + mPending.size() > MAX_LOG_SIZE) {
+				rotate();
+			}
+
+			ByteBuffer out = ByteBuffer.wrap(mPending.toByteArray());
+			mPending.reset();
+			while (out.hasRemaining()) {
+				mLogChannel.write(out);
+			}
+			mLogChannel.force(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Returns the entries on one channel of the current log segment, oldest
+	// first. Pass a negative channel to get every channel.
+	public synchronized List<Record> read (byte channel) {
+		flush();
+
+		ArrayList<Record> ret = new ArrayList<Record>(200);
+		ByteBuffer buf = map(mLogFile);
+		if (buf == null) return ret;
+
+		byte[] payload;
+		while ((payload = nextRecord(buf)) != null) {
+			Record record = Record.decode(payload);
+			if (record != null && (channel < 0 || record.channel == channel)) {
+				ret.add(record);
+			}
+		}
+		return ret;
+	}
+
+	// Positions of the intact records on channel in a log segment (0 is
+	// the one being written, 1 to MAX_SEGMENTS are older ones), oldest
+	// first, starting at byte start. end[0] is set to where the scan
+	// stopped, to start from next time the segment has grown.
+	public synchronized int[] indexLog (int segment, byte channel, long start, long[] end) {
+		if (segment == 0) flush();
+		end[0] = start;
+		ByteBuffer buf = map(logSegment(segment));
+		if (buf == null || start >= buf.limit()) return new int[0];
+		buf.position((int) start);
+
+		int[] positions = new int[256];
+		int count = 0;
+		byte[] payload;
+		while ((payload = nextRecord(buf)) != null) {
+			// The channel is the byte after the time
+			if (channel < 0 || payload.length > 8 && payload[8] == channel) {
+				if (count == positions.length) {
+					int[] grown = new int[count * 2];
+					System.arraycopy(positions, 0, grown, 0, count);
+					positions = grown;
+				}
+				positions[count++] = buf.position() - HEADER_SIZE - payload.length;
+			}
+			end[0] = buf.position();
+		}
+		int[] ret = new int[count];
+		System.arraycopy(positions, 0, ret, 0, count);
+		return ret;
+	}
+
+	// Read the records at positions[from, to) of a log segment, as found by
+	// indexLog, into out in that order. Returns false, having read nothing
+	// more, if one of them isn't there any more because the segment was
+	// rotated.
+	public synchronized boolean readLog (int segment, int[] positions, int from, int to, List<Record> out) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(logSegment(segment), "r");
+			byte[] header = new byte[HEADER_SIZE];
+			ByteBuffer fields = ByteBuffer.wrap(header);
+			for (int i = from; i < to; i++) {
+				file.seek(positions[i]);
+				file.readFully(header);
+				int len = fields.getInt(2);
+				if (fields.getShort(0) != MAGIC || len < 0 || len > MAX_RECORD_SIZE) return false;
+				byte[] payload = new byte[len];
+				file.readFully(payload);
+				mCrc.reset();
+				mCrc.update(payload, 0, len);
+				if ((int) mCrc.getValue() != fields.getInt(6)) return false;
+				Record record = Record.decode(payload);
+				if (record == null) return false;
+				out.add(record);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public synchronized void close () {
+		flush();
+		mLogChannel = closeChannel(mLogChannel);
+		mKvChannel = closeChannel(mKvChannel);
+		mLockChannel = closeChannel(mLockChannel);
+	}
+
+	// Flush within delay ms, sooner if already due
+	private void scheduleFlush (long delay) {
+		long deadline = System.currentTimeMillis() + delay;
+		if (mFlushTask != null) {
+			if (mFlushDeadline <= deadline) return;
+			mFlushTask.cancel();
+		}
+		mFlushTask = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		mFlushDeadline = deadline;
+		if (mFlushTimer == null) {
+			mFlushTimer = new Timer("GridWatchStore-flush", true);
+		}
+		mFlushTimer.schedule(mFlushTask, delay);
+	}
+
+	// Append the unwritten puts to state.kv and sync it. If that fails they
+	// are kept for the next flush.
+	private void writeValues () {
+		if (mKvUnwrittenRecords == 0) return;
+		synchronized (GridWatchStore.class) {
+			FileLock lock = lockValues();
+			try {
+				// Picks up anything the other process wrote, and notices
+				// if it rewrote the file
+				long length = refreshValues();
+				FileChannel kv = kvChannel(length);
+				if (lock != null && length > mKvApplied) {
+					// Nobody else is writing, so this is a torn record
+					kv.truncate(mKvApplied);
+					length = mKvScanned = mKvApplied;
+				}
+				ByteBuffer out = ByteBuffer.wrap(mKvUnwritten.toByteArray());
+				while (out.hasRemaining()) {
+					kv.write(out);
+				}
+				kv.force(false);
+				if (length == mKvApplied) {
+					// Ours are the only records we haven't read
+					mKvRecords += mKvUnwrittenRecords;
+					mKvApplied = mKvScanned = length + out.limit();
+					mKvModified = mKvFile.lastModified();
+				}
+				mKvUnwritten.reset();
+				mKvUnwrittenRecords = 0;
+				mKvOverlay.clear();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	// Whether state.kv, with the unwritten puts, is mostly stale records
+	private boolean needsCompaction () {
+		int records = mKvRecords + mKvUnwrittenRecords;
+		return records > COMPACT_MIN && records > COMPACT_RATIO * mValues.size();
+	}
+
+	// Apply any key-value records appended since we last looked, by us
+	// before a restart or by the other process. Returns the length of
+	// state.kv.
+	private long refreshValues () {
+		long length = mKvFile.length();
+		long modified = mKvFile.lastModified();
+		if (length == mKvScanned && modified == mKvModified) return length;
+		mKvModified = modified;
+		mKvScanned = length;
+
+		ByteBuffer buf = readValues(length);
+		if (length < mKvApplied || buf != null && mKvApplied > 0 && !sameGeneration(buf)) {
+			// The file was replaced; start over
+			mValues.clear();
+			mKvApplied = 0;
+			mKvRecords = 0;
+			mKvGeneration = null;
+			mKvChannel = closeChannel(mKvChannel);
+		}
+		byte[] payload;
+		if (buf != null) buf.position((int) mKvApplied);
+		while (buf != null && (payload = nextRecord(buf)) != null) {
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				String key = in.readUTF();
+				String value = in.readBoolean() ? in.readUTF() : null;
+				if (GENERATION_KEY.equals(key)) {
+					mKvGeneration = value;
+				} else {
+					mValues.put(key, value);
+				}
+			} catch (IOException e) {
+				// Checksum matched but we can't parse it; skip it
+			}
+			// Only move past intact records, so a record still being
+			// written by the other process is read once it is complete
+			mKvApplied = buf.position();
+			mKvRecords++;
+		}
+
+		// Puts not written yet are newer than anything in the file
+		mValues.putAll(mKvOverlay);
+
+		// Rewritten in the background rather than on the caller's time
+		if (needsCompaction()) scheduleFlush(FLUSH_INTERVAL);
+		return length;
+	}
+
+	// state.kv is small, so reading it is cheaper than mapping it
+	private ByteBuffer readValues (long length) {
+		if (length == 0) return null;
+		try {
+			FileInputStream in = new FileInputStream(mKvFile);
+			try {
+				ByteBuffer buf = ByteBuffer.allocate((int) length);
+				FileChannel channel = in.getChannel();
+				while (buf.hasRemaining() && channel.read(buf) > 0);
+				buf.flip();
+				return buf;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// The channel puts are appended through, reopened if state.kv, length
+	// bytes long, was replaced since. Call with the lock held, so nobody
+	// else is writing.
+	private FileChannel kvChannel (long length) throws IOException {
+		if (mKvChannel != null && mKvChannel.size() != length) {
+			mKvChannel = closeChannel(mKvChannel);
+		}
+		if (mKvChannel == null) {
+			mKvChannel = new FileOutputStream(mKvFile, true).getChannel();
+		}
+		return mKvChannel;
+	}
+
+	private static FileChannel closeChannel (FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	// Whether state.kv is still the file we have been reading, going by the
+	// generation record at its start
+	private boolean sameGeneration (ByteBuffer buf) {
+		String generation = null;
+		byte[] payload = nextRecord(buf);
+		if (payload != null) {
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				if (GENERATION_KEY.equals(in.readUTF()) && in.readBoolean()) {
+					generation = in.readUTF();
+				}
+			} catch (IOException e) {
+				// Not a generation record
+			}
+		}
+		return (generation == null) ? mKvGeneration == null : generation.equals(mKvGeneration);
+	}
+
+	// Replace state.kv with a generation record and one record per key, and
+	// sync it. Returns false if it wasn't; if anything fails the old file
+	// is still good, so keep using it.
+	private boolean compactValues () {
+		synchronized (GridWatchStore.class) {
+			FileLock lock = lockValues();
+			// Without a lock the other process could be appending
+			if (lock == null) return false;
+			try {
+				refreshValues();
+				String generation = System.currentTimeMillis() + "." + System.nanoTime();
+				ByteArrayOutputStream records = new ByteArrayOutputStream(1024);
+				writeRecord(records, encodeValue(GENERATION_KEY, generation));
+				int count = 1;
+				for (Map.Entry<String, String> entry : mValues.entrySet()) {
+					if (entry.getValue() == null) continue;
+					writeRecord(records, encodeValue(entry.getKey(), entry.getValue()));
+					count++;
+				}
+
+				FileOutputStream fos = new FileOutputStream(mKvTmpFile);
+				try {
+					records.writeTo(fos);
+					fos.getFD().sync();
+				} finally {
+					fos.close();
+				}
+				if (!mKvTmpFile.renameTo(mKvFile)) {
+					mKvTmpFile.delete();
+					return false;
+				}
+
+				mValues.values().removeAll(Collections.singleton(null));
+				mKvApplied = mKvScanned = records.size();
+				mKvModified = mKvFile.lastModified();
+				mKvRecords = count;
+				mKvGeneration = generation;
+				mKvChannel = closeChannel(mKvChannel);
+				mKvUnwritten.reset();
+				mKvUnwrittenRecords = 0;
+				mKvOverlay.clear();
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				mKvTmpFile.delete();
+				return false;
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	// Take the lock that keeps puts in the two processes and the rewrite
+	// of state.kv apart. Returns null if the file system can't lock, in
+	// which case puts go ahead without it and state.kv is never rewritten.
+	// Callers hold the class lock, since a process can't hold two locks
+	// on one file.
+	private FileLock lockValues () {
+		try {
+			if (mLockChannel == null) {
+				mLockChannel = new RandomAccessFile(mLockFile, "rw").getChannel();
+			}
+			return mLockChannel.lock();
+		} catch (IOException e) {
+			mLockChannel = closeChannel(mLockChannel);
+			return null;
+		}
+	}
+
+	private static void unlock (FileLock lock) {
+		if (lock == null) return;
+		try {
+			lock.release();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static byte[] encodeValue (String key, String value) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeUTF(key);
+		out.writeBoolean(value != null);
+		if (value != null) out.writeUTF(value);
+		out.flush();
+		return payload.toByteArray();
+	}
+
+	private File logSegment (int segment) {
+		return segment == 0 ? mLogFile : new File(mLogFile.getAbsolutePath() + "." + segment);
+	}
+
+	private void rotate () throws IOException {
+		mLogChannel.close();
+		mLogChannel = null;
+
+		new File(mLogFile.getAbsolutePath() + "." + MAX_SEGMENTS).delete();
+		for (int i = MAX_SEGMENTS - 1; i >= 1; i--) {
+			File segment = new File(mLogFile.getAbsolutePath() + "." + i);
+			if (segment.exists()) {
+				segment.renameTo(new File(mLogFile.getAbsolutePath() + "." + (i + 1)));
+			}
+		}
+		mLogFile.renameTo(new File(mLogFile.getAbsolutePath() + ".1"));
+
+		mLogChannel = new FileOutputStream(mLogFile, true).getChannel();
+	}
+
+	private void writeRecord (ByteArrayOutputStream to, byte[] payload) throws IOException {
+		mCrc.reset();
+		mCrc.update(payload, 0, payload.length);
+		DataOutputStream out = new DataOutputStream(to);
+		out.writeShort(MAGIC);
+		out.writeInt(payload.length);
+		out.writeInt((int) mCrc.getValue());
+		out.write(payload);
+		out.flush();
+	}
+
+	// Returns the payload of the next intact record at the buffer's
+	// position and moves past it, or null if there are no more. Damaged
+	// bytes are skipped.
+	private byte[] nextRecord (ByteBuffer buf) {
+		while (buf.remaining() >= HEADER_SIZE) {
+			int start = buf.position();
+			int len = buf.getInt(start + 2);
+			if (buf.getShort(start) != MAGIC || len < 0 || len > MAX_RECORD_SIZE
+					|| start + HEADER_SIZE + len > buf.limit()) {
+				buf.position(start + 1);
+				continue;
+			}
+
+			byte[] payload = new byte[len];
+			buf.position(start + HEADER_SIZE);
+			buf.get(payload);
+			mCrc.reset();
+			mCrc.update(payload, 0, len);
+			if ((int) mCrc.getValue() != buf.getInt(start + 6)) {
+				buf.position(start + 1);
+				continue;
+			}
+			return payload;
+		}
+		return null;
+	}
+
+	private static MappedByteBuffer map (File file) {
+		if (!file.exists() || file.length() == 0) return null;
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
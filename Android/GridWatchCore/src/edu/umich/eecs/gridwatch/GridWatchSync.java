@@ -0,0 +1,16 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+
+// How far this phone has synced with the server
+public class GridWatchSync extends GridWatchValueLog {
+
+	private final static String KEY = "sync";
+	private final static String OLD_LOG_NAME = "gridwatch_state.log";
+
+	// oldLogDir is where the old text log was kept, the SD card
+	public GridWatchSync (GridWatchStorage store, File oldLogDir) {
+		super(store, KEY, GridWatchStore.CHANNEL_SYNC, new File(oldLogDir, OLD_LOG_NAME));
+	}
+
+}
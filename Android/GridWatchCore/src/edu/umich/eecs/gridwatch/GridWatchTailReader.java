@@ -0,0 +1,73 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Finds the last line of a text file by seeking to the end and reading
+// backwards, so the cost depends on the length of that line rather than
+// the size of the file.
+public class GridWatchTailReader {
+
+	private final static int CHUNK_SIZE = 256;
+
+	// Returns the last non-empty line of the file without its newline, or
+	// null if the file is missing or has no lines.
+	public static String lastLine (File file) {
+		if (!file.exists()) return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			byte[] chunk = new byte[CHUNK_SIZE];
+			ByteArrayOutputStream line = new ByteArrayOutputStream(CHUNK_SIZE);
+
+			long pos = raf.length();
+			long lineEnd = -1;
+
+			while (pos > 0) {
+				int n = (int) Math.min(CHUNK_SIZE, pos);
+				pos -= n;
+				raf.seek(pos);
+				raf.readFully(chunk, 0, n);
+
+				for (int i = n - 1; i >= 0; i--) {
+					boolean newline = chunk[i] == '\n' || chunk[i] == '\r';
+					if (lineEnd < 0) {
+						// Still skipping trailing newlines
+						if (!newline) lineEnd = pos + i;
+					} else if (newline) {
+						return reversed(line);
+					}
+					if (lineEnd >= 0) line.write(chunk[i]);
+				}
+			}
+
+			return (lineEnd < 0) ? null : reversed(line);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// The line was collected back to front
+	private static String reversed (ByteArrayOutputStream line) throws IOException {
+		byte[] bytes = line.toByteArray();
+		for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+			byte t = bytes[i];
+			bytes[i] = bytes[j];
+			bytes[j] = t;
+		}
+		return new String(bytes, "UTF-8");
+	}
+}
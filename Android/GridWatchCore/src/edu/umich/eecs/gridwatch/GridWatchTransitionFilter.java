@@ -0,0 +1,91 @@
+package edu.umich.eecs.gridwatch;
+
+// Sits between the power broadcasts and event creation and stops a loose
+// charger or a brownout from turning into dozens of alerts a minute.
+//
+// The first transition after a quiet period is passed straight through so
+// a real outage is reported, and sensed, with no delay. Any transitions
+// that follow within the settle time are held and collapsed into one flap
+// record: how many transitions there were, when the first and last
+// happened, and the power state they left us in. The record is reported
+// once the power has been steady for the settle time, or at the latest
+// maxDelay after the first held transition, so a burst that never settles
+// is still reported in bounded time.
+//
+// The filter has no clock or timers of its own. Feed it transitions with
+// onTransition(), and call poll() at or after getDeadline().
+public class GridWatchTransitionFilter {
+
+	public interface Listener {
+		// A transition after a quiet period
+		void onTransition (boolean powered, long time);
+
+		// A burst of flaps that ended with the power in the given state
+		void onFlaps (boolean powered, int flaps, long first, long last);
+	}
+
+	private final static int STATE_UNKNOWN = -1;
+	private final static int STATE_UNPOWERED = 0;
+	private final static int STATE_POWERED = 1;
+
+	private long mSettleMs;
+	private long mMaxDelayMs;
+	private Listener mListener;
+
+	private int mState = STATE_UNKNOWN;
+	private long mLastTransition = 0;
+	private boolean mSeenTransition = false;
+
+	// The burst being held, if mFlaps > 0
+	private int mFlaps = 0;
+	private long mFirst;
+	private long mLast;
+
+	public GridWatchTransitionFilter (long settleMs, long maxDelayMs, Listener listener) {
+		mSettleMs = settleMs;
+		mMaxDelayMs = maxDelayMs;
+		mListener = listener;
+	}
+
+	// Call on every power connected or disconnected broadcast. Repeats of
+	// the current state are ignored.
+	public void onTransition (boolean powered, long now) {
+		int state = powered ? STATE_POWERED : STATE_UNPOWERED;
+		if (state == mState) return;
+		mState = state;
+
+		boolean quiet = mFlaps == 0 && (!mSeenTransition || now - mLastTransition >= mSettleMs);
+		mLastTransition = now;
+		mSeenTransition = true;
+
+		if (quiet) {
+			mListener.onTransition(powered, now);
+			return;
+		}
+
+		if (mFlaps == 0) {
+			mFirst = now;
+		}
+		mFlaps++;
+		mLast = now;
+	}
+
+	// Report the held burst if it is due
+	public void poll (long now) {
+		if (mFlaps == 0 || now < getDeadline()) return;
+
+		int flaps = mFlaps;
+		mFlaps = 0;
+		mListener.onFlaps(mState == STATE_POWERED, flaps, mFirst, mLast);
+	}
+
+	// When poll() should next be called, or -1 if nothing is held
+	public long getDeadline () {
+		if (mFlaps == 0) return -1;
+		return Math.min(mLast + mSettleMs, mFirst + mMaxDelayMs);
+	}
+
+	public int getHeldFlaps () {
+		return mFlaps;
+	}
+}
@@ -0,0 +1,69 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// A single named value in the key-value area of a GridWatchStorage, plus a
+// history of every value it has had on its own event log channel.
+// GridWatchID and GridWatchSync are both one of these.
+public class GridWatchValueLog {
+
+	private GridWatchStorage mStore;
+	private String mKey;
+	private byte mChannel;
+
+	// Tool for getting a pretty date
+	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+
+	// oldLog is the text log the value used to be kept in
+	protected GridWatchValueLog (GridWatchStorage store, String key, byte channel, File oldLog) {
+		mStore = store;
+		mKey = key;
+		mChannel = channel;
+
+		// Carry the value over from the old log
+		if (mStore.get(mKey) == null) {
+			String last = GridWatchTailReader.lastLine(oldLog);
+			if (last != null) {
+				String[] last_fields = last.split("\\|");
+				if (last_fields.length > 1) {
+					mStore.put(mKey, last_fields[1]);
+				}
+			}
+		}
+	}
+
+	// Record a new value
+	public void log (String event_type, String info) {
+		mStore.put(mKey, event_type);
+		mStore.append(mChannel, System.currentTimeMillis(), event_type, info);
+	}
+
+	// Every value recorded in the current log segment as "time|value" lines
+	public ArrayList<String> read () {
+		List<GridWatchStorage.Record> records = mStore.read(mChannel);
+		ArrayList<String> ret = new ArrayList<String>(records.size());
+		for (GridWatchStorage.Record record : records) {
+			String l = mDateFormat.format(new Date(record.time)) + "|" + record.type;
+			if (record.info != null) {
+				l += "|" + record.info;
+			}
+			ret.add(l);
+		}
+		return ret;
+	}
+
+	// True if no value has ever been logged
+	public boolean isEmpty () {
+		return mStore.get(mKey) == null;
+	}
+
+	// Returns the newest value, or "-1" if there is none
+	public String get_last_value () {
+		String value = mStore.get(mKey);
+		return (value == null) ? "-1" : value;
+	}
+}
@@ -0,0 +1,116 @@
+package edu.umich.eecs.gridwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Writes PCM samples straight into a WAV file in one pass. Space for the
+// 44 byte header is left at the start of the file, samples are written
+// after it through a reusable direct buffer, and the header is filled in
+// with the final lengths when the file is closed.
+//
+// One writer can be reused for many recordings: call open(), write(),
+// close() for each one.
+public class GridWatchWavWriter {
+
+	private final static int HEADER_SIZE = 44;
+
+	private int mSampleRate;
+	private int mChannels;
+	private int mBitsPerSample;
+
+	private ByteBuffer mBuffer;
+	private ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	private RandomAccessFile mFile = null;
+	private FileChannel mChannel = null;
+	private long mDataLength = 0;
+
+	public GridWatchWavWriter (int sampleRate, int channels, int bitsPerSample, int bufferSize) {
+		mSampleRate = sampleRate;
+		mChannels = channels;
+		mBitsPerSample = bitsPerSample;
+		mBuffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public void open (File file) throws IOException {
+		if (mChannel != null) {
+			throw new IOException("WAV writer is already open");
+		}
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+		mChannel.position(HEADER_SIZE);
+		mBuffer.clear();
+		mDataLength = 0;
+	}
+
+	// Append len bytes of samples
+	public void write (byte[] data, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, mBuffer.remaining());
+			mBuffer.put(data, off, n);
+			off += n;
+			len -= n;
+			mDataLength += n;
+			if (!mBuffer.hasRemaining()) {
+				flushBuffer();
+			}
+		}
+	}
+
+	// Write out anything buffered, fill in the header, and close the file
+	public void close () throws IOException {
+		if (mChannel == null) return;
+		try {
+			flushBuffer();
+			writeHeader();
+		} finally {
+			mChannel.close();
+			mFile.close();
+			mChannel = null;
+			mFile = null;
+		}
+	}
+
+	// Number of sample bytes written to the current file
+	public long getDataLength () {
+		return mDataLength;
+	}
+
+	private void flushBuffer () throws IOException {
+		mBuffer.flip();
+		while (mBuffer.hasRemaining()) {
+			mChannel.write(mBuffer);
+		}
+		mBuffer.clear();
+	}
+
+	private void writeHeader () throws IOException {
+		int blockAlign = mChannels * mBitsPerSample / 8;
+
+		mHeader.clear();
+		mHeader.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+		mHeader.putInt((int) (mDataLength + HEADER_SIZE - 8));
+		mHeader.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+		mHeader.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+		mHeader.putInt(16);  // size of 'fmt ' chunk
+		mHeader.putShort((short) 1);  // format = PCM
+		mHeader.putShort((short) mChannels);
+		mHeader.putInt(mSampleRate);
+		mHeader.putInt(mSampleRate * blockAlign);  // byte rate
+		mHeader.putShort((short) blockAlign);
+		mHeader.putShort((short) mBitsPerSample);
+		mHeader.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+		mHeader.putInt((int) mDataLength);
+		mHeader.flip();
+
+		mChannel.position(0);
+		while (mHeader.hasRemaining()) {
+			mChannel.write(mHeader);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package edu.umich.eecs.gridwatch.jmh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.umich.eecs.gridwatch.GridWatchAlert;
+import edu.umich.eecs.gridwatch.GridWatchAlertBuilder;
+import edu.umich.eecs.gridwatch.GridWatchCodec;
+import edu.umich.eecs.gridwatch.GridWatchConnectivity;
+import edu.umich.eecs.gridwatch.GridWatchEvent;
+import edu.umich.eecs.gridwatch.GridWatchEventRecord;
+import edu.umich.eecs.gridwatch.GridWatchEventType;
+import edu.umich.eecs.gridwatch.GridWatchFix;
+import edu.umich.eecs.gridwatch.GridWatchLocationSource;
+
+// Cost of turning one alert into what goes in the outbox and on the wire:
+// GridWatchAlertBuilder building it from a sent event, alone and with the
+// long form record for the log and UI, then the binary GridWatchCodec form
+// against the URL encoded form, both ways, and a deflated batch of a full
+// upload.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GridWatchAlertBench {
+
+	private final static int BATCH = 50;
+
+	private GridWatchCodec mCodec = new GridWatchCodec();
+	private GridWatchAlert mAlert;
+	private byte[] mEncoded;
+	private String mForm;
+	private List<GridWatchAlert> mBatch = new ArrayList<GridWatchAlert>(BATCH);
+	private GridWatchAlertBuilder mBuilder;
+	private GridWatchEvent mEvent;
+
+	static GridWatchAlert alert (int i) {
+		GridWatchAlert alert = new GridWatchAlert();
+		alert.time = 1400000000000l + i * 61000l;
+		alert.eventType = (i % 3 == 0) ? 'p' : 'u';
+		alert.hasLocation = true;
+		alert.latitude = -1.2921 + i * 1e-5;
+		alert.longitude = 36.8219 - i * 1e-5;
+		alert.accuracy = 12.5f;
+		alert.locationTime = alert.time - 30000;
+		alert.connection = 'm';
+		alert.hash = "9f3";
+		alert.id = "1042";
+		alert.version = "21";
+		return alert;
+	}
+
+	@Setup
+	public void setup () {
+		final GridWatchFix gps = new GridWatchFix();
+		gps.provider = GridWatchLocationSource.GPS;
+		gps.latitude = -1.2921;
+		gps.longitude = 36.8219;
+		gps.accuracy = 12.5f;
+		gps.time = 1400000000000l - 30000;
+		mBuilder = new GridWatchAlertBuilder(new GridWatchLocationSource() {
+			@Override
+			public GridWatchFix getLastFix (String provider) {
+				return GPS.equals(provider) ? gps : null;
+			}
+		}, new GridWatchConnectivity() {
+			@Override
+			public String getConnectionType () {
+				return "mobile";
+			}
+		}, "9f3", "21");
+		mEvent = new GridWatchEvent(GridWatchEventType.UNPLUGGED, 1400000000000l);
+
+		mAlert = alert(0);
+		mEncoded = mCodec.encode(mAlert);
+		mForm = mAlert.toForm();
+		for (int i = 0; i < BATCH; i++) {
+			mBatch.add(alert(i));
+		}
+	}
+
+	@Benchmark
+	public GridWatchAlert build () {
+		return mBuilder.build(mEvent, "1042", null);
+	}
+
+	@Benchmark
+	public GridWatchAlert buildWithRecord () {
+		return mBuilder.build(mEvent, "1042", new GridWatchEventRecord());
+	}
+
+	@Benchmark
+	public byte[] encode () {
+		return mCodec.encode(mAlert);
+	}
+
+	@Benchmark
+	public GridWatchAlert decode () throws IOException {
+		return mCodec.decode(mEncoded);
+	}
+
+	@Benchmark
+	public String toForm () {
+		return mAlert.toForm();
+	}
+
+	@Benchmark
+	public GridWatchAlert fromForm () {
+		return GridWatchAlert.fromForm(mForm);
+	}
+
+	@Benchmark
+	public byte[] encodeBatch () {
+		return mCodec.encodeBatch(mBatch, true);
+	}
+}
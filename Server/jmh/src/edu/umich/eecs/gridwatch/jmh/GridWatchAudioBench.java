@@ -0,0 +1,73 @@
+package edu.umich.eecs.gridwatch.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.umich.eecs.gridwatch.GridWatchDecimator;
+import edu.umich.eecs.gridwatch.GridWatchMainsDetector;
+import edu.umich.eecs.gridwatch.GridWatchMainsFeatures;
+
+// CPU cost of the unplug recording's analysis for one AudioRecord buffer
+// of 44.1 kHz stereo: decimating it for the recording file, the hum
+// detector, and the mains features. Everything is reused between buffers
+// the way the capture engine reuses it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GridWatchAudioBench {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int CHANNELS = 2;
+	private final static int RECORDING_RATE = 4000;
+	private final static int READ_SIZE = 7104;
+
+	private byte[] mBuffer = new byte[READ_SIZE];
+	private GridWatchDecimator mDecimator;
+	private short[] mMono;
+	private GridWatchMainsDetector mDetector;
+	private GridWatchMainsFeatures mFeatures;
+
+	@Setup
+	public void setup () {
+		// 60 Hz hum with a 2nd harmonic, under noise
+		Random random = new Random(1);
+		for (int f = 0, pos = 0; pos < READ_SIZE; f++) {
+			double w = 2 * Math.PI * 60 * f / SAMPLE_FREQUENCY;
+			for (int c = 0; c < CHANNELS; c++) {
+				double y = 0.02 * (Math.sin(w) + 0.3 * Math.sin(2 * w)) + 0.01 * random.nextGaussian();
+				int s = (int) Math.round(y * 32767);
+				mBuffer[pos++] = (byte) s;
+				mBuffer[pos++] = (byte) (s >> 8);
+			}
+		}
+		mDecimator = new GridWatchDecimator(SAMPLE_FREQUENCY, CHANNELS, RECORDING_RATE);
+		mMono = new short[mDecimator.maxOutput(READ_SIZE)];
+		mDetector = new GridWatchMainsDetector(SAMPLE_FREQUENCY, CHANNELS);
+		mFeatures = new GridWatchMainsFeatures(SAMPLE_FREQUENCY, CHANNELS);
+	}
+
+	@Benchmark
+	public int decimate () {
+		return mDecimator.process(mBuffer, READ_SIZE, mMono);
+	}
+
+	@Benchmark
+	public float detect () {
+		mDetector.addSamples(mBuffer, READ_SIZE);
+		return mDetector.getConfidence();
+	}
+
+	@Benchmark
+	public GridWatchMainsFeatures features () {
+		mFeatures.addSamples(mBuffer, READ_SIZE);
+		return mFeatures;
+	}
+}
@@ -0,0 +1,114 @@
+package edu.umich.eecs.gridwatch.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.umich.eecs.gridwatch.GridWatchClock;
+import edu.umich.eecs.gridwatch.GridWatchEvent;
+import edu.umich.eecs.gridwatch.GridWatchEventLoop;
+import edu.umich.eecs.gridwatch.GridWatchEventType;
+
+// The event loop's readiness pass, GridWatchEventLoop.processEvents(),
+// with --pending unplug events still waiting on their motion verdicts:
+// a pass that sends nothing, as after a capture finishes for an event
+// that is still sensing, and adding a plug event, which is sent by the
+// pass it triggers. Posts run at once on the calling thread, so nothing
+// but the loop's own work is timed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GridWatchEventLoopBench {
+
+	@Param({ "1", "5", "50" })
+	public int pending;
+
+	private GridWatchEventLoop mLoop;
+	private long mTime = 1400000000000l;
+	private int mSent = 0;
+
+	@Setup
+	public void setup () {
+		GridWatchClock clock = new GridWatchClock() {
+			@Override
+			public long currentTimeMillis () {
+				return mTime;
+			}
+
+			@Override
+			public long elapsedRealtime () {
+				return 0;
+			}
+		};
+		GridWatchEventLoop.Scheduler scheduler = new GridWatchEventLoop.Scheduler() {
+			@Override
+			public void post (Runnable r) {
+				r.run();
+			}
+
+			@Override
+			public void postDelayed (Runnable r, long delayMs) {
+			}
+
+			@Override
+			public void removeCallbacks (Runnable r) {
+			}
+		};
+		GridWatchEventLoop.Listener listener = new GridWatchEventLoop.Listener() {
+			@Override
+			public void onPowerChanged (boolean powered, long time) {
+			}
+
+			@Override
+			public void onFlaps (boolean powered, int flaps, long first, long last) {
+			}
+
+			@Override
+			public void onEvent (GridWatchEvent gwevent) {
+			}
+
+			@Override
+			public void onRecorded (long time, GridWatchEvent gwevent) {
+			}
+
+			@Override
+			public boolean startMotion () {
+				return true;
+			}
+
+			@Override
+			public void stopMotion () {
+			}
+
+			@Override
+			public void onReady (GridWatchEvent gwevent) {
+				mSent++;
+			}
+		};
+		mLoop = new GridWatchEventLoop(scheduler, clock, 20000, 120000, null, null, listener);
+		for (int i = 0; i < pending; i++) {
+			GridWatchEvent gwevent = new GridWatchEvent(GridWatchEventType.UNPLUGGED, mTime + i);
+			gwevent.startMotion(0);
+			mLoop.addEvent(gwevent);
+		}
+	}
+
+	@Benchmark
+	public int processEvents () {
+		mLoop.processEvents();
+		return mSent;
+	}
+
+	@Benchmark
+	public int addReady () {
+		mLoop.addEvent(new GridWatchEvent(GridWatchEventType.PLUGGED, ++mTime));
+		return mSent;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.umich.eecs.gridwatch.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.umich.eecs.gridwatch.GridWatchCodec;
+import edu.umich.eecs.gridwatch.GridWatchOutbox;
+import edu.umich.eecs.gridwatch.GridWatchStorage;
+import edu.umich.eecs.gridwatch.GridWatchStore;
+
+// The disk side of sending an alert and of logging: an outbox append
+// (synced) with the peek and ack of a successful upload, and the store's
+// group committed key-value put, buffered log append and cached get. Files
+// go in a fresh temporary directory per run, so put it on the kind of disk
+// you want to measure with -Djava.io.tmpdir.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GridWatchOutboxBench {
+
+	private File mDir;
+	private GridWatchOutbox mOutbox;
+	private GridWatchStorage mStore;
+	private byte[] mPayload;
+	private int mCount = 0;
+
+	@Setup
+	public void setup () throws IOException {
+		mDir = File.createTempFile("gwbench", "");
+		mDir.delete();
+		mDir.mkdirs();
+		mOutbox = new GridWatchOutbox(new File(mDir, "outbox"));
+		mStore = new GridWatchStore(new File(mDir, "state"));
+		mPayload = new GridWatchCodec().encode(GridWatchAlertBench.alert(0));
+	}
+
+	@TearDown
+	public void tearDown () {
+		mOutbox.close();
+		mStore.close();
+		delete(mDir);
+	}
+
+	@Benchmark
+	public int appendPeekAck () throws IOException {
+		mOutbox.append(mPayload);
+		List<byte[]> pending = mOutbox.peek(1);
+		mOutbox.ack(pending.size());
+		return pending.size();
+	}
+
+	@Benchmark
+	public void put () {
+		mStore.put("sync", String.valueOf(mCount++));
+	}
+
+	@Benchmark
+	public void append () {
+		mStore.append(GridWatchStore.CHANNEL_LOG, mCount++, "event_post", "t=1400000000000|e=u|c=m");
+	}
+
+	@Benchmark
+	public String get () {
+		return mStore.get("sync");
+	}
+
+	private static void delete (File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
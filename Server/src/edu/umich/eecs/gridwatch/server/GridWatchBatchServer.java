@@ -0,0 +1,205 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Stand-in for the alert server that understands the single form POST the
+// app has always sent, the batch format from GridWatchBatch and the binary
+// batches from GridWatchCodec. It keeps counters so we can compare requests
+// and bytes per delivered event between the upload modes.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchBatchServer [port]
+public class GridWatchBatchServer {
+
+	private final static String BATCH_CONTENT_TYPE = "application/x-gridwatch-batch";
+	private final static int DEFAULT_PORT = 8081;
+	private final static long REPORT_PERIOD = 10000l;
+
+	private AtomicLong mRequests = new AtomicLong();
+	private AtomicLong mBytes = new AtomicLong();
+	private AtomicLong mAccepted = new AtomicLong();
+	private AtomicLong mRejected = new AtomicLong();
+
+	private HttpServer mServer;
+	private ExecutorService mExecutor;
+
+	// Decoders keep an Inflater, so each handler thread gets its own
+	private ThreadLocal<GridWatchWireDecoder> mDecoder = new ThreadLocal<GridWatchWireDecoder>() {
+		@Override
+		protected GridWatchWireDecoder initialValue () {
+			return new GridWatchWireDecoder();
+		}
+	};
+
+	public GridWatchBatchServer (int port) throws IOException {
+		// Without this every response waits out the client's delayed ACK,
+		// which caps a keep-alive connection at about 25 requests a second
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		mServer = HttpServer.create(new InetSocketAddress(port), 0);
+		mServer.createContext("/", new AlertHandler());
+		mExecutor = Executors.newFixedThreadPool(4);
+		mServer.setExecutor(mExecutor);
+	}
+
+	public void start () {
+		mServer.start();
+	}
+
+	public void stop () {
+		mServer.stop(0);
+		mExecutor.shutdown();
+	}
+
+	public long getRequests () {
+		return mRequests.get();
+	}
+
+	public long getBytes () {
+		return mBytes.get();
+	}
+
+	public long getAccepted () {
+		return mAccepted.get();
+	}
+
+	public String report () {
+		long accepted = mAccepted.get();
+		double perEvent = accepted == 0 ? 0 : 1.0 / accepted;
+		return String.format("requests=%d bytes=%d accepted=%d rejected=%d requests/event=%.3f bytes/event=%.1f",
+				mRequests.get(), mBytes.get(), accepted, mRejected.get(),
+				mRequests.get() * perEvent, mBytes.get() * perEvent);
+	}
+
+	private class AlertHandler implements HttpHandler {
+		@Override
+		public void handle (HttpExchange exchange) throws IOException {
+			byte[] body = readAll(exchange.getRequestBody());
+			mRequests.incrementAndGet();
+			mBytes.addAndGet(body.length);
+
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			String reply;
+			if (contentType != null && contentType.startsWith(GridWatchWireDecoder.CONTENT_TYPE)) {
+				reply = handleBinaryBatch(body);
+			} else if (contentType != null && contentType.startsWith(BATCH_CONTENT_TYPE)) {
+				reply = handleBatch(body);
+			} else {
+				reply = handleSingle(body);
+			}
+
+			byte[] out = reply.getBytes("UTF-8");
+			exchange.sendResponseHeaders(200, out.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(out);
+			os.close();
+		}
+	}
+
+	// Decode a batch body: one form-encoded alert per line. Replies with
+	// the indices of the alerts that were accepted.
+	String handleBatch (byte[] body) throws UnsupportedEncodingException {
+		StringBuilder reply = new StringBuilder();
+		String[] records = new String(body, "UTF-8").split("\n", -1);
+		for (int i = 0; i < records.length; i++) {
+			if (isValid(parseForm(records[i]))) {
+				if (reply.length() > 0) reply.append(',');
+				reply.append(i);
+				mAccepted.incrementAndGet();
+			} else {
+				mRejected.incrementAndGet();
+			}
+		}
+		return reply.toString();
+	}
+
+	// Decode a binary batch from GridWatchCodec. A batch that can't be
+	// decoded at all counts as one rejected request.
+	String handleBinaryBatch (byte[] body) {
+		List<Map<String, String>> alerts;
+		try {
+			alerts = mDecoder.get().decodeBatch(body);
+		} catch (IOException e) {
+			mRejected.incrementAndGet();
+			return "";
+		}
+		StringBuilder reply = new StringBuilder();
+		for (int i = 0; i < alerts.size(); i++) {
+			if (isValid(alerts.get(i))) {
+				if (reply.length() > 0) reply.append(',');
+				reply.append(i);
+				mAccepted.incrementAndGet();
+			} else {
+				mRejected.incrementAndGet();
+			}
+		}
+		return reply.toString();
+	}
+
+	String handleSingle (byte[] body) throws UnsupportedEncodingException {
+		if (isValid(parseForm(new String(body, "UTF-8")))) {
+			mAccepted.incrementAndGet();
+			return "0";
+		}
+		mRejected.incrementAndGet();
+		return "";
+	}
+
+	// An alert needs at least a time and an event type, in either the
+	// short or the long form field names.
+	static boolean isValid (Map<String, String> fields) {
+		boolean hasTime = fields.containsKey("t") || fields.containsKey("time");
+		boolean hasType = fields.containsKey("e") || fields.containsKey("event_type");
+		return hasTime && hasType;
+	}
+
+	static Map<String, String> parseForm (String form) throws UnsupportedEncodingException {
+		Map<String, String> fields = new HashMap<String, String>();
+		if (form.length() == 0) return fields;
+		for (String pair : form.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq <= 0) continue;
+			fields.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+					URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return fields;
+	}
+
+	private static byte[] readAll (InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	public static void main (String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		GridWatchBatchServer server = new GridWatchBatchServer(port);
+		server.start();
+		System.out.println("Listening on port " + port);
+		while (true) {
+			Thread.sleep(REPORT_PERIOD);
+			System.out.println(server.report());
+		}
+	}
+}
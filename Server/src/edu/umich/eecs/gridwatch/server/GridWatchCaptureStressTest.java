@@ -0,0 +1,280 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umich.eecs.gridwatch.GridWatchCaptureEngine;
+import edu.umich.eecs.gridwatch.GridWatchClock;
+
+// Fires rapid bursts of unplug capture requests at a GridWatchCaptureEngine
+// from several threads and checks what the app relies on:
+//  - every request is finished exactly once, and gets no samples after
+//  - every request whose capture didn't fail gets at least a capture
+//    duration of audio from after it was made
+//  - a request is finished with time 0 if and only if its capture
+//    recorded nothing, and the sink only sees captures whose source started
+//  - the source and sink are only ever used by one capture at a time, and
+//    the source is released once, at shutdown
+//  - requests after shutdown are finished at once
+// The source is a fake microphone that hands out a buffer every 20 ms and
+// now and then fails to start or fails a read. Durations are scaled down so
+// a run takes seconds. Reports captures per request and request latency.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchCaptureStressTest
+//               [--threads 4] [--bursts 40] [--burst 8] [--failures 0.05]
+public class GridWatchCaptureStressTest {
+
+	private final static int BUFFER_MS = 20;
+	private final static int BYTES_PER_MS = 44100 * 4 / 1000;
+	private final static int BUFFER_SIZE = BUFFER_MS * BYTES_PER_MS;
+	private final static long DURATION = 300;
+	private final static long MAX_DURATION = 600;
+
+	private int mThreads = 4;
+	private int mBursts = 40;
+	private int mBurst = 8;
+	private double mFailures = 0.05;
+
+	private List<String> mErrors = Collections.synchronizedList(new ArrayList<String>());
+
+	private GridWatchClock mClock = new GridWatchClock() {
+		@Override
+		public long currentTimeMillis () {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long elapsedRealtime () {
+			return System.nanoTime() / 1000000;
+		}
+	};
+
+	private void error (String message) {
+		if (mErrors.size() < 20) mErrors.add(message);
+	}
+
+	private class FakeSource implements GridWatchCaptureEngine.Source {
+		Random mRandom = new Random(1);
+		boolean mStarted = false;
+		int mReleases = 0;
+		long mNext;
+
+		// Captures that started but failed a read, and that didn't start
+		List<Long> mFailed = Collections.synchronizedList(new ArrayList<Long>());
+		volatile long mCurrent;
+		volatile int mStartFailures = 0;
+
+		@Override
+		public boolean start () {
+			if (mStarted) error("source started twice");
+			if (mReleases > 0) error("source used after release");
+			if (mRandom.nextDouble() < mFailures) {
+				mStartFailures++;
+				return false;
+			}
+			mStarted = true;
+			mNext = System.nanoTime();
+			return true;
+		}
+
+		@Override
+		public int read (byte[] buffer, int len) {
+			if (!mStarted) error("read while stopped");
+			if (mRandom.nextDouble() < mFailures / 10) {
+				mFailed.add(mCurrent);
+				return -3;
+			}
+			mNext += BUFFER_MS * 1000000l;
+			long wait = mNext - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			Arrays.fill(buffer, 0, Math.min(len, BUFFER_SIZE), (byte) 1);
+			return Math.min(len, BUFFER_SIZE);
+		}
+
+		@Override
+		public void stop () {
+			if (!mStarted) error("stopped while stopped");
+			mStarted = false;
+		}
+
+		@Override
+		public void release () {
+			mReleases++;
+		}
+	}
+
+	private class CountingSink implements GridWatchCaptureEngine.Sink {
+		boolean mOpen = false;
+		int mCaptures = 0;
+		FakeSource mSource;
+
+		@Override
+		public void begin (long time) {
+			if (mOpen) error("sink begun twice");
+			mOpen = true;
+			mCaptures++;
+			mSource.mCurrent = time;
+		}
+
+		@Override
+		public void write (byte[] buffer, int len) {
+			if (!mOpen) error("sink written while closed");
+		}
+
+		@Override
+		public void end () {
+			if (!mOpen) error("sink ended while closed");
+			mOpen = false;
+		}
+	}
+
+	private class Request implements GridWatchCaptureEngine.Listener {
+		long mRequested = mClock.elapsedRealtime();
+		long mBytes = 0;
+		long mFinishedAt = 0;
+		long mCapture = -1;
+		AtomicInteger mFinished = new AtomicInteger();
+		CountDownLatch mDone;
+
+		Request (CountDownLatch done) {
+			mDone = done;
+		}
+
+		@Override
+		public void onSamples (byte[] buffer, int len) {
+			if (mFinished.get() > 0) error("samples after finish");
+			mBytes += len;
+		}
+
+		@Override
+		public void onFinished (long time) {
+			if (mFinished.incrementAndGet() > 1) error("finished twice");
+			mCapture = time;
+			mFinishedAt = mClock.elapsedRealtime();
+			mDone.countDown();
+		}
+	}
+
+	private void run () throws InterruptedException {
+		final FakeSource source = new FakeSource();
+		CountingSink sink = new CountingSink();
+		sink.mSource = source;
+		final GridWatchCaptureEngine engine = new GridWatchCaptureEngine(mClock, source, sink,
+				BUFFER_SIZE, DURATION, MAX_DURATION);
+
+		final int total = mThreads * mBursts * mBurst;
+		final CountDownLatch done = new CountDownLatch(total);
+		final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>(total));
+
+		long begin = System.nanoTime();
+		Thread[] threads = new Thread[mThreads];
+		for (int t = 0; t < mThreads; t++) {
+			final Random random = new Random(100 + t);
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						for (int b = 0; b < mBursts; b++) {
+							// A flapping charger: a quick run of unplugs
+							for (int i = 0; i < mBurst; i++) {
+								Request request = new Request(done);
+								requests.add(request);
+								engine.request(request);
+								Thread.sleep(random.nextInt(40));
+							}
+							Thread.sleep(random.nextInt(800));
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!done.await(30, TimeUnit.SECONDS)) {
+			error((done.getCount()) + " requests never finished");
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+
+		engine.shutdown();
+		CountDownLatch late = new CountDownLatch(1);
+		Request after = new Request(late);
+		engine.request(after);
+		if (after.mFinished.get() != 1 || after.mBytes != 0) error("request after shutdown not finished at once");
+		Thread.sleep(200);
+		if (source.mReleases != 1) error("source released " + source.mReleases + " times");
+
+		// Each request's audio
+		long shortest = Long.MAX_VALUE;
+		long[] latency = new long[requests.size()];
+		int n = 0;
+		int failed = 0;
+		synchronized (requests) {
+			for (Request request : requests) {
+				if (request.mFinished.get() != 1) {
+					error("request finished " + request.mFinished.get() + " times");
+					continue;
+				}
+				latency[n++] = request.mFinishedAt - request.mRequested;
+				if (request.mCapture == 0 && request.mBytes > 0) {
+					error("request finished as not recorded after " + request.mBytes + " bytes");
+				}
+				if (request.mCapture == 0 || source.mFailed.contains(request.mCapture)) {
+					// Its capture failed to start or failed a read
+					failed++;
+					continue;
+				}
+				long ms = request.mBytes / BYTES_PER_MS;
+				shortest = Math.min(shortest, ms);
+				if (ms < DURATION - BUFFER_MS) {
+					error("request got " + ms + " ms of audio");
+				}
+			}
+		}
+		Arrays.sort(latency, 0, n);
+
+		System.out.println(String.format(
+				"requests=%d captures=%d requests/capture=%.2f failed=%d shortest_ms=%d latency_ms p50=%d p99=%d max=%d seconds=%.1f",
+				engine.getRequests(), engine.getCaptures(), (double) engine.getRequests() / engine.getCaptures(),
+				failed, shortest, latency[n / 2], latency[n * 99 / 100], latency[n - 1], seconds));
+		if (sink.mCaptures + source.mStartFailures != engine.getCaptures()) {
+			error("sink saw " + sink.mCaptures + " captures, " + source.mStartFailures + " failed to start, of " + engine.getCaptures());
+		}
+
+		if (mErrors.isEmpty()) {
+			System.out.println("OK");
+		} else {
+			for (String e : mErrors) {
+				System.out.println("FAIL " + e);
+			}
+			System.exit(1);
+		}
+	}
+
+	public static void main (String[] args) throws InterruptedException {
+		GridWatchCaptureStressTest test = new GridWatchCaptureStressTest();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads")) test.mThreads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--bursts")) test.mBursts = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--burst")) test.mBurst = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--failures")) test.mFailures = Double.parseDouble(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		test.run();
+	}
+}
@@ -0,0 +1,269 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchAlert;
+import edu.umich.eecs.gridwatch.GridWatchBatch;
+import edu.umich.eecs.gridwatch.GridWatchCodec;
+
+// Compares GridWatchCodec with the form encoding the app used to send
+// through UrlEncodedFormEntity, for bytes per event and encode and decode
+// time per event:
+//  - single alerts: GridWatchAlert.toForm() and fromForm(), which build and
+//    read the same "t=...&e=..." body UrlEncodedFormEntity did, against
+//    encode() and decode()
+//  - batches of --batch alerts: form lines in a GridWatchBatch body against
+//    encodeBatch(), with and without deflate, and decodeBatch()
+// The alerts look like a phone's over a few weeks: minutes to hours apart,
+// mostly with a GPS or network fix near one place, some from flapping
+// chargers, and unplugs with the recording's mains features. Every alert is
+// also decoded and checked against the original: forms must round trip
+// exactly, and the codec to within its fixed point (1e-7 degrees, a tenth
+// of a metre of accuracy, 1 mHz, a tenth of a dB and 1e-3 of a harmonic
+// ratio).
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchCodecBenchmark
+//               [--alerts 20000] [--batch 50] [--repeat 5]
+public class GridWatchCodecBenchmark {
+
+	private final static long EPOCH = 1400000000000l;
+	private final static char[] TYPES = { 'u', 'p', 'w' };
+	private final static char[] CONNECTIONS = { 'w', 'm', 'n' };
+
+	// How far the codec's fixed point may move a value: half a step, plus
+	// rounding in the double or float it came from
+	private final static double DEGREES = 0.5e-7 + 1e-12;
+	private final static double METRES = 0.05 + 1e-3;
+	private final static double HZ = 0.5e-3 + 1e-4;
+	private final static double DB = 0.05 + 1e-4;
+	private final static double RATIO = 0.5e-3 + 1e-4;
+
+	private int mAlerts = 20000;
+	private int mBatch = 50;
+	private int mRepeat = 5;
+
+	private List<String> mErrors = new ArrayList<String>();
+
+	// Keeps the JIT from dropping work whose result is unused
+	private long mSink = 0;
+
+	private void error (String message) {
+		if (mErrors.size() < 20) mErrors.add(message);
+	}
+
+	private List<GridWatchAlert> alerts () {
+		Random random = new Random(11);
+		List<GridWatchAlert> alerts = new ArrayList<GridWatchAlert>(mAlerts);
+		long time = EPOCH;
+		for (int i = 0; i < mAlerts; i++) {
+			time += 60000l + (long) (random.nextDouble() * 3 * 3600000l);
+			GridWatchAlert alert = new GridWatchAlert();
+			alert.time = time;
+			alert.eventType = TYPES[random.nextInt(TYPES.length)];
+			if (random.nextDouble() < 0.9) {
+				alert.hasLocation = true;
+				alert.latitude = -1.2921 + random.nextGaussian() * 0.01;
+				alert.longitude = 36.8219 + random.nextGaussian() * 0.01;
+				alert.accuracy = random.nextBoolean() ? 5f + random.nextInt(40) : 20f + random.nextFloat() * 1500f;
+				alert.locationTime = time - random.nextInt(600000);
+			}
+			if (random.nextDouble() < 0.1) {
+				alert.flaps = 2 + random.nextInt(30);
+				alert.flapFirst = time - 60000l - random.nextInt(60000);
+				alert.flapLast = time;
+			}
+			if (alert.eventType == 'u' && random.nextDouble() < 0.5) {
+				alert.hasMains = true;
+				alert.mainsHz = 50f + (float) random.nextGaussian() * 0.05f;
+				alert.humDb = -60f + random.nextFloat() * 30f;
+				alert.harmonic2 = random.nextFloat() * 0.3f;
+				alert.harmonic3 = random.nextFloat() * 0.5f;
+				alert.humSnr = 5f + random.nextFloat() * 30f;
+			}
+			alert.connection = CONNECTIONS[random.nextInt(CONNECTIONS.length)];
+			alert.hash = "9f3";
+			alert.id = "1042";
+			alert.version = "21";
+			alerts.add(alert);
+		}
+		return alerts;
+	}
+
+	// a and b are the same alert, exactly or to within the codec's fixed point
+	private static boolean same (GridWatchAlert a, GridWatchAlert b, boolean fixedPoint) {
+		double degrees = fixedPoint ? DEGREES : 0;
+		double metres = fixedPoint ? METRES : 0;
+		if (b == null) return false;
+		if (a.time != b.time || a.eventType != b.eventType || a.connection != b.connection) return false;
+		if (a.hasLocation != b.hasLocation) return false;
+		if (a.hasLocation) {
+			if (Math.abs(a.latitude - b.latitude) > degrees || Math.abs(a.longitude - b.longitude) > degrees) return false;
+			if (Math.abs(a.accuracy - b.accuracy) > metres || a.locationTime != b.locationTime) return false;
+		}
+		if (a.flaps != b.flaps || (a.flaps > 0 && (a.flapFirst != b.flapFirst || a.flapLast != b.flapLast))) return false;
+		if (a.hasMains != b.hasMains) return false;
+		if (a.hasMains) {
+			if (Math.abs(a.mainsHz - b.mainsHz) > (fixedPoint ? HZ : 0)) return false;
+			if (Math.abs(a.humDb - b.humDb) > (fixedPoint ? DB : 0) || Math.abs(a.humSnr - b.humSnr) > (fixedPoint ? DB : 0)) return false;
+			if (Math.abs(a.harmonic2 - b.harmonic2) > (fixedPoint ? RATIO : 0)) return false;
+			if (Math.abs(a.harmonic3 - b.harmonic3) > (fixedPoint ? RATIO : 0)) return false;
+		}
+		return a.hash.equals(b.hash) && a.id.equals(b.id) && a.version.equals(b.version);
+	}
+
+	private void checkForms (List<GridWatchAlert> alerts) {
+		for (GridWatchAlert alert : alerts) {
+			if (!same(alert, GridWatchAlert.fromForm(alert.toForm()), false)) {
+				error("form round trip changed " + alert.toForm());
+			}
+		}
+	}
+
+	private void checkCodec (GridWatchCodec codec, List<GridWatchAlert> alerts) throws IOException {
+		for (GridWatchAlert alert : alerts) {
+			if (!same(alert, codec.decode(codec.encode(alert)), true)) {
+				error("codec round trip changed " + alert.toForm());
+			}
+		}
+		for (boolean deflate : new boolean[] { false, true }) {
+			for (int i = 0; i < alerts.size(); i += mBatch) {
+				List<GridWatchAlert> batch = alerts.subList(i, Math.min(alerts.size(), i + mBatch));
+				List<GridWatchAlert> decoded = codec.decodeBatch(codec.encodeBatch(batch, deflate));
+				if (decoded.size() != batch.size()) {
+					error("batch of " + batch.size() + " decoded as " + decoded.size());
+					continue;
+				}
+				for (int k = 0; k < batch.size(); k++) {
+					if (!same(batch.get(k), decoded.get(k), true)) {
+						error("batch round trip (deflate " + deflate + ") changed " + batch.get(k).toForm());
+					}
+				}
+			}
+		}
+	}
+
+	private static void report (String what, long bytes, int events, long encodeNs, long decodeNs) {
+		System.out.println(String.format("%-16s bytes/event=%.1f encode_ns/event=%.0f decode_ns/event=%.0f",
+				what, bytes / (double) events, encodeNs / (double) events, decodeNs / (double) events));
+	}
+
+	// Times for the singles and batches, best of mRepeat
+	private void measure (GridWatchCodec codec, GridWatchBatch batcher, List<GridWatchAlert> alerts) throws IOException {
+		int n = alerts.size();
+		long[] bytes = new long[5];
+		long[] encode = new long[5];
+		long[] decode = new long[5];
+		for (int i = 0; i < 5; i++) {
+			encode[i] = Long.MAX_VALUE;
+			decode[i] = Long.MAX_VALUE;
+		}
+		List<List<GridWatchAlert>> batches = new ArrayList<List<GridWatchAlert>>();
+		for (int i = 0; i < n; i += mBatch) {
+			batches.add(alerts.subList(i, Math.min(n, i + mBatch)));
+		}
+
+		for (int repeat = 0; repeat < mRepeat; repeat++) {
+			// Single forms
+			String[] forms = new String[n];
+			long t0 = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				forms[i] = alerts.get(i).toForm();
+				bytes[0] += forms[i].getBytes("UTF-8").length;
+			}
+			encode[0] = Math.min(encode[0], System.nanoTime() - t0);
+			t0 = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				mSink += GridWatchAlert.fromForm(forms[i]).time;
+			}
+			decode[0] = Math.min(decode[0], System.nanoTime() - t0);
+
+			// Single binary alerts
+			byte[][] encoded = new byte[n][];
+			t0 = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				encoded[i] = codec.encode(alerts.get(i));
+				bytes[1] += encoded[i].length;
+			}
+			encode[1] = Math.min(encode[1], System.nanoTime() - t0);
+			t0 = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				mSink += codec.decode(encoded[i]).time;
+			}
+			decode[1] = Math.min(decode[1], System.nanoTime() - t0);
+
+			// Form batches
+			byte[][] bodies = new byte[batches.size()][];
+			t0 = System.nanoTime();
+			for (int b = 0; b < batches.size(); b++) {
+				List<byte[]> payloads = new ArrayList<byte[]>(mBatch);
+				for (GridWatchAlert alert : batches.get(b)) {
+					payloads.add(alert.toForm().getBytes("UTF-8"));
+				}
+				bodies[b] = batcher.encode(payloads);
+				bytes[2] += bodies[b].length;
+			}
+			encode[2] = Math.min(encode[2], System.nanoTime() - t0);
+			t0 = System.nanoTime();
+			for (int b = 0; b < batches.size(); b++) {
+				for (String line : new String(bodies[b], "UTF-8").split("\n")) {
+					mSink += GridWatchAlert.fromForm(line).time;
+				}
+			}
+			decode[2] = Math.min(decode[2], System.nanoTime() - t0);
+
+			// Binary batches, plain and deflated
+			for (int k = 3; k < 5; k++) {
+				boolean deflate = k == 4;
+				t0 = System.nanoTime();
+				for (int b = 0; b < batches.size(); b++) {
+					bodies[b] = codec.encodeBatch(batches.get(b), deflate);
+					bytes[k] += bodies[b].length;
+				}
+				encode[k] = Math.min(encode[k], System.nanoTime() - t0);
+				t0 = System.nanoTime();
+				for (int b = 0; b < batches.size(); b++) {
+					mSink += codec.decodeBatch(bodies[b]).size();
+				}
+				decode[k] = Math.min(decode[k], System.nanoTime() - t0);
+			}
+		}
+
+		String[] names = { "form", "binary", "form batch", "binary batch", "binary deflated" };
+		for (int i = 0; i < 5; i++) {
+			report(names[i], bytes[i] / mRepeat, n, encode[i], decode[i]);
+		}
+	}
+
+	private void run () throws IOException {
+		List<GridWatchAlert> alerts = alerts();
+		GridWatchCodec codec = new GridWatchCodec();
+		GridWatchBatch batcher = new GridWatchBatch(mBatch, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		checkForms(alerts);
+		checkCodec(codec, alerts);
+
+		System.out.println(String.format("alerts=%d batch=%d repeat=%d", mAlerts, mBatch, mRepeat));
+		measure(codec, batcher, alerts);
+		if (mSink == 42) System.out.println();
+
+		for (String e : mErrors) {
+			System.out.println("FAIL " + e);
+		}
+		System.out.println(mErrors.isEmpty() ? "OK" : "FAIL");
+		if (!mErrors.isEmpty()) System.exit(1);
+	}
+
+	public static void main (String[] args) throws IOException {
+		GridWatchCodecBenchmark benchmark = new GridWatchCodecBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--alerts")) benchmark.mAlerts = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--batch")) benchmark.mBatch = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--repeat")) benchmark.mRepeat = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.run();
+	}
+}
@@ -0,0 +1,511 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.umich.eecs.gridwatch.GridWatchCaptureEngine;
+import edu.umich.eecs.gridwatch.GridWatchClock;
+import edu.umich.eecs.gridwatch.GridWatchEvent;
+import edu.umich.eecs.gridwatch.GridWatchEventLoop;
+import edu.umich.eecs.gridwatch.GridWatchEventType;
+import edu.umich.eecs.gridwatch.GridWatchMainsAnalysis;
+
+// Fires thousands of plug and unplug transitions at the app's
+// GridWatchEventLoop while the things it waits on finish on their own threads, and
+// checks what the app relies on:
+//  - the event list and everything that reads it is only touched on the
+//    loop thread
+//  - every change of power state becomes an event or is counted in
+//    exactly one flap record, and every event is sent exactly once, ready
+//  - the filter sees transitions in the order they were broadcast, events
+//    join the list in time order, and events that don't wait on sensors
+//    are sent in that order
+//  - once the power settles nothing is left waiting
+//
+// The event loop, with its transition filter, events and motion detector,
+// and the capture engine and mains analysis are the app's own. Its
+// Scheduler is a small stand-in for the service's HandlerThread and
+// Handler, and its Listener stands in for the service's sensor and
+// outbox. Broadcasts come from one thread, as they do on the main
+// thread; captures finish on the engine's worker; accelerometer samples
+// and heartbeats are posted from threads of their own. Everything runs on
+// a clock --speed times real time.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchEventLoopStressTest
+//               [--transitions 2000] [--speed 200] [--seed 1]
+public class GridWatchEventLoopStressTest {
+
+	private final static long EPOCH = 1400000000000l;
+	private final static long SECOND = 1000l;
+
+	// As in GridWatchService
+	private final static long FLAP_SETTLE = 20 * SECOND;
+	private final static long FLAP_MAX_DELAY = 120 * SECOND;
+	private final static long RECORDER_TIME = 3000;
+	private final static long RECORDER_MAX_TIME = 2 * RECORDER_TIME;
+
+	// SENSOR_DELAY_NORMAL
+	private final static long SENSOR_MS = 200;
+	private final static long WD_MS = 60 * SECOND;
+
+	// A small microphone, so the analysis keeps up at speed
+	private final static int SAMPLE_RATE = 8000;
+	private final static long BUFFER_MS = 100;
+	private final static int BUFFER_SIZE = (int) (SAMPLE_RATE * 2 * BUFFER_MS / 1000);
+
+	private int mTransitions = 2000;
+	private int mSpeed = 200;
+	private long mSeed = 1;
+
+	private long mStartNanos = System.nanoTime();
+	private volatile boolean mStopped = false;
+	private volatile boolean mSensorStopped = false;
+	private List<String> mErrors = Collections.synchronizedList(new ArrayList<String>());
+
+	private GridWatchClock mClock = new GridWatchClock() {
+		@Override
+		public long currentTimeMillis () {
+			return EPOCH + elapsedRealtime();
+		}
+
+		@Override
+		public long elapsedRealtime () {
+			return (System.nanoTime() - mStartNanos) * mSpeed / 1000000;
+		}
+	};
+
+	private void error (String message) {
+		if (mErrors.size() < 20) mErrors.add(message);
+	}
+
+	// Real nanoseconds for ms on the clock
+	private long toNanos (long ms) {
+		return ms * 1000000l / mSpeed;
+	}
+
+	private void pause (long ms) {
+		long end = System.nanoTime() + toNanos(ms);
+		long left;
+		while ((left = end - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(left);
+		}
+	}
+
+	// Stands in for the service's HandlerThread and Handler: one thread
+	// running posted runnables when they are due, runnables due at the
+	// same time in the order they were posted
+	private class Loop implements Runnable, GridWatchEventLoop.Scheduler {
+		private PriorityQueue<Message> mQueue = new PriorityQueue<Message>();
+		private long mSeq = 0;
+		private boolean mQuit = false;
+		private Thread mThread = new Thread(this, "GridWatchEventLoop");
+		private int mRuns = 0;
+
+		void start () {
+			mThread.start();
+		}
+
+		@Override
+		public void post (Runnable r) {
+			postDelayed(r, 0);
+		}
+
+		@Override
+		public synchronized void postDelayed (Runnable r, long ms) {
+			mQueue.add(new Message(System.nanoTime() + toNanos(ms), mSeq++, r));
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void removeCallbacks (Runnable r) {
+			for (Iterator<Message> it = mQueue.iterator(); it.hasNext();) {
+				if (it.next().runnable == r) it.remove();
+			}
+		}
+
+		synchronized void quit () {
+			mQuit = true;
+			notifyAll();
+		}
+
+		boolean onLoop () {
+			return Thread.currentThread() == mThread;
+		}
+
+		@Override
+		public void run () {
+			while (true) {
+				Runnable r;
+				synchronized (this) {
+					while (true) {
+						if (mQuit) return;
+						Message m = mQueue.peek();
+						long now = System.nanoTime();
+						if (m != null && m.when <= now) {
+							mQueue.poll();
+							r = m.runnable;
+							break;
+						}
+						try {
+							if (m == null) {
+								wait();
+							} else {
+								long wait = m.when - now;
+								wait(wait / 1000000, (int) (wait % 1000000));
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				mRuns++;
+				r.run();
+			}
+		}
+	}
+
+	private static class Message implements Comparable<Message> {
+		long when;
+		long seq;
+		Runnable runnable;
+
+		Message (long when, long seq, Runnable runnable) {
+			this.when = when;
+			this.seq = seq;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public int compareTo (Message other) {
+			if (when != other.when) return when < other.when ? -1 : 1;
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+
+	// A microphone that hands out a buffer every BUFFER_MS and now and then
+	// fails to start
+	private class FakeSource implements GridWatchCaptureEngine.Source {
+		private Random mRandom = new Random(mSeed + 1);
+		private long mNext;
+
+		@Override
+		public boolean start () {
+			if (mRandom.nextDouble() < 0.02) return false;
+			mNext = System.nanoTime();
+			return true;
+		}
+
+		@Override
+		public int read (byte[] buffer, int len) {
+			mNext += toNanos(BUFFER_MS);
+			long left;
+			while ((left = mNext - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(left);
+			}
+			return Math.min(len, BUFFER_SIZE);
+		}
+
+		@Override
+		public void stop () {
+		}
+
+		@Override
+		public void release () {
+		}
+	}
+
+	private GridWatchCaptureEngine.Sink mNullSink = new GridWatchCaptureEngine.Sink() {
+		@Override
+		public void begin (long time) {
+		}
+
+		@Override
+		public void write (byte[] buffer, int len) {
+		}
+
+		@Override
+		public void end () {
+		}
+	};
+
+	private Loop mLoop = new Loop();
+	private GridWatchEventLoop mEventLoop;
+	private GridWatchMainsAnalysis mMainsAnalysis = new GridWatchMainsAnalysis(SAMPLE_RATE, 1, mNullSink);
+	private GridWatchCaptureEngine mCapture;
+	private volatile boolean mSensorRegistered = false;
+
+	// What happened, for the checks. Loop only, except where atomic.
+	private int mChanges = 0;
+	private int mPassed = 0;
+	private int mFlapRecords = 0;
+	private int mFlapsCollapsed = 0;
+	private AtomicInteger mCreated = new AtomicInteger();
+	private AtomicInteger mHeartbeats = new AtomicInteger();
+	private AtomicInteger mMicrophones = new AtomicInteger();
+	private AtomicInteger mRecorded = new AtomicInteger();
+	private AtomicInteger mOffLoop = new AtomicInteger();
+	private long mLastFiltered = Long.MIN_VALUE;
+	private long mLastAdded = Long.MIN_VALUE;
+	private long mLastImmediate = Long.MIN_VALUE;
+	private long mLastUnplugged = Long.MIN_VALUE;
+	private int mOvertaken = 0;
+	private Map<GridWatchEvent, Boolean> mSent = new IdentityHashMap<GridWatchEvent, Boolean>();
+	private long mUnplugLatency = 0;
+	private long mMaxUnplugLatency = 0;
+	private int mUnplugs = 0;
+
+	private void checkLoop (String where) {
+		if (!mLoop.onLoop()) {
+			if (mOffLoop.incrementAndGet() <= 3) error(where + " ran on " + Thread.currentThread().getName());
+		}
+	}
+
+	// What GridWatchService does with the loop's callbacks, plus the checks
+	private GridWatchEventLoop.Listener mListener = new GridWatchEventLoop.Listener() {
+		@Override
+		public void onPowerChanged (boolean powered, long time) {
+			checkLoop("onPowerChanged");
+			if (time < mLastFiltered) error("filter saw " + time + " after " + mLastFiltered);
+			mLastFiltered = time;
+		}
+
+		@Override
+		public void onFlaps (boolean powered, int flaps, long first, long last) {
+			checkLoop("onFlaps");
+			mFlapRecords++;
+			mFlapsCollapsed += flaps;
+		}
+
+		@Override
+		public void onEvent (GridWatchEvent gwevent) {
+			checkLoop("onEvent");
+			mCreated.incrementAndGet();
+			if (gwevent.getEventType().equals("wd")) return;
+			if (gwevent.getFlaps() == 0) {
+				mPassed++;
+				if (gwevent.getEventType().equals("unplugged")) mMicrophones.incrementAndGet();
+			}
+			if (gwevent.getTimestampMilli() < mLastAdded) {
+				error("event at " + gwevent.getTimestampMilli() + " added after one at " + mLastAdded);
+			}
+			mLastAdded = gwevent.getTimestampMilli();
+		}
+
+		@Override
+		public void onRecorded (long time, GridWatchEvent gwevent) {
+			if (mLoop.onLoop()) error("recording finished on the loop");
+			mRecorded.incrementAndGet();
+		}
+
+		@Override
+		public boolean startMotion () {
+			checkLoop("startMotion");
+			mSensorRegistered = true;
+			return true;
+		}
+
+		@Override
+		public void stopMotion () {
+			checkLoop("stopMotion");
+			mSensorRegistered = false;
+		}
+
+		// Where the service hands the event to the outbox
+		@Override
+		public void onReady (GridWatchEvent gwevent) {
+			checkLoop("onReady");
+			if (mSent.put(gwevent, Boolean.TRUE) != null) {
+				error("event at " + gwevent.getTimestampMilli() + " sent twice");
+			}
+			if (gwevent.needsMotion()) error("event at " + gwevent.getTimestampMilli() + " sent waiting on motion");
+			if (!gwevent.readyForTransmission()) error("event at " + gwevent.getTimestampMilli() + " sent before it was ready");
+
+			long time = gwevent.getTimestampMilli();
+			String type = gwevent.getEventType();
+			if (type.equals("wd")) return;
+			if (type.equals("plugged") || gwevent.getFlaps() > 0) {
+				if (time < mLastImmediate) error("event at " + time + " sent after one at " + mLastImmediate);
+				mLastImmediate = time;
+			} else {
+				if (time < mLastUnplugged) mOvertaken++;
+				mLastUnplugged = Math.max(mLastUnplugged, time);
+				long latency = mClock.currentTimeMillis() - time;
+				mUnplugLatency += latency;
+				mMaxUnplugLatency = Math.max(mMaxUnplugLatency, latency);
+				mUnplugs++;
+			}
+		}
+	};
+
+	// The accelerometer: a sample every SENSOR_MS while registered, posted
+	// to the loop. The phone is picked up now and then.
+	private Thread mSensor = new Thread("sensor") {
+		@Override
+		public void run () {
+			Random random = new Random(mSeed + 2);
+			boolean moving = false;
+			while (!mSensorStopped) {
+				pause(SENSOR_MS);
+				if (!mSensorRegistered) continue;
+				if (random.nextDouble() < (moving ? 0.2 : 0.02)) moving = !moving;
+				double noise = moving ? 3 : 0.05;
+				final float x = (float) (random.nextGaussian() * noise);
+				final float y = (float) (random.nextGaussian() * noise);
+				final float z = (float) (9.81 + random.nextGaussian() * noise);
+				mLoop.post(new Runnable() {
+					@Override
+					public void run() {
+						checkLoop("onSensorChanged");
+						mEventLoop.onSensorChanged(mClock.elapsedRealtime(), x, y, z);
+					}
+				});
+			}
+		}
+	};
+
+	// The heartbeat alarm, which adds its event from the main thread
+	private Thread mWatchdog = new Thread("watchdog") {
+		@Override
+		public void run () {
+			while (!mStopped) {
+				pause(WD_MS);
+				if (mStopped) break;
+				mHeartbeats.incrementAndGet();
+				mEventLoop.addEvent(new GridWatchEvent(GridWatchEventType.WD, mClock.currentTimeMillis()));
+			}
+		}
+	};
+
+	// Bursts of flaps from a loose charger or a brownout, then the power
+	// settles. A few broadcasts repeat the current state.
+	private void fire () {
+		Random random = new Random(mSeed);
+		boolean powered = true;
+		mEventLoop.onPowerChanged(powered);
+		mChanges++;
+		int fired = 1;
+		while (fired < mTransitions) {
+			int burst = 1 + random.nextInt(12);
+			for (int i = 0; i < burst && fired < mTransitions; i++) {
+				pause(100 + random.nextInt(5000));
+				if (random.nextDouble() >= 0.05) {
+					powered = !powered;
+					mChanges++;
+				}
+				mEventLoop.onPowerChanged(powered);
+				fired++;
+			}
+			pause(FLAP_SETTLE + random.nextInt(15000));
+		}
+	}
+
+	// True once nothing is held or waiting
+	private boolean quiet () throws InterruptedException {
+		final boolean[] quiet = new boolean[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		mLoop.post(new Runnable() {
+			@Override
+			public void run() {
+				quiet[0] = mEventLoop.getWaiting() == 0 && mEventLoop.getHeldFlaps() == 0 && !mEventLoop.isSensing();
+				done.countDown();
+			}
+		});
+		done.await();
+		return quiet[0];
+	}
+
+	private void run () throws InterruptedException {
+		mCapture = new GridWatchCaptureEngine(mClock, new FakeSource(), mMainsAnalysis,
+				BUFFER_SIZE, RECORDER_TIME, RECORDER_MAX_TIME);
+		mEventLoop = new GridWatchEventLoop(mLoop, mClock, FLAP_SETTLE, FLAP_MAX_DELAY,
+				mCapture, mMainsAnalysis, mListener);
+		mLoop.start();
+		mSensor.start();
+		mWatchdog.start();
+
+		long t0 = System.nanoTime();
+		fire();
+		mStopped = true;
+		mWatchdog.join();
+
+		// Everything held or waiting is done within a max delay of the
+		// last transition, and then some for scheduling at speed
+		long deadline = System.nanoTime() + toNanos(FLAP_MAX_DELAY + GridWatchEventLoop.MOTION_TIMEOUT + RECORDER_MAX_TIME) + 10000000000l;
+		boolean settled;
+		while (!(settled = quiet()) && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		long elapsed = mClock.elapsedRealtime();
+		double seconds = (System.nanoTime() - t0) / 1e9;
+
+		// Read the loop's counters on the loop
+		final CountDownLatch done = new CountDownLatch(1);
+		final int[] counts = new int[5];
+		mLoop.post(new Runnable() {
+			@Override
+			public void run() {
+				counts[0] = mSent.size();
+				counts[1] = mEventLoop.getWaiting();
+				counts[2] = mPassed;
+				counts[3] = mFlapRecords;
+				counts[4] = mFlapsCollapsed;
+				done.countDown();
+			}
+		});
+		done.await();
+		mSensorStopped = true;
+		mSensor.join();
+		mCapture.shutdown();
+		mLoop.quit();
+
+		int sent = counts[0];
+		System.out.println(String.format(
+				"transitions=%d changes=%d passed=%d flap_records=%d flaps=%d heartbeats=%d events=%d sent=%d",
+				mTransitions, mChanges, counts[2], counts[3], counts[4], mHeartbeats.get(), mCreated.get(), sent));
+		System.out.println(String.format(
+				"simulated_s=%d real_s=%.1f captures=%d/%d requests loop_runs=%d loop_runs/event=%.2f",
+				elapsed / SECOND, seconds, mCapture.getCaptures(), mCapture.getRequests(), mLoop.mRuns,
+				mLoop.mRuns / (double) Math.max(1, sent)));
+		System.out.println(String.format("unplug events=%d latency_ms avg=%.0f max=%d sent_before_an_earlier_one=%d",
+				mUnplugs, mUnplugLatency / (double) Math.max(1, mUnplugs), mMaxUnplugLatency, mOvertaken));
+
+		if (!settled) error("not settled: " + counts[1] + " events still waiting");
+		if (mChanges != counts[2] + counts[4]) {
+			error(mChanges + " changes of state but " + counts[2] + " passed and " + counts[4] + " in flap records");
+		}
+		if (sent != mCreated.get()) error(mCreated.get() + " events created but " + sent + " sent");
+		if (mCapture.getRequests() != mMicrophones.get()) {
+			error(mMicrophones.get() + " recordings started but " + mCapture.getRequests() + " requested");
+		}
+		if (mRecorded.get() != mMicrophones.get()) {
+			error(mMicrophones.get() + " recordings started but " + mRecorded.get() + " finished");
+		}
+		if (mOffLoop.get() > 0) error(mOffLoop.get() + " event list accesses off the loop");
+
+		for (String e : mErrors) {
+			System.out.println("FAIL " + e);
+		}
+		System.out.println(mErrors.isEmpty() ? "OK" : "FAIL");
+		if (!mErrors.isEmpty()) System.exit(1);
+	}
+
+	public static void main (String[] args) throws InterruptedException {
+		GridWatchEventLoopStressTest test = new GridWatchEventLoopStressTest();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--transitions")) test.mTransitions = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--speed")) test.mSpeed = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed")) test.mSeed = Long.parseLong(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		test.run();
+	}
+}
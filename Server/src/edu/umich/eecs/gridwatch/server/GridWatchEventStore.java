@@ -0,0 +1,424 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Keeps the accepted events for stream subscribers, partitioned by profile
+// and, within a profile, into buckets by the time the server got them.
+// Every event gets the next offset in its profile, so a subscriber can ask
+// for "everything received in the last N ms" (a binary search for the first
+// bucket and record, then a sequential scan) and, once caught up, keep
+// reading from the same cursor as new events arrive. A client that
+// reconnects resumes from the offset after the last one it saw, with
+// nothing missed and nothing repeated.
+//
+// Buckets hold the receive times in an array and the events as compact
+// records, so millions of events don't become millions of objects. Buckets
+// older than the retention are dropped; offsets keep counting up, and a
+// read from an offset that has been dropped starts at the oldest event
+// still kept.
+//
+// The store is a pipeline stage, so appends come from the pipeline thread.
+// Reads can come from any thread.
+public class GridWatchEventStore implements GridWatchIngestPipeline.Stage {
+
+	public final static long DEFAULT_BUCKET = 60 * 1000l;
+	public final static long DEFAULT_RETENTION = 24 * 60 * 60 * 1000l;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static double FIXED_POINT_SCALE = 1e7;
+
+	private final static int HAS_GPS = 0x01;
+	private final static int HAS_NETWORK_FIX = 0x02;
+	private final static int HAS_FLAPS = 0x04;
+
+	// A stretch of one profile's events
+	private static class Bucket {
+		long start;
+		long baseOffset;
+		int count = 0;
+		long[] received = new long[64];
+		int[] positions = new int[64];
+		byte[] data = new byte[2048];
+		int length = 0;
+	}
+
+	// One profile's events. Its monitor guards the buckets and is what
+	// cursors wait on.
+	private static class Partition {
+		String profile;
+		ArrayList<Bucket> buckets = new ArrayList<Bucket>();
+		long endOffset = 0;
+		long lastReceived = 0;
+
+		// Repeated strings, to hand readers the same String objects
+		HashMap<String, String> strings = new HashMap<String, String>();
+	}
+
+	// Reads one profile's events in order from an offset, waiting for new
+	// ones once it has caught up
+	public class Cursor {
+		private Partition mPartition;
+		private long mNext;
+
+		private Cursor (Partition partition, long offset) {
+			mPartition = partition;
+			mNext = offset;
+		}
+
+		// The offset of the next event this cursor will return
+		public long getNext () {
+			return mNext;
+		}
+
+		// Up to max events from the cursor, waiting up to timeout ms for one
+		// if there are none yet. Returns an empty list on timeout.
+		public List<GridWatchIngestEvent> poll (int max, long timeout) throws InterruptedException {
+			List<GridWatchIngestEvent> events = new ArrayList<GridWatchIngestEvent>();
+			synchronized (mPartition) {
+				long deadline = System.currentTimeMillis() + timeout;
+				while (mPartition.endOffset <= mNext) {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) return events;
+					mPartition.wait(left);
+				}
+				mNext = readLocked(mPartition, mNext, max, events);
+			}
+			return events;
+		}
+	}
+
+	private long mBucketSpan;
+	private long mRetention;
+	private HashMap<String, Partition> mPartitions = new HashMap<String, Partition>();
+
+	// Encoding scratch, only used by the appending thread
+	private byte[] mScratch = new byte[256];
+	private int mScratchLength;
+
+	public GridWatchEventStore () {
+		this(DEFAULT_BUCKET, DEFAULT_RETENTION);
+	}
+
+	public GridWatchEventStore (long bucketSpan, long retention) {
+		mBucketSpan = bucketSpan;
+		mRetention = retention;
+	}
+
+	@Override
+	public void process (GridWatchIngestEvent event) {
+		append(event);
+	}
+
+	@Override
+	public void flush (long now) {
+		expire(now);
+	}
+
+	// Store an event and return its offset in its profile
+	public long append (GridWatchIngestEvent event) {
+		Partition partition = partition(event.profile == null ? "" : event.profile, true);
+		encode(event);
+		synchronized (partition) {
+			// Keep receive times in order within the profile, so a time
+			// search can't miss events
+			long received = Math.max(event.receivedAt, partition.lastReceived);
+			partition.lastReceived = received;
+
+			Bucket bucket = partition.buckets.isEmpty() ? null : partition.buckets.get(partition.buckets.size() - 1);
+			if (bucket == null || received >= bucket.start + mBucketSpan) {
+				bucket = new Bucket();
+				bucket.start = received - received % mBucketSpan;
+				bucket.baseOffset = partition.endOffset;
+				partition.buckets.add(bucket);
+			}
+			add(bucket, received, mScratch, mScratchLength);
+			long offset = partition.endOffset++;
+			partition.notifyAll();
+			return offset;
+		}
+	}
+
+	// Drop buckets that are entirely older than the retention
+	public void expire (long now) {
+		List<Partition> partitions;
+		synchronized (mPartitions) {
+			partitions = new ArrayList<Partition>(mPartitions.values());
+		}
+		long cutoff = now - mRetention;
+		for (Partition partition : partitions) {
+			synchronized (partition) {
+				int drop = 0;
+				while (drop < partition.buckets.size() - 1
+						&& partition.buckets.get(drop).start + mBucketSpan <= cutoff) {
+					drop++;
+				}
+				if (drop > 0) partition.buckets.subList(0, drop).clear();
+			}
+		}
+	}
+
+	// The offset of the first event received at or after time, or the end
+	// offset if there is none yet
+	public long offsetAt (String profile, long time) {
+		Partition partition = partition(profile, false);
+		if (partition == null) return 0;
+		synchronized (partition) {
+			List<Bucket> buckets = partition.buckets;
+			// The last bucket that starts at or before time
+			int lo = 0, hi = buckets.size() - 1, found = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (buckets.get(mid).start <= time) {
+					found = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			if (found < 0) return buckets.isEmpty() ? partition.endOffset : buckets.get(0).baseOffset;
+			Bucket bucket = buckets.get(found);
+			int i = lowerBound(bucket.received, bucket.count, time);
+			return bucket.baseOffset + i;
+		}
+	}
+
+	// The offset the next event for the profile will get
+	public long getEndOffset (String profile) {
+		Partition partition = partition(profile, false);
+		if (partition == null) return 0;
+		synchronized (partition) {
+			return partition.endOffset;
+		}
+	}
+
+	// The oldest offset still kept for the profile
+	public long getStartOffset (String profile) {
+		Partition partition = partition(profile, false);
+		if (partition == null) return 0;
+		synchronized (partition) {
+			return partition.buckets.isEmpty() ? partition.endOffset : partition.buckets.get(0).baseOffset;
+		}
+	}
+
+	// Read up to max events from offset into events and return the offset
+	// to read from next. Doesn't wait.
+	public long read (String profile, long offset, int max, List<GridWatchIngestEvent> events) {
+		Partition partition = partition(profile, false);
+		if (partition == null) return offset;
+		synchronized (partition) {
+			return readLocked(partition, offset, max, events);
+		}
+	}
+
+	// A cursor at offset; use offsetAt to start from a time
+	public Cursor subscribe (String profile, long offset) {
+		return new Cursor(partition(profile, true), offset);
+	}
+
+	public int getProfiles () {
+		synchronized (mPartitions) {
+			return mPartitions.size();
+		}
+	}
+
+	private Partition partition (String profile, boolean create) {
+		synchronized (mPartitions) {
+			Partition partition = mPartitions.get(profile);
+			if (partition == null && create) {
+				partition = new Partition();
+				partition.profile = profile;
+				mPartitions.put(profile, partition);
+			}
+			return partition;
+		}
+	}
+
+	private long readLocked (Partition partition, long offset, int max, List<GridWatchIngestEvent> events) {
+		List<Bucket> buckets = partition.buckets;
+		if (buckets.isEmpty()) return Math.max(offset, partition.endOffset);
+		if (offset < buckets.get(0).baseOffset) offset = buckets.get(0).baseOffset;
+
+		// The bucket holding offset
+		int lo = 0, hi = buckets.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (buckets.get(mid).baseOffset <= offset) lo = mid; else hi = mid - 1;
+		}
+
+		int read = 0;
+		for (int b = lo; b < buckets.size() && read < max; b++) {
+			Bucket bucket = buckets.get(b);
+			for (int i = (int) (offset - bucket.baseOffset); i < bucket.count && read < max; i++) {
+				GridWatchIngestEvent event = decode(partition, bucket, i);
+				event.offset = offset++;
+				events.add(event);
+				read++;
+			}
+		}
+		return offset;
+	}
+
+	private static void add (Bucket bucket, long received, byte[] record, int length) {
+		if (bucket.count == bucket.received.length) {
+			bucket.received = Arrays.copyOf(bucket.received, bucket.count * 2);
+			bucket.positions = Arrays.copyOf(bucket.positions, bucket.count * 2);
+		}
+		if (bucket.length + length > bucket.data.length) {
+			bucket.data = Arrays.copyOf(bucket.data, Math.max(bucket.data.length * 2, bucket.length + length));
+		}
+		bucket.received[bucket.count] = received;
+		bucket.positions[bucket.count] = bucket.length;
+		System.arraycopy(record, 0, bucket.data, bucket.length, length);
+		bucket.length += length;
+		bucket.count++;
+	}
+
+	// First index in received[0, count) at or after time
+	private static int lowerBound (long[] received, int count, long time) {
+		int lo = 0, hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (received[mid] < time) lo = mid + 1; else hi = mid;
+		}
+		return lo;
+	}
+
+	// Record layout:
+	//   [byte flags][zigzag varint time - received][byte event type]
+	//   [byte network][byte moved + 1][string phone][string user][string app version]
+	//   if HAS_GPS: [zigzag lat * 1e7][zigzag lon * 1e7][varint accuracy * 10]
+	//               [zigzag gps time - time]
+	//   if HAS_NETWORK_FIX: [zigzag lat * 1e7][zigzag lon * 1e7][varint accuracy * 10]
+	//   if HAS_FLAPS: [varint flaps][zigzag first - time][zigzag last - time]
+	private void encode (GridWatchIngestEvent event) {
+		mScratchLength = 0;
+		int flags = (event.hasGps ? HAS_GPS : 0) | (event.hasNetworkFix ? HAS_NETWORK_FIX : 0)
+				| (event.flaps > 0 ? HAS_FLAPS : 0);
+		putByte(flags);
+		putVarint(zigzag(event.time - event.receivedAt));
+		putByte(event.eventType);
+		putByte(event.network);
+		putByte(event.moved + 1);
+		putString(event.phone);
+		putString(event.user);
+		putString(event.appVersion);
+		if (event.hasGps) {
+			putVarint(zigzag(Math.round(event.gpsLatitude * FIXED_POINT_SCALE)));
+			putVarint(zigzag(Math.round(event.gpsLongitude * FIXED_POINT_SCALE)));
+			putVarint(Math.max(0, Math.round(event.gpsAccuracy * 10)));
+			putVarint(zigzag(event.gpsTime - event.time));
+		}
+		if (event.hasNetworkFix) {
+			putVarint(zigzag(Math.round(event.networkLatitude * FIXED_POINT_SCALE)));
+			putVarint(zigzag(Math.round(event.networkLongitude * FIXED_POINT_SCALE)));
+			putVarint(Math.max(0, Math.round(event.networkAccuracy * 10)));
+		}
+		if (event.flaps > 0) {
+			putVarint(event.flaps);
+			putVarint(zigzag(event.flapFirst - event.time));
+			putVarint(zigzag(event.flapLast - event.time));
+		}
+	}
+
+	private GridWatchIngestEvent decode (Partition partition, Bucket bucket, int index) {
+		GridWatchIngestEvent event = new GridWatchIngestEvent();
+		byte[] data = bucket.data;
+		int[] pos = { bucket.positions[index] };
+		event.profile = partition.profile;
+		event.receivedAt = bucket.received[index];
+		int flags = data[pos[0]++];
+		event.time = event.receivedAt + unzigzag(getVarint(data, pos));
+		event.eventType = (char) data[pos[0]++];
+		event.network = (char) data[pos[0]++];
+		event.moved = (byte) (data[pos[0]++] - 1);
+		event.phone = getString(partition, data, pos);
+		event.user = getString(partition, data, pos);
+		event.appVersion = getString(partition, data, pos);
+		if ((flags & HAS_GPS) != 0) {
+			event.hasGps = true;
+			event.gpsLatitude = unzigzag(getVarint(data, pos)) / FIXED_POINT_SCALE;
+			event.gpsLongitude = unzigzag(getVarint(data, pos)) / FIXED_POINT_SCALE;
+			event.gpsAccuracy = getVarint(data, pos) / 10f;
+			event.gpsTime = event.time + unzigzag(getVarint(data, pos));
+		}
+		if ((flags & HAS_NETWORK_FIX) != 0) {
+			event.hasNetworkFix = true;
+			event.networkLatitude = unzigzag(getVarint(data, pos)) / FIXED_POINT_SCALE;
+			event.networkLongitude = unzigzag(getVarint(data, pos)) / FIXED_POINT_SCALE;
+			event.networkAccuracy = getVarint(data, pos) / 10f;
+		}
+		if ((flags & HAS_FLAPS) != 0) {
+			event.flaps = (int) getVarint(data, pos);
+			event.flapFirst = event.time + unzigzag(getVarint(data, pos));
+			event.flapLast = event.time + unzigzag(getVarint(data, pos));
+		}
+		return event;
+	}
+
+	private void putByte (int b) {
+		ensure(1);
+		mScratch[mScratchLength++] = (byte) b;
+	}
+
+	private void putVarint (long v) {
+		ensure(10);
+		while ((v & ~0x7fl) != 0) {
+			mScratch[mScratchLength++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		mScratch[mScratchLength++] = (byte) v;
+	}
+
+	// A null string is stored as length 0 and read back as null
+	private void putString (String s) {
+		if (s == null || s.length() == 0) {
+			putVarint(0);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		putVarint(bytes.length);
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, mScratch, mScratchLength, bytes.length);
+		mScratchLength += bytes.length;
+	}
+
+	private void ensure (int n) {
+		if (mScratchLength + n > mScratch.length) {
+			mScratch = Arrays.copyOf(mScratch, Math.max(mScratch.length * 2, mScratchLength + n));
+		}
+	}
+
+	private static long getVarint (byte[] data, int[] pos) {
+		long v = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = data[pos[0]++];
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+	}
+
+	private static String getString (Partition partition, byte[] data, int[] pos) {
+		int length = (int) getVarint(data, pos);
+		if (length == 0) return null;
+		String s = new String(data, pos[0], length, UTF8);
+		pos[0] += length;
+		String shared = partition.strings.get(s);
+		if (shared == null) {
+			partition.strings.put(s, s);
+			shared = s;
+		}
+		return shared;
+	}
+
+	private static long zigzag (long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag (long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,232 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Fills a GridWatchEventStore with a day of events across several profiles
+// and times the stream backfill list_gridwatch_events.py asks for ("the
+// last 2000000 ms, then live") against scanning the profile from the start.
+// Then it checks that a subscriber that keeps disconnecting while events
+// arrive, and resumes from the offset after the last one it saw, gets every
+// event exactly once, and times how long a live event takes to reach it.
+//
+// Run with: java -Xmx3g edu.umich.eecs.gridwatch.server.GridWatchEventStoreBenchmark
+//               [--events 10000000] [--profiles 16] [--hours 24] [--window 2000000]
+//               [--queries 500] [--scans 5] [--bucket 60000] [--live 200000] [--seed 1]
+public class GridWatchEventStoreBenchmark {
+
+	private final static int READ_CHUNK = 1000;
+
+	private int mEvents = 10000000;
+	private int mProfiles = 16;
+	private int mHours = 24;
+	private long mWindow = 2000000;
+	private int mQueries = 500;
+	private int mScans = 5;
+	private long mBucket = GridWatchEventStore.DEFAULT_BUCKET;
+	private int mLive = 200000;
+	private long mSeed = 1;
+
+	private GridWatchEventStore mStore;
+	private long mStart;
+	private long mEnd;
+
+	private static String profile (int i) {
+		return "profile" + i;
+	}
+
+	// An event like the ones the app sends, received at time
+	private static void fill (GridWatchIngestEvent event, Random random, String profile, long time) {
+		event.clear();
+		event.profile = profile;
+		event.phone = String.format("%06x", random.nextInt(20000));
+		event.time = time - random.nextInt(5000);
+		event.receivedAt = time;
+		event.eventType = random.nextBoolean() ? GridWatchIngestEvent.UNPLUGGED : GridWatchIngestEvent.PLUGGED;
+		event.network = random.nextBoolean() ? 'w' : 'm';
+		event.appVersion = "12";
+		event.hasGps = true;
+		event.gpsLatitude = 42.2 + random.nextDouble() / 10;
+		event.gpsLongitude = -83.7 + random.nextDouble() / 10;
+		event.gpsAccuracy = 5 + random.nextInt(50);
+		event.gpsTime = event.time - random.nextInt(60000);
+	}
+
+	private void load () {
+		Random random = new Random(mSeed);
+		mStore = new GridWatchEventStore(mBucket, Long.MAX_VALUE / 4);
+		mEnd = System.currentTimeMillis();
+		mStart = mEnd - mHours * 3600 * 1000l;
+		long span = mEnd - mStart;
+		GridWatchIngestEvent event = new GridWatchIngestEvent();
+		String[] profiles = new String[mProfiles];
+		for (int i = 0; i < mProfiles; i++) profiles[i] = profile(i);
+
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+		long begin = System.nanoTime();
+		for (int i = 0; i < mEvents; i++) {
+			long time = mStart + span * i / mEvents;
+			fill(event, random, profiles[random.nextInt(mProfiles)], time);
+			mStore.append(event);
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		System.gc();
+		long used = runtime.totalMemory() - runtime.freeMemory() - usedBefore;
+		System.out.println(String.format("stored=%d profiles=%d hours=%d seconds=%.1f events/s=%.0f bytes/event=%.1f",
+				mEvents, mProfiles, mHours, seconds, mEvents / seconds, (double) used / mEvents));
+	}
+
+	// What the stream does for a new subscriber: find the window, read it
+	private int backfill (String profile, long since) {
+		List<GridWatchIngestEvent> events = new ArrayList<GridWatchIngestEvent>(READ_CHUNK);
+		long offset = mStore.offsetAt(profile, since);
+		int count = 0;
+		while (true) {
+			events.clear();
+			offset = mStore.read(profile, offset, READ_CHUNK, events);
+			if (events.isEmpty()) return count;
+			count += events.size();
+		}
+	}
+
+	// The same answer from a store with no time index: read everything and
+	// keep what falls in the window
+	private int fullScan (String profile, long since) {
+		List<GridWatchIngestEvent> events = new ArrayList<GridWatchIngestEvent>(READ_CHUNK);
+		long offset = 0;
+		int count = 0;
+		while (true) {
+			events.clear();
+			offset = mStore.read(profile, offset, READ_CHUNK, events);
+			if (events.isEmpty()) return count;
+			for (GridWatchIngestEvent event : events) {
+				if (event.receivedAt >= since) count++;
+			}
+		}
+	}
+
+	private void queries () {
+		Random random = new Random(mSeed + 1);
+		long since = mEnd - mWindow;
+
+		// Warm up both paths
+		for (int i = 0; i < 20; i++) backfill(profile(i % mProfiles), since);
+		fullScan(profile(0), since);
+
+		long[] latencies = new long[mQueries];
+		long returned = 0;
+		for (int i = 0; i < mQueries; i++) {
+			String profile = profile(random.nextInt(mProfiles));
+			long begin = System.nanoTime();
+			returned += backfill(profile, since);
+			latencies[i] = System.nanoTime() - begin;
+		}
+		Arrays.sort(latencies);
+		System.out.println(String.format("backfill window_ms=%d queries=%d events/query=%d p50_ms=%.2f p99_ms=%.2f max_ms=%.2f",
+				mWindow, mQueries, returned / mQueries, latencies[mQueries / 2] / 1e6,
+				latencies[(int) (mQueries * 0.99)] / 1e6, latencies[mQueries - 1] / 1e6));
+
+		long[] scans = new long[mScans];
+		for (int i = 0; i < mScans; i++) {
+			String profile = profile(random.nextInt(mProfiles));
+			long begin = System.nanoTime();
+			int full = fullScan(profile, since);
+			scans[i] = System.nanoTime() - begin;
+			int indexed = backfill(profile, since);
+			if (full != indexed) {
+				throw new IllegalStateException("Backfill found " + indexed + " events, full scan " + full);
+			}
+		}
+		Arrays.sort(scans);
+		System.out.println(String.format("full_scan scans=%d p50_ms=%.2f max_ms=%.2f",
+				mScans, scans[mScans / 2] / 1e6, scans[mScans - 1] / 1e6));
+	}
+
+	// A writer appends live events to one profile while a subscriber
+	// backfills, tails, and every so often drops its cursor and resumes
+	private void live () throws InterruptedException {
+		final String profile = profile(0);
+		final long first = mStore.offsetAt(profile, mEnd - mWindow);
+		final long end = mStore.getEndOffset(profile) + mLive;
+		final long[] appended = new long[mLive];
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				Random random = new Random(mSeed + 2);
+				GridWatchIngestEvent event = new GridWatchIngestEvent();
+				for (int i = 0; i < mLive; i++) {
+					fill(event, random, profile, System.currentTimeMillis());
+					appended[i] = System.nanoTime();
+					mStore.append(event);
+					// Bursts, with pauses for the subscriber to catch up
+					if (i % 1000 == 999) {
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "writer");
+
+		Random random = new Random(mSeed + 3);
+		long liveStart = mStore.getEndOffset(profile);
+		long[] delays = new long[mLive];
+		int delayed = 0;
+		long expected = first;
+		long reconnects = 0;
+		long duplicates = 0, gaps = 0;
+		writer.start();
+		GridWatchEventStore.Cursor cursor = mStore.subscribe(profile, first);
+		while (expected < end) {
+			List<GridWatchIngestEvent> events = cursor.poll(READ_CHUNK, 1000);
+			long now = System.nanoTime();
+			for (GridWatchIngestEvent event : events) {
+				if (event.offset < expected) duplicates++;
+				if (event.offset > expected) gaps++;
+				expected = event.offset + 1;
+				if (event.offset >= liveStart) delays[delayed++] = now - appended[(int) (event.offset - liveStart)];
+			}
+			if (random.nextInt(20) == 0) {
+				// Reconnect from the last offset seen
+				cursor = mStore.subscribe(profile, expected);
+				reconnects++;
+			}
+		}
+		writer.join();
+
+		Arrays.sort(delays, 0, delayed);
+		System.out.println(String.format("live events=%d reconnects=%d gaps=%d duplicates=%d delivered=%d "
+				+ "delay_p50_us=%d delay_p99_us=%d",
+				mLive, reconnects, gaps, duplicates, expected - first,
+				delays[delayed / 2] / 1000, delays[(int) (delayed * 0.99)] / 1000));
+		if (gaps > 0 || duplicates > 0 || expected != end) {
+			throw new IllegalStateException("Resumed stream lost or repeated events");
+		}
+	}
+
+	public static void main (String[] args) throws Exception {
+		GridWatchEventStoreBenchmark benchmark = new GridWatchEventStoreBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--events")) benchmark.mEvents = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--profiles")) benchmark.mProfiles = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--hours")) benchmark.mHours = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--window")) benchmark.mWindow = Long.parseLong(args[++i]);
+			else if (args[i].equals("--queries")) benchmark.mQueries = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--scans")) benchmark.mScans = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--bucket")) benchmark.mBucket = Long.parseLong(args[++i]);
+			else if (args[i].equals("--live")) benchmark.mLive = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed")) benchmark.mSeed = Long.parseLong(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.load();
+		benchmark.queries();
+		benchmark.live();
+	}
+}
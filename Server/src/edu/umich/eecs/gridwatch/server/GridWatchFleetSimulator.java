@@ -0,0 +1,805 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umich.eecs.gridwatch.GridWatchAlert;
+import edu.umich.eecs.gridwatch.GridWatchAlertBuilder;
+import edu.umich.eecs.gridwatch.GridWatchBatch;
+import edu.umich.eecs.gridwatch.GridWatchClock;
+import edu.umich.eecs.gridwatch.GridWatchCodec;
+import edu.umich.eecs.gridwatch.GridWatchConnectivity;
+import edu.umich.eecs.gridwatch.GridWatchEvent;
+import edu.umich.eecs.gridwatch.GridWatchEventRecord;
+import edu.umich.eecs.gridwatch.GridWatchEventType;
+import edu.umich.eecs.gridwatch.GridWatchFix;
+import edu.umich.eecs.gridwatch.GridWatchHeartbeat;
+import edu.umich.eecs.gridwatch.GridWatchLocationSource;
+import edu.umich.eecs.gridwatch.GridWatchLogger;
+import edu.umich.eecs.gridwatch.GridWatchOutbox;
+import edu.umich.eecs.gridwatch.GridWatchStorage;
+import edu.umich.eecs.gridwatch.GridWatchTransitionFilter;
+
+// Runs the phone's event logic for a fleet of virtual phones in simulated
+// time and sends the resulting alerts to an alert server, by default an
+// in-process GridWatchBatchServer. Use it to size the backend and to see
+// what the client's flap filter, batching and upload behavior do at fleet
+// scale.
+//
+// Each virtual phone has a charger, a user who unplugs it now and then, a
+// network connection and a watchdog alarm, and runs the app's own classes
+// the way GridWatchService does: power transitions go through
+// GridWatchTransitionFilter and become GridWatchEvents, unplug events are
+// held while the phone would be sensing, GridWatchHeartbeat decides which
+// alarms send a watchdog event, GridWatchAlertBuilder and GridWatchCodec
+// turn events into payloads, and those are appended to a real
+// GridWatchOutbox on disk and paced by GridWatchBatch. Time comes from a
+// simulated GridWatchClock and the app's log goes to a GridWatchStorage
+// that only counts entries.
+//
+// Like the app, a phone tries to drain its outbox when an alert is queued,
+// when a batch is due and when connectivity comes back, and an upload
+// that fails leaves everything queued until the next of those. There is no
+// retry timer.
+//
+// Simulated time advances in fixed ticks, as fast as the workers can go.
+// Phones are split between the worker threads, and each worker only wakes
+// the phones that have something due, so a quiet fleet costs little. A
+// phone's outbox is only open while it holds alerts; put --dir on a tmpfs
+// to measure the fleet rather than the disk.
+//
+// The default scenario, over six simulated hours:
+//  - at 1:00, regions 0-9 (10% of phones) lose power for 30 minutes
+//  - at 3:00, regions 10-11 flicker for 10 minutes and then go out for 20
+//  - 5% of phones have a loose charger that flaps now and then
+// Phones on wifi lose their connection when their region is out; the
+// rest stay online over mobile data.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchFleetSimulator
+//   [--devices N] [--threads N] [--hours H] [--tick-ms MS]
+//   [--heartbeat-min M] [--batch] [--binary] [--url URL] [--port P]
+//   [--dir DIR] [--seed S]
+public class GridWatchFleetSimulator {
+
+	private final static long SECOND = 1000l;
+	private final static long MINUTE = 60 * SECOND;
+	private final static long HOUR = 60 * MINUTE;
+
+	// Simulated time starts here, an arbitrary day
+	private final static long EPOCH = 1400000000000l;
+
+	private final static int REGIONS = 100;
+
+	// How long the app holds an unplug event while it records audio and
+	// watches the accelerometer
+	private final static long UNPLUG_SENSE_TIME = 5 * SECOND;
+
+	// The app's flap filter and batch settings
+	private final static long FLAP_SETTLE = 20 * SECOND;
+	private final static long FLAP_MAX_DELAY = 120 * SECOND;
+	private final static int BATCH_MAX_EVENTS = 50;
+	private final static long BATCH_MAX_BYTES = 16 * 1024;
+	private final static long BATCH_MAX_AGE = 60 * SECOND;
+
+	// User and charger behavior
+	private final static long MEAN_TIME_PLUGGED = 8 * HOUR;
+	private final static long MIN_TIME_UNPLUGGED = 5 * MINUTE;
+	private final static long MAX_TIME_UNPLUGGED = 60 * MINUTE;
+	private final static double LOOSE_CHARGER_FRACTION = 0.05;
+	private final static long MEAN_TIME_BETWEEN_FLAP_EPISODES = 2 * HOUR;
+	private final static long FLAP_EPISODE_LENGTH = MINUTE;
+	private final static double MOBILE_FRACTION = 0.4;
+
+	private final static String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	private final static long NEVER = Long.MAX_VALUE;
+
+	// Settings
+	private int mDevices = 100000;
+	private int mThreads = 8;
+	private long mDuration = 6 * HOUR;
+	private long mTick = SECOND;
+	private long mHeartbeat = HOUR;
+	private boolean mBatch = false;
+	private boolean mBinary = false;
+	private String mUrl = null;
+	private int mPort = 18081;
+	private File mDir = null;
+	private long mSeed = 1;
+
+	private List<Outage> mOutages = new ArrayList<Outage>();
+
+	// Fleet wide counters
+	private AtomicLong mCreated = new AtomicLong();
+	private AtomicLong mDelivered = new AtomicLong();
+	private AtomicLong mRejected = new AtomicLong();
+	private AtomicLong mRequests = new AtomicLong();
+	private AtomicLong mFailures = new AtomicLong();
+	private AtomicLong mQueued = new AtomicLong();
+	private AtomicLong mBytesSent = new AtomicLong();
+	private AtomicLong mAlarms = new AtomicLong();
+	private AtomicLong mHeartbeats = new AtomicLong();
+	private AtomicLong mPiggybacked = new AtomicLong();
+
+	// A region losing power, optionally flickering first
+	static class Outage {
+		int firstRegion;
+		int lastRegion;
+		long flickerStart;
+		long start;
+		long end;
+
+		Outage (int firstRegion, int lastRegion, long flickerStart, long start, long end) {
+			this.firstRegion = firstRegion;
+			this.lastRegion = lastRegion;
+			this.flickerStart = flickerStart;
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean covers (int region) {
+			return region >= firstRegion && region <= lastRegion;
+		}
+	}
+
+	// Stands in for the phone's GridWatchStore: counts what the app logs
+	// instead of keeping it. One per worker.
+	static class CountingStorage implements GridWatchStorage {
+		long mEntries = 0;
+		long mChars = 0;
+
+		@Override
+		public String get (String key) {
+			return null;
+		}
+
+		@Override
+		public void put (String key, String value) {
+		}
+
+		@Override
+		public void append (byte channel, long time, String type, String info) {
+			mEntries++;
+			mChars += type.length() + ((info != null) ? info.length() : 0);
+		}
+
+		@Override
+		public void flush () {
+		}
+
+		@Override
+		public List<Record> read (byte channel) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void close () {
+		}
+	}
+
+	public GridWatchFleetSimulator () {
+		mOutages.add(new Outage(0, 9, 1 * HOUR, 1 * HOUR, 1 * HOUR + 30 * MINUTE));
+		mOutages.add(new Outage(10, 11, 3 * HOUR, 3 * HOUR + 10 * MINUTE, 3 * HOUR + 30 * MINUTE));
+	}
+
+	// Grid state for a region at simulated time t (milliseconds since the
+	// start of the run)
+	boolean gridPowered (int region, long t) {
+		for (Outage o : mOutages) {
+			if (o.covers(region) && t >= o.start && t < o.end) return false;
+		}
+		return true;
+	}
+
+	boolean gridFlickering (int region, long t) {
+		for (Outage o : mOutages) {
+			if (o.covers(region) && t >= o.flickerStart && t < o.start) return true;
+		}
+		return false;
+	}
+
+	// The next time after t that the grid in a region changes
+	long nextGridChange (int region, long t) {
+		long next = NEVER;
+		for (Outage o : mOutages) {
+			if (!o.covers(region)) continue;
+			if (o.flickerStart > t) next = Math.min(next, o.flickerStart);
+			if (o.start > t) next = Math.min(next, o.start);
+			if (o.end > t) next = Math.min(next, o.end);
+		}
+		return next;
+	}
+
+	// One phone. Only ever touched by the worker that owns it.
+	class VirtualPhone implements GridWatchTransitionFilter.Listener, GridWatchLocationSource,
+			GridWatchConnectivity, Comparable<VirtualPhone> {
+		int mId;
+		String mIdValue;
+		int mRegion;
+		boolean mMobile;
+		boolean mLooseCharger;
+		GridWatchFix mFix = new GridWatchFix();
+
+		GridWatchTransitionFilter mFilter = new GridWatchTransitionFilter(FLAP_SETTLE, FLAP_MAX_DELAY, this);
+		GridWatchBatch mBatchPolicy = new GridWatchBatch(BATCH_MAX_EVENTS, BATCH_MAX_BYTES, BATCH_MAX_AGE);
+		GridWatchHeartbeat mHeartbeatPolicy = new GridWatchHeartbeat(mHeartbeat, 0);
+		GridWatchAlertBuilder mBuilder;
+		GridWatchOutbox mOutbox = null;
+		ArrayList<GridWatchEvent> mEvents = null;
+		Worker mWorker;
+
+		boolean mPowered = true;
+		boolean mOnline = true;
+		boolean mUserUnplugged = false;
+		long mNextUserChange;
+		boolean mFlapContact = true;
+		long mNextFlap = NEVER;
+		long mFlapEpisodeEnd = -1;
+		long mNextFlapEpisode = NEVER;
+		long mNextHeartbeat;
+		long mFlushAt = NEVER;
+		long mNextWake = 0;
+
+		VirtualPhone (int id, Random random) {
+			mId = id;
+			mIdValue = String.valueOf(id);
+			mRegion = id % REGIONS;
+			mMobile = random.nextDouble() < MOBILE_FRACTION;
+			mLooseCharger = random.nextDouble() < LOOSE_CHARGER_FRACTION;
+			mNextUserChange = exponential(random, MEAN_TIME_PLUGGED);
+			mNextHeartbeat = (long) (random.nextDouble() * mHeartbeat);
+			if (mLooseCharger) {
+				mNextFlapEpisode = exponential(random, MEAN_TIME_BETWEEN_FLAP_EPISODES);
+			}
+
+			// Regions are laid out on a grid around Nairobi
+			mFix.provider = GridWatchLocationSource.GPS;
+			mFix.latitude = -1.29 + (mRegion / 10) * 0.01 + random.nextDouble() * 0.01;
+			mFix.longitude = 36.82 + (mRegion % 10) * 0.01 + random.nextDouble() * 0.01;
+			mFix.accuracy = 10 + random.nextInt(40);
+			String hash = Integer.toHexString(0x100 + (id & 0xfff)).substring(0, 3);
+			mBuilder = new GridWatchAlertBuilder(this, this, hash, "sim");
+		}
+
+		@Override
+		public int compareTo (VirtualPhone other) {
+			return mNextWake < other.mNextWake ? -1 : (mNextWake == other.mNextWake ? 0 : 1);
+		}
+
+		// GridWatchLocationSource
+		@Override
+		public GridWatchFix getLastFix (String provider) {
+			if (!GridWatchLocationSource.GPS.equals(provider)) return null;
+			mFix.time = mWorker.mClock.currentTimeMillis() - MINUTE;
+			return mFix;
+		}
+
+		// GridWatchConnectivity
+		@Override
+		public String getConnectionType () {
+			if (!mOnline) return "disconnected";
+			return mMobile ? "mobile" : "wifi";
+		}
+
+		// Bring the phone up to simulated time now and work out when it
+		// next needs to run
+		void step (long now, Random random) {
+			// The user unplugs the phone now and then
+			if (now >= mNextUserChange) {
+				mUserUnplugged = !mUserUnplugged;
+				mNextUserChange = now + (mUserUnplugged
+						? MIN_TIME_UNPLUGGED + (long) (random.nextDouble() * (MAX_TIME_UNPLUGGED - MIN_TIME_UNPLUGGED))
+						: exponential(random, MEAN_TIME_PLUGGED));
+			}
+
+			// A loose charger or a flickering grid makes the contact flap
+			if (mLooseCharger && now >= mNextFlapEpisode) {
+				mFlapEpisodeEnd = now + FLAP_EPISODE_LENGTH;
+				mNextFlapEpisode = now + exponential(random, MEAN_TIME_BETWEEN_FLAP_EPISODES);
+			}
+			boolean flapping = now < mFlapEpisodeEnd || gridFlickering(mRegion, now);
+			if (!flapping) {
+				mFlapContact = true;
+				mNextFlap = NEVER;
+			} else if (mNextFlap == NEVER || now >= mNextFlap) {
+				if (mNextFlap != NEVER) mFlapContact = !mFlapContact;
+				mNextFlap = now + 2 * SECOND + (long) (random.nextDouble() * 8 * SECOND);
+			}
+
+			// Wifi goes down with the grid; mobile data does not. The app
+			// drains its outbox when connectivity returns.
+			boolean grid = gridPowered(mRegion, now);
+			boolean online = grid || mMobile;
+			boolean reconnected = online && !mOnline;
+			mOnline = online;
+			if (reconnected) drain();
+
+			boolean powered = grid && !mUserUnplugged && mFlapContact;
+			if (powered != mPowered) {
+				mPowered = powered;
+				mFilter.onTransition(powered, mWorker.mClock.currentTimeMillis());
+			}
+			mFilter.poll(mWorker.mClock.currentTimeMillis());
+
+			// The watchdog alarm
+			if (now >= mNextHeartbeat) {
+				mNextHeartbeat = now + mHeartbeat;
+				mAlarms.incrementAndGet();
+				boolean send = mHeartbeatPolicy.onAlarm(now);
+				mWorker.mLogger.log("heartbeat", mHeartbeatPolicy.report(now));
+				if (send) {
+					mHeartbeats.incrementAndGet();
+					addEvent(new GridWatchEvent(GridWatchEventType.WD, mWorker.mClock.currentTimeMillis()));
+				}
+			}
+
+			processEvents(now);
+
+			// The batch flush timer
+			if (now >= mFlushAt) {
+				mFlushAt = NEVER;
+				drain();
+			}
+
+			scheduleWake(now);
+		}
+
+		// GridWatchTransitionFilter.Listener
+		@Override
+		public void onTransition (boolean powered, long time) {
+			GridWatchEvent gwevent = new GridWatchEvent(
+					powered ? GridWatchEventType.PLUGGED : GridWatchEventType.UNPLUGGED, time);
+			// The motion clock here is simulated elapsed time
+			gwevent.startMotion(time - EPOCH);
+			addEvent(gwevent);
+		}
+
+		@Override
+		public void onFlaps (boolean powered, int flaps, long first, long last) {
+			mWorker.mLogger.log("flaps", flaps + " from " + first + " to " + last);
+			GridWatchEvent gwevent = new GridWatchEvent(
+					powered ? GridWatchEventType.PLUGGED : GridWatchEventType.UNPLUGGED, last);
+			gwevent.setFlaps(flaps, first, last);
+			addEvent(gwevent);
+		}
+
+		void addEvent (GridWatchEvent gwevent) {
+			if (mEvents == null) mEvents = new ArrayList<GridWatchEvent>(2);
+			mEvents.add(gwevent);
+		}
+
+		// Send the events that are ready, as the service's event loop does.
+		// Sensing is over UNPLUG_SENSE_TIME after an unplug, with no motion.
+		void processEvents (long now) {
+			if (mEvents == null) return;
+			for (int i = 0; i < mEvents.size(); i++) {
+				GridWatchEvent gwevent = mEvents.get(i);
+				if (gwevent.needsMotion() && now >= gwevent.getMotionStart() + UNPLUG_SENSE_TIME) {
+					gwevent.finishMotion();
+				}
+				if (gwevent.readyForTransmission()) {
+					postEvent(gwevent);
+					mEvents.remove(i--);
+				}
+			}
+		}
+
+		void postEvent (GridWatchEvent gwevent) {
+			GridWatchEventRecord record = new GridWatchEventRecord();
+			GridWatchAlert alert = mBuilder.build(gwevent, mIdValue, record);
+			byte[] payload = mWorker.mCodec.encode(alert);
+			mWorker.mLogger.log("event_post", record.appendTo(new StringBuilder(512)).toString());
+			queueAlert(payload, "wd".equals(gwevent.getEventType()));
+		}
+
+		// GridWatchService.queueAlert()
+		void queueAlert (byte[] payload, boolean heartbeatOnly) {
+			try {
+				openOutbox();
+				boolean uploadPending = !mOutbox.isEmpty();
+				mOutbox.append(payload);
+				mBatchPolicy.noteQueued(mWorker.mClock.currentTimeMillis());
+				mCreated.incrementAndGet();
+				mQueued.incrementAndGet();
+				if (heartbeatOnly && uploadPending) {
+					mHeartbeatPolicy.notePiggybacked();
+					mPiggybacked.incrementAndGet();
+					return;
+				}
+
+				if (mBatch) {
+					long time = mWorker.mClock.currentTimeMillis();
+					if (!mBatchPolicy.shouldFlush(mOutbox.pendingCount(), mOutbox.pendingBytes(), time, false)) {
+						mFlushAt = mWorker.mClock.elapsedRealtime() + mBatchPolicy.timeUntilDue(time);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Outbox failed for phone " + mId, e);
+			}
+			drain();
+		}
+
+		// GridWatchService.drainOutbox()
+		void drain () {
+			if (mOutbox == null) return;
+			boolean hadPending = !mOutbox.isEmpty();
+			if (hadPending) mHeartbeatPolicy.noteRadioSession();
+			try {
+				if (mBatch && mBinary) {
+					postBinaryBatches();
+				} else if (mBatch) {
+					postBatches();
+				} else {
+					postSingles();
+				}
+			} catch (IOException e) {
+				// Left queued for the next drain
+				mFailures.incrementAndGet();
+			}
+
+			if (mOutbox.isEmpty()) {
+				mBatchPolicy.noteFlushed();
+				if (hadPending) mHeartbeatPolicy.noteDelivered(mWorker.mClock.elapsedRealtime());
+
+				// The app keeps its one outbox open; a fleet of them can't
+				// all be, so a phone's is reopened when it is next needed
+				mOutbox.close();
+				mOutbox = null;
+			}
+		}
+
+		void postSingles () throws IOException {
+			List<byte[]> pending;
+			while (!(pending = mOutbox.peek(1)).isEmpty()) {
+				GridWatchAlert alert = mWorker.mCodec.decode(pending.get(0));
+				mWorker.post(this, alert.toForm().getBytes("UTF-8"), FORM_CONTENT_TYPE);
+				mOutbox.ack(1);
+				delivered(alert);
+			}
+		}
+
+		void postBatches () throws IOException {
+			List<byte[]> pending;
+			while (!(pending = mOutbox.peek(BATCH_MAX_EVENTS)).isEmpty()) {
+				List<GridWatchAlert> alerts = decode(pending);
+				List<byte[]> forms = new ArrayList<byte[]>(alerts.size());
+				for (GridWatchAlert alert : alerts) {
+					forms.add(alert.toForm().getBytes("UTF-8"));
+				}
+				byte[] body = mBatchPolicy.encode(forms);
+				int count = GridWatchBatch.countRecords(body);
+				String reply = mWorker.post(this, body, GridWatchBatch.CONTENT_TYPE);
+				if (reply == null) return;
+				acked(alerts, count, reply);
+			}
+		}
+
+		void postBinaryBatches () throws IOException {
+			List<byte[]> pending;
+			while (!(pending = mOutbox.peek(BATCH_MAX_EVENTS)).isEmpty()) {
+				List<GridWatchAlert> alerts = decode(pending);
+				byte[] body = mWorker.mCodec.encodeBatch(alerts, true);
+				String reply = mWorker.post(this, body, GridWatchCodec.CONTENT_TYPE);
+				if (reply == null) return;
+				acked(alerts, alerts.size(), reply);
+			}
+		}
+
+		List<GridWatchAlert> decode (List<byte[]> payloads) throws IOException {
+			List<GridWatchAlert> alerts = new ArrayList<GridWatchAlert>(payloads.size());
+			for (byte[] payload : payloads) {
+				alerts.add(mWorker.mCodec.decode(payload));
+			}
+			return alerts;
+		}
+
+		// The server took a batch; the alerts it didn't accept are dropped
+		// as the app drops them
+		void acked (List<GridWatchAlert> alerts, int count, String reply) throws IOException {
+			boolean[] accepted = GridWatchBatch.parseAccepted(reply, count);
+			mOutbox.ack(count);
+			for (int i = 0; i < count; i++) {
+				if (accepted[i]) {
+					delivered(alerts.get(i));
+				} else {
+					mRejected.incrementAndGet();
+					mQueued.decrementAndGet();
+				}
+			}
+		}
+
+		void delivered (GridWatchAlert alert) {
+			mDelivered.incrementAndGet();
+			mQueued.decrementAndGet();
+			mWorker.recordLatency(mWorker.mClock.currentTimeMillis() - alert.time);
+		}
+
+		void openOutbox () throws IOException {
+			if (mOutbox == null) {
+				mOutbox = new GridWatchOutbox(new File(mDir, mIdValue));
+			}
+		}
+
+		void scheduleWake (long now) {
+			long next = Math.min(mNextUserChange, mNextHeartbeat);
+			next = Math.min(next, mNextFlapEpisode);
+			next = Math.min(next, mNextFlap);
+			next = Math.min(next, nextGridChange(mRegion, now));
+			next = Math.min(next, mFlushAt);
+			long deadline = mFilter.getDeadline();
+			if (deadline >= 0) next = Math.min(next, deadline - EPOCH);
+			if (mEvents != null) {
+				for (GridWatchEvent gwevent : mEvents) {
+					if (gwevent.needsMotion()) {
+						next = Math.min(next, gwevent.getMotionStart() + UNPLUG_SENSE_TIME);
+					}
+				}
+			}
+			mNextWake = Math.max(next, now + 1);
+		}
+	}
+
+	// A worker thread's share of the fleet, its own HTTP connection, and
+	// the simulated clock, codec and log its phones share
+	class Worker implements Callable<Void> {
+		PriorityQueue<VirtualPhone> mPhones = new PriorityQueue<VirtualPhone>();
+		Random mRandom;
+		volatile long mNow;
+		URL mTarget;
+		byte[] mReadBuffer = new byte[1024];
+
+		GridWatchCodec mCodec = new GridWatchCodec();
+		CountingStorage mStorage = new CountingStorage();
+		GridWatchLogger mLogger = new GridWatchLogger(mStorage);
+		GridWatchClock mClock = new GridWatchClock() {
+			@Override
+			public long currentTimeMillis () {
+				return EPOCH + mNow;
+			}
+
+			@Override
+			public long elapsedRealtime () {
+				return mNow;
+			}
+		};
+
+		long[] mLatencies = new long[1024];
+		int mLatencyCount = 0;
+
+		Worker (long seed) throws IOException {
+			mRandom = new Random(seed);
+			mTarget = new URL(mUrl);
+		}
+
+		// Step every phone that is due at mNow
+		@Override
+		public Void call () {
+			VirtualPhone phone;
+			while ((phone = mPhones.peek()) != null && phone.mNextWake <= mNow) {
+				mPhones.poll();
+				phone.step(mNow, mRandom);
+				mPhones.add(phone);
+			}
+			return null;
+		}
+
+		// POST for a phone. Fails without touching the network if the phone
+		// is offline. Returns the reply, or null if the server refused the
+		// request.
+		String post (VirtualPhone phone, byte[] body, String contentType) throws IOException {
+			if (!phone.mOnline) throw new IOException("No connectivity");
+			mRequests.incrementAndGet();
+			HttpURLConnection connection = (HttpURLConnection) mTarget.openConnection();
+			try {
+				connection.setDoOutput(true);
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("Content-Type", contentType);
+				connection.setFixedLengthStreamingMode(body.length);
+				OutputStream out = connection.getOutputStream();
+				out.write(body);
+				out.close();
+				int status = connection.getResponseCode();
+				if (status != HttpURLConnection.HTTP_OK) {
+					connection.disconnect();
+					return null;
+				}
+				StringBuilder reply = new StringBuilder();
+				InputStream in = connection.getInputStream();
+				int n;
+				while ((n = in.read(mReadBuffer)) != -1) {
+					reply.append(new String(mReadBuffer, 0, n, "UTF-8"));
+				}
+				in.close();
+				mBytesSent.addAndGet(body.length);
+				return reply.toString();
+			} catch (IOException e) {
+				connection.disconnect();
+				throw e;
+			}
+		}
+
+		void recordLatency (long latency) {
+			if (mLatencyCount == mLatencies.length) {
+				mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+			}
+			mLatencies[mLatencyCount++] = latency;
+		}
+	}
+
+	public void run () throws Exception {
+		GridWatchBatchServer server = null;
+		if (mUrl == null) {
+			server = new GridWatchBatchServer(mPort);
+			server.start();
+			mUrl = "http://localhost:" + mPort + "/sim";
+		}
+
+		boolean tempDir = mDir == null;
+		if (tempDir) {
+			mDir = File.createTempFile("gridwatch-fleet", "");
+			mDir.delete();
+		}
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("Could not create " + mDir);
+		}
+
+		List<Worker> workers = new ArrayList<Worker>(mThreads);
+		for (int i = 0; i < mThreads; i++) {
+			workers.add(new Worker(mSeed + i));
+		}
+		Random random = new Random(mSeed);
+		for (int i = 0; i < mDevices; i++) {
+			Worker worker = workers.get(i % mThreads);
+			VirtualPhone phone = new VirtualPhone(i, random);
+			phone.mWorker = worker;
+			worker.mPhones.add(phone);
+		}
+
+		System.out.println(String.format("Simulating %d phones for %.1f h in %d ms ticks on %d threads, %s uploads to %s",
+				mDevices, mDuration / (double) HOUR, mTick, mThreads, mBatch ? (mBinary ? "binary batch" : "batch") : "single", mUrl));
+
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+		long maxQueued = 0;
+		double queuedSum = 0;
+		long ticks = 0;
+		long wallStart = System.nanoTime();
+
+		for (long now = 0; now < mDuration; now += mTick) {
+			for (Worker worker : workers) {
+				worker.mNow = now;
+			}
+			for (Future<Void> f : pool.invokeAll(workers)) {
+				f.get();
+			}
+
+			long queued = mQueued.get();
+			maxQueued = Math.max(maxQueued, queued);
+			queuedSum += queued;
+			ticks++;
+
+			if ((now + mTick) % HOUR == 0) {
+				System.out.println(String.format("  %5.1f h  created=%d delivered=%d queued=%d requests=%d failures=%d",
+						(now + mTick) / (double) HOUR, mCreated.get(), mDelivered.get(), queued, mRequests.get(), mFailures.get()));
+			}
+		}
+		double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+		pool.shutdown();
+
+		// Latencies are in simulated time: from the event happening to
+		// the server taking it
+		int total = 0;
+		for (Worker worker : workers) total += worker.mLatencyCount;
+		long[] latencies = new long[total];
+		int pos = 0;
+		for (Worker worker : workers) {
+			System.arraycopy(worker.mLatencies, 0, latencies, pos, worker.mLatencyCount);
+			pos += worker.mLatencyCount;
+		}
+		Arrays.sort(latencies);
+
+		System.out.println(String.format("Simulated %.1f h in %.1f s of wall time (%.0fx)",
+				mDuration / (double) HOUR, wallSeconds, mDuration / 1000.0 / wallSeconds));
+		System.out.println(String.format("Alerts: created=%d delivered=%d rejected=%d still queued=%d",
+				mCreated.get(), mDelivered.get(), mRejected.get(), mQueued.get()));
+		System.out.println(String.format("Watchdog: alarms=%d sent=%d piggybacked=%d",
+				mAlarms.get(), mHeartbeats.get(), mPiggybacked.get()));
+		System.out.println(String.format("Requests: %d (%.0f/s), failures=%d, %.0f alerts/s, %.1f bytes/alert",
+				mRequests.get(), mRequests.get() / wallSeconds, mFailures.get(), mDelivered.get() / wallSeconds,
+				mDelivered.get() == 0 ? 0 : mBytesSent.get() / (double) mDelivered.get()));
+		System.out.println(String.format("Fleet queue depth: max=%d mean=%.1f", maxQueued, queuedSum / Math.max(1, ticks)));
+		System.out.println(String.format("Event to server latency (simulated): p50=%s p95=%s p99=%s max=%s",
+				duration(percentile(latencies, 0.50)), duration(percentile(latencies, 0.95)),
+				duration(percentile(latencies, 0.99)), duration(percentile(latencies, 1.0))));
+		long entries = 0;
+		long chars = 0;
+		for (Worker worker : workers) {
+			entries += worker.mStorage.mEntries;
+			chars += worker.mStorage.mChars;
+		}
+		System.out.println(String.format("App log: %d entries (%.1f/phone/h), %d chars",
+				entries, entries / (mDevices * (mDuration / (double) HOUR)), chars));
+		if (server != null) {
+			System.out.println("Server: " + server.report());
+			server.stop();
+		}
+
+		if (tempDir) delete(mDir);
+	}
+
+	// Each phone's outbox is a directory of segments
+	private static void delete (File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static long percentile (long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	private static String duration (long ms) {
+		if (ms < MINUTE) return String.format("%.1fs", ms / 1000.0);
+		return String.format("%.1fm", ms / (double) MINUTE);
+	}
+
+	private static long exponential (Random random, long mean) {
+		return (long) (-Math.log(1 - random.nextDouble()) * mean);
+	}
+
+	public static void main (String[] args) throws Exception {
+		GridWatchFleetSimulator sim = new GridWatchFleetSimulator();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--devices")) {
+				sim.mDevices = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--threads")) {
+				sim.mThreads = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--hours")) {
+				sim.mDuration = (long) (Double.parseDouble(args[++i]) * HOUR);
+			} else if (arg.equals("--tick-ms")) {
+				sim.mTick = Long.parseLong(args[++i]);
+			} else if (arg.equals("--heartbeat-min")) {
+				sim.mHeartbeat = Long.parseLong(args[++i]) * MINUTE;
+			} else if (arg.equals("--batch")) {
+				sim.mBatch = true;
+			} else if (arg.equals("--binary")) {
+				sim.mBatch = true;
+				sim.mBinary = true;
+			} else if (arg.equals("--url")) {
+				sim.mUrl = args[++i];
+			} else if (arg.equals("--port")) {
+				sim.mPort = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--dir")) {
+				sim.mDir = new File(args[++i]);
+			} else if (arg.equals("--seed")) {
+				sim.mSeed = Long.parseLong(args[++i]);
+			} else {
+				System.err.println("Unknown argument " + arg);
+				System.exit(1);
+			}
+		}
+		sim.run();
+	}
+}
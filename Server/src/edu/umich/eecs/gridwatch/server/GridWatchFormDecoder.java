@@ -0,0 +1,532 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+// Decodes a form-encoded alert straight from the request bytes into a
+// GridWatchIngestEvent and checks it against the spec. Keys are matched
+// against byte tables and numbers are parsed in place, so an accepted
+// alert only allocates the few strings the event keeps (and those are
+// reused while they repeat, as they do in a batch from one phone).
+//
+// Both forms are understood. The long form uses the spec's field names
+// and must carry every field the spec marks required. The short form is
+// what the app sends (t, e, l, n, a, g, c, h, u, v, f, fb, fe for flap
+// summaries and mh, md, m2, m3, ms for the unplug recording's mains
+// features); each short key is checked against the type of the spec
+// field it stands for, its enums are sent as their first letter, and only
+// t and e are required.
+//
+// A decoder keeps scratch state, so use one per thread.
+public class GridWatchFormDecoder {
+
+	// Why a record was turned away; decode returns null if it was accepted
+	public final static String BAD_PAIR = "malformed pair";
+	public final static String BAD_VALUE = "bad value";
+	public final static String MISSING_FIELD = "missing required field";
+
+	// Event fields a key can fill in
+	private final static int SLOT_NONE = 0;
+	private final static int SLOT_TIME = 1;
+	private final static int SLOT_EVENT_TYPE = 2;
+	private final static int SLOT_NETWORK = 3;
+	private final static int SLOT_MOVED = 4;
+	private final static int SLOT_PHONE = 5;
+	private final static int SLOT_USER = 6;
+	private final static int SLOT_APP_VERSION = 7;
+	private final static int SLOT_GPS_LATITUDE = 8;
+	private final static int SLOT_GPS_LONGITUDE = 9;
+	private final static int SLOT_GPS_ACCURACY = 10;
+	private final static int SLOT_GPS_TIME = 11;
+	private final static int SLOT_NETWORK_LATITUDE = 12;
+	private final static int SLOT_NETWORK_LONGITUDE = 13;
+	private final static int SLOT_NETWORK_ACCURACY = 14;
+	private final static int SLOT_FLAPS = 15;
+	private final static int SLOT_FLAP_FIRST = 16;
+	private final static int SLOT_FLAP_LAST = 17;
+	private final static int SLOT_MAINS_HZ = 18;
+	private final static int SLOT_HUM_DB = 19;
+	private final static int SLOT_HARMONIC_2 = 20;
+	private final static int SLOT_HARMONIC_3 = 21;
+	private final static int SLOT_HUM_SNR = 22;
+	private final static int SLOTS = 23;
+
+	private final static int TABLE_SIZE = 128;
+
+	// Powers of ten that are exact as doubles
+	private final static double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+	}
+
+	private final static byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private final static byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+	// A field name we recognize
+	private static class Key {
+		byte[] name;
+		int slot;
+		int type;
+
+		// Short form keys carry a bit in the short mask, long form keys
+		// their spec index (or -1 for fields the spec doesn't list)
+		boolean isShort;
+		int shortBit;
+		int index = -1;
+
+		// Allowed enum values, whole for the long form and first letters
+		// for the short form
+		byte[][] values;
+		boolean[] letters;
+
+		Key next;
+	}
+
+	private Key[] mTable = new Key[TABLE_SIZE];
+	private long mRequiredMask;
+	private long mGpsMask;
+	private long mNetworkFixMask;
+
+	private int mShortRequired;
+	private int mShortGps;
+	private int mShortBits = 0;
+
+	// Percent decoded value of the current pair
+	private byte[] mScratch = new byte[256];
+	private int mScratchLen;
+
+	// Set by the number parsers when a value doesn't parse
+	private boolean mBad;
+
+	// Last string made for each slot, to reuse while the bytes repeat
+	private byte[][] mCachedBytes = new byte[SLOTS][];
+	private String[] mCachedStrings = new String[SLOTS];
+
+	public GridWatchFormDecoder (GridWatchSpec spec) {
+		mRequiredMask = spec.getRequiredMask();
+		for (GridWatchSpec.Field field : spec.getFields()) {
+			Key key = addKey(field.name, slotFor(field.name), field.type, false);
+			key.index = field.index;
+			setValues(key, field.values);
+		}
+		mGpsMask = bit(spec, "gps_latitude") | bit(spec, "gps_longitude");
+		mNetworkFixMask = bit(spec, "network_latitude") | bit(spec, "network_longitude");
+
+		// Long form fields the app logs that the spec predates
+		addKey("flaps", SLOT_FLAPS, GridWatchSpec.TYPE_INT, false);
+		addKey("flap_first", SLOT_FLAP_FIRST, GridWatchSpec.TYPE_INT, false);
+		addKey("flap_last", SLOT_FLAP_LAST, GridWatchSpec.TYPE_INT, false);
+		addKey("mains_hz", SLOT_MAINS_HZ, GridWatchSpec.TYPE_FLOAT, false);
+		addKey("hum_dbfs", SLOT_HUM_DB, GridWatchSpec.TYPE_FLOAT, false);
+		addKey("harmonic_2", SLOT_HARMONIC_2, GridWatchSpec.TYPE_FLOAT, false);
+		addKey("harmonic_3", SLOT_HARMONIC_3, GridWatchSpec.TYPE_FLOAT, false);
+		addKey("hum_snr_db", SLOT_HUM_SNR, GridWatchSpec.TYPE_FLOAT, false);
+
+		// The short form, typed like the spec fields they stand for
+		Key t = addShortKey(spec, "t", "time", SLOT_TIME, GridWatchSpec.TYPE_INT);
+		Key e = addShortKey(spec, "e", "event_type", SLOT_EVENT_TYPE, GridWatchSpec.TYPE_ENUM);
+		Key l = addShortKey(spec, "l", "gps_latitude", SLOT_GPS_LATITUDE, GridWatchSpec.TYPE_FLOAT);
+		Key n = addShortKey(spec, "n", "gps_longitude", SLOT_GPS_LONGITUDE, GridWatchSpec.TYPE_FLOAT);
+		addShortKey(spec, "a", "gps_accuracy", SLOT_GPS_ACCURACY, GridWatchSpec.TYPE_FLOAT);
+		addShortKey(spec, "g", "gps_time", SLOT_GPS_TIME, GridWatchSpec.TYPE_INT);
+		addShortKey(spec, "c", "network", SLOT_NETWORK, GridWatchSpec.TYPE_ENUM);
+		addShortKey(spec, "h", "id", SLOT_PHONE, GridWatchSpec.TYPE_STR);
+		addShortKey(spec, "u", null, SLOT_USER, GridWatchSpec.TYPE_STR);
+		addShortKey(spec, "v", "app_version", SLOT_APP_VERSION, GridWatchSpec.TYPE_STR);
+		addShortKey(spec, "f", null, SLOT_FLAPS, GridWatchSpec.TYPE_INT);
+		addShortKey(spec, "fb", null, SLOT_FLAP_FIRST, GridWatchSpec.TYPE_INT);
+		addShortKey(spec, "fe", null, SLOT_FLAP_LAST, GridWatchSpec.TYPE_INT);
+		addShortKey(spec, "mh", null, SLOT_MAINS_HZ, GridWatchSpec.TYPE_FLOAT);
+		addShortKey(spec, "md", null, SLOT_HUM_DB, GridWatchSpec.TYPE_FLOAT);
+		addShortKey(spec, "m2", null, SLOT_HARMONIC_2, GridWatchSpec.TYPE_FLOAT);
+		addShortKey(spec, "m3", null, SLOT_HARMONIC_3, GridWatchSpec.TYPE_FLOAT);
+		addShortKey(spec, "ms", null, SLOT_HUM_SNR, GridWatchSpec.TYPE_FLOAT);
+		mShortRequired = t.shortBit | e.shortBit;
+		mShortGps = l.shortBit | n.shortBit;
+	}
+
+	// Decode the form in buf[start, end) into event
+	public String decode (byte[] buf, int start, int end, GridWatchIngestEvent event) {
+		event.clear();
+		long seen = 0;
+		int shortSeen = 0;
+		int pos = start;
+		while (pos < end) {
+			int amp = indexOf(buf, pos, end, (byte) '&');
+			if (amp == pos) {
+				pos++;
+				continue;
+			}
+			int eq = indexOf(buf, pos, amp, (byte) '=');
+			if (eq == pos || eq == amp) return BAD_PAIR;
+
+			Key key = lookup(buf, pos, eq);
+			if (key != null) {
+				if (!apply(key, buf, eq + 1, amp, true, event)) return BAD_VALUE;
+				if (key.isShort) {
+					shortSeen |= key.shortBit;
+				} else if (key.index >= 0) {
+					seen |= 1l << key.index;
+				}
+			}
+			pos = amp + 1;
+		}
+		return finish(seen, shortSeen, event);
+	}
+
+	// Decode a record that was already split into fields, as the binary
+	// batch decoder does. Values are plain, not percent encoded.
+	public String decode (Map<String, String> fields, GridWatchIngestEvent event) {
+		event.clear();
+		long seen = 0;
+		int shortSeen = 0;
+		try {
+			for (Map.Entry<String, String> field : fields.entrySet()) {
+				byte[] name = field.getKey().getBytes("UTF-8");
+				Key key = lookup(name, 0, name.length);
+				if (key == null) continue;
+				byte[] value = field.getValue().getBytes("UTF-8");
+				if (!apply(key, value, 0, value.length, false, event)) return BAD_VALUE;
+				if (key.isShort) {
+					shortSeen |= key.shortBit;
+				} else if (key.index >= 0) {
+					seen |= 1l << key.index;
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			return BAD_VALUE;
+		}
+		return finish(seen, shortSeen, event);
+	}
+
+	private String finish (long seen, int shortSeen, GridWatchIngestEvent event) {
+		if (shortSeen != 0) {
+			if ((shortSeen & mShortRequired) != mShortRequired) return MISSING_FIELD;
+			event.hasGps = (shortSeen & mShortGps) == mShortGps;
+		} else {
+			if ((seen & mRequiredMask) != mRequiredMask) return MISSING_FIELD;
+			event.hasGps = (seen & mGpsMask) == mGpsMask;
+			event.hasNetworkFix = (seen & mNetworkFixMask) == mNetworkFixMask;
+		}
+		return null;
+	}
+
+	// Check one value and store it in the event. Returns false if it isn't
+	// a valid value for the key's type.
+	private boolean apply (Key key, byte[] buf, int start, int end, boolean encoded, GridWatchIngestEvent event) {
+		long longValue = 0;
+		double doubleValue = 0;
+		char letter = 0;
+		mBad = false;
+
+		switch (key.type) {
+		case GridWatchSpec.TYPE_INT:
+			longValue = parseLong(buf, start, end);
+			break;
+		case GridWatchSpec.TYPE_FLOAT:
+			doubleValue = parseDouble(buf, start, end);
+			break;
+		case GridWatchSpec.TYPE_BOOL:
+			if (equals(buf, start, end, TRUE)) {
+				longValue = 1;
+			} else if (!equals(buf, start, end, FALSE)) {
+				return false;
+			}
+			break;
+		case GridWatchSpec.TYPE_ENUM:
+			if (key.isShort) {
+				if (end - start != 1) return false;
+				letter = (char) buf[start];
+				if (letter >= key.letters.length || !key.letters[letter]) return false;
+			} else {
+				if (!unescape(buf, start, end, encoded)) return false;
+				if (!isEnumValue(key)) return false;
+				letter = (char) mScratch[0];
+			}
+			break;
+		default:
+			if (!unescape(buf, start, end, encoded)) return false;
+			break;
+		}
+		if (mBad) return false;
+
+		switch (key.slot) {
+		case SLOT_TIME: event.time = longValue; break;
+		case SLOT_EVENT_TYPE: event.eventType = letter; break;
+		case SLOT_NETWORK: event.network = letter; break;
+		case SLOT_MOVED: event.moved = (byte) longValue; break;
+		case SLOT_PHONE: event.phone = string(SLOT_PHONE); break;
+		case SLOT_USER: event.user = string(SLOT_USER); break;
+		case SLOT_APP_VERSION: event.appVersion = string(SLOT_APP_VERSION); break;
+		case SLOT_GPS_LATITUDE: event.gpsLatitude = doubleValue; break;
+		case SLOT_GPS_LONGITUDE: event.gpsLongitude = doubleValue; break;
+		case SLOT_GPS_ACCURACY: event.gpsAccuracy = (float) doubleValue; break;
+		case SLOT_GPS_TIME: event.gpsTime = longValue; break;
+		case SLOT_NETWORK_LATITUDE: event.networkLatitude = doubleValue; break;
+		case SLOT_NETWORK_LONGITUDE: event.networkLongitude = doubleValue; break;
+		case SLOT_NETWORK_ACCURACY: event.networkAccuracy = (float) doubleValue; break;
+		case SLOT_FLAPS: event.flaps = (int) longValue; break;
+		case SLOT_FLAP_FIRST: event.flapFirst = longValue; break;
+		case SLOT_FLAP_LAST: event.flapLast = longValue; break;
+		case SLOT_MAINS_HZ: event.mainsHz = (float) doubleValue; event.hasMains = true; break;
+		case SLOT_HUM_DB: event.humDb = (float) doubleValue; break;
+		case SLOT_HARMONIC_2: event.harmonic2 = (float) doubleValue; break;
+		case SLOT_HARMONIC_3: event.harmonic3 = (float) doubleValue; break;
+		case SLOT_HUM_SNR: event.humSnr = (float) doubleValue; break;
+		}
+		return true;
+	}
+
+	private boolean isEnumValue (Key key) {
+		for (byte[] value : key.values) {
+			if (equals(mScratch, 0, mScratchLen, value)) return true;
+		}
+		return false;
+	}
+
+	// The scratch value as a string, reusing the last one for this slot if
+	// the bytes are the same
+	private String string (int slot) {
+		byte[] cached = mCachedBytes[slot];
+		if (cached != null && equals(mScratch, 0, mScratchLen, cached)) {
+			return mCachedStrings[slot];
+		}
+		byte[] bytes = new byte[mScratchLen];
+		System.arraycopy(mScratch, 0, bytes, 0, mScratchLen);
+		String s;
+		try {
+			s = new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			s = "";
+		}
+		mCachedBytes[slot] = bytes;
+		mCachedStrings[slot] = s;
+		return s;
+	}
+
+	// Percent decode buf[start, end) into the scratch buffer
+	private boolean unescape (byte[] buf, int start, int end, boolean encoded) {
+		if (mScratch.length < end - start) {
+			mScratch = new byte[Math.max(mScratch.length * 2, end - start)];
+		}
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (encoded && b == '+') {
+				b = ' ';
+			} else if (encoded && b == '%') {
+				if (i + 2 >= end) return false;
+				int hi = hex(buf[i + 1]);
+				int lo = hex(buf[i + 2]);
+				if (hi < 0 || lo < 0) return false;
+				b = (byte) (hi << 4 | lo);
+				i += 2;
+			}
+			mScratch[n++] = b;
+		}
+		mScratchLen = n;
+		return true;
+	}
+
+	private static int hex (byte b) {
+		if (b >= '0' && b <= '9') return b - '0';
+		if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+		return -1;
+	}
+
+	private long parseLong (byte[] buf, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && buf[i] == '-') {
+			negative = true;
+			i++;
+		}
+		// 18 digits always fit in a long
+		if (i == end || end - i > 18) {
+			mBad = true;
+			return 0;
+		}
+		long v = 0;
+		for (; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9) {
+				mBad = true;
+				return 0;
+			}
+			v = v * 10 + d;
+		}
+		return negative ? -v : v;
+	}
+
+	// Parse a decimal number. Values with up to 15 or so significant digits
+	// and a small exponent are computed exactly from the digits; longer
+	// mantissas are rounded to within an ulp or so, far below anything a
+	// location fix resolves. NaN, Infinity and huge exponents go through
+	// Double.parseDouble.
+	private double parseDouble (byte[] buf, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		for (; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9) break;
+			any = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + d;
+				if (mantissa != 0) digits++;
+			} else {
+				exponent++;
+			}
+		}
+		if (i < end && buf[i] == '.') {
+			for (i++; i < end; i++) {
+				int d = buf[i] - '0';
+				if (d < 0 || d > 9) break;
+				any = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + d;
+					if (mantissa != 0) digits++;
+					exponent--;
+				}
+			}
+		}
+		if (!any) return slowDouble(buf, start, end);
+		if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+				negativeExponent = buf[i] == '-';
+				i++;
+			}
+			if (i == end || end - i > 4) return slowDouble(buf, start, end);
+			int e = 0;
+			for (; i < end; i++) {
+				int d = buf[i] - '0';
+				if (d < 0 || d > 9) return slowDouble(buf, start, end);
+				e = e * 10 + d;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != end) return slowDouble(buf, start, end);
+		if (exponent < -22 || exponent > 22) return slowDouble(buf, start, end);
+
+		// Exact when the mantissa fits in 53 bits, since both operands are
+		double v = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+		return negative ? -v : v;
+	}
+
+	private double slowDouble (byte[] buf, int start, int end) {
+		try {
+			return Double.parseDouble(new String(buf, start, end - start, "ISO-8859-1"));
+		} catch (NumberFormatException e) {
+			mBad = true;
+		} catch (UnsupportedEncodingException e) {
+			mBad = true;
+		}
+		return 0;
+	}
+
+	private Key lookup (byte[] buf, int start, int end) {
+		for (Key key = mTable[hash(buf, start, end)]; key != null; key = key.next) {
+			if (equals(buf, start, end, key.name)) return key;
+		}
+		return null;
+	}
+
+	private Key addKey (String name, int slot, int type, boolean isShort) {
+		Key key = new Key();
+		try {
+			key.name = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		key.slot = slot;
+		key.type = type;
+		key.isShort = isShort;
+		int h = hash(key.name, 0, key.name.length);
+		key.next = mTable[h];
+		mTable[h] = key;
+		return key;
+	}
+
+	private Key addShortKey (GridWatchSpec spec, String name, String longName, int slot, int type) {
+		Key key = addKey(name, slot, type, true);
+		key.shortBit = 1 << mShortBits++;
+		GridWatchSpec.Field field = longName == null ? null : spec.get(longName);
+		if (field != null) {
+			if (field.type != type) {
+				throw new IllegalArgumentException("Spec type of " + longName + " doesn't match short key " + name);
+			}
+			setValues(key, field.values);
+		}
+		return key;
+	}
+
+	private static void setValues (Key key, String[] values) {
+		key.values = new byte[values.length][];
+		key.letters = new boolean[128];
+		for (int i = 0; i < values.length; i++) {
+			try {
+				key.values[i] = values[i].getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			char first = values[i].charAt(0);
+			if (first < 128) key.letters[first] = true;
+		}
+	}
+
+	private static int slotFor (String name) {
+		if (name.equals("id")) return SLOT_PHONE;
+		if (name.equals("time")) return SLOT_TIME;
+		if (name.equals("app_version")) return SLOT_APP_VERSION;
+		if (name.equals("network")) return SLOT_NETWORK;
+		if (name.equals("event_type")) return SLOT_EVENT_TYPE;
+		if (name.equals("moved")) return SLOT_MOVED;
+		if (name.equals("gps_latitude")) return SLOT_GPS_LATITUDE;
+		if (name.equals("gps_longitude")) return SLOT_GPS_LONGITUDE;
+		if (name.equals("gps_accuracy")) return SLOT_GPS_ACCURACY;
+		if (name.equals("gps_time")) return SLOT_GPS_TIME;
+		if (name.equals("network_latitude")) return SLOT_NETWORK_LATITUDE;
+		if (name.equals("network_longitude")) return SLOT_NETWORK_LONGITUDE;
+		if (name.equals("network_accuracy")) return SLOT_NETWORK_ACCURACY;
+		return SLOT_NONE;
+	}
+
+	private static long bit (GridWatchSpec spec, String name) {
+		GridWatchSpec.Field field = spec.get(name);
+		return field == null ? 0 : 1l << field.index;
+	}
+
+	private static int hash (byte[] buf, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = h * 31 + buf[i];
+		}
+		return (h ^ (h >>> 7)) & (TABLE_SIZE - 1);
+	}
+
+	private static int indexOf (byte[] buf, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == b) return i;
+		}
+		return end;
+	}
+
+	private static boolean equals (byte[] buf, int start, int end, byte[] other) {
+		if (end - start != other.length) return false;
+		for (int i = 0; i < other.length; i++) {
+			if (buf[start + i] != other[i]) return false;
+		}
+		return true;
+	}
+}
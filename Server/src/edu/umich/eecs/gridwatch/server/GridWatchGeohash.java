@@ -0,0 +1,66 @@
+package edu.umich.eecs.gridwatch.server;
+
+// Geohash cells kept as longs: the interleaved longitude and latitude bits,
+// five per character. Precision 6 cells are about 1.2 km by 0.6 km.
+public class GridWatchGeohash {
+
+	public final static int MAX_PRECISION = 12;
+
+	private final static char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+	// The cell containing a point, as 5 * precision bits
+	public static long encode (double latitude, double longitude, int precision) {
+		int bits = 5 * precision;
+		double latMin = -90, latMax = 90;
+		double lonMin = -180, lonMax = 180;
+		long hash = 0;
+		for (int i = 0; i < bits; i++) {
+			hash <<= 1;
+			if ((i & 1) == 0) {
+				double mid = (lonMin + lonMax) / 2;
+				if (longitude >= mid) {
+					hash |= 1;
+					lonMin = mid;
+				} else {
+					lonMax = mid;
+				}
+			} else {
+				double mid = (latMin + latMax) / 2;
+				if (latitude >= mid) {
+					hash |= 1;
+					latMin = mid;
+				} else {
+					latMax = mid;
+				}
+			}
+		}
+		return hash;
+	}
+
+	public static String toString (long hash, int precision) {
+		char[] chars = new char[precision];
+		for (int i = precision - 1; i >= 0; i--) {
+			chars[i] = BASE32[(int) (hash & 31)];
+			hash >>>= 5;
+		}
+		return new String(chars);
+	}
+
+	// The cell's bounds as { south, west, north, east }
+	public static double[] bounds (long hash, int precision) {
+		int bits = 5 * precision;
+		double latMin = -90, latMax = 90;
+		double lonMin = -180, lonMax = 180;
+		for (int i = 0; i < bits; i++) {
+			boolean set = ((hash >>> (bits - 1 - i)) & 1) != 0;
+			if ((i & 1) == 0) {
+				double mid = (lonMin + lonMax) / 2;
+				if (set) lonMin = mid; else lonMax = mid;
+			} else {
+				double mid = (latMin + latMax) / 2;
+				if (set) latMin = mid; else latMax = mid;
+			}
+		}
+		return new double[] { latMin, lonMin, latMax, lonMax };
+	}
+}
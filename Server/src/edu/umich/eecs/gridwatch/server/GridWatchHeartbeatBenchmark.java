@@ -0,0 +1,212 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchHeartbeat;
+
+// Compares what the app's watchdog heartbeat costs a phone, per day, under
+// the old schedule and under GridWatchHeartbeat, over simulated phone-days.
+//
+// Old: an exact RTC_WAKEUP alarm repeating every day from when the activity
+// was last opened. Opening the activity re-arms it, which fires it at once.
+// Every firing wakes the phone, asks for a GPS fix and tries an upload.
+//
+// New: one inexact alarm armed by the service, which the system may deliver
+// up to 75% of an interval late (KitKat's batching window). A firing is
+// skipped when an upload got through within half an interval, and a
+// heartbeat queued behind alerts that are already waiting doesn't try an
+// upload of its own.
+//
+// In both, each event tries an upload straight away, uploads fail while
+// the phone is offline, and regaining connectivity uploads what is queued
+// in one go. Reports alarm wakeups, radio sessions (upload attempts) and
+// heartbeat GPS requests per day, and the longest the server went without
+// hearing from a phone.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchHeartbeatBenchmark
+//               [--phones 10000] [--days 30] [--events 4] [--opens 1]
+//               [--offline 0.1] [--hours 24]
+public class GridWatchHeartbeatBenchmark {
+
+	private final static long HOUR = 3600000l;
+	private final static long DAY = 24 * HOUR;
+
+	// Mean length of an offline spell
+	private final static long OFFLINE_SPELL = 2 * HOUR;
+
+	private final static int EVENT = 0;
+	private final static int OPEN = 1;
+	private final static int ALARM = 2;
+	private final static int NET_DOWN = 3;
+	private final static int NET_UP = 4;
+
+	private int mPhones = 10000;
+	private int mDays = 30;
+	private double mEventsPerDay = 4;
+	private double mOpensPerDay = 1;
+	private double mOffline = 0.1;
+	private long mInterval = DAY;
+
+	private static class Tick implements Comparable<Tick> {
+		long time;
+		int kind;
+		int generation;
+
+		Tick (long time, int kind, int generation) {
+			this.time = time;
+			this.kind = kind;
+			this.generation = generation;
+		}
+
+		@Override
+		public int compareTo (Tick other) {
+			return time < other.time ? -1 : time > other.time ? 1 : 0;
+		}
+	}
+
+	private static class Totals {
+		long wakeups;
+		long radioSessions;
+		long gpsRequests;
+		long skipped;
+		long piggybacked;
+		long maxGap;
+	}
+
+	private double exponential (Random random, double mean) {
+		return -mean * Math.log(1 - random.nextDouble());
+	}
+
+	// One phone for mDays. The seed makes both policies see the same
+	// events, opens and offline spells.
+	private void phone (long seed, boolean old, Totals totals) {
+		Random random = new Random(seed);
+		Random jitter = new Random(~seed);
+		long end = mDays * DAY;
+		PriorityQueue<Tick> ticks = new PriorityQueue<Tick>();
+
+		for (double t = exponential(random, DAY / mEventsPerDay); t < end; t += exponential(random, DAY / mEventsPerDay)) {
+			ticks.add(new Tick((long) t, EVENT, 0));
+		}
+		for (double t = exponential(random, DAY / mOpensPerDay); t < end; t += exponential(random, DAY / mOpensPerDay)) {
+			ticks.add(new Tick((long) t, OPEN, 0));
+		}
+		if (mOffline > 0) {
+			double online = OFFLINE_SPELL * (1 - mOffline) / mOffline;
+			for (double t = exponential(random, online); t < end; t += exponential(random, online)) {
+				ticks.add(new Tick((long) t, NET_DOWN, 0));
+				t += exponential(random, OFFLINE_SPELL);
+				ticks.add(new Tick((long) t, NET_UP, 0));
+			}
+		}
+
+		// The phone was set up, and the alarm armed, at time 0
+		GridWatchHeartbeat heartbeat = new GridWatchHeartbeat(mInterval, 0);
+		int generation = 0;
+		if (old) {
+			ticks.add(new Tick(0, ALARM, generation));
+		} else {
+			ticks.add(new Tick(mInterval + (long) (jitter.nextDouble() * mInterval * 0.75), ALARM, 0));
+		}
+
+		boolean offline = false;
+		int queued = 0;
+		long lastHeard = 0;
+		long maxGap = 0;
+
+		while (!ticks.isEmpty()) {
+			Tick tick = ticks.poll();
+			long now = tick.time;
+			if (now >= end) break;
+
+			boolean upload = false;
+			switch (tick.kind) {
+			case EVENT:
+				queued++;
+				upload = true;
+				break;
+			case OPEN:
+				if (old) {
+					generation++;
+					ticks.add(new Tick(now, ALARM, generation));
+				}
+				break;
+			case ALARM:
+				if (tick.generation != generation) break;
+				totals.wakeups++;
+				if (old) {
+					ticks.add(new Tick(now + mInterval, ALARM, generation));
+					totals.gpsRequests++;
+					queued++;
+					upload = true;
+				} else {
+					// Inexact alarms keep to the original schedule
+					long slot = (now / mInterval + 1) * mInterval;
+					ticks.add(new Tick(slot + (long) (jitter.nextDouble() * mInterval * 0.75), ALARM, 0));
+					if (!heartbeat.onAlarm(now)) {
+						totals.skipped++;
+						break;
+					}
+					totals.gpsRequests++;
+					if (queued > 0) {
+						heartbeat.notePiggybacked();
+						totals.piggybacked++;
+						queued++;
+					} else {
+						queued++;
+						upload = true;
+					}
+				}
+				break;
+			case NET_DOWN:
+				offline = true;
+				break;
+			case NET_UP:
+				offline = false;
+				upload = queued > 0;
+				break;
+			}
+
+			if (upload) {
+				totals.radioSessions++;
+				heartbeat.noteRadioSession();
+				if (!offline) {
+					queued = 0;
+					heartbeat.noteDelivered(now);
+					maxGap = Math.max(maxGap, now - lastHeard);
+					lastHeard = now;
+				}
+			}
+		}
+		maxGap = Math.max(maxGap, end - lastHeard);
+		totals.maxGap = Math.max(totals.maxGap, maxGap);
+	}
+
+	private void run (String name, boolean old) {
+		Totals totals = new Totals();
+		for (int i = 0; i < mPhones; i++) {
+			phone(i, old, totals);
+		}
+		double phoneDays = (double) mPhones * mDays;
+		System.out.println(String.format(
+				"%s wakeups/day=%.3f radio_sessions/day=%.3f heartbeat_gps/day=%.3f skipped/day=%.3f piggybacked/day=%.3f max_gap_h=%.1f",
+				name, totals.wakeups / phoneDays, totals.radioSessions / phoneDays, totals.gpsRequests / phoneDays,
+				totals.skipped / phoneDays, totals.piggybacked / phoneDays, totals.maxGap / (double) HOUR));
+	}
+
+	public static void main (String[] args) {
+		GridWatchHeartbeatBenchmark benchmark = new GridWatchHeartbeatBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--phones")) benchmark.mPhones = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--days")) benchmark.mDays = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--events")) benchmark.mEventsPerDay = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--opens")) benchmark.mOpensPerDay = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--offline")) benchmark.mOffline = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--hours")) benchmark.mInterval = Long.parseLong(args[++i]) * HOUR;
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.run("old", true);
+		benchmark.run("new", false);
+	}
+}
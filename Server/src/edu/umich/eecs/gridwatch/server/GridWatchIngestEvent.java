@@ -0,0 +1,118 @@
+package edu.umich.eecs.gridwatch.server;
+
+// One alert as accepted by the ingest server, whichever form it arrived
+// in. Only the fields later stages use are kept; everything else in the
+// spec is checked and dropped.
+public class GridWatchIngestEvent {
+
+	public final static char UNPLUGGED = 'u';
+	public final static char PLUGGED = 'p';
+	public final static char WD = 'w';
+	public final static char API = 'a';
+
+	// Profile the alert was posted to (the URL path)
+	public String profile;
+
+	// The phone: the long form's id, or the short form's ANDROID_ID prefix
+	public String phone;
+
+	// The user assigned ID, short form only
+	public String user;
+
+	public long time;
+
+	// First letter of the event type and of the network type
+	public char eventType;
+	public char network = 'u';
+
+	// -1 if not reported, otherwise 0 or 1
+	public byte moved = -1;
+
+	public String appVersion;
+
+	public boolean hasGps;
+	public double gpsLatitude;
+	public double gpsLongitude;
+	public float gpsAccuracy;
+	public long gpsTime;
+
+	public boolean hasNetworkFix;
+	public double networkLatitude;
+	public double networkLongitude;
+	public float networkAccuracy;
+
+	// Set if the alert summarizes a burst of power flaps
+	public int flaps;
+	public long flapFirst;
+	public long flapLast;
+
+	// What the unplug recording measured of the grid, if hasMains is set
+	public boolean hasMains;
+	public float mainsHz;
+	public float humDb;
+	public float harmonic2;
+	public float harmonic3;
+	public float humSnr;
+
+	// When the server took the alert
+	public long receivedAt;
+
+	// Position in the profile's stream once the event store has it
+	public long offset = -1;
+
+	// Back to the state of a new event, so a rejected record's object can
+	// be reused for the next one
+	public void clear () {
+		profile = null;
+		phone = null;
+		user = null;
+		time = 0;
+		eventType = 0;
+		network = 'u';
+		moved = -1;
+		appVersion = null;
+		hasGps = false;
+		gpsLatitude = 0;
+		gpsLongitude = 0;
+		gpsAccuracy = 0;
+		gpsTime = 0;
+		hasNetworkFix = false;
+		networkLatitude = 0;
+		networkLongitude = 0;
+		networkAccuracy = 0;
+		flaps = 0;
+		flapFirst = 0;
+		flapLast = 0;
+		hasMains = false;
+		mainsHz = 0;
+		humDb = 0;
+		harmonic2 = 0;
+		harmonic3 = 0;
+		humSnr = 0;
+		receivedAt = 0;
+		offset = -1;
+	}
+
+	// The best location we have: GPS if present, else the network fix
+	public boolean hasLocation () {
+		return hasGps || hasNetworkFix;
+	}
+
+	public double latitude () {
+		return hasGps ? gpsLatitude : networkLatitude;
+	}
+
+	public double longitude () {
+		return hasGps ? gpsLongitude : networkLongitude;
+	}
+
+	@Override
+	public String toString () {
+		StringBuilder s = new StringBuilder(96);
+		s.append(profile).append('/').append(phone).append(' ').append(eventType).append(" t=").append(time);
+		if (hasLocation()) s.append(" at ").append(latitude()).append(',').append(longitude());
+		if (flaps > 0) s.append(" flaps=").append(flaps);
+		if (hasMains) s.append(" mains_hz=").append(mainsHz);
+		return s.toString();
+	}
+}
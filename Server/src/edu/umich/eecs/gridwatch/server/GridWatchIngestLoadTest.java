@@ -0,0 +1,292 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+// Load generator for GridWatchIngestServer. Each connection is a blocking
+// keep-alive socket that sends precomputed alert POSTs, optionally several
+// at a time (HTTP pipelining), and times each reply. At the end it prints
+// requests and alerts per second and reply latency percentiles.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchIngestLoadTest
+//               [--host localhost] [--port 8081] [--connections 32]
+//               [--seconds 10] [--depth 1] [--form short|long|batch]
+//               [--batch-size 20] [--local] [--loops n] [--spec ../spec.txt]
+// With --local it starts its own server and pipeline on a free port.
+public class GridWatchIngestLoadTest {
+
+	private final static int REQUEST_VARIANTS = 256;
+
+	// Latency histogram: 10 us buckets up to 100 ms, then one overflow bucket
+	private final static int BUCKET_US = 10;
+	private final static int BUCKETS = 10001;
+
+	private String mHost = "localhost";
+	private int mPort = 8081;
+	private int mConnections = 32;
+	private int mSeconds = 10;
+	private int mDepth = 1;
+	private String mForm = "short";
+	private int mBatchSize = 20;
+
+	private byte[][] mRequests;
+	private int mAlertsPerRequest;
+
+	private class Client extends Thread {
+		long[] mHistogram = new long[BUCKETS];
+		long mReplies = 0;
+		long mErrors = 0;
+		IOException mFailure = null;
+
+		private int mId;
+		private long mEnd;
+		private CountDownLatch mDone;
+		private byte[] mIn = new byte[16384];
+		private int mInPos = 0;
+		private int mInLen = 0;
+
+		Client (int id, long end, CountDownLatch done) {
+			mId = id;
+			mEnd = end;
+			mDone = done;
+		}
+
+		@Override
+		public void run () {
+			Socket socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(mHost, mPort));
+				OutputStream out = socket.getOutputStream();
+				InputStream in = socket.getInputStream();
+				long[] sent = new long[mDepth];
+				int next = mId;
+				while (System.nanoTime() < mEnd) {
+					for (int i = 0; i < mDepth; i++) {
+						byte[] request = mRequests[next++ % mRequests.length];
+						sent[i] = System.nanoTime();
+						out.write(request);
+					}
+					out.flush();
+					for (int i = 0; i < mDepth; i++) {
+						int status = readReply(in);
+						long us = (System.nanoTime() - sent[i]) / 1000;
+						mHistogram[(int) Math.min(BUCKETS - 1, us / BUCKET_US)]++;
+						mReplies++;
+						if (status != 200) mErrors++;
+					}
+				}
+			} catch (IOException e) {
+				mFailure = e;
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Done with it anyway
+				}
+				mDone.countDown();
+			}
+		}
+
+		// Read one reply and return its status code
+		private int readReply (InputStream in) throws IOException {
+			String statusLine = readLine(in);
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+			int length = 0;
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+					length = Integer.parseInt(line.substring(15).trim());
+				}
+			}
+			for (int i = 0; i < length; i++) {
+				readByte(in);
+			}
+			return status;
+		}
+
+		private String readLine (InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder(64);
+			int b;
+			while ((b = readByte(in)) != '\n') {
+				if (b != '\r') line.append((char) b);
+			}
+			return line.toString();
+		}
+
+		private int readByte (InputStream in) throws IOException {
+			if (mInPos == mInLen) {
+				mInLen = in.read(mIn);
+				mInPos = 0;
+				if (mInLen < 0) throw new IOException("Server closed the connection");
+			}
+			return mIn[mInPos++] & 0xff;
+		}
+	}
+
+	// Build the requests each connection cycles through
+	private void prepare () throws IOException {
+		Random random = new Random(1);
+		mRequests = new byte[REQUEST_VARIANTS][];
+		mAlertsPerRequest = mForm.equals("batch") ? mBatchSize : 1;
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < REQUEST_VARIANTS; i++) {
+			String contentType = "application/x-www-form-urlencoded";
+			StringBuilder body = new StringBuilder();
+			if (mForm.equals("batch")) {
+				contentType = "application/x-gridwatch-batch";
+				for (int j = 0; j < mBatchSize; j++) {
+					if (j > 0) body.append('\n');
+					body.append(shortForm(random, i, time + j * 1000));
+				}
+			} else if (mForm.equals("long")) {
+				body.append(longForm(random, i, time));
+			} else {
+				body.append(shortForm(random, i, time));
+			}
+			byte[] content = body.toString().getBytes("UTF-8");
+			String header = "POST /profile" + (i % 8) + " HTTP/1.1\r\n"
+					+ "Host: " + mHost + ":" + mPort + "\r\n"
+					+ "Content-Type: " + contentType + "\r\n"
+					+ "Content-Length: " + content.length + "\r\n\r\n";
+			byte[] head = header.getBytes("US-ASCII");
+			mRequests[i] = new byte[head.length + content.length];
+			System.arraycopy(head, 0, mRequests[i], 0, head.length);
+			System.arraycopy(content, 0, mRequests[i], head.length, content.length);
+		}
+	}
+
+	// What the app's dumbPairs look like
+	private static String shortForm (Random random, int phone, long time) throws IOException {
+		StringBuilder form = new StringBuilder(128);
+		pair(form, "t", String.valueOf(time));
+		pair(form, "e", random.nextBoolean() ? "u" : "p");
+		pair(form, "l", String.valueOf(42.2 + random.nextDouble() / 10));
+		pair(form, "n", String.valueOf(-83.7 + random.nextDouble() / 10));
+		pair(form, "a", String.valueOf(5 + random.nextInt(50)) + ".0");
+		pair(form, "g", String.valueOf(time - random.nextInt(60000)));
+		pair(form, "c", random.nextBoolean() ? "w" : "m");
+		pair(form, "h", String.format("%06x", phone));
+		pair(form, "u", "");
+		pair(form, "v", "12");
+		return form.toString();
+	}
+
+	// Every field in spec.txt
+	private static String longForm (Random random, int phone, long time) throws IOException {
+		StringBuilder form = new StringBuilder(512);
+		pair(form, "id", String.format("%016x", phone));
+		pair(form, "time", String.valueOf(time));
+		pair(form, "phone_type", "LGE Nexus 4");
+		pair(form, "os", "android");
+		pair(form, "os_version", "4.4.2");
+		pair(form, "app_version", "1.2");
+		pair(form, "network", random.nextBoolean() ? "wifi" : "mobile");
+		pair(form, "event_type", random.nextBoolean() ? "unplugged" : "plugged");
+		pair(form, "moved", String.valueOf(random.nextBoolean()));
+		for (String provider : new String[] { "gps", "network" }) {
+			pair(form, provider + "_latitude", String.valueOf(42.2 + random.nextDouble() / 10));
+			pair(form, provider + "_longitude", String.valueOf(-83.7 + random.nextDouble() / 10));
+			pair(form, provider + "_accuracy", String.valueOf(5 + random.nextInt(50)) + ".0");
+			pair(form, provider + "_altitude", String.valueOf(250 + random.nextInt(50)) + ".0");
+			pair(form, provider + "_time", String.valueOf(time - random.nextInt(60000)));
+			pair(form, provider + "_speed", "0.0");
+		}
+		return form.toString();
+	}
+
+	private static void pair (StringBuilder form, String key, String value) throws IOException {
+		if (form.length() > 0) form.append('&');
+		form.append(key).append('=').append(URLEncoder.encode(value, "UTF-8"));
+	}
+
+	private void run () throws Exception {
+		prepare();
+		CountDownLatch done = new CountDownLatch(mConnections);
+		long start = System.nanoTime();
+		long end = start + mSeconds * 1000000000l;
+		Client[] clients = new Client[mConnections];
+		for (int i = 0; i < mConnections; i++) {
+			clients[i] = new Client(i, end, done);
+			clients[i].start();
+		}
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long[] histogram = new long[BUCKETS];
+		long replies = 0, errors = 0;
+		for (Client client : clients) {
+			if (client.mFailure != null) {
+				System.out.println("Connection failed: " + client.mFailure.getMessage());
+			}
+			replies += client.mReplies;
+			errors += client.mErrors;
+			for (int i = 0; i < BUCKETS; i++) histogram[i] += client.mHistogram[i];
+		}
+
+		System.out.println(String.format("form=%s connections=%d depth=%d seconds=%.1f",
+				mForm, mConnections, mDepth, seconds));
+		System.out.println(String.format("requests=%d errors=%d requests/s=%.0f alerts/s=%.0f",
+				replies, errors, replies / seconds, replies * mAlertsPerRequest / seconds));
+		System.out.println(String.format("latency_us p50=%d p90=%d p99=%d p999=%d",
+				percentile(histogram, replies, 0.5), percentile(histogram, replies, 0.9),
+				percentile(histogram, replies, 0.99), percentile(histogram, replies, 0.999)));
+	}
+
+	private static long percentile (long[] histogram, long total, double p) {
+		long target = (long) Math.ceil(total * p);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= target) return (long) (i + 1) * BUCKET_US;
+		}
+		return (long) histogram.length * BUCKET_US;
+	}
+
+	public static void main (String[] args) throws Exception {
+		GridWatchIngestLoadTest test = new GridWatchIngestLoadTest();
+		boolean local = false;
+		int loops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		String spec = "../spec.txt";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--host")) test.mHost = args[++i];
+			else if (args[i].equals("--port")) test.mPort = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--connections")) test.mConnections = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seconds")) test.mSeconds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--depth")) test.mDepth = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--form")) test.mForm = args[++i];
+			else if (args[i].equals("--batch-size")) test.mBatchSize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--local")) local = true;
+			else if (args[i].equals("--loops")) loops = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--spec")) spec = args[++i];
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+
+		GridWatchIngestServer server = null;
+		GridWatchIngestPipeline pipeline = null;
+		if (local) {
+			pipeline = new GridWatchIngestPipeline(1 << 16);
+			pipeline.start();
+			server = new GridWatchIngestServer(0, loops, GridWatchIngestServer.loadSpec(new File(spec)), pipeline);
+			server.start();
+			test.mHost = "localhost";
+			test.mPort = server.getPort();
+		}
+
+		test.run();
+
+		if (local) {
+			server.stop();
+			pipeline.stop();
+			System.out.println(server.report());
+			System.out.println(pipeline.report());
+		}
+	}
+}
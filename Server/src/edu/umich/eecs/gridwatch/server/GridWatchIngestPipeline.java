@@ -0,0 +1,141 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands accepted alerts from the ingest server's network threads to the
+// stages that do something with them, on a thread of its own. The queue is
+// bounded: when the stages fall behind, offer fails and the server tells
+// the phone to retry later rather than buffering without limit.
+public class GridWatchIngestPipeline {
+
+	// Something that consumes events, run in the order stages were added.
+	// Stages are only ever called from the pipeline thread.
+	public interface Stage {
+		public void process (GridWatchIngestEvent event);
+
+		// Called after each drained run of events, and about once a second
+		// when idle, so stages can emit time based results
+		public void flush (long now);
+	}
+
+	private final static int DRAIN_MAX = 1024;
+	private final static long IDLE_POLL = 1000l;
+
+	private ArrayBlockingQueue<GridWatchIngestEvent> mQueue;
+	private Object mOfferLock = new Object();
+	private List<Stage> mStages = new CopyOnWriteArrayList<Stage>();
+	private Thread mThread;
+	private volatile boolean mRunning = false;
+
+	private AtomicLong mOffered = new AtomicLong();
+	private AtomicLong mDropped = new AtomicLong();
+	private AtomicLong mProcessed = new AtomicLong();
+	private volatile int mLargestDrain = 0;
+
+	public GridWatchIngestPipeline (int capacity) {
+		mQueue = new ArrayBlockingQueue<GridWatchIngestEvent>(capacity);
+	}
+
+	public void addStage (Stage stage) {
+		mStages.add(stage);
+	}
+
+	public void start () {
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				loop();
+			}
+		}, "gridwatch-pipeline");
+		mThread.start();
+	}
+
+	// Stop after processing whatever is already queued
+	public void stop () throws InterruptedException {
+		mRunning = false;
+		mThread.interrupt();
+		mThread.join();
+	}
+
+	// Queue an event. Returns false if the pipeline is full.
+	public boolean offer (GridWatchIngestEvent event) {
+		mOffered.incrementAndGet();
+		synchronized (mOfferLock) {
+			if (mQueue.offer(event)) return true;
+		}
+		mDropped.incrementAndGet();
+		return false;
+	}
+
+	// Queue a batch of events, all or none. Returns false, having queued
+	// nothing, if they don't all fit.
+	public boolean offerAll (List<GridWatchIngestEvent> events) {
+		mOffered.addAndGet(events.size());
+		synchronized (mOfferLock) {
+			// Only offers add to the queue, so the room checked here can
+			// only grow while the lock is held
+			if (mQueue.remainingCapacity() >= events.size()) {
+				for (GridWatchIngestEvent event : events) {
+					mQueue.offer(event);
+				}
+				return true;
+			}
+		}
+		mDropped.addAndGet(events.size());
+		return false;
+	}
+
+	public long getProcessed () {
+		return mProcessed.get();
+	}
+
+	public String report () {
+		return String.format("offered=%d dropped=%d processed=%d queued=%d largest_drain=%d",
+				mOffered.get(), mDropped.get(), mProcessed.get(), mQueue.size(), mLargestDrain);
+	}
+
+	private void loop () {
+		ArrayList<GridWatchIngestEvent> drained = new ArrayList<GridWatchIngestEvent>(DRAIN_MAX);
+		while (true) {
+			GridWatchIngestEvent first;
+			try {
+				first = mQueue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				first = null;
+			}
+			if (first == null && !mRunning && mQueue.isEmpty()) break;
+
+			drained.clear();
+			if (first != null) {
+				drained.add(first);
+				mQueue.drainTo(drained, DRAIN_MAX - 1);
+				if (drained.size() > mLargestDrain) mLargestDrain = drained.size();
+			}
+			for (GridWatchIngestEvent event : drained) {
+				for (Stage stage : mStages) {
+					try {
+						stage.process(event);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			mProcessed.addAndGet(drained.size());
+
+			long now = System.currentTimeMillis();
+			for (Stage stage : mStages) {
+				try {
+					stage.flush(now);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,840 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ingest server for the alert POSTs. It speaks just enough HTTP/1.1 for
+// the app's clients (keep-alive, pipelining, Content-Length bodies) on a
+// few non-blocking selector loops, decodes alerts straight out of the read
+// buffers with GridWatchFormDecoder, checks them against spec.txt and hands
+// them to a GridWatchIngestPipeline.
+//
+// The app posts to /<profile_id>. A request body is one of
+//   a single form-encoded alert, in the long or the short form
+//   a batch from GridWatchBatch (application/x-gridwatch-batch)
+//   a binary batch from GridWatchCodec (application/x-gridwatch-binary)
+// and the replies match GridWatchBatchServer: "0" or "" for a single alert
+// and the indices of the accepted alerts for a batch. Alerts that fail the
+// spec are counted as rejected and left out of the reply, which tells the
+// phone to drop them, since sending them again won't help. A request whose
+// alerts don't all fit in the pipeline gets a 503 and none of them are
+// queued, so the phone keeps the whole request and sends it again later.
+//
+// GET /stats returns the counters. With a GridWatchEventStore set,
+// GET /events/<profile>?time=<ms> returns the events received in the last
+// <ms> milliseconds, and GET /events/<profile>?offset=<n> those from offset
+// n on, as one JSON object per line (at most max=<n>, default 1000). The
+// last line is {"next":<offset>}; asking again from there picks up where
+// the reply left off, with nothing missed or repeated.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchIngestServer
+//               [--port 8081] [--loops n] [--queue n] [--spec ../spec.txt]
+public class GridWatchIngestServer {
+
+	private final static String BATCH_CONTENT_TYPE = "application/x-gridwatch-batch";
+	private final static int DEFAULT_PORT = 8081;
+	private final static int DEFAULT_QUEUE = 1 << 16;
+	private final static String DEFAULT_SPEC = "../spec.txt";
+	private final static long REPORT_PERIOD = 10000l;
+
+	private final static int BUFFER_SIZE = 8192;
+	private final static int MAX_HEADER = 8192;
+	private final static int MAX_REQUEST = 4 << 20;
+
+	private final static byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+	private final static byte[] CONTENT_LENGTH = ascii("content-length:");
+	private final static byte[] CONTENT_TYPE = ascii("content-type:");
+	private final static byte[] CONNECTION = ascii("connection:");
+	private final static byte[] EXPECT = ascii("expect:");
+	private final static byte[] CLOSE = ascii("close");
+	private final static byte[] KEEP_ALIVE = ascii("keep-alive");
+	private final static byte[] BINARY = ascii(GridWatchWireDecoder.CONTENT_TYPE);
+	private final static byte[] BATCH = ascii(BATCH_CONTENT_TYPE);
+	private final static byte[] POST = ascii("POST");
+	private final static byte[] GET = ascii("GET");
+	private final static byte[] STATS = ascii("/stats");
+	private final static byte[] EVENTS = ascii("/events/");
+	private final static int DEFAULT_EVENTS = 1000;
+	private final static int MAX_EVENTS = 10000;
+	private final static byte[] HTTP_10 = ascii("HTTP/1.0");
+	private final static byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+	private GridWatchSpec mSpec;
+	private GridWatchIngestPipeline mPipeline;
+	private GridWatchEventStore mStore;
+	private ServerSocketChannel mServerChannel;
+	private Loop[] mLoops;
+	private Thread mAcceptor;
+	private volatile boolean mRunning = false;
+
+	private AtomicLong mConnections = new AtomicLong();
+
+	public GridWatchIngestServer (int port, int loops, GridWatchSpec spec, GridWatchIngestPipeline pipeline) throws IOException {
+		mSpec = spec;
+		mPipeline = pipeline;
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		mServerChannel.bind(new InetSocketAddress(port), 1024);
+		mLoops = new Loop[loops];
+		for (int i = 0; i < loops; i++) {
+			mLoops[i] = new Loop(i);
+		}
+	}
+
+	// Serve /events from store; set before start
+	public void setEventStore (GridWatchEventStore store) {
+		mStore = store;
+	}
+
+	public int getPort () {
+		return mServerChannel.socket().getLocalPort();
+	}
+
+	public void start () {
+		mRunning = true;
+		for (Loop loop : mLoops) {
+			loop.mThread.start();
+		}
+		mAcceptor = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				accept();
+			}
+		}, "gridwatch-accept");
+		mAcceptor.start();
+	}
+
+	public void stop () throws InterruptedException {
+		mRunning = false;
+		try {
+			mServerChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mAcceptor.join();
+		for (Loop loop : mLoops) {
+			loop.mSelector.wakeup();
+			loop.mThread.join();
+		}
+	}
+
+	public String report () {
+		long requests = 0, bytes = 0, accepted = 0, rejected = 0, busy = 0;
+		for (Loop loop : mLoops) {
+			requests += loop.mRequests;
+			bytes += loop.mBytes;
+			accepted += loop.mAccepted;
+			rejected += loop.mRejected;
+			busy += loop.mBusy;
+		}
+		return String.format("connections=%d requests=%d bytes=%d accepted=%d rejected=%d busy=%d",
+				mConnections.get(), requests, bytes, accepted, rejected, busy);
+	}
+
+	// Hand each new connection to the loops in turn
+	private void accept () {
+		int next = 0;
+		while (mRunning) {
+			SocketChannel channel;
+			try {
+				channel = mServerChannel.accept();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+			mConnections.incrementAndGet();
+			mLoops[next].add(channel);
+			next = (next + 1) % mLoops.length;
+		}
+	}
+
+	// One keep-alive connection's buffers. The input buffer holds the
+	// requests read so far, starting at 0; the output buffer the replies
+	// not yet written, also starting at 0.
+	private static class Connection {
+		SocketChannel channel;
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+		// How far we've looked for the end of the headers
+		int scanned = 0;
+
+		// Close once the output is written
+		boolean closing = false;
+
+		// The profile this connection last posted to
+		byte[] profileBytes;
+		String profile;
+
+		Connection (SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	// A selector thread with its own decoders. Counters are only written
+	// by the loop's thread.
+	private class Loop implements Runnable {
+		Selector mSelector;
+		Thread mThread;
+		ConcurrentLinkedQueue<SocketChannel> mNew = new ConcurrentLinkedQueue<SocketChannel>();
+
+		GridWatchFormDecoder mForm = new GridWatchFormDecoder(mSpec);
+		GridWatchWireDecoder mWire = new GridWatchWireDecoder();
+		StringBuilder mReply = new StringBuilder(256);
+		List<GridWatchIngestEvent> mEvents = new ArrayList<GridWatchIngestEvent>();
+		StringBuilder mHeader = new StringBuilder(128);
+		// Event objects to decode alerts into, and the batch alerts decoded
+		// so far, until they go to the pipeline
+		List<GridWatchIngestEvent> mSpares = new ArrayList<GridWatchIngestEvent>();
+		List<GridWatchIngestEvent> mBatch = new ArrayList<GridWatchIngestEvent>();
+		long mNow;
+
+		volatile long mRequests = 0;
+		volatile long mBytes = 0;
+		volatile long mAccepted = 0;
+		volatile long mRejected = 0;
+		volatile long mBusy = 0;
+
+		Loop (int n) throws IOException {
+			mSelector = Selector.open();
+			mThread = new Thread(this, "gridwatch-ingest-" + n);
+		}
+
+		void add (SocketChannel channel) {
+			mNew.add(channel);
+			mSelector.wakeup();
+		}
+
+		@Override
+		public void run () {
+			while (mRunning) {
+				try {
+					mSelector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				SocketChannel channel;
+				while ((channel = mNew.poll()) != null) {
+					try {
+						channel.register(mSelector, SelectionKey.OP_READ, new Connection(channel));
+					} catch (ClosedChannelException e) {
+						mConnections.decrementAndGet();
+					}
+				}
+
+				mNow = System.currentTimeMillis();
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection conn = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable()) {
+							write(key, conn);
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(key, conn);
+						}
+					} catch (IOException e) {
+						close(key, conn);
+					}
+				}
+			}
+			for (SelectionKey key : mSelector.keys()) {
+				close(key, (Connection) key.attachment());
+			}
+			try {
+				mSelector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		void read (SelectionKey key, Connection conn) throws IOException {
+			if (!conn.in.hasRemaining()) {
+				conn.in = grow(conn.in, conn.in.capacity() * 2);
+			}
+			int n = conn.channel.read(conn.in);
+			if (n < 0) {
+				close(key, conn);
+				return;
+			}
+			mBytes += n;
+			handleRequests(conn);
+			write(key, conn);
+		}
+
+		// Write what we can. While replies are waiting we stop reading, so a
+		// client that doesn't read can't make us buffer without limit.
+		void write (SelectionKey key, Connection conn) throws IOException {
+			ByteBuffer out = conn.out;
+			if (out.position() > 0) {
+				out.flip();
+				conn.channel.write(out);
+				out.compact();
+			}
+			if (out.position() > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (conn.closing) {
+				close(key, conn);
+			} else if (key.interestOps() != SelectionKey.OP_READ) {
+				key.interestOps(SelectionKey.OP_READ);
+				// Requests that arrived while we were blocked on writing
+				if (conn.in.position() > 0) {
+					handleRequests(conn);
+					if (conn.out.position() > 0) write(key, conn);
+				}
+			}
+		}
+
+		void close (SelectionKey key, Connection conn) {
+			key.cancel();
+			closeQuietly(conn.channel);
+			mConnections.decrementAndGet();
+		}
+
+		// Answer every complete request in the input buffer
+		void handleRequests (Connection conn) {
+			while (!conn.closing) {
+				byte[] buf = conn.in.array();
+				int limit = conn.in.position();
+
+				int headerEnd = indexOf(buf, Math.max(0, conn.scanned - HEADER_END.length), limit, HEADER_END);
+				if (headerEnd < 0) {
+					conn.scanned = limit;
+					if (limit > MAX_HEADER) {
+						respond(conn, "431 Request Header Fields Too Large", "", true);
+					}
+					return;
+				}
+				headerEnd += HEADER_END.length;
+
+				// Request line
+				int lineEnd = indexOf(buf, 0, headerEnd, HEADER_END, 2);
+				int methodEnd = indexOf(buf, 0, lineEnd, (byte) ' ');
+				int pathEnd = indexOf(buf, methodEnd + 1, lineEnd, (byte) ' ');
+				if (methodEnd < 0 || pathEnd < 0) {
+					respond(conn, "400 Bad Request", "", true);
+					return;
+				}
+				boolean keepAlive = !startsWith(buf, pathEnd + 1, lineEnd, HTTP_10);
+
+				// Headers we care about
+				long contentLength = 0;
+				int typeStart = 0, typeEnd = 0;
+				boolean expectContinue = false;
+				int pos = lineEnd + 2;
+				while (pos < headerEnd - 2) {
+					int end = indexOf(buf, pos, headerEnd, HEADER_END, 2);
+					if (startsWithIgnoreCase(buf, pos, end, CONTENT_LENGTH)) {
+						contentLength = parseLength(buf, pos + CONTENT_LENGTH.length, end);
+					} else if (startsWithIgnoreCase(buf, pos, end, CONTENT_TYPE)) {
+						typeStart = skipSpaces(buf, pos + CONTENT_TYPE.length, end);
+						typeEnd = end;
+					} else if (startsWithIgnoreCase(buf, pos, end, CONNECTION)) {
+						int value = skipSpaces(buf, pos + CONNECTION.length, end);
+						if (startsWithIgnoreCase(buf, value, end, CLOSE)) keepAlive = false;
+						if (startsWithIgnoreCase(buf, value, end, KEEP_ALIVE)) keepAlive = true;
+					} else if (startsWithIgnoreCase(buf, pos, end, EXPECT)) {
+						expectContinue = true;
+					}
+					pos = end + 2;
+				}
+				if (contentLength < 0) {
+					respond(conn, "411 Length Required", "", true);
+					return;
+				}
+				if (headerEnd + contentLength > MAX_REQUEST) {
+					respond(conn, "413 Payload Too Large", "", true);
+					return;
+				}
+
+				int total = headerEnd + (int) contentLength;
+				if (limit < total) {
+					// Wait for the rest of the body
+					if (total > conn.in.capacity()) {
+						conn.in = grow(conn.in, total);
+					}
+					if (expectContinue && limit == headerEnd && conn.scanned < headerEnd) {
+						put(conn, CONTINUE, 0, CONTINUE.length);
+					}
+					// Find the same header end straight away next time
+					conn.scanned = headerEnd;
+					return;
+				}
+
+				mRequests++;
+				if (startsWith(buf, 0, methodEnd, POST)) {
+					handlePost(conn, buf, methodEnd + 1, pathEnd, typeStart, typeEnd, headerEnd, total, !keepAlive);
+				} else if (startsWith(buf, 0, methodEnd, GET) && pathEnd - methodEnd - 1 == STATS.length
+						&& startsWith(buf, methodEnd + 1, pathEnd, STATS)) {
+					respond(conn, "200 OK", report() + "\n" + mPipeline.report() + "\n", !keepAlive);
+				} else if (startsWith(buf, 0, methodEnd, GET) && mStore != null
+						&& startsWith(buf, methodEnd + 1, pathEnd, EVENTS)) {
+					handleEvents(conn, buf, methodEnd + 1 + EVENTS.length - 1, pathEnd, !keepAlive);
+				} else {
+					respond(conn, "404 Not Found", "", !keepAlive);
+				}
+
+				// Move any pipelined requests to the front
+				System.arraycopy(buf, total, buf, 0, limit - total);
+				conn.in.position(limit - total);
+				conn.scanned = 0;
+			}
+		}
+
+		void handlePost (Connection conn, byte[] buf, int pathStart, int pathEnd, int typeStart, int typeEnd,
+				int bodyStart, int bodyEnd, boolean close) {
+			String profile = profile(conn, buf, pathStart, pathEnd);
+			mReply.setLength(0);
+
+			if (startsWith(buf, typeStart, typeEnd, BINARY)) {
+				List<Map<String, String>> alerts;
+				try {
+					alerts = mWire.decodeBatch(buf, bodyStart, bodyEnd - bodyStart);
+				} catch (IOException e) {
+					mRejected++;
+					respond(conn, "200 OK", "", close);
+					return;
+				}
+				for (int i = 0; i < alerts.size(); i++) {
+					GridWatchIngestEvent event = spare();
+					if (mForm.decode(alerts.get(i), event) == null) {
+						hold(event, profile, i);
+					} else {
+						mRejected++;
+					}
+				}
+				if (!offerBatch()) {
+					respond(conn, "503 Service Unavailable", "", close);
+					return;
+				}
+			} else if (startsWith(buf, typeStart, typeEnd, BATCH)) {
+				int start = bodyStart;
+				for (int i = 0; start <= bodyEnd; i++) {
+					int end = indexOf(buf, start, bodyEnd, (byte) '\n');
+					if (end < 0) end = bodyEnd;
+					GridWatchIngestEvent event = spare();
+					if (mForm.decode(buf, start, end, event) == null) {
+						hold(event, profile, i);
+					} else {
+						mRejected++;
+					}
+					start = end + 1;
+				}
+				if (!offerBatch()) {
+					respond(conn, "503 Service Unavailable", "", close);
+					return;
+				}
+			} else {
+				GridWatchIngestEvent event = spare();
+				if (mForm.decode(buf, bodyStart, bodyEnd, event) == null) {
+					if (!offer(event, profile)) {
+						respond(conn, "503 Service Unavailable", "", close);
+						return;
+					}
+					mReply.append('0');
+				} else {
+					mRejected++;
+				}
+			}
+			respond(conn, "200 OK", mReply, close);
+		}
+
+		// Hand an event to the pipeline. A rejected event object is kept to
+		// decode the next alert into.
+		boolean offer (GridWatchIngestEvent event, String profile) {
+			event.profile = profile;
+			event.receivedAt = mNow;
+			if (mPipeline.offer(event)) {
+				mSpares.remove(mSpares.size() - 1);
+				mAccepted++;
+				return true;
+			}
+			mBusy++;
+			return false;
+		}
+
+		// Add a decoded batch alert to the ones to offer together, and its
+		// index to the reply
+		void hold (GridWatchIngestEvent event, String profile, int i) {
+			event.profile = profile;
+			event.receivedAt = mNow;
+			mSpares.remove(mSpares.size() - 1);
+			mBatch.add(event);
+			appendIndex(i);
+		}
+
+		// Hand the held batch alerts to the pipeline, all or none. The
+		// phone acknowledges a whole batch, so leaving some out of the
+		// reply would lose them. Refused event objects are kept for reuse.
+		boolean offerBatch () {
+			boolean offered = mPipeline.offerAll(mBatch);
+			if (offered) {
+				mAccepted += mBatch.size();
+			} else {
+				mBusy += mBatch.size();
+				mSpares.addAll(mBatch);
+			}
+			mBatch.clear();
+			return offered;
+		}
+
+		GridWatchIngestEvent spare () {
+			if (mSpares.isEmpty()) mSpares.add(new GridWatchIngestEvent());
+			return mSpares.get(mSpares.size() - 1);
+		}
+
+		void appendIndex (int i) {
+			if (mReply.length() > 0) mReply.append(',');
+			mReply.append(i);
+		}
+
+		// The profile id from the path, without the slash or any query
+		// GET /events/<profile>?time=<ms> or ?offset=<n>, with optional &max=<n>
+		void handleEvents (Connection conn, byte[] buf, int pathStart, int pathEnd, boolean close) {
+			String profile = profile(conn, buf, pathStart, pathEnd);
+			long time = -1, offset = -1;
+			int max = DEFAULT_EVENTS;
+			int query = indexOf(buf, pathStart, pathEnd, (byte) '?');
+			if (query >= 0) {
+				String[] params = new String(buf, query + 1, pathEnd - query - 1, StandardCharsets.US_ASCII).split("&");
+				try {
+					for (String param : params) {
+						if (param.startsWith("time=")) time = Long.parseLong(param.substring(5));
+						else if (param.startsWith("offset=")) offset = Long.parseLong(param.substring(7));
+						else if (param.startsWith("max=")) max = Math.min(MAX_EVENTS, Integer.parseInt(param.substring(4)));
+					}
+				} catch (NumberFormatException e) {
+					respond(conn, "400 Bad Request", "", close);
+					return;
+				}
+			}
+			if (offset < 0) {
+				// Without either, start from the live end
+				offset = time >= 0 ? mStore.offsetAt(profile, System.currentTimeMillis() - time)
+						: mStore.getEndOffset(profile);
+			}
+
+			mEvents.clear();
+			long next = mStore.read(profile, offset, Math.max(0, max), mEvents);
+			mReply.setLength(0);
+			for (GridWatchIngestEvent event : mEvents) {
+				appendJson(mReply, event);
+				mReply.append('\n');
+			}
+			mReply.append("{\"next\":").append(next).append("}\n");
+			mEvents.clear();
+			respond(conn, "200 OK", mReply, close);
+		}
+
+		String profile (Connection conn, byte[] buf, int start, int end) {
+			if (start < end && buf[start] == '/') start++;
+			int query = indexOf(buf, start, end, (byte) '?');
+			if (query >= 0) end = query;
+			if (conn.profileBytes != null && equalsRange(buf, start, end, conn.profileBytes)) {
+				return conn.profile;
+			}
+			conn.profileBytes = new byte[end - start];
+			System.arraycopy(buf, start, conn.profileBytes, 0, end - start);
+			conn.profile = new String(conn.profileBytes, StandardCharsets.US_ASCII);
+			return conn.profile;
+		}
+
+		void respond (Connection conn, String status, CharSequence body, boolean close) {
+			StringBuilder header = mHeader;
+			header.setLength(0);
+			header.append("HTTP/1.1 ").append(status).append("\r\nContent-Type: text/plain\r\nContent-Length: ")
+					.append(body.length()).append("\r\n");
+			if (close) header.append("Connection: close\r\n");
+			header.append("\r\n");
+			putAscii(conn, header);
+			putAscii(conn, body);
+			if (close) conn.closing = true;
+		}
+	}
+
+	private static void putAscii (Connection conn, CharSequence s) {
+		int n = s.length();
+		if (conn.out.remaining() < n) {
+			conn.out = grow(conn.out, conn.out.position() + n);
+		}
+		byte[] out = conn.out.array();
+		int pos = conn.out.position();
+		for (int i = 0; i < n; i++) {
+			out[pos + i] = (byte) s.charAt(i);
+		}
+		conn.out.position(pos + n);
+	}
+
+	private static void put (Connection conn, byte[] bytes, int off, int len) {
+		if (conn.out.remaining() < len) {
+			conn.out = grow(conn.out, conn.out.position() + len);
+		}
+		conn.out.put(bytes, off, len);
+	}
+
+	private static ByteBuffer grow (ByteBuffer buffer, int size) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	private static long parseLength (byte[] buf, int start, int end) {
+		start = skipSpaces(buf, start, end);
+		if (start == end || end - start > 10) return -1;
+		long v = 0;
+		for (int i = start; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9) return -1;
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	private static int skipSpaces (byte[] buf, int start, int end) {
+		while (start < end && (buf[start] == ' ' || buf[start] == '\t')) start++;
+		return start;
+	}
+
+	private static int indexOf (byte[] buf, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == b) return i;
+		}
+		return -1;
+	}
+
+	private static int indexOf (byte[] buf, int start, int end, byte[] pattern) {
+		return indexOf(buf, start, end, pattern, pattern.length);
+	}
+
+	// Find the first len bytes of pattern in buf[start, end)
+	private static int indexOf (byte[] buf, int start, int end, byte[] pattern, int len) {
+		for (int i = start; i <= end - len; i++) {
+			int j = 0;
+			while (j < len && buf[i + j] == pattern[j]) j++;
+			if (j == len) return i;
+		}
+		return -1;
+	}
+
+	private static boolean startsWith (byte[] buf, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf[start + i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	// prefix must be lower case
+	private static boolean startsWithIgnoreCase (byte[] buf, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			int b = buf[start + i];
+			if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+			if (b != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	private static boolean equalsRange (byte[] buf, int start, int end, byte[] other) {
+		return end - start == other.length && startsWith(buf, start, end, other);
+	}
+
+	// An event with the spec's field names, plus its stream offset
+	private static void appendJson (StringBuilder out, GridWatchIngestEvent event) {
+		out.append("{\"offset\":").append(event.offset);
+		out.append(",\"id\":");
+		appendJsonString(out, event.phone);
+		out.append(",\"time\":").append(event.time);
+		out.append(",\"received\":").append(event.receivedAt);
+		out.append(",\"event_type\":");
+		appendJsonString(out, eventTypeName(event.eventType));
+		out.append(",\"network\":");
+		appendJsonString(out, networkName(event.network));
+		if (event.moved >= 0) out.append(",\"moved\":").append(event.moved != 0);
+		if (event.appVersion != null) {
+			out.append(",\"app_version\":");
+			appendJsonString(out, event.appVersion);
+		}
+		if (event.user != null) {
+			out.append(",\"user\":");
+			appendJsonString(out, event.user);
+		}
+		if (event.hasGps) {
+			out.append(",\"gps_latitude\":").append(event.gpsLatitude);
+			out.append(",\"gps_longitude\":").append(event.gpsLongitude);
+			out.append(",\"gps_accuracy\":").append(event.gpsAccuracy);
+			out.append(",\"gps_time\":").append(event.gpsTime);
+		}
+		if (event.hasNetworkFix) {
+			out.append(",\"network_latitude\":").append(event.networkLatitude);
+			out.append(",\"network_longitude\":").append(event.networkLongitude);
+			out.append(",\"network_accuracy\":").append(event.networkAccuracy);
+		}
+		if (event.flaps > 0) {
+			out.append(",\"flaps\":").append(event.flaps);
+			out.append(",\"flap_first\":").append(event.flapFirst);
+			out.append(",\"flap_last\":").append(event.flapLast);
+		}
+		out.append('}');
+	}
+
+	// Escapes everything outside printable ASCII, since replies are ASCII
+	private static void appendJsonString (StringBuilder out, String s) {
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20 || c > 0x7e) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	private static String eventTypeName (char type) {
+		switch (type) {
+		case GridWatchIngestEvent.UNPLUGGED: return "unplugged";
+		case GridWatchIngestEvent.PLUGGED: return "plugged";
+		case GridWatchIngestEvent.WD: return "wd";
+		case GridWatchIngestEvent.API: return "api";
+		default: return "unknown";
+		}
+	}
+
+	private static String networkName (char network) {
+		switch (network) {
+		case 'w': return "wifi";
+		case 'm': return "mobile";
+		case 'd': return "disconnected";
+		case 'o': return "other";
+		default: return "unknown";
+		}
+	}
+
+	private static byte[] ascii (String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static void closeQuietly (SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more to do with it
+		}
+	}
+
+	// Loads spec.txt with the event and network types the app sends that
+	// the spec predates (watchdog and API events, "other" connections)
+	public static GridWatchSpec loadSpec (File file) throws IOException {
+		GridWatchSpec spec = GridWatchSpec.load(file);
+		spec.extendEnum("event_type", "wd", "api");
+		spec.extendEnum("network", "other");
+		return spec;
+	}
+
+	// Counts the events that made it through, by type
+	public static class EventCounter implements GridWatchIngestPipeline.Stage {
+		private AtomicLong[] mCounts = new AtomicLong[128];
+
+		public EventCounter () {
+			for (int i = 0; i < mCounts.length; i++) {
+				mCounts[i] = new AtomicLong();
+			}
+		}
+
+		@Override
+		public void process (GridWatchIngestEvent event) {
+			mCounts[event.eventType & 0x7f].incrementAndGet();
+		}
+
+		@Override
+		public void flush (long now) {
+		}
+
+		public String report () {
+			return String.format("unplugged=%d plugged=%d wd=%d api=%d",
+					mCounts[GridWatchIngestEvent.UNPLUGGED].get(), mCounts[GridWatchIngestEvent.PLUGGED].get(),
+					mCounts[GridWatchIngestEvent.WD].get(), mCounts[GridWatchIngestEvent.API].get());
+		}
+	}
+
+	public static void main (String[] args) throws Exception {
+		int port = DEFAULT_PORT;
+		int loops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		int queue = DEFAULT_QUEUE;
+		String specPath = DEFAULT_SPEC;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--port")) port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--loops")) loops = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--queue")) queue = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--spec")) specPath = args[++i];
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+
+		GridWatchIngestPipeline pipeline = new GridWatchIngestPipeline(queue);
+		EventCounter counter = new EventCounter();
+		pipeline.addStage(counter);
+		pipeline.addStage(new GridWatchOutageDetector(new GridWatchOutageDetector.Listener() {
+			@Override
+			public void onOutageStart (GridWatchOutageDetector.Outage outage) {
+				System.out.println("Outage started: " + outage);
+			}
+
+			@Override
+			public void onOutageEnd (GridWatchOutageDetector.Outage outage) {
+				System.out.println("Outage ended: " + outage);
+			}
+		}));
+		GridWatchEventStore store = new GridWatchEventStore();
+		pipeline.addStage(store);
+		pipeline.start();
+
+		GridWatchIngestServer server = new GridWatchIngestServer(port, loops, loadSpec(new File(specPath)), pipeline);
+		server.setEventStore(store);
+		server.start();
+		System.out.println("Listening on port " + server.getPort() + " with " + loops + " loops");
+		while (true) {
+			Thread.sleep(REPORT_PERIOD);
+			System.out.println(server.report() + " " + pipeline.report() + " " + counter.report());
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+
+import edu.umich.eecs.gridwatch.GridWatchLogger;
+import edu.umich.eecs.gridwatch.GridWatchStore;
+
+// Compares the app's old activity log with GridWatchLogger for appends per
+// second and fsyncs per entry.
+//
+//  - old: what GridWatchLogger used to do for every entry. Format the date,
+//    open gridwatch.log with a FileWriter, write the line, close it. It
+//    never syncs, so an entry can still be lost with the page cache.
+//  - old+sync: the same with the line synced before the file is closed,
+//    what it would have cost for every entry to be on disk when log()
+//    returned.
+//  - new: GridWatchLogger on a GridWatchStore. Entries are buffered and
+//    written and synced in batches, by size, by timer, or when flush() is
+//    called; its time includes the final flush.
+//
+// The fsyncs are counted in a second, untimed pass, by watching events.log
+// after each entry: the store only writes it in a flush, and syncs every
+// flush. The same pass checks that rotation keeps the log to a bounded
+// number of segments, however many entries are written, and that flush()
+// leaves every entry on disk.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchLoggerBenchmark
+//               [--entries 20000] [--dir DIR]
+public class GridWatchLoggerBenchmark {
+
+	private int mEntries = 20000;
+	private File mDir = null;
+
+	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+
+	// The old GridWatchLogger.log()
+	private void oldLog (File file, String event_type, String info, boolean sync) throws IOException {
+		String l = mDateFormat.format(new Date()) + "|" + event_type;
+		if (info != null) {
+			l += "|" + info;
+		}
+		if (sync) {
+			FileOutputStream fos = new FileOutputStream(file, true);
+			fos.write((l + "\n").getBytes("UTF-8"));
+			fos.getFD().sync();
+			fos.close();
+		} else {
+			FileWriter logFW = new FileWriter(file.getAbsolutePath(), true);
+			logFW.write(l + "\n");
+			logFW.close();
+		}
+	}
+
+	private static String info (int i) {
+		return "t=1400000000000|e=u|c=m|i=" + i;
+	}
+
+	private static void report (String what, int entries, long ns, double fsyncs) {
+		System.out.println(String.format("%-8s entries=%d appends/s=%.0f us/append=%.1f fsyncs/entry=%.4f",
+				what, entries, entries / (ns / 1e9), ns / 1e3 / entries, fsyncs));
+	}
+
+	private void run () throws IOException {
+		File text = new File(mDir, "text");
+		text.mkdirs();
+
+		// The old logger, as it was and synced
+		File oldFile = new File(text, "gridwatch.log");
+		long t0 = System.nanoTime();
+		for (int i = 0; i < mEntries; i++) {
+			oldLog(oldFile, "event_post", info(i), false);
+		}
+		report("old", mEntries, System.nanoTime() - t0, 0);
+		long oldSize = oldFile.length();
+
+		File syncedFile = new File(text, "gridwatch_synced.log");
+		int synced = Math.max(1, mEntries / 10);
+		t0 = System.nanoTime();
+		for (int i = 0; i < synced; i++) {
+			oldLog(syncedFile, "event_post", info(i), true);
+		}
+		report("old+sync", synced, System.nanoTime() - t0, 1);
+
+		// The new logger
+		GridWatchStore store = new GridWatchStore(new File(mDir, "timed"));
+		GridWatchLogger logger = new GridWatchLogger(store);
+		t0 = System.nanoTime();
+		for (int i = 0; i < mEntries; i++) {
+			logger.log("event_post", info(i));
+		}
+		logger.flush();
+		long newNs = System.nanoTime() - t0;
+		store.close();
+
+		// Counting its flushes
+		File counted = new File(mDir, "counted");
+		store = new GridWatchStore(counted);
+		logger = new GridWatchLogger(store);
+		File log = new File(counted, "events.log");
+		long length = log.length();
+		int fsyncs = 0;
+		for (int i = 0; i < mEntries; i++) {
+			logger.log("event_post", info(i));
+			if (log.length() != length) {
+				fsyncs++;
+				length = log.length();
+			}
+		}
+		logger.flush();
+		if (log.length() != length) fsyncs++;
+		report("new", mEntries, newNs, fsyncs / (double) mEntries);
+
+		// Bounded segments, and everything flushed is on disk
+		int segments = 0;
+		long bytes = 0;
+		for (File file : counted.listFiles()) {
+			if (file.getName().startsWith("events.log")) {
+				segments++;
+				bytes += file.length();
+			}
+		}
+		System.out.println(String.format("old gridwatch.log bytes=%d; new segments=%d bytes=%d",
+				oldSize, segments, bytes));
+
+		boolean ok = true;
+		if (segments > GridWatchStore.MAX_SEGMENTS + 1) {
+			System.out.println("FAIL " + segments + " log segments, at most " + (GridWatchStore.MAX_SEGMENTS + 1) + " expected");
+			ok = false;
+		}
+		logger.log("event_post", "last");
+		logger.flush();
+		GridWatchStore reopened = new GridWatchStore(counted);
+		String last = new GridWatchLogger(reopened).get_last_value();
+		if (!"event_post".equals(last) || reopened.read(GridWatchStore.CHANNEL_LOG).isEmpty()) {
+			System.out.println("FAIL last entry after flush not found, got " + last);
+			ok = false;
+		}
+		reopened.close();
+		store.close();
+		System.out.println(ok ? "OK" : "FAIL");
+		if (!ok) System.exit(1);
+	}
+
+	private static void delete (File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main (String[] args) throws IOException {
+		GridWatchLoggerBenchmark benchmark = new GridWatchLoggerBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--entries")) benchmark.mEntries = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--dir")) benchmark.mDir = new File(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		boolean temp = benchmark.mDir == null;
+		if (temp) {
+			benchmark.mDir = File.createTempFile("gridwatch-logger", "");
+			benchmark.mDir.delete();
+		}
+		try {
+			benchmark.run();
+		} finally {
+			if (temp) delete(benchmark.mDir);
+		}
+	}
+}
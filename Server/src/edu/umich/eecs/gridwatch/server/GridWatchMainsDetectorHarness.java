@@ -0,0 +1,316 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchAdpcmReader;
+import edu.umich.eecs.gridwatch.GridWatchAdpcmWriter;
+import edu.umich.eecs.gridwatch.GridWatchMainsDetector;
+
+// Feeds GridWatchMainsDetector audio with known answers and reports how
+// often it is right, then how much it costs.
+//
+// Synthetic audio is 3 s of 44.1 kHz stereo, as the app records it, in
+// AudioRecord sized buffers. Hum trials are a 50 or 60 Hz grid off nominal
+// by up to 0.5 Hz, with random harmonics, at a level from --min-db to
+// --max-db under white noise; the hit rate is reported per 10 dB of level.
+// Quiet trials are noise alone, a tone away from the mains frequencies, or
+// bursts of tones in the speech band; the false alarm rate is reported for
+// each.
+//
+// Recordings from GW_recordings, 16-bit PCM WAV or the app's IMA ADPCM WAV,
+// can be added with --hum (recordings known to have hum, e.g. of a phone
+// unplugged with the grid up) and --quiet (recorded in outages). Each
+// directory or file gets a hit or false alarm rate, and --verbose lists
+// every recording's confidence.
+//
+// Last it times the detector on 44.1 kHz stereo against real time and
+// checks that it allocates nothing per buffer.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchMainsDetectorHarness
+//               [--trials 200] [--min-db -60] [--max-db -20] [--noise-db -50]
+//               [--hum DIR|FILE]... [--quiet DIR|FILE]... [--verbose]
+public class GridWatchMainsDetectorHarness {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int CHANNELS = 2;
+	private final static int RECORDER_TIME = 3000;
+	private final static int READ_SIZE = 7104;
+	private final static int FORMAT_PCM = 1;
+
+	private int mTrials = 200;
+	private double mMinDb = -60;
+	private double mMaxDb = -20;
+	private double mNoiseDb = -50;
+	private boolean mVerbose = false;
+
+	private byte[] mBuffer = new byte[READ_SIZE];
+
+	// A recording: interleaved 16-bit little endian PCM
+	private static class Audio {
+		byte[] pcm;
+		int rate;
+		int channels;
+	}
+
+	private static double fromDb (double db) {
+		return Math.pow(10, db / 20);
+	}
+
+	private static void put (byte[] audio, int pos, double y) {
+		int s = (int) Math.round(y * 32767);
+		if (s > Short.MAX_VALUE) s = Short.MAX_VALUE;
+		else if (s < Short.MIN_VALUE) s = Short.MIN_VALUE;
+		audio[pos] = (byte) s;
+		audio[pos + 1] = (byte) (s >> 8);
+	}
+
+	// Hum at frequency with the given harmonics, or none if amplitude is 0,
+	// plus a tone at toneHz, under noise
+	private Audio synthesize (Random random, double frequency, double amplitude, double second, double third,
+			double toneHz, double toneAmplitude, boolean bursts) {
+		int frames = SAMPLE_FREQUENCY * RECORDER_TIME / 1000;
+		byte[] pcm = new byte[frames * CHANNELS * 2];
+		double noise = fromDb(mNoiseDb);
+		double p1 = random.nextDouble() * 2 * Math.PI;
+		double p2 = random.nextDouble() * 2 * Math.PI;
+		double p3 = random.nextDouble() * 2 * Math.PI;
+		double tone = toneHz;
+		for (int f = 0, pos = 0; f < frames; f++) {
+			// Speech-like: a new pitch every 100 ms, silent half the time
+			if (bursts && f % (SAMPLE_FREQUENCY / 10) == 0) {
+				tone = random.nextBoolean() ? 200 + random.nextDouble() * 2800 : 0;
+			}
+			double w = 2 * Math.PI * frequency * f / SAMPLE_FREQUENCY;
+			double x = amplitude * (Math.sin(w + p1) + second * Math.sin(2 * w + p2) + third * Math.sin(3 * w + p3));
+			if (tone > 0) x += toneAmplitude * Math.sin(2 * Math.PI * tone * f / SAMPLE_FREQUENCY);
+			for (int c = 0; c < CHANNELS; c++) {
+				put(pcm, pos, x + noise * random.nextGaussian());
+				pos += 2;
+			}
+		}
+		Audio audio = new Audio();
+		audio.pcm = pcm;
+		audio.rate = SAMPLE_FREQUENCY;
+		audio.channels = CHANNELS;
+		return audio;
+	}
+
+	// Run the detector over audio in AudioRecord sized buffers
+	private float confidence (GridWatchMainsDetector detector, Audio audio) {
+		detector.reset();
+		for (int off = 0; off < audio.pcm.length; off += READ_SIZE) {
+			int len = Math.min(READ_SIZE, audio.pcm.length - off);
+			System.arraycopy(audio.pcm, off, mBuffer, 0, len);
+			detector.addSamples(mBuffer, len);
+		}
+		return detector.getConfidence();
+	}
+
+	private void synthetic () {
+		Random random = new Random(7);
+		GridWatchMainsDetector detector = new GridWatchMainsDetector(SAMPLE_FREQUENCY, CHANNELS);
+
+		// Hum, by level
+		int bands = (int) Math.ceil((mMaxDb - mMinDb) / 10);
+		int[] trials = new int[bands];
+		int[] hits = new int[bands];
+		for (int t = 0; t < mTrials; t++) {
+			double db = mMinDb + random.nextDouble() * (mMaxDb - mMinDb);
+			double frequency = (random.nextBoolean() ? 50 : 60) + (random.nextDouble() - 0.5);
+			Audio audio = synthesize(random, frequency, fromDb(db), 0.5 * random.nextDouble(),
+					0.5 * random.nextDouble(), 0, 0, false);
+			int band = Math.min(bands - 1, (int) ((db - mMinDb) / 10));
+			trials[band]++;
+			if (confidence(detector, audio) >= GridWatchMainsDetector.HUM_THRESHOLD) hits[band]++;
+		}
+		for (int b = 0; b < bands; b++) {
+			System.out.println(String.format("hum     level_dbfs=[%.0f,%.0f) noise_dbfs=%.0f trials=%d hit_rate=%.3f miss_rate=%.3f",
+					mMinDb + 10 * b, Math.min(mMaxDb, mMinDb + 10 * (b + 1)), mNoiseDb, trials[b],
+					rate(hits[b], trials[b]), rate(trials[b] - hits[b], trials[b])));
+		}
+
+		// No hum
+		String[] kinds = {"noise", "tone_440hz", "tone_80hz", "speech"};
+		for (String kind : kinds) {
+			int alarms = 0;
+			for (int t = 0; t < mTrials; t++) {
+				double level = fromDb(-40 + 20 * random.nextDouble());
+				Audio audio;
+				if (kind.equals("noise")) {
+					audio = synthesize(random, 0, 0, 0, 0, 0, 0, false);
+				} else if (kind.equals("tone_440hz")) {
+					audio = synthesize(random, 0, 0, 0, 0, 440, level, false);
+				} else if (kind.equals("tone_80hz")) {
+					audio = synthesize(random, 0, 0, 0, 0, 80, level, false);
+				} else {
+					audio = synthesize(random, 0, 0, 0, 0, 0, level, true);
+				}
+				if (confidence(detector, audio) >= GridWatchMainsDetector.HUM_THRESHOLD) alarms++;
+			}
+			System.out.println(String.format("quiet   kind=%s trials=%d false_alarm_rate=%.3f",
+					kind, mTrials, rate(alarms, mTrials)));
+		}
+	}
+
+	private static double rate (int count, int total) {
+		return total == 0 ? 0 : count / (double) total;
+	}
+
+	// Recordings with a known answer
+	private void recorded (String path, boolean hum) throws IOException {
+		File root = new File(path);
+		File[] files = root.isDirectory() ? root.listFiles() : new File[] {root};
+		if (files == null) throw new IOException("Can't list " + path);
+		Arrays.sort(files);
+
+		int count = 0;
+		int detected = 0;
+		int skipped = 0;
+		double confidenceTotal = 0;
+		for (File file : files) {
+			if (!file.getName().toLowerCase().endsWith(".wav")) continue;
+			Audio audio;
+			try {
+				audio = read(file);
+			} catch (IOException e) {
+				skipped++;
+				if (mVerbose) System.out.println("  skipped " + file + ": " + e.getMessage());
+				continue;
+			}
+			GridWatchMainsDetector detector = new GridWatchMainsDetector(audio.rate, audio.channels);
+			float confidence = confidence(detector, audio);
+			count++;
+			confidenceTotal += confidence;
+			if (confidence >= GridWatchMainsDetector.HUM_THRESHOLD) detected++;
+			if (mVerbose) {
+				System.out.println(String.format("  %s rate=%d channels=%d confidence=%.3f",
+						file.getName(), audio.rate, audio.channels, confidence));
+			}
+		}
+		if (hum) {
+			System.out.println(String.format("hum     recordings=%s files=%d skipped=%d hit_rate=%.3f miss_rate=%.3f mean_confidence=%.3f",
+					path, count, skipped, rate(detected, count), rate(count - detected, count),
+					count == 0 ? 0 : confidenceTotal / count));
+		} else {
+			System.out.println(String.format("quiet   recordings=%s files=%d skipped=%d false_alarm_rate=%.3f mean_confidence=%.3f",
+					path, count, skipped, rate(detected, count), count == 0 ? 0 : confidenceTotal / count));
+		}
+	}
+
+	// A 16-bit PCM WAV, or an IMA ADPCM one as the app writes now
+	private static Audio read (File file) throws IOException {
+		byte[] bytes;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() < 12 || buffer.getInt(0) != 0x46464952 || buffer.getInt(8) != 0x45564157) {
+			throw new IOException("not a WAV file");
+		}
+
+		Audio audio = new Audio();
+		int format = -1;
+		int bits = 0;
+		int dataStart = -1;
+		int dataLength = 0;
+		buffer.position(12);
+		while (buffer.remaining() >= 8) {
+			int id = buffer.getInt();
+			int size = buffer.getInt();
+			int start = buffer.position();
+			if (size < 0 || size > buffer.remaining()) size = buffer.remaining();
+			if (id == 0x20746d66) {  // 'fmt '
+				format = buffer.getShort() & 0xffff;
+				audio.channels = buffer.getShort();
+				audio.rate = buffer.getInt();
+				buffer.getInt();
+				buffer.getShort();
+				bits = buffer.getShort();
+			} else if (id == 0x61746164) {  // 'data'
+				dataStart = start;
+				dataLength = size;
+			}
+			buffer.position(start + size + (size & 1));
+		}
+
+		if (format == GridWatchAdpcmWriter.FORMAT_IMA_ADPCM) {
+			GridWatchAdpcmReader adpcm = new GridWatchAdpcmReader(file);
+			short[] samples = adpcm.getSamples();
+			audio.pcm = new byte[samples.length * 2];
+			for (int i = 0; i < samples.length; i++) {
+				audio.pcm[2 * i] = (byte) samples[i];
+				audio.pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+			}
+			audio.rate = adpcm.getSampleRate();
+			audio.channels = 1;
+			return audio;
+		}
+		if (format != FORMAT_PCM || bits != 16 || dataStart < 0 || audio.channels < 1) {
+			throw new IOException("not 16-bit PCM or IMA ADPCM");
+		}
+		audio.pcm = new byte[dataLength];
+		System.arraycopy(bytes, dataStart, audio.pcm, 0, dataLength);
+		return audio;
+	}
+
+	private void throughput () {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		Audio audio = synthesize(new Random(11), 59.98, 0.02, 0.2, 0.1, 0, 0, false);
+		GridWatchMainsDetector detector = new GridWatchMainsDetector(SAMPLE_FREQUENCY, CHANNELS);
+		int recordings = 100;
+		int buffers = (audio.pcm.length + READ_SIZE - 1) / READ_SIZE;
+		double sink = 0;
+		for (int pass = 0; pass < 3; pass++) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long cpu = threads.getCurrentThreadCpuTime();
+			for (int i = 0; i < recordings; i++) {
+				sink += confidence(detector, audio);
+			}
+			cpu = threads.getCurrentThreadCpuTime() - cpu;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+			double ms = cpu / 1e6 / recordings;
+			System.out.println(String.format(
+					"speed   pass=%d cpu_ms/recording=%.2f of %d ms (%.2f%% of real time) bytes/buffer=%.2f",
+					pass, ms, RECORDER_TIME, 100 * ms / RECORDER_TIME, bytes / (double) (recordings * buffers)));
+		}
+		System.out.println("sink=" + sink);
+	}
+
+	public static void main (String[] args) throws IOException {
+		GridWatchMainsDetectorHarness harness = new GridWatchMainsDetectorHarness();
+		List<String> hum = new ArrayList<String>();
+		List<String> quiet = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--trials")) harness.mTrials = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--min-db")) harness.mMinDb = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--max-db")) harness.mMaxDb = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--noise-db")) harness.mNoiseDb = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--hum")) hum.add(args[++i]);
+			else if (args[i].equals("--quiet")) quiet.add(args[++i]);
+			else if (args[i].equals("--verbose")) harness.mVerbose = true;
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		harness.synthetic();
+		for (String path : hum) {
+			harness.recorded(path, true);
+		}
+		for (String path : quiet) {
+			harness.recorded(path, false);
+		}
+		harness.throughput();
+	}
+}
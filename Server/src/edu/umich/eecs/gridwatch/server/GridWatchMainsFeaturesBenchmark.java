@@ -0,0 +1,159 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchMainsFeatures;
+
+// Checks GridWatchMainsFeatures against synthetic hum with known answers,
+// and measures how long it takes per unplug recording.
+//
+// Each trial is 3 s of 44.1 kHz stereo, as the app records it, handed over
+// in AudioRecord sized buffers: a 50 or 60 Hz grid off nominal by up to
+// 0.5 Hz, with random level, 2nd and 3rd harmonics and phases, under white
+// noise. Reports the worst and RMS frequency error, the level and harmonic
+// ratio errors, then CPU time per recording against RECORDER_TIME, and
+// bytes allocated per recording by a reused instance and a new one.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchMainsFeaturesBenchmark
+//               [--trials 200] [--events 200] [--noise 0.01]
+public class GridWatchMainsFeaturesBenchmark {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int CHANNELS = 2;
+	private final static int RECORDER_TIME = 3000;
+	private final static int READ_SIZE = 7104;
+
+	private int mTrials = 200;
+	private int mEvents = 200;
+	private double mNoise = 0.01;
+
+	private static class Hum {
+		double frequency;
+		double amplitude;
+		double second;
+		double third;
+	}
+
+	private byte[] synthesize (Random random, Hum hum) {
+		int frames = SAMPLE_FREQUENCY * RECORDER_TIME / 1000;
+		byte[] audio = new byte[frames * CHANNELS * 2];
+		double p1 = random.nextDouble() * 2 * Math.PI;
+		double p2 = random.nextDouble() * 2 * Math.PI;
+		double p3 = random.nextDouble() * 2 * Math.PI;
+		for (int f = 0, pos = 0; f < frames; f++) {
+			double w = 2 * Math.PI * hum.frequency * f / SAMPLE_FREQUENCY;
+			double x = hum.amplitude * (Math.sin(w + p1) + hum.second * Math.sin(2 * w + p2)
+					+ hum.third * Math.sin(3 * w + p3));
+			for (int c = 0; c < CHANNELS; c++) {
+				double y = x + mNoise * random.nextGaussian();
+				int s = (int) Math.round(y * 32767);
+				if (s > Short.MAX_VALUE) s = Short.MAX_VALUE;
+				else if (s < Short.MIN_VALUE) s = Short.MIN_VALUE;
+				audio[pos++] = (byte) s;
+				audio[pos++] = (byte) (s >> 8);
+			}
+		}
+		return audio;
+	}
+
+	private static void feed (GridWatchMainsFeatures features, byte[] audio, byte[] buffer) {
+		for (int off = 0; off < audio.length; off += READ_SIZE) {
+			// AudioRecord.read() fills a buffer of its own
+			int len = Math.min(READ_SIZE, audio.length - off);
+			System.arraycopy(audio, off, buffer, 0, len);
+			features.addSamples(buffer, len);
+		}
+	}
+
+	private void accuracy () {
+		Random random = new Random(7);
+		byte[] buffer = new byte[READ_SIZE];
+		double worst = 0;
+		double squares = 0;
+		double levelError = 0;
+		double harmonicError = 0;
+		double snrTotal = 0;
+		int found = 0;
+		for (int t = 0; t < mTrials; t++) {
+			Hum hum = new Hum();
+			hum.frequency = (random.nextBoolean() ? 50 : 60) + (random.nextDouble() - 0.5);
+			hum.amplitude = Math.pow(10, (-40 + 20 * random.nextDouble()) / 20);
+			hum.second = 0.5 * random.nextDouble();
+			hum.third = 0.5 * random.nextDouble();
+			byte[] audio = synthesize(random, hum);
+
+			GridWatchMainsFeatures features = new GridWatchMainsFeatures(SAMPLE_FREQUENCY, CHANNELS);
+			feed(features, audio, buffer);
+			if (!features.finish()) continue;
+			found++;
+
+			double error = Math.abs(features.getFrequency() - hum.frequency);
+			worst = Math.max(worst, error);
+			squares += error * error;
+			levelError = Math.max(levelError, Math.abs(features.getAmplitudeDb() - 20 * Math.log10(hum.amplitude)));
+			harmonicError = Math.max(harmonicError, Math.max(Math.abs(features.getSecondHarmonicRatio() - hum.second),
+					Math.abs(features.getThirdHarmonicRatio() - hum.third)));
+			snrTotal += features.getSnr();
+		}
+		System.out.println(String.format(
+				"accuracy trials=%d found=%d freq_err_hz max=%.4f rms=%.4f level_err_db max=%.2f harmonic_ratio_err max=%.3f snr_db mean=%.1f",
+				mTrials, found, worst, Math.sqrt(squares / Math.max(found, 1)), levelError, harmonicError,
+				snrTotal / Math.max(found, 1)));
+	}
+
+	private void throughput () {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		Random random = new Random(11);
+		Hum hum = new Hum();
+		hum.frequency = 59.98;
+		hum.amplitude = 0.02;
+		hum.second = 0.2;
+		hum.third = 0.1;
+		byte[] audio = synthesize(random, hum);
+		byte[] buffer = new byte[READ_SIZE];
+		double sink = 0;
+
+		GridWatchMainsFeatures reused = new GridWatchMainsFeatures(SAMPLE_FREQUENCY, CHANNELS);
+		for (int pass = 0; pass < 3; pass++) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long cpu = threads.getCurrentThreadCpuTime();
+			for (int i = 0; i < mEvents; i++) {
+				reused.reset();
+				feed(reused, audio, buffer);
+				reused.finish();
+				sink += reused.getFrequency();
+			}
+			cpu = threads.getCurrentThreadCpuTime() - cpu;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+			long newBytes = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < 20; i++) {
+				GridWatchMainsFeatures features = new GridWatchMainsFeatures(SAMPLE_FREQUENCY, CHANNELS);
+				feed(features, audio, buffer);
+				features.finish();
+				sink += features.getFrequency();
+			}
+			newBytes = threads.getThreadAllocatedBytes(thread) - newBytes;
+
+			double ms = cpu / 1e6 / mEvents;
+			System.out.println(String.format(
+					"throughput pass=%d cpu_ms/recording=%.2f of RECORDER_TIME=%d (%.2f%%) bytes/recording reused=%d new=%d",
+					pass, ms, RECORDER_TIME, 100 * ms / RECORDER_TIME, bytes / mEvents, newBytes / 20));
+		}
+		System.out.println("sink=" + sink);
+	}
+
+	public static void main (String[] args) {
+		GridWatchMainsFeaturesBenchmark benchmark = new GridWatchMainsFeaturesBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--trials")) benchmark.mTrials = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--events")) benchmark.mEvents = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--noise")) benchmark.mNoise = Double.parseDouble(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.accuracy();
+		benchmark.throughput();
+	}
+}
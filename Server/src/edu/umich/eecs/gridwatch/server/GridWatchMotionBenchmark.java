@@ -0,0 +1,311 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchEventLoop;
+import edu.umich.eecs.gridwatch.GridWatchMotionDetector;
+
+// Measures the cost per accelerometer sample of deciding whether the phone
+// moved after an unplug, at sensor rates of 50 to 200 Hz with 1 to 50
+// unplug events waiting on a verdict, three ways:
+//  - per-event: what onSensorChanged used to do, handing every sample to
+//    every waiting event, each keeping its own running sums
+//  - shared: the app's GridWatchMotionDetector driven as GridWatchEventLoop
+//    drives it. Each sample is added once. The last second is tested for
+//    movement at most every MOTION_CHECK_INTERVAL ms, and if it shows any
+//    every waiting event is asked for its verdict; otherwise events are
+//    only asked once their windows have ended.
+//  - shared-every: the same detector with every event asked on every
+//    sample
+// Samples are synthetic: a phone lying still, picked up now and then for a
+// second or two. Unplugs are spread so that about --pending of them are
+// waiting at once. Each way decides the same events, and shared-every must
+// give every one the same verdict as per-event; the gated shared verdicts
+// are counted where they differ. Times are the best of --repeat runs, and
+// it fails, after a loss has been measured again, if shared is not faster
+// than per-event with 5 or more events waiting. With one event both do
+// about the same work per sample, reading it and taking one square root,
+// so there shared only has to keep within PARITY of per-event.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchMotionBenchmark
+//               [--seconds 600] [--repeat 5] [--capacity 1024]
+public class GridWatchMotionBenchmark {
+
+	private final static int[] RATES = { 50, 100, 200 };
+	private final static int[] PENDING = { 1, 5, 10, 20, 50 };
+
+	// As in GridWatchMotionDetector and GridWatchEventLoop
+	private final static long WINDOW = GridWatchMotionDetector.MOTION_WINDOW_MS;
+	private final static float MOTION_THRESHOLD = 0.3f;
+	private final static int MIN_SAMPLES = 3;
+	private final static long MOTION_CHECK_WINDOW = GridWatchEventLoop.MOTION_CHECK_WINDOW;
+	private final static long MOTION_CHECK_INTERVAL = GridWatchEventLoop.MOTION_CHECK_INTERVAL;
+
+	// Rounds of measuring again before shared losing to per-event counts
+	private final static int REMEASURE = 3;
+
+	// How much slower than per-event shared may be with one event waiting
+	private final static double PARITY = 1.15;
+
+	private final static int PER_EVENT = 0;
+	private final static int SHARED = 1;
+	private final static int SHARED_EVERY = 2;
+	private final static String[] NAMES = { "per-event", "shared", "shared-every" };
+
+	private int mSeconds = 600;
+	private int mRepeat = 5;
+	private int mCapacity = 1024;
+
+	// One trace of samples and unplug times
+	private static class Trace {
+		long[] time;
+		float[] x;
+		float[] y;
+		float[] z;
+		long[] starts;
+	}
+
+	// What one way did with a trace
+	private static class Result {
+		int[] verdicts;
+		long nanos;
+		long fed;
+		long checks;
+		long pendingSum;
+	}
+
+	private Trace trace (int rate, int pending, long seed) {
+		Random random = new Random(seed);
+		Trace trace = new Trace();
+		int n = mSeconds * rate;
+		trace.time = new long[n];
+		trace.x = new float[n];
+		trace.y = new float[n];
+		trace.z = new float[n];
+		long movingUntil = -1;
+		for (int i = 0; i < n; i++) {
+			long t = (long) (i * 1000.0 / rate);
+			if (t > movingUntil && random.nextDouble() < 0.05 / rate) {
+				movingUntil = t + 1000 + random.nextInt(1000);
+			}
+			double noise = t <= movingUntil ? 2.0 : 0.02;
+			trace.time[i] = t;
+			trace.x[i] = (float) (random.nextGaussian() * noise);
+			trace.y[i] = (float) (random.nextGaussian() * noise);
+			trace.z[i] = (float) (9.81 + random.nextGaussian() * noise);
+		}
+		long gap = Math.max(1, WINDOW / pending);
+		int count = (int) ((mSeconds * 1000l - 2 * WINDOW) / gap);
+		trace.starts = new long[count];
+		for (int i = 0; i < count; i++) {
+			trace.starts[i] = WINDOW + i * gap + random.nextInt((int) gap);
+		}
+		Arrays.sort(trace.starts);
+		return trace;
+	}
+
+	private Result perEvent (Trace trace) {
+		Result result = new Result();
+		int events = trace.starts.length;
+		result.verdicts = new int[events];
+		int[] pending = new int[events];
+		int[] n = new int[events];
+		double[] sum = new double[events];
+		double[] sumSq = new double[events];
+		int count = 0;
+		int next = 0;
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < trace.time.length; i++) {
+			long now = trace.time[i];
+			while (next < events && trace.starts[next] <= now) {
+				pending[count++] = next++;
+			}
+			if (count == 0) continue;
+			result.fed++;
+			result.pendingSum += count;
+			float x = trace.x[i], y = trace.y[i], z = trace.z[i];
+			float mag = (float) Math.sqrt(x*x + y*y + z*z);
+			for (int k = 0; k < count;) {
+				int e = pending[k];
+				long end = trace.starts[e] + WINDOW;
+				int verdict = GridWatchMotionDetector.UNDECIDED;
+				if (now > end) {
+					verdict = GridWatchMotionDetector.STILL;
+				} else {
+					n[e]++;
+					sum[e] += mag;
+					sumSq[e] += (double) mag * mag;
+					if (n[e] >= MIN_SAMPLES) {
+						double mean = sum[e] / n[e];
+						double sd = Math.sqrt(Math.max(0, sumSq[e] / n[e] - mean * mean));
+						if (sd > MOTION_THRESHOLD) verdict = GridWatchMotionDetector.MOVED;
+					}
+					if (verdict == GridWatchMotionDetector.UNDECIDED && now >= end) {
+						verdict = GridWatchMotionDetector.STILL;
+					}
+				}
+				if (verdict != GridWatchMotionDetector.UNDECIDED) {
+					result.verdicts[e] = verdict;
+					pending[k] = pending[--count];
+				} else {
+					k++;
+				}
+			}
+		}
+		result.nanos = System.nanoTime() - t0;
+		return result;
+	}
+
+	private Result shared (Trace trace, boolean gated) {
+		Result result = new Result();
+		int events = trace.starts.length;
+		result.verdicts = new int[events];
+		int[] pending = new int[events];
+		int count = 0;
+		int next = 0;
+		GridWatchMotionDetector detector = new GridWatchMotionDetector(mCapacity);
+		long deadline = Long.MAX_VALUE;
+		long nextMovingCheck = 0;
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < trace.time.length; i++) {
+			long now = trace.time[i];
+			while (next < events && trace.starts[next] <= now) {
+				deadline = Math.min(deadline, trace.starts[next] + WINDOW);
+				pending[count++] = next++;
+			}
+			// The sensor is off while nothing is waiting
+			if (count == 0) continue;
+			result.fed++;
+			result.pendingSum += count;
+			detector.addSample(now, trace.x[i], trace.y[i], trace.z[i]);
+			boolean moving = !gated;
+			if (gated && now < deadline) {
+				if (now < nextMovingCheck) continue;
+				nextMovingCheck = now + MOTION_CHECK_INTERVAL;
+				if (!detector.recentlyMoving(MOTION_CHECK_WINDOW)) continue;
+				moving = true;
+			}
+
+			result.checks++;
+			deadline = Long.MAX_VALUE;
+			for (int k = 0; k < count;) {
+				int e = pending[k];
+				if (!moving && now < trace.starts[e] + WINDOW) {
+					deadline = Math.min(deadline, trace.starts[e] + WINDOW);
+					k++;
+					continue;
+				}
+				int verdict = detector.verdict(trace.starts[e]);
+				if (verdict != GridWatchMotionDetector.UNDECIDED) {
+					result.verdicts[e] = verdict;
+					pending[k] = pending[--count];
+				} else {
+					deadline = Math.min(deadline, trace.starts[e] + WINDOW);
+					k++;
+				}
+			}
+			if (count == 0) {
+				detector.reset();
+			}
+		}
+		result.nanos = System.nanoTime() - t0;
+		return result;
+	}
+
+	private Result run (int way, Trace trace) {
+		switch (way) {
+		case PER_EVENT:
+			return perEvent(trace);
+		case SHARED:
+			return shared(trace, true);
+		default:
+			return shared(trace, false);
+		}
+	}
+
+	private static int differences (Result a, Result b) {
+		int diff = 0;
+		for (int i = 0; i < a.verdicts.length; i++) {
+			if (a.verdicts[i] != b.verdicts[i]) diff++;
+		}
+		return diff;
+	}
+
+	private static int moved (Result result) {
+		int moved = 0;
+		for (int verdict : result.verdicts) {
+			if (verdict == GridWatchMotionDetector.MOVED) moved++;
+		}
+		return moved;
+	}
+
+	private void run () {
+		// Warm up every way on the largest case
+		Trace warm = trace(RATES[RATES.length - 1], PENDING[PENDING.length - 1], 0);
+		for (int way = 0; way < NAMES.length; way++) {
+			run(way, warm);
+		}
+
+		boolean ok = true;
+		System.out.println(String.format("seconds=%d repeat=%d capacity=%d", mSeconds, mRepeat, mCapacity));
+		for (int rate : RATES) {
+			for (int pending : PENDING) {
+				Trace trace = trace(rate, pending, rate * 100 + pending);
+				Result[] results = new Result[NAMES.length];
+				for (int way = 0; way < NAMES.length; way++) {
+					results[way] = run(way, trace);
+					for (int i = 1; i < mRepeat; i++) {
+						results[way].nanos = Math.min(results[way].nanos, run(way, trace).nanos);
+					}
+				}
+				double limit = (pending == 1) ? PARITY : 1.0;
+				for (int i = 0; i < REMEASURE && results[SHARED].nanos >= results[PER_EVENT].nanos * limit; i++) {
+					for (int k = 0; k < mRepeat; k++) {
+						results[PER_EVENT].nanos = Math.min(results[PER_EVENT].nanos, run(PER_EVENT, trace).nanos);
+						results[SHARED].nanos = Math.min(results[SHARED].nanos, run(SHARED, trace).nanos);
+					}
+				}
+				for (int way = 0; way < NAMES.length; way++) {
+					Result r = results[way];
+					System.out.println(String.format(
+							"rate_hz=%d pending=%d avg_pending=%.1f %-12s ns/sample=%.0f checks/sample=%.3f events=%d moved=%d",
+							rate, pending, r.pendingSum / (double) Math.max(1, r.fed), NAMES[way],
+							r.nanos / (double) Math.max(1, r.fed), r.checks / (double) Math.max(1, r.fed),
+							r.verdicts.length, moved(r)));
+				}
+				int every = differences(results[PER_EVENT], results[SHARED_EVERY]);
+				int gated = differences(results[PER_EVENT], results[SHARED]);
+				if (gated > 0) {
+					System.out.println(String.format("rate_hz=%d pending=%d shared verdicts differing from per-event=%d",
+							rate, pending, gated));
+				}
+				if (results[SHARED].nanos >= results[PER_EVENT].nanos * limit) {
+					System.out.println(String.format("FAIL rate_hz=%d pending=%d shared not faster than per-event%s",
+							rate, pending, (pending == 1) ? " within parity" : ""));
+					ok = false;
+				}
+				if (every > 0) {
+					System.out.println(String.format("FAIL rate_hz=%d pending=%d shared-every verdicts differing from per-event=%d",
+							rate, pending, every));
+					ok = false;
+				}
+			}
+		}
+		System.out.println(ok ? "OK" : "FAIL");
+		if (!ok) System.exit(1);
+	}
+
+	public static void main (String[] args) {
+		GridWatchMotionBenchmark benchmark = new GridWatchMotionBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--seconds")) benchmark.mSeconds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--repeat")) benchmark.mRepeat = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--capacity")) benchmark.mCapacity = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.run();
+	}
+}
@@ -0,0 +1,306 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Feeds GridWatchOutageDetector a synthetic day of events for a city's
+// worth of phones and reports how fast it runs and how quickly it calls
+// the outages we planted.
+//
+// Phones are spread evenly over the region. Each one is plugged in and
+// unplugged at random a few times a day, sends a daily watchdog event and
+// delivers its events after a short, occasionally long, delay. Outages
+// cover a disc of phones for a while: those plugged in at the start report
+// an unplug and later a plug.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchOutageBenchmark
+//               [--phones 200000] [--hours 24] [--outages 20]
+//               [--toggles 6] [--precision 6] [--passes 3] [--seed 1]
+public class GridWatchOutageBenchmark {
+
+	private final static double SOUTH = 42.20, NORTH = 42.45;
+	private final static double WEST = -83.85, EAST = -83.55;
+	private final static double KM_PER_DEGREE = 111.2;
+
+	private final static long MINUTE = 60 * 1000l;
+	private final static long HOUR = 60 * MINUTE;
+	private final static long DAY = 24 * HOUR;
+	private final static long BASE_TIME = 1400000000000l;
+
+	private int mPhones = 200000;
+	private int mHours = 24;
+	private int mOutageCount = 20;
+	private double mToggles = 6;
+	private int mPrecision = GridWatchOutageDetector.DEFAULT_PRECISION;
+	private int mPasses = 3;
+	private Random mRandom = new Random(1);
+
+	private double[] mLatitude;
+	private double[] mLongitude;
+	private String[] mIds;
+
+	private static class PlantedOutage {
+		double latitude, longitude, radius;
+		long start, end;
+		long firstArrival = Long.MAX_VALUE;
+		long detected = -1;
+		long ended = -1;
+		int cells;
+	}
+
+	private PlantedOutage[] mOutages;
+
+	// Events, in the order the server gets them
+	private int mCount = 0;
+	private long[] mTime = new long[1 << 20];
+	private long[] mArrival = new long[1 << 20];
+	private int[] mPhone = new int[1 << 20];
+	private char[] mType = new char[1 << 20];
+	private long[] mOrder;
+
+	private void generate () {
+		mLatitude = new double[mPhones];
+		mLongitude = new double[mPhones];
+		mIds = new String[mPhones];
+		for (int p = 0; p < mPhones; p++) {
+			mLatitude[p] = SOUTH + mRandom.nextDouble() * (NORTH - SOUTH);
+			mLongitude[p] = WEST + mRandom.nextDouble() * (EAST - WEST);
+			mIds[p] = String.format("%08x", p);
+		}
+
+		long length = mHours * HOUR;
+		mOutages = new PlantedOutage[mOutageCount];
+		for (int i = 0; i < mOutageCount; i++) {
+			PlantedOutage outage = new PlantedOutage();
+			outage.latitude = SOUTH + 0.1 + mRandom.nextDouble() * (NORTH - SOUTH - 0.2);
+			outage.longitude = WEST + 0.1 + mRandom.nextDouble() * (EAST - WEST - 0.2);
+			outage.radius = 0.5 + mRandom.nextDouble() * 1.5;
+			outage.start = HOUR + (long) (mRandom.nextDouble() * (length - 3 * HOUR));
+			outage.end = outage.start + 10 * MINUTE + (long) (mRandom.nextDouble() * 110 * MINUTE);
+			mOutages[i] = outage;
+		}
+
+		double meanGap = DAY / mToggles;
+		for (int p = 0; p < mPhones; p++) {
+			PlantedOutage outage = null;
+			for (PlantedOutage o : mOutages) {
+				if (distance(mLatitude[p], mLongitude[p], o.latitude, o.longitude) < o.radius) {
+					outage = o;
+					break;
+				}
+			}
+
+			// Daily watchdog
+			for (long t = (long) (mRandom.nextDouble() * DAY); t < length; t += DAY) {
+				add(p, t, GridWatchIngestEvent.WD, null);
+			}
+
+			boolean plugged = mRandom.nextBoolean();
+			boolean outageDone = outage == null;
+			long t = (long) (-Math.log(1 - mRandom.nextDouble()) * meanGap);
+			while (true) {
+				if (!outageDone && t >= outage.start) {
+					// Power goes out; background toggles during it are lost
+					if (plugged) {
+						add(p, outage.start + mRandom.nextInt(2000), GridWatchIngestEvent.UNPLUGGED, outage);
+						if (outage.end < length) {
+							add(p, outage.end + mRandom.nextInt(30000), GridWatchIngestEvent.PLUGGED, null);
+						}
+					}
+					outageDone = true;
+					if (t < outage.end) t = outage.end + (long) (-Math.log(1 - mRandom.nextDouble()) * meanGap);
+					continue;
+				}
+				if (t >= length) break;
+				plugged = !plugged;
+				add(p, t, plugged ? GridWatchIngestEvent.PLUGGED : GridWatchIngestEvent.UNPLUGGED, null);
+				t += (long) (-Math.log(1 - mRandom.nextDouble()) * meanGap);
+			}
+		}
+
+		// Arrival order
+		mOrder = new long[mCount];
+		for (int i = 0; i < mCount; i++) {
+			mOrder[i] = mArrival[i] << 35 | i;
+		}
+		Arrays.sort(mOrder);
+	}
+
+	private void add (int phone, long time, char type, PlantedOutage outage) {
+		if (mCount == mTime.length) {
+			int size = mCount * 2;
+			mTime = Arrays.copyOf(mTime, size);
+			mArrival = Arrays.copyOf(mArrival, size);
+			mPhone = Arrays.copyOf(mPhone, size);
+			mType = Arrays.copyOf(mType, size);
+		}
+		// Filter settle and upload time, with a few phones offline for a while
+		long delay = 20000 + (long) (-Math.log(1 - mRandom.nextDouble()) * 10000);
+		if (mRandom.nextInt(20) == 0) delay += (long) (-Math.log(1 - mRandom.nextDouble()) * 10 * MINUTE);
+		mTime[mCount] = time;
+		mArrival[mCount] = time + delay;
+		mPhone[mCount] = phone;
+		mType[mCount] = type;
+		mCount++;
+		if (outage != null) outage.firstArrival = Math.min(outage.firstArrival, time + delay);
+	}
+
+	// Run the events through a new detector and return the wall time in ns
+	private long pass (final List<GridWatchOutageDetector.Outage> starts, final List<GridWatchOutageDetector.Outage> ends,
+			final long[] arrivals) {
+		final long[] now = new long[1];
+		GridWatchOutageDetector detector = new GridWatchOutageDetector(mPrecision, GridWatchOutageDetector.DEFAULT_WINDOW,
+				GridWatchOutageDetector.DEFAULT_MIN_REPORTS, GridWatchOutageDetector.DEFAULT_SIGNIFICANCE,
+				GridWatchOutageDetector.DEFAULT_RESTORED_FRACTION, GridWatchOutageDetector.DEFAULT_POPULATION_TTL,
+				new GridWatchOutageDetector.Listener() {
+					@Override
+					public void onOutageStart (GridWatchOutageDetector.Outage outage) {
+						starts.add(outage);
+						arrivals[starts.size() - 1] = now[0];
+					}
+
+					@Override
+					public void onOutageEnd (GridWatchOutageDetector.Outage outage) {
+						ends.add(outage);
+					}
+				});
+
+		GridWatchIngestEvent event = new GridWatchIngestEvent();
+		event.hasGps = true;
+		long start = System.nanoTime();
+		for (int n = 0; n < mCount; n++) {
+			int i = (int) (mOrder[n] & ((1l << 35) - 1));
+			int p = mPhone[i];
+			event.phone = mIds[p];
+			event.eventType = mType[i];
+			event.time = BASE_TIME + mTime[i];
+			event.receivedAt = BASE_TIME + mArrival[i];
+			event.gpsLatitude = mLatitude[p];
+			event.gpsLongitude = mLongitude[p];
+			now[0] = mArrival[i];
+			detector.process(event);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void run () {
+		long genStart = System.nanoTime();
+		generate();
+		System.out.println(String.format("phones=%d hours=%d events=%d outages=%d generated in %.1f s",
+				mPhones, mHours, mCount, mOutageCount, (System.nanoTime() - genStart) / 1e9));
+
+		List<GridWatchOutageDetector.Outage> starts = null;
+		List<GridWatchOutageDetector.Outage> ends = null;
+		long[] arrivals = null;
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < mPasses; i++) {
+			starts = new ArrayList<GridWatchOutageDetector.Outage>();
+			ends = new ArrayList<GridWatchOutageDetector.Outage>();
+			arrivals = new long[mCount];
+			long ns = pass(starts, ends, arrivals);
+			best = Math.min(best, ns);
+			System.out.println(String.format("pass %d: %.0f events/s (%.0f ns/event)",
+					i + 1, mCount / (ns / 1e9), (double) ns / mCount));
+		}
+
+		// Match detections to planted outages
+		double reach = cellHalfDiagonal();
+		int falseStarts = 0;
+		for (int i = 0; i < starts.size(); i++) {
+			GridWatchOutageDetector.Outage outage = starts.get(i);
+			double[] center = outage.getCenter();
+			long detectedAt = arrivals[i];
+			PlantedOutage match = null;
+			for (PlantedOutage planted : mOutages) {
+				if (distance(center[0], center[1], planted.latitude, planted.longitude) < planted.radius + reach
+						&& detectedAt >= planted.start
+						&& detectedAt <= planted.end + GridWatchOutageDetector.DEFAULT_WINDOW + 15 * MINUTE) {
+					match = planted;
+					break;
+				}
+			}
+			if (match == null) {
+				falseStarts++;
+				continue;
+			}
+			match.cells++;
+			if (match.detected < 0 || detectedAt < match.detected) match.detected = detectedAt;
+		}
+		for (GridWatchOutageDetector.Outage outage : ends) {
+			double[] center = outage.getCenter();
+			for (PlantedOutage planted : mOutages) {
+				if (distance(center[0], center[1], planted.latitude, planted.longitude) < planted.radius + reach
+						&& outage.end - BASE_TIME >= planted.end) {
+					if (planted.ended < 0 || outage.end - BASE_TIME < planted.ended) planted.ended = outage.end - BASE_TIME;
+					break;
+				}
+			}
+		}
+
+		List<Long> fromStart = new ArrayList<Long>();
+		List<Long> fromFirst = new ArrayList<Long>();
+		List<Long> toEnd = new ArrayList<Long>();
+		int detected = 0, cells = 0, reportable = 0;
+		for (PlantedOutage planted : mOutages) {
+			if (planted.firstArrival == Long.MAX_VALUE) continue;
+			reportable++;
+			if (planted.detected < 0) continue;
+			detected++;
+			cells += planted.cells;
+			fromStart.add(planted.detected - planted.start);
+			fromFirst.add(planted.detected - planted.firstArrival);
+			if (planted.ended >= 0) toEnd.add(planted.ended - planted.end);
+		}
+
+		System.out.println(String.format("best %.0f events/s, %.2f M events/hour on one core",
+				mCount / (best / 1e9), mCount / (best / 1e9) * 3600 / 1e6));
+		System.out.println(String.format("detected %d of %d outages (%d cells), %d false cell starts, %d cell starts total",
+				detected, reportable, cells, falseStarts, starts.size()));
+		System.out.println("seconds from outage to first cell start: " + summary(fromStart));
+		System.out.println("seconds from first report to first cell start: " + summary(fromFirst));
+		System.out.println("seconds from restore to first cell end: " + summary(toEnd));
+	}
+
+	private static String summary (List<Long> ms) {
+		if (ms.isEmpty()) return "none";
+		long[] sorted = new long[ms.size()];
+		for (int i = 0; i < sorted.length; i++) sorted[i] = ms.get(i);
+		Arrays.sort(sorted);
+		return String.format("p50=%.1f p90=%.1f max=%.1f", sorted[sorted.length / 2] / 1000.0,
+				sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * 0.9) - 1)] / 1000.0,
+				sorted[sorted.length - 1] / 1000.0);
+	}
+
+	private double cellHalfDiagonal () {
+		long cell = GridWatchGeohash.encode((SOUTH + NORTH) / 2, (WEST + EAST) / 2, mPrecision);
+		double[] b = GridWatchGeohash.bounds(cell, mPrecision);
+		return distance(b[0], b[1], b[2], b[3]) / 2;
+	}
+
+	// Kilometers between two nearby points
+	private static double distance (double lat1, double lon1, double lat2, double lon2) {
+		double x = (lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+		double y = lat2 - lat1;
+		return Math.sqrt(x * x + y * y) * KM_PER_DEGREE;
+	}
+
+	public static void main (String[] args) {
+		GridWatchOutageBenchmark benchmark = new GridWatchOutageBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--phones")) benchmark.mPhones = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--hours")) benchmark.mHours = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--outages")) benchmark.mOutageCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--toggles")) benchmark.mToggles = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--precision")) benchmark.mPrecision = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--passes")) benchmark.mPasses = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed")) benchmark.mRandom = new Random(Long.parseLong(args[++i]));
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		if (benchmark.mHours > 72) {
+			throw new IllegalArgumentException("At most 72 hours");
+		}
+		benchmark.run();
+	}
+}
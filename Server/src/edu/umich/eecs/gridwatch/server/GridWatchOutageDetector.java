@@ -0,0 +1,467 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+// Turns the stream of phone events into outage decisions, one geohash cell
+// at a time. For each cell it keeps the phones expected there (seen within
+// the population TTL), how many are known to be unplugged, and a sliding
+// window of recent unplug reports. The phones that could have reported are
+// the cell's population less those already unplugged before the window,
+// and the background rate at which such a phone unplugs within a window is
+// learned across all cells. An outage starts when a cell has more reports
+// in the window than that rate makes plausible, by a Poisson tail test. The
+// phones that reported are the outage's, as are any that unplug in the
+// cell within a window of it starting, and it ends once enough of them are
+// plugged back in. No outage is declared until the detector has seen a
+// warm-up period of events, since until then it underestimates every
+// cell's population.
+//
+// Work per event is constant apart from expiring old window entries and
+// silent phones, each of which is paid for once by the event that added
+// it, so the cost doesn't grow with the history.
+//
+// Times are the phones' event times, capped at the time the server got the
+// event so a phone with its clock ahead can't expire everyone else's
+// reports. Events are expected to arrive roughly in order; a late unplug
+// that is already outside the window doesn't count towards an outage.
+//
+// A detector is not thread-safe; as a pipeline stage it only ever runs on
+// the pipeline thread.
+public class GridWatchOutageDetector implements GridWatchIngestPipeline.Stage {
+
+	public final static int DEFAULT_PRECISION = 6;
+	public final static long DEFAULT_WINDOW = 5 * 60 * 1000l;
+	public final static int DEFAULT_MIN_REPORTS = 3;
+	public final static double DEFAULT_SIGNIFICANCE = 1e-6;
+	public final static double DEFAULT_RESTORED_FRACTION = 0.5;
+
+	// Phones send a watchdog event once a day, so allow a bit more than that
+	// before we stop expecting a silent phone
+	public final static long DEFAULT_POPULATION_TTL = 36 * 60 * 60 * 1000l;
+	public final static long DEFAULT_WARMUP = 60 * 60 * 1000l;
+
+	private final static byte UNKNOWN = 0;
+	private final static byte PLUGGED = 1;
+	private final static byte UNPLUGGED = 2;
+
+	// Never assume phones unplug less often than this per window, so a
+	// quiet start can't make three reports look like an outage
+	private final static double MIN_RATE = 0.001;
+
+	private final static double[] LOG_FACTORIAL = new double[1024];
+	static {
+		for (int i = 1; i < LOG_FACTORIAL.length; i++) {
+			LOG_FACTORIAL[i] = LOG_FACTORIAL[i - 1] + Math.log(i);
+		}
+	}
+
+	public interface Listener {
+		public void onOutageStart (Outage outage);
+		public void onOutageEnd (Outage outage);
+	}
+
+	public static class Outage {
+		public long cell;
+		public int precision;
+
+		// Time of the earliest unplug report in the window that started it
+		public long firstReport;
+
+		// Stream times it was declared and declared over (0 while ongoing)
+		public long detected;
+		public long end;
+
+		// Unplugged phones in the window, phones that could have reported
+		// and the reports we'd have expected from them without an outage,
+		// when it was declared
+		public int reports;
+		public int population;
+		public double expected;
+
+		// Phones that lost power in it, and how many of those are back
+		public int affected;
+		public int restored;
+
+		public String getGeohash () {
+			return GridWatchGeohash.toString(cell, precision);
+		}
+
+		// The center of the cell, as { latitude, longitude }
+		public double[] getCenter () {
+			double[] b = GridWatchGeohash.bounds(cell, precision);
+			return new double[] { (b[0] + b[2]) / 2, (b[1] + b[3]) / 2 };
+		}
+
+		@Override
+		public String toString () {
+			return String.format("outage %s first=%d detected=%d end=%d reports=%d population=%d expected=%.2f affected=%d restored=%d",
+					getGeohash(), firstReport, detected, end, reports, population, expected, affected, restored);
+		}
+	}
+
+	private static class Phone {
+		String id;
+		Cell cell;
+		byte state = UNKNOWN;
+		long lastSeen;
+
+		// The phone's newest window entry, if it still counts
+		Entry entry;
+
+		// The outage the phone is out in, if any
+		Outage outage;
+
+		// Phones in order of when they were last seen
+		Phone older;
+		Phone newer;
+	}
+
+	private static class Entry {
+		long time;
+		Phone phone;
+	}
+
+	private static class Cell {
+		long key;
+		int population;
+		int unplugged;
+
+		// Unplug reports in the window, oldest first, and how many of them
+		// are from phones that are still unplugged
+		ArrayDeque<Entry> window = new ArrayDeque<Entry>();
+		int inWindow;
+
+		Outage outage;
+	}
+
+	private int mPrecision;
+	private long mWindow;
+	private int mMinReports;
+	private double mSignificance;
+	private double mRestoredFraction;
+	private long mPopulationTtl;
+	private long mWarmup = DEFAULT_WARMUP;
+	private Listener mListener;
+
+	private HashMap<String, Phone> mPhones = new HashMap<String, Phone>();
+	private HashMap<Long, Cell> mCells = new HashMap<Long, Cell>();
+
+	// Least and most recently seen phones
+	private Phone mOldest;
+	private Phone mNewest;
+
+	// Totals over all cells, for the background unplug rate
+	private long mPopulation = 0;
+	private long mUnplugged = 0;
+	private long mInWindow = 0;
+
+	private long mFirst = 0;
+	private long mNow = 0;
+	private long mEvents = 0;
+	private long mOutages = 0;
+
+	public GridWatchOutageDetector (Listener listener) {
+		this(DEFAULT_PRECISION, DEFAULT_WINDOW, DEFAULT_MIN_REPORTS, DEFAULT_SIGNIFICANCE,
+				DEFAULT_RESTORED_FRACTION, DEFAULT_POPULATION_TTL, listener);
+	}
+
+	public GridWatchOutageDetector (int precision, long window, int minReports, double significance,
+			double restoredFraction, long populationTtl, Listener listener) {
+		if (precision < 1 || precision > GridWatchGeohash.MAX_PRECISION) {
+			throw new IllegalArgumentException("Bad geohash precision " + precision);
+		}
+		mPrecision = precision;
+		mWindow = window;
+		mMinReports = minReports;
+		mSignificance = significance;
+		mRestoredFraction = restoredFraction;
+		mPopulationTtl = populationTtl;
+		mListener = listener;
+	}
+
+	@Override
+	public void process (GridWatchIngestEvent event) {
+		if (event.phone == null) return;
+		char type = event.eventType;
+		if (type != GridWatchIngestEvent.UNPLUGGED && type != GridWatchIngestEvent.PLUGGED
+				&& type != GridWatchIngestEvent.WD) {
+			return;
+		}
+		mEvents++;
+
+		long time = event.time;
+		if (event.receivedAt > 0 && time > event.receivedAt) time = event.receivedAt;
+		if (time > mNow) mNow = time;
+		if (mFirst == 0) mFirst = time;
+
+		Phone phone = mPhones.get(event.phone);
+		if (phone == null) {
+			phone = new Phone();
+			phone.id = event.phone;
+			mPhones.put(phone.id, phone);
+		} else {
+			unlink(phone);
+		}
+		phone.lastSeen = Math.max(phone.lastSeen, time);
+		link(phone);
+
+		// Move the phone if it reported a location in another cell. Without
+		// a location it stays where we last saw it.
+		if (event.hasLocation()) {
+			long key = GridWatchGeohash.encode(event.latitude(), event.longitude(), mPrecision);
+			if (phone.cell == null || phone.cell.key != key) {
+				leaveCell(phone);
+				joinCell(phone, key);
+			}
+		}
+
+		if (type == GridWatchIngestEvent.UNPLUGGED) {
+			setState(phone, UNPLUGGED);
+			if (phone.cell != null && time > mNow - mWindow) {
+				addToWindow(phone, time);
+			}
+			Outage outage = phone.cell == null ? null : phone.cell.outage;
+			if (outage != null && time <= outage.detected + mWindow) {
+				joinOutage(phone, outage);
+			}
+		} else if (type == GridWatchIngestEvent.PLUGGED) {
+			setState(phone, PLUGGED);
+		}
+
+		Cell cell = phone.cell;
+		if (cell != null) {
+			expireWindow(cell);
+			if (cell.outage == null) {
+				checkStart(cell);
+			} else {
+				checkEnd(cell);
+			}
+		}
+		expirePhones();
+	}
+
+	@Override
+	public void flush (long now) {
+	}
+
+	// How long to watch the stream before declaring outages
+	public void setWarmup (long warmup) {
+		mWarmup = warmup;
+	}
+
+	public long getEvents () {
+		return mEvents;
+	}
+
+	public long getOutages () {
+		return mOutages;
+	}
+
+	public int getPhones () {
+		return mPhones.size();
+	}
+
+	public int getCells () {
+		return mCells.size();
+	}
+
+	// Fraction of the phones that could report an unplug that did so
+	// within the window, over all cells
+	public double getBackgroundRate () {
+		long candidates = mPopulation - mUnplugged + mInWindow;
+		if (candidates <= 0) return MIN_RATE;
+		return Math.max(MIN_RATE, (double) mInWindow / candidates);
+	}
+
+	// P(X >= k) for X ~ Poisson(mean). Only the upper tail matters here, so
+	// anything at or below the mean is reported as 1.
+	static double poissonTail (double mean, int k) {
+		if (k <= mean) return 1;
+		double logTerm = -mean + k * Math.log(mean) - logFactorial(k);
+		double term = 1, sum = 1;
+		for (int i = k + 1; term > 1e-9 * sum; i++) {
+			term *= mean / i;
+			sum += term;
+		}
+		return Math.exp(logTerm) * sum;
+	}
+
+	private static double logFactorial (int n) {
+		if (n < LOG_FACTORIAL.length) return LOG_FACTORIAL[n];
+		// Stirling, plenty accurate this far out
+		return n * Math.log(n) - n + 0.5 * Math.log(2 * Math.PI * n) + 1.0 / (12 * n);
+	}
+
+	private void checkStart (Cell cell) {
+		if (mNow - mFirst < mWarmup) return;
+
+		if (cell.inWindow < mMinReports) return;
+
+		// Phones that were already unplugged before the window can't report
+		int candidates = cell.population - cell.unplugged + cell.inWindow;
+		double expected = candidates * getBackgroundRate();
+		if (poissonTail(expected, cell.inWindow) >= mSignificance) return;
+
+		Outage outage = new Outage();
+		outage.cell = cell.key;
+		outage.precision = mPrecision;
+		outage.firstReport = mNow;
+		outage.detected = mNow;
+		outage.reports = cell.inWindow;
+		outage.population = candidates;
+		outage.expected = expected;
+		for (Entry entry : cell.window) {
+			Phone phone = entry.phone;
+			if (phone.entry != entry) continue;
+			outage.firstReport = Math.min(outage.firstReport, entry.time);
+			joinOutage(phone, outage);
+		}
+		cell.outage = outage;
+		mOutages++;
+		if (mListener != null) mListener.onOutageStart(outage);
+	}
+
+	private void checkEnd (Cell cell) {
+		Outage outage = cell.outage;
+		if (outage.affected > 0 && outage.restored < mRestoredFraction * outage.affected) return;
+
+		outage.end = mNow;
+		cell.outage = null;
+		if (mListener != null) mListener.onOutageEnd(outage);
+		dropIfEmpty(cell);
+	}
+
+	private void setState (Phone phone, byte state) {
+		if (phone.state == state) return;
+		Cell cell = phone.cell;
+		if (cell != null) {
+			if (phone.state == UNPLUGGED) countUnplugged(cell, -1);
+			if (state == UNPLUGGED) countUnplugged(cell, 1);
+		}
+		phone.state = state;
+		if (state != UNPLUGGED) {
+			uncount(phone);
+			// Power is back for this phone
+			if (phone.outage != null) {
+				if (phone.outage.end == 0) phone.outage.restored++;
+				phone.outage = null;
+			}
+		}
+	}
+
+	// Count the phone as out in the outage, unless it already is or is out
+	// in another one that is still going. A phone still marked with an
+	// outage that has ended is moved over.
+	private static void joinOutage (Phone phone, Outage outage) {
+		if (phone.outage != null && phone.outage.end == 0) return;
+		phone.outage = outage;
+		outage.affected++;
+	}
+
+	// The phone no longer tells us about its outage: drop it from the count
+	private static void leaveOutage (Phone phone) {
+		if (phone.outage != null) {
+			if (phone.outage.end == 0) phone.outage.affected--;
+			phone.outage = null;
+		}
+	}
+
+	private void addToWindow (Phone phone, long time) {
+		uncount(phone);
+		Entry entry = new Entry();
+		entry.time = time;
+		entry.phone = phone;
+		phone.entry = entry;
+		phone.cell.window.addLast(entry);
+		phone.cell.inWindow++;
+		mInWindow++;
+	}
+
+	// Stop counting the phone's window entry, if it has one; the entry
+	// itself is dropped when it reaches the front of the window
+	private void uncount (Phone phone) {
+		if (phone.entry != null) {
+			phone.cell.inWindow--;
+			mInWindow--;
+			phone.entry = null;
+		}
+	}
+
+	private void expireWindow (Cell cell) {
+		long cutoff = mNow - mWindow;
+		Entry entry;
+		while ((entry = cell.window.peekFirst()) != null && entry.time <= cutoff) {
+			cell.window.removeFirst();
+			if (entry.phone.entry == entry) {
+				uncount(entry.phone);
+			}
+		}
+	}
+
+	// Forget phones we haven't heard from in the population TTL
+	private void expirePhones () {
+		long cutoff = mNow - mPopulationTtl;
+		while (mOldest != null && mOldest.lastSeen <= cutoff) {
+			Phone phone = mOldest;
+			unlink(phone);
+			mPhones.remove(phone.id);
+			Cell cell = phone.cell;
+			leaveCell(phone);
+			if (cell != null && cell.outage != null) checkEnd(cell);
+		}
+	}
+
+	private void joinCell (Phone phone, long key) {
+		Cell cell = mCells.get(key);
+		if (cell == null) {
+			cell = new Cell();
+			cell.key = key;
+			mCells.put(key, cell);
+		}
+		phone.cell = cell;
+		cell.population++;
+		mPopulation++;
+		if (phone.state == UNPLUGGED) countUnplugged(cell, 1);
+	}
+
+	private void leaveCell (Phone phone) {
+		Cell cell = phone.cell;
+		if (cell == null) return;
+		uncount(phone);
+		leaveOutage(phone);
+		if (phone.state == UNPLUGGED) countUnplugged(cell, -1);
+		cell.population--;
+		mPopulation--;
+		phone.cell = null;
+		dropIfEmpty(cell);
+	}
+
+	private void countUnplugged (Cell cell, int delta) {
+		cell.unplugged += delta;
+		mUnplugged += delta;
+	}
+
+	private void dropIfEmpty (Cell cell) {
+		if (cell.population == 0 && cell.outage == null) {
+			mCells.remove(cell.key);
+		}
+	}
+
+	private void link (Phone phone) {
+		phone.older = mNewest;
+		phone.newer = null;
+		if (mNewest != null) mNewest.newer = phone;
+		mNewest = phone;
+		if (mOldest == null) mOldest = phone;
+	}
+
+	private void unlink (Phone phone) {
+		if (phone.older != null) phone.older.newer = phone.newer;
+		else mOldest = phone.newer;
+		if (phone.newer != null) phone.newer.older = phone.older;
+		else mNewest = phone.older;
+		phone.older = null;
+		phone.newer = null;
+	}
+}
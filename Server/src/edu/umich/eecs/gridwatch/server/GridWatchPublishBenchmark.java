@@ -0,0 +1,164 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.lang.management.ManagementFactory;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import edu.umich.eecs.gridwatch.GridWatchEventRecord;
+import edu.umich.eecs.gridwatch.GridWatchFix;
+
+// Measures what it costs the app to tell its activity and its log about an
+// event it has sent, per event: the old way (long form fields turned into
+// strings, joined with += into one "name=value, " string, sent as an
+// intent extra and split back into a Hashtable by the activity) against
+// GridWatchEventRecord (typed fields as extras, text made once for the
+// log). Intent extras are modelled with a HashMap, which like a Bundle
+// boxes its values. Reports allocated bytes and time per event.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchPublishBenchmark
+//               [--events 200000] [--passes 5]
+public class GridWatchPublishBenchmark {
+
+	private int mEvents = 200000;
+	private int mPasses = 5;
+
+	private GridWatchFix mGps = fix("gps", 42.2936115, -83.7143871, 12.5f);
+	private GridWatchFix mNetwork = fix("network", 42.2931422, -83.7139906, 38.0f);
+	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+
+	// Keeps results live so the JIT can't drop the work
+	private long mSink = 0;
+
+	private static GridWatchFix fix (String provider, double latitude, double longitude, float accuracy) {
+		GridWatchFix fix = new GridWatchFix();
+		fix.provider = provider;
+		fix.latitude = latitude;
+		fix.longitude = longitude;
+		fix.accuracy = accuracy;
+		fix.altitude = 266.0;
+		fix.speed = 0.0f;
+		fix.time = 1400000000000l;
+		return fix;
+	}
+
+	// The long form fields as the old postEvent built them, as strings
+	private String[][] details (long time, boolean moved) {
+		String[][] details = new String[18][];
+		int n = 0;
+		details[n++] = new String[] { "time", String.valueOf(time) };
+		details[n++] = new String[] { "event_type", "unplugged" };
+		for (GridWatchFix fix : new GridWatchFix[] { mGps, mNetwork }) {
+			details[n++] = new String[] { fix.provider + "_latitude", String.valueOf(fix.latitude) };
+			details[n++] = new String[] { fix.provider + "_longitude", String.valueOf(fix.longitude) };
+			details[n++] = new String[] { fix.provider + "_accuracy", String.valueOf(fix.accuracy) };
+			details[n++] = new String[] { fix.provider + "_time", String.valueOf(fix.time) };
+			details[n++] = new String[] { fix.provider + "_altitude", String.valueOf(fix.altitude) };
+			details[n++] = new String[] { fix.provider + "_speed", String.valueOf(fix.speed) };
+		}
+		details[n++] = new String[] { "network", "wifi" };
+		details[n++] = new String[] { "moved", String.valueOf(moved) };
+		details[n++] = new String[] { "sixty_hz", "0.87" };
+		details[n++] = new String[] { "id", "f3a9c0d1e2b4a5c6" };
+		return details;
+	}
+
+	private void publishOld (long time, boolean moved) {
+		String[][] details = details(time, moved);
+		String post_info = "";
+		for (int i = 0; i < details.length; i++) {
+			post_info += details[i][0] + "=" + details[i][1] + ", ";
+		}
+		Map<String, Object> extras = new HashMap<String, Object>();
+		extras.put("event_type", "event_post");
+		extras.put("event_info", post_info);
+		extras.put("event_time", mDateFormat.format(new Date()));
+		log(post_info);
+
+		// The activity's side
+		Hashtable<String, String> result = new Hashtable<String, String>();
+		String[] info_items = ((String) extras.get("event_info")).split("\\,\\ ");
+		for (String item : info_items) {
+			String[] kv = item.split("\\=");
+			if (kv.length == 2) {
+				result.put(kv[0], kv[1]);
+			}
+		}
+		String display = result.get("event_type") + " at ";
+		display += mDateFormat.format(new Date(Long.valueOf(result.get("time")))) + "\n";
+		if (result.get("event_type").equals("unplugged")) {
+			display += "movement: " + result.get("moved") + "\n";
+			display += "60 hz: " + result.get("sixty_hz") + "\n";
+		}
+		mSink += display.length();
+	}
+
+	private void publishNew (long time, boolean moved) {
+		GridWatchEventRecord record = new GridWatchEventRecord();
+		record.time = time;
+		record.eventType = "unplugged";
+		record.gps = mGps;
+		record.networkFix = mNetwork;
+		record.network = "wifi";
+		record.moved = moved ? 1 : 0;
+		record.sixtyHz = 0.87f;
+		record.addExtra("moved", String.valueOf(moved));
+		record.addExtra("sixty_hz", "0.87");
+		record.id = "f3a9c0d1e2b4a5c6";
+
+		Map<String, Object> extras = new HashMap<String, Object>();
+		extras.put("event_type", "event_post");
+		extras.put(GridWatchEventRecord.KEY_TIME, record.time);
+		extras.put(GridWatchEventRecord.KEY_EVENT_TYPE, record.eventType);
+		extras.put(GridWatchEventRecord.KEY_MOVED, record.moved);
+		extras.put(GridWatchEventRecord.KEY_SIXTY_HZ, record.sixtyHz);
+		log(record.appendTo(new StringBuilder(512)).toString());
+
+		// The activity's side
+		String eventType = (String) extras.get(GridWatchEventRecord.KEY_EVENT_TYPE);
+		StringBuilder display = new StringBuilder(96);
+		display.append(eventType).append(" at ")
+				.append(mDateFormat.format(new Date((Long) extras.get(GridWatchEventRecord.KEY_TIME)))).append('\n');
+		if ("unplugged".equals(eventType)) {
+			display.append("movement: ").append((Integer) extras.get(GridWatchEventRecord.KEY_MOVED) == 1).append('\n');
+			display.append("60 hz: ").append(String.format("%.2f", (Float) extras.get(GridWatchEventRecord.KEY_SIXTY_HZ)))
+					.append('\n');
+		}
+		mSink += display.length();
+	}
+
+	private void log (String info) {
+		mSink += info.length();
+	}
+
+	private void run (String name, boolean old) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int pass = 0; pass < mPasses; pass++) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long begin = System.nanoTime();
+			for (int i = 0; i < mEvents; i++) {
+				long time = 1400000000000l + i * 1000l;
+				if (old) publishOld(time, (i & 1) == 0); else publishNew(time, (i & 1) == 0);
+			}
+			long ns = System.nanoTime() - begin;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+			System.out.println(String.format("%s pass=%d bytes/event=%d us/event=%.2f",
+					name, pass, bytes / mEvents, ns / 1e3 / mEvents));
+		}
+	}
+
+	public static void main (String[] args) {
+		GridWatchPublishBenchmark benchmark = new GridWatchPublishBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--events")) benchmark.mEvents = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--passes")) benchmark.mPasses = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.run("string", true);
+		benchmark.run("record", false);
+		System.out.println("sink=" + benchmark.mSink);
+	}
+}
@@ -0,0 +1,207 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchAdpcmReader;
+import edu.umich.eecs.gridwatch.GridWatchAdpcmWriter;
+import edu.umich.eecs.gridwatch.GridWatchDecimator;
+import edu.umich.eecs.gridwatch.GridWatchMainsDetector;
+import edu.umich.eecs.gridwatch.GridWatchWavWriter;
+
+// Measures what the app's unplug recording costs, per event: the old way
+// (3 s of 44.1 kHz 16-bit stereo written as is with GridWatchWavWriter)
+// against GridWatchDecimator and GridWatchAdpcmWriter (mono, decimated,
+// IMA ADPCM). Reports CPU time per second of audio and bytes per event.
+//
+// It then checks what the smaller file gives up: the recording is decoded
+// back to PCM with GridWatchAdpcmReader and compared to the decimator's
+// output (SNR), GridWatchMainsDetector is run on the original and on the
+// decoded audio, and a tone above the new Nyquist frequency is pushed
+// through the decimator to see how much of it aliases.
+//
+// The synthetic audio is mains hum with harmonics, under broadband noise
+// and a tone at 3 kHz, in buffers of the size AudioRecord hands back.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchRecordingBenchmark
+//               [--events 200] [--rate 4000]
+// or, to turn a recording back into plain PCM WAV:
+//           java edu.umich.eecs.gridwatch.server.GridWatchRecordingBenchmark
+//               --decode <recording.wav> <out.wav>
+public class GridWatchRecordingBenchmark {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int CHANNELS = 2;
+	private final static int SECONDS = 3;
+	private final static int READ_SIZE = 7104;
+	private final static int WAV_BUFFER_SIZE = 32 * 1024;
+
+	private int mEvents = 200;
+	private int mRate = 4000;
+
+	private byte[] mAudio;
+
+	private ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+
+	// Interleaved stereo: hum at 60 Hz and its harmonics, noise, and a
+	// 3 kHz tone, differing a little between the channels
+	private static byte[] synthesize (long seed, double hum, double noise, double tone, double toneHz) {
+		Random random = new Random(seed);
+		int frames = SAMPLE_FREQUENCY * SECONDS;
+		byte[] audio = new byte[frames * CHANNELS * 2];
+		for (int f = 0, pos = 0; f < frames; f++) {
+			double t = (double) f / SAMPLE_FREQUENCY;
+			double x = hum * (Math.sin(2 * Math.PI * 60 * t) + 0.5 * Math.sin(2 * Math.PI * 120 * t + 1)
+					+ 0.3 * Math.sin(2 * Math.PI * 180 * t + 2)) + tone * Math.sin(2 * Math.PI * toneHz * t);
+			for (int c = 0; c < CHANNELS; c++) {
+				double y = x * (1 - 0.1 * c) + noise * random.nextGaussian();
+				int s = (int) Math.round(y * 32767);
+				if (s > Short.MAX_VALUE) s = Short.MAX_VALUE;
+				else if (s < Short.MIN_VALUE) s = Short.MIN_VALUE;
+				audio[pos++] = (byte) s;
+				audio[pos++] = (byte) (s >> 8);
+			}
+		}
+		return audio;
+	}
+
+	private long recordOld (File file) throws IOException {
+		GridWatchWavWriter wav = new GridWatchWavWriter(SAMPLE_FREQUENCY, CHANNELS, 16, WAV_BUFFER_SIZE);
+		wav.open(file);
+		for (int off = 0; off < mAudio.length; off += READ_SIZE) {
+			wav.write(mAudio, off, Math.min(READ_SIZE, mAudio.length - off));
+		}
+		wav.close();
+		return file.length();
+	}
+
+	private long recordNew (File file, short[] reference) throws IOException {
+		GridWatchDecimator decimator = new GridWatchDecimator(SAMPLE_FREQUENCY, CHANNELS, mRate);
+		GridWatchAdpcmWriter wav = new GridWatchAdpcmWriter(decimator.getOutputRate(), WAV_BUFFER_SIZE);
+		byte[] read = new byte[READ_SIZE];
+		short[] mono = new short[decimator.maxOutput(READ_SIZE)];
+		int count = 0;
+		wav.open(file);
+		for (int off = 0; off < mAudio.length; off += READ_SIZE) {
+			// AudioRecord.read() fills a buffer of its own
+			int len = Math.min(READ_SIZE, mAudio.length - off);
+			System.arraycopy(mAudio, off, read, 0, len);
+			int n = decimator.process(read, len, mono);
+			wav.write(mono, 0, n);
+			if (reference != null) {
+				System.arraycopy(mono, 0, reference, count, n);
+			}
+			count += n;
+		}
+		wav.close();
+		return file.length();
+	}
+
+	private void run (String name, boolean old, File file) throws IOException {
+		long cpu = mThreads.getCurrentThreadCpuTime();
+		long begin = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < mEvents; i++) {
+			bytes = old ? recordOld(file) : recordNew(file, null);
+		}
+		cpu = mThreads.getCurrentThreadCpuTime() - cpu;
+		long wall = System.nanoTime() - begin;
+		double audioSeconds = (double) mEvents * SECONDS;
+		System.out.println(String.format("%s bytes/event=%d cpu_ms/audio_s=%.3f wall_ms/audio_s=%.3f",
+				name, bytes, cpu / 1e6 / audioSeconds, wall / 1e6 / audioSeconds));
+	}
+
+	private static byte[] toBytes (short[] samples) {
+		byte[] bytes = new byte[samples.length * 2];
+		for (int i = 0; i < samples.length; i++) {
+			bytes[2 * i] = (byte) samples[i];
+			bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+		}
+		return bytes;
+	}
+
+	private static float confidence (byte[] pcm, int rate, int channels) {
+		GridWatchMainsDetector detector = new GridWatchMainsDetector(rate, channels);
+		detector.addSamples(pcm, pcm.length);
+		return detector.getConfidence();
+	}
+
+	private static double rms (short[] samples, int from) {
+		double sum = 0;
+		for (int i = from; i < samples.length; i++) {
+			sum += (double) samples[i] * samples[i];
+		}
+		return Math.sqrt(sum / (samples.length - from));
+	}
+
+	private void quality (File file) throws IOException {
+		GridWatchDecimator decimator = new GridWatchDecimator(SAMPLE_FREQUENCY, CHANNELS, mRate);
+		short[] reference = new short[SAMPLE_FREQUENCY * SECONDS / decimator.getFactor() + 1];
+		recordNew(file, reference);
+		GridWatchAdpcmReader reader = new GridWatchAdpcmReader(file);
+		short[] decoded = reader.getSamples();
+
+		double signal = 0;
+		double error = 0;
+		for (int i = 0; i < decoded.length; i++) {
+			double d = decoded[i] - reference[i];
+			signal += (double) reference[i] * reference[i];
+			error += d * d;
+		}
+		System.out.println(String.format("decoded rate=%d factor=%d samples=%d snr_db=%.1f",
+				reader.getSampleRate(), decimator.getFactor(), decoded.length, 10 * Math.log10(signal / error)));
+
+		System.out.println(String.format("mains confidence original=%.3f decoded=%.3f",
+				confidence(mAudio, SAMPLE_FREQUENCY, CHANNELS), confidence(toBytes(decoded), reader.getSampleRate(), 1)));
+
+		File pcm = File.createTempFile("gridwatch", ".wav");
+		reader.writeWav(pcm);
+		System.out.println(String.format("decoded to PCM WAV bytes=%d", pcm.length()));
+		pcm.delete();
+
+		// A tone between the new Nyquist frequency and the old one should
+		// be filtered out, not folded down
+		for (double hz : new double[] { 0.75 * decimator.getOutputRate(), 3000, 10000 }) {
+			byte[] tone = synthesize(1, 0, 0, 0.5, hz);
+			short[] out = new short[decimator.maxOutput(tone.length)];
+			decimator.reset();
+			int n = decimator.process(tone, tone.length, out);
+			short[] kept = new short[n];
+			System.arraycopy(out, 0, kept, 0, n);
+			double in = 0.5 * 0.95 * 32767 / Math.sqrt(2);
+			System.out.println(String.format("alias tone=%.0f Hz rejection_db=%.1f",
+					hz, 20 * Math.log10(in / rms(kept, n / 10))));
+		}
+	}
+
+	public static void main (String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("--decode")) {
+			GridWatchAdpcmReader reader = new GridWatchAdpcmReader(new File(args[1]));
+			reader.writeWav(new File(args[2]));
+			System.out.println("Wrote " + reader.getSamples().length + " samples at " + reader.getSampleRate() + " Hz");
+			return;
+		}
+
+		GridWatchRecordingBenchmark benchmark = new GridWatchRecordingBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--events")) benchmark.mEvents = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--rate")) benchmark.mRate = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		benchmark.mAudio = synthesize(0, 0.05, 0.02, 0.05, 3000);
+
+		File file = File.createTempFile("gridwatch", ".wav");
+		try {
+			for (int pass = 0; pass < 3; pass++) {
+				benchmark.run("wav    pass=" + pass, true, file);
+				benchmark.run("adpcm  pass=" + pass, false, file);
+			}
+			benchmark.quality(file);
+		} finally {
+			file.delete();
+		}
+	}
+}
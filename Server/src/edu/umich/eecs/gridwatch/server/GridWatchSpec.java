@@ -0,0 +1,141 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The alert POST fields, loaded from the repository's spec.txt so the
+// ingest server checks exactly what the spec says. Each field has a type,
+// whether it is required, and for enums the allowed values (the quoted
+// strings in its description).
+public class GridWatchSpec {
+
+	public final static int TYPE_STR = 0;
+	public final static int TYPE_INT = 1;
+	public final static int TYPE_FLOAT = 2;
+	public final static int TYPE_ENUM = 3;
+	public final static int TYPE_BOOL = 4;
+
+	private final static Pattern QUOTED = Pattern.compile("\"([^\"]*)\"");
+
+	public static class Field {
+		public String name;
+		public int type;
+		public boolean required;
+		public String[] values = new String[0];
+
+		// Position in the spec; also the field's bit in a seen mask
+		public int index;
+	}
+
+	private List<Field> mFields = new ArrayList<Field>();
+	private Map<String, Field> mByName = new HashMap<String, Field>();
+
+	public static GridWatchSpec load (File file) throws IOException {
+		GridWatchSpec spec = new GridWatchSpec();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			boolean inTable = false;
+			Field last = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("---")) {
+					inTable = true;
+					continue;
+				}
+				if (!inTable || line.trim().length() == 0) continue;
+
+				String description;
+				if (Character.isWhitespace(line.charAt(0))) {
+					// Continuation of the previous field's description
+					if (last == null) continue;
+					description = line;
+				} else {
+					String[] parts = line.trim().split("\\s+", 4);
+					if (parts.length < 3) {
+						throw new IOException("Can't read spec line: " + line);
+					}
+					last = new Field();
+					last.name = parts[0];
+					last.type = parseType(parts[1]);
+					last.required = parts[2].equals("Y");
+					last.index = spec.mFields.size();
+					spec.add(last);
+					description = parts.length > 3 ? parts[3] : "";
+				}
+
+				if (last.type == TYPE_ENUM) {
+					Matcher m = QUOTED.matcher(description);
+					while (m.find()) {
+						last.values = append(last.values, m.group(1));
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (spec.mFields.size() > 64) {
+			throw new IOException("Spec has more than 64 fields");
+		}
+		return spec;
+	}
+
+	// Allow more values for an enum than the spec lists
+	public void extendEnum (String name, String... values) {
+		Field field = mByName.get(name);
+		if (field == null || field.type != TYPE_ENUM) {
+			throw new IllegalArgumentException(name + " is not an enum in the spec");
+		}
+		for (String value : values) {
+			if (!Arrays.asList(field.values).contains(value)) {
+				field.values = append(field.values, value);
+			}
+		}
+	}
+
+	public Field get (String name) {
+		return mByName.get(name);
+	}
+
+	public List<Field> getFields () {
+		return mFields;
+	}
+
+	// Bit mask of the required fields, by index
+	public long getRequiredMask () {
+		long mask = 0;
+		for (Field field : mFields) {
+			if (field.required) mask |= 1l << field.index;
+		}
+		return mask;
+	}
+
+	private void add (Field field) {
+		mFields.add(field);
+		mByName.put(field.name, field);
+	}
+
+	private static int parseType (String type) throws IOException {
+		if (type.equals("str")) return TYPE_STR;
+		if (type.equals("int")) return TYPE_INT;
+		if (type.equals("float")) return TYPE_FLOAT;
+		if (type.equals("enum")) return TYPE_ENUM;
+		if (type.equals("bool")) return TYPE_BOOL;
+		throw new IOException("Unknown spec type " + type);
+	}
+
+	private static String[] append (String[] values, String value) {
+		String[] more = Arrays.copyOf(values, values.length + 1);
+		more[values.length] = value;
+		return more;
+	}
+}
@@ -0,0 +1,289 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+import edu.umich.eecs.gridwatch.GridWatchID;
+import edu.umich.eecs.gridwatch.GridWatchLogger;
+import edu.umich.eecs.gridwatch.GridWatchStore;
+
+// Compares the app's GridWatchStore with the pipe-delimited text files it
+// replaced (gridwatch.log, gw_ID.log, gw_sync.log), the way the app uses
+// them:
+//  - log: an activity log entry. The text log opened the file, wrote a
+//    line and closed it every time; the store buffers entries and syncs
+//    them in batches, so its time includes the flushes.
+//  - put: a new ID or sync cursor. A line appended to the text file, or a
+//    put to the store, which are written out and synced together by its
+//    next flush, timed with them. (GridWatchID also adds each ID to its
+//    history on the event log, which is timed under log.)
+//  - get: the current ID. The text file was read to the end for its last
+//    line; the store answers from memory after checking the file length.
+//  - open: a cold start's first get, after a history of puts, averaged
+//    over several starts. The store replays state.kv, which its flush
+//    rewrote with one record per key, so this also reports its size.
+// Everything is run once untimed first, so both sides are compiled.
+// The store fails the benchmark if it is slower than the text files on any
+// of these. It then checks that the rewrite keeps every value, that a
+// second store instance standing in for the other process sees the new
+// file and its later puts, and that a torn record at the end of state.kv
+// loses nothing and doesn't slow lookups down.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchStoreBenchmark
+//               [--entries 20000] [--puts 2000] [--gets 2000] [--dir DIR]
+public class GridWatchStoreBenchmark {
+
+	private int mEntries = 20000;
+	private int mPuts = 2000;
+	private int mGets = 2000;
+	private File mDir = null;
+
+	private String mLastValue;
+
+	// The old GridWatchLogger/GridWatchID/GridWatchSync write
+	private static void textAppend (File file, String time, String type, String info) throws IOException {
+		String l = time + "|" + type;
+		if (info != null) {
+			l += "|" + info;
+		}
+		FileWriter logFW = new FileWriter(file.getAbsolutePath(), true);
+		logFW.write(l + "\n");
+		logFW.close();
+	}
+
+	// The old get_last_value(): read every line, split the last
+	private static String textLastValue (File file) throws IOException {
+		ArrayList<String> log = new ArrayList<String>(200);
+		BufferedReader logBR = new BufferedReader(new InputStreamReader(new FileInputStream(file.getAbsolutePath())));
+		String line;
+		while ((line = logBR.readLine()) != null) {
+			log.add(line);
+		}
+		logBR.close();
+		if (log.isEmpty()) return "-1";
+		String[] fields = log.get(log.size() - 1).split("\\|");
+		return fields.length > 1 ? fields[1] : "-1";
+	}
+
+	private boolean mOk = true;
+	private boolean mWarmingUp = false;
+
+	private void report (String what, long textNs, long storeNs, int count) {
+		if (mWarmingUp) return;
+		System.out.println(String.format("%-5s n=%d text_us/op=%.1f store_us/op=%.1f speedup=%.1fx",
+				what, count, textNs / 1e3 / count, storeNs / 1e3 / count, textNs / (double) Math.max(1, storeNs)));
+		if (storeNs >= textNs) {
+			System.out.println("FAIL store slower than text for " + what);
+			mOk = false;
+		}
+	}
+
+	// Times each operation on fresh files in dir. Returns the last ID as
+	// a cold start read it from the text file and from the store.
+	private String[] time (File dir) throws IOException {
+		File text = new File(dir, "text");
+		File state = new File(dir, "state");
+		text.mkdirs();
+
+		// Activity log entries
+		File textLog = new File(text, "gridwatch.log");
+		long t0 = System.nanoTime();
+		for (int i = 0; i < mEntries; i++) {
+			textAppend(textLog, "May 13, 2014 10:00:00 AM", "event_post", "t=1400000000000|e=u|c=m|i=" + i);
+		}
+		long textNs = System.nanoTime() - t0;
+
+		GridWatchStore store = new GridWatchStore(state);
+		GridWatchLogger logger = new GridWatchLogger(store);
+		t0 = System.nanoTime();
+		for (int i = 0; i < mEntries; i++) {
+			logger.log("event_post", "t=1400000000000|e=u|c=m|i=" + i);
+		}
+		logger.flush();
+		report("log", textNs, System.nanoTime() - t0, mEntries);
+
+		// ID changes
+		File textId = new File(text, "gw_ID.log");
+		t0 = System.nanoTime();
+		for (int i = 0; i < mPuts; i++) {
+			textAppend(textId, "May 13, 2014 10:00:00 AM", "phone" + i, null);
+		}
+		textNs = System.nanoTime() - t0;
+
+		File kv = new File(state, "state.kv");
+		GridWatchID id = new GridWatchID(store, text);
+		t0 = System.nanoTime();
+		for (int i = 0; i < mPuts; i++) {
+			store.put("id", "phone" + i);
+		}
+		store.flush();
+		report("put", textNs, System.nanoTime() - t0, mPuts);
+		if (!mWarmingUp) {
+			System.out.println(String.format("state.kv bytes=%d after %d puts", kv.length(), mPuts));
+		}
+
+		// Looking up the ID
+		t0 = System.nanoTime();
+		for (int i = 0; i < mGets; i++) {
+			mLastValue = textLastValue(textId);
+		}
+		textNs = System.nanoTime() - t0;
+		t0 = System.nanoTime();
+		for (int i = 0; i < mGets; i++) {
+			mLastValue = id.get_last_value();
+		}
+		report("get", textNs, System.nanoTime() - t0, mGets);
+		store.close();
+
+		// Cold starts
+		String text_value = null;
+		String value = null;
+		textNs = 0;
+		long openNs = 0;
+		for (int i = 0; i < OPENS; i++) {
+			t0 = System.nanoTime();
+			text_value = textLastValue(textId);
+			textNs += System.nanoTime() - t0;
+		}
+		for (int i = 0; i < OPENS; i++) {
+			t0 = System.nanoTime();
+			GridWatchStore reopened = new GridWatchStore(state);
+			value = reopened.get("id");
+			openNs += System.nanoTime() - t0;
+			reopened.close();
+		}
+		report("open", textNs, openNs, OPENS);
+		return new String[] { text_value, value };
+	}
+
+	private void run () throws IOException {
+		// Once untimed, so both sides are compiled
+		mWarmingUp = true;
+		time(new File(mDir, "warm"));
+		mWarmingUp = false;
+		String[] values = time(mDir);
+		String text_value = values[0];
+		String value = values[1];
+		File state = new File(mDir, "state");
+		File kv = new File(state, "state.kv");
+		long t0;
+
+		// The rewrite keeps the values, and another instance keeps up
+		String last = "phone" + (mPuts - 1);
+		if (!last.equals(value) || !last.equals(text_value)) {
+			System.out.println("FAIL value after reopen " + value + ", text " + text_value);
+			mOk = false;
+		}
+		GridWatchStore store = new GridWatchStore(state);
+		GridWatchStore other = new GridWatchStore(state);
+		other.get("sync");
+		boolean rewritten = false;
+		for (int i = 0; i < COMPACT_PUTS; i++) {
+			store.put("sync", String.valueOf(i));
+			if (i % FLUSH_PUTS == FLUSH_PUTS - 1) {
+				// As the flush timer would
+				long before = kv.length();
+				store.flush();
+				rewritten |= kv.length() < before;
+			}
+		}
+		if (!rewritten) {
+			System.out.println("FAIL state.kv never rewritten, " + kv.length() + " bytes");
+			mOk = false;
+		}
+		String seen = other.get("sync");
+		store.put("sync", "after");
+		store.flush();
+		if (!String.valueOf(COMPACT_PUTS - 1).equals(seen)
+				|| !"after".equals(other.get("sync")) || !last.equals(other.get("id"))) {
+			System.out.println("FAIL other instance after rewrite sees " + seen + ", " + other.get("sync") + ", " + other.get("id"));
+			mOk = false;
+		}
+		other.put("id", "other");
+		other.flush();
+		if (!"other".equals(store.get("id")) || !"after".equals(store.get("sync"))) {
+			System.out.println("FAIL first instance after other's put sees " + store.get("id") + ", " + store.get("sync"));
+			mOk = false;
+		}
+		store.close();
+		other.close();
+
+		// Half a record at the end, as a crash mid-write leaves it
+		store = new GridWatchStore(state);
+		t0 = System.nanoTime();
+		for (int i = 0; i < mGets; i++) {
+			mLastValue = store.get("id");
+		}
+		long cleanNs = System.nanoTime() - t0;
+		FileOutputStream torn = new FileOutputStream(kv, true);
+		torn.write(new byte[] { 0x47, 0x57, 0, 0, 0, 40, 1, 2 });
+		torn.close();
+		t0 = System.nanoTime();
+		for (int i = 0; i < mGets; i++) {
+			mLastValue = store.get("id");
+		}
+		long tornNs = System.nanoTime() - t0;
+		System.out.println(String.format("get with torn tail n=%d store_us/op=%.1f, without=%.1f",
+				mGets, tornNs / 1e3 / mGets, cleanNs / 1e3 / mGets));
+		store.put("sync", "torn");
+		store.flush();
+		other = new GridWatchStore(state);
+		if (!"other".equals(mLastValue) || !"torn".equals(other.get("sync")) || !"other".equals(other.get("id"))) {
+			System.out.println("FAIL after torn tail sees " + mLastValue + ", " + other.get("sync") + ", " + other.get("id"));
+			mOk = false;
+		}
+		// Each get rereading the file would take tens of times longer
+		if (tornNs > 5 * cleanNs + 1000000) {
+			System.out.println("FAIL torn tail slows gets down");
+			mOk = false;
+		}
+		store.close();
+		other.close();
+		System.out.println(mOk ? "OK" : "FAIL");
+		if (!mOk) System.exit(1);
+	}
+
+	// Enough puts to the sync cursor, flushed every FLUSH_PUTS, that a
+	// flush rewrites state.kv
+	private final static int COMPACT_PUTS = 1000;
+	private final static int FLUSH_PUTS = 100;
+
+	private final static int OPENS = 200;
+
+	private static void delete (File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main (String[] args) throws IOException {
+		GridWatchStoreBenchmark benchmark = new GridWatchStoreBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--entries")) benchmark.mEntries = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--puts")) benchmark.mPuts = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--gets")) benchmark.mGets = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--dir")) benchmark.mDir = new File(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		boolean temp = benchmark.mDir == null;
+		if (temp) {
+			benchmark.mDir = File.createTempFile("gridwatch-store", "");
+			benchmark.mDir.delete();
+		}
+		try {
+			benchmark.run();
+		} finally {
+			if (temp) delete(benchmark.mDir);
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchTransitionFilter;
+
+// Replays power transition traces through GridWatchTransitionFilter, polled
+// at its deadlines as the service polls it, and checks what the service
+// relies on:
+//  - every change of state is either passed through or counted in exactly
+//    one flap record
+//  - a passed transition carries the time of the transition itself
+//  - a flap record ends in the state the trace was in at its last flap,
+//    and is reported within the settle time of its last flap and the max
+//    delay of its first
+//  - once the trace is over and the filter has been polled, the last
+//    state reported is the trace's
+// Then it reports how many alerts the filter let through per transition.
+//
+// Traces are files of "<powered> <time ms>" lines, 1 for connected and 0
+// for disconnected. The app logs every raw transition as a "power" entry
+// in that form, so lines exported from its log work too: anything up to
+// the last '|' is ignored. With no files it replays synthetic traces: a
+// clean outage, a loose charger, a brownout that never settles, repeated
+// broadcasts and flaps right at the settle time.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchTransitionReplayTest
+//               [--settle-s 20] [--max-delay-s 120] [trace ...]
+public class GridWatchTransitionReplayTest {
+
+	private final static long SECOND = 1000l;
+	private final static long MINUTE = 60 * SECOND;
+	private final static long EPOCH = 1400000000000l;
+
+	private long mSettle = 20 * SECOND;
+	private long mMaxDelay = 120 * SECOND;
+
+	private List<String> mErrors = new ArrayList<String>();
+
+	private void error (String trace, String message) {
+		if (mErrors.size() < 20) mErrors.add(trace + ": " + message);
+	}
+
+	private static class Transition {
+		boolean powered;
+		long time;
+
+		Transition (boolean powered, long time) {
+			this.powered = powered;
+			this.time = time;
+		}
+	}
+
+	// What the filter told the service, and when it was polled to say it
+	private class Recorder implements GridWatchTransitionFilter.Listener {
+		long mNow;
+		int mPassed = 0;
+		int mRecords = 0;
+		int mFlaps = 0;
+		boolean mReported;
+		boolean mHaveReported = false;
+		List<Transition> mPassedTransitions = new ArrayList<Transition>();
+		List<long[]> mFlapRecords = new ArrayList<long[]>();
+
+		@Override
+		public void onTransition (boolean powered, long time) {
+			mPassed++;
+			mPassedTransitions.add(new Transition(powered, time));
+			mReported = powered;
+			mHaveReported = true;
+		}
+
+		@Override
+		public void onFlaps (boolean powered, int flaps, long first, long last) {
+			mRecords++;
+			mFlaps += flaps;
+			mFlapRecords.add(new long[] {powered ? 1 : 0, flaps, first, last, mNow});
+			mReported = powered;
+			mHaveReported = true;
+		}
+	}
+
+	private int mTransitions = 0;
+	private int mAlerts = 0;
+
+	private void replay (String name, List<Transition> trace) {
+		Recorder recorder = new Recorder();
+		GridWatchTransitionFilter filter = new GridWatchTransitionFilter(mSettle, mMaxDelay, recorder);
+
+		// Changes of state in the trace, and the state at each time
+		List<Transition> changes = new ArrayList<Transition>();
+		Boolean state = null;
+		for (Transition t : trace) {
+			// The service polls at the deadline before it sees the next
+			// broadcast
+			long deadline = filter.getDeadline();
+			if (deadline >= 0 && deadline <= t.time) {
+				recorder.mNow = deadline;
+				filter.poll(deadline);
+			}
+			recorder.mNow = t.time;
+			filter.onTransition(t.powered, t.time);
+			if (state == null || state.booleanValue() != t.powered) {
+				changes.add(t);
+				state = t.powered;
+			}
+		}
+		long deadline = filter.getDeadline();
+		if (deadline >= 0) {
+			recorder.mNow = deadline;
+			filter.poll(deadline);
+		}
+		if (filter.getHeldFlaps() != 0) error(name, filter.getHeldFlaps() + " flaps still held after the last poll");
+
+		// Every change is passed or counted, once
+		if (recorder.mPassed + recorder.mFlaps != changes.size()) {
+			error(name, changes.size() + " changes but " + recorder.mPassed + " passed and "
+					+ recorder.mFlaps + " in flap records");
+		}
+
+		// Passed transitions carry the trace's times
+		int c = 0;
+		for (Transition passed : recorder.mPassedTransitions) {
+			while (c < changes.size() && changes.get(c).time != passed.time) c++;
+			if (c == changes.size()) {
+				error(name, "passed transition at " + passed.time + " is not in the trace");
+				break;
+			}
+			if (changes.get(c).powered != passed.powered) {
+				error(name, "passed transition at " + passed.time + " has the wrong state");
+			}
+		}
+
+		// Flap records end in the right state, on time
+		for (long[] record : recorder.mFlapRecords) {
+			boolean powered = record[0] == 1;
+			long first = record[2];
+			long last = record[3];
+			long reported = record[4];
+			Transition atLast = null;
+			for (Transition t : changes) {
+				if (t.time == last) atLast = t;
+			}
+			if (atLast == null) {
+				error(name, "flap record ends at " + last + ", which is not in the trace");
+			} else if (atLast.powered != powered) {
+				error(name, "flap record ending at " + last + " has the wrong state");
+			}
+			if (reported > Math.min(last + mSettle, first + mMaxDelay)) {
+				error(name, "flap record from " + first + " reported late at " + reported);
+			}
+		}
+
+		if (!changes.isEmpty()) {
+			boolean last = changes.get(changes.size() - 1).powered;
+			if (!recorder.mHaveReported || recorder.mReported != last) {
+				error(name, "last reported state is not the trace's");
+			}
+		}
+
+		int alerts = recorder.mPassed + recorder.mRecords;
+		mTransitions += changes.size();
+		mAlerts += alerts;
+		System.out.println(String.format("%-16s transitions=%d passed=%d flap_records=%d flaps=%d alerts/transition=%.3f",
+				name, changes.size(), recorder.mPassed, recorder.mRecords, recorder.mFlaps,
+				changes.isEmpty() ? 0 : alerts / (double) changes.size()));
+	}
+
+	private static List<Transition> read (String file) throws IOException {
+		List<Transition> trace = new ArrayList<Transition>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.substring(line.lastIndexOf('|') + 1).trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) throw new IOException("Bad trace line in " + file + ": " + line);
+				trace.add(new Transition(fields[0].equals("1"), Long.parseLong(fields[1])));
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+
+	private List<Transition> outage () {
+		List<Transition> trace = new ArrayList<Transition>();
+		trace.add(new Transition(false, EPOCH));
+		trace.add(new Transition(true, EPOCH + 30 * MINUTE));
+		return trace;
+	}
+
+	// A few minutes of contact bouncing every 1-8 s, then quiet, many times
+	private List<Transition> looseCharger () {
+		Random random = new Random(3);
+		List<Transition> trace = new ArrayList<Transition>();
+		long time = EPOCH;
+		boolean powered = true;
+		for (int episode = 0; episode < 50; episode++) {
+			time += 10 * MINUTE + random.nextInt((int) (50 * MINUTE));
+			int flaps = 1 + random.nextInt(60);
+			for (int i = 0; i < flaps; i++) {
+				powered = !powered;
+				trace.add(new Transition(powered, time));
+				time += SECOND + random.nextInt(7 * (int) SECOND);
+			}
+			if (!powered) {
+				trace.add(new Transition(true, time));
+				powered = true;
+			}
+		}
+		return trace;
+	}
+
+	// Flickering for ten minutes without ever settling, then out
+	private List<Transition> brownout () {
+		Random random = new Random(5);
+		List<Transition> trace = new ArrayList<Transition>();
+		long time = EPOCH;
+		boolean powered = true;
+		while (time < EPOCH + 10 * MINUTE) {
+			powered = !powered;
+			trace.add(new Transition(powered, time));
+			time += 200 + random.nextInt(2 * (int) SECOND);
+		}
+		trace.add(new Transition(false, time));
+		return trace;
+	}
+
+	// The same broadcast repeated, as some phones do on a dock
+	private List<Transition> repeats () {
+		List<Transition> trace = new ArrayList<Transition>();
+		for (int i = 0; i < 10; i++) {
+			trace.add(new Transition(false, EPOCH + i * 100));
+		}
+		trace.add(new Transition(true, EPOCH + MINUTE));
+		trace.add(new Transition(true, EPOCH + MINUTE + 100));
+		return trace;
+	}
+
+	// Flaps just inside and exactly at the settle time
+	private List<Transition> settleEdge () {
+		List<Transition> trace = new ArrayList<Transition>();
+		long time = EPOCH;
+		boolean powered = true;
+		for (int i = 0; i < 20; i++) {
+			powered = !powered;
+			trace.add(new Transition(powered, time));
+			time += (i % 2 == 0) ? mSettle - 1 : mSettle;
+		}
+		return trace;
+	}
+
+	private void run (List<String> files) throws IOException {
+		if (files.isEmpty()) {
+			replay("outage", outage());
+			replay("loose_charger", looseCharger());
+			replay("brownout", brownout());
+			replay("repeats", repeats());
+			replay("settle_edge", settleEdge());
+		} else {
+			for (String file : files) {
+				replay(file, read(file));
+			}
+		}
+		System.out.println(String.format("total transitions=%d alerts=%d alerts/transition=%.3f",
+				mTransitions, mAlerts, mTransitions == 0 ? 0 : mAlerts / (double) mTransitions));
+
+		if (mErrors.isEmpty()) {
+			System.out.println("OK");
+		} else {
+			for (String e : mErrors) {
+				System.out.println("FAIL " + e);
+			}
+			System.exit(1);
+		}
+	}
+
+	public static void main (String[] args) throws IOException {
+		GridWatchTransitionReplayTest test = new GridWatchTransitionReplayTest();
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--settle-s")) test.mSettle = Long.parseLong(args[++i]) * SECOND;
+			else if (args[i].equals("--max-delay-s")) test.mMaxDelay = Long.parseLong(args[++i]) * SECOND;
+			else if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown argument " + args[i]);
+			else files.add(args[i]);
+		}
+		test.run(files);
+	}
+}
@@ -0,0 +1,249 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import edu.umich.eecs.gridwatch.GridWatchWavWriter;
+
+// Compares the app's old way of saving an unplug recording with
+// GridWatchWavWriter, for bytes written to storage and wall time per
+// recording.
+//
+// The old way wrote every AudioRecord buffer whole to gw_tmp.raw, even when
+// read() returned less, then read the temporary file back in buffer sized
+// chunks and wrote a header and every chunk, again whole, to the WAV file.
+// GridWatchWavWriter leaves room for the header, writes only the bytes
+// read, once, and fills the header in at close.
+//
+// Each recording is 3 s of 44.1 kHz stereo. Reads return a whole buffer,
+// except that --short of them return part of one, as AudioRecord does when
+// it is behind. With --sync each file is synced before it is closed, as it
+// would have to be to be sure it was on the SD card. It then checks that
+// the new file's header matches what was recorded and reports how far off
+// the old one's is.
+//
+// Run with: java edu.umich.eecs.gridwatch.server.GridWatchWavWriterBenchmark
+//               [--recordings 50] [--short 0.1] [--sync] [--dir DIR]
+public class GridWatchWavWriterBenchmark {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int CHANNELS = 2;
+	private final static int RECORDER_TIME = 3000;
+	private final static int READ_SIZE = 7104;
+	private final static int WAV_BUFFER_SIZE = 32 * 1024;
+	private final static int HEADER_SIZE = 44;
+
+	private int mRecordings = 50;
+	private double mShort = 0.1;
+	private boolean mSync = false;
+	private File mDir = null;
+
+	// Byte counts for one way of saving
+	private static class Totals {
+		long written = 0;
+		long read = 0;
+		long nanos = 0;
+		long fileBytes = 0;
+		long headerError = 0;
+	}
+
+	// The lengths AudioRecord.read() returns for one recording
+	private int[] reads (Random random) {
+		int total = SAMPLE_FREQUENCY * CHANNELS * 2 * RECORDER_TIME / 1000;
+		int[] lengths = new int[total / (READ_SIZE / 2) + 2];
+		int count = 0;
+		int sum = 0;
+		while (sum < total) {
+			int len = READ_SIZE;
+			if (random.nextDouble() < mShort) len = 4 * (1 + random.nextInt(READ_SIZE / 4 - 1));
+			len = Math.min(len, total - sum);
+			lengths[count++] = len;
+			sum += len;
+		}
+		int[] ret = new int[count];
+		System.arraycopy(lengths, 0, ret, 0, count);
+		return ret;
+	}
+
+	// The old GridWatchEventThread: raw temp file, then header and copy
+	private void oldWay (int[] lengths, byte[] audio, File dir, int n, Totals totals) throws IOException {
+		File tmp = new File(dir, "gw_tmp.raw");
+		File wav = new File(dir, "old_" + n + ".wav");
+		byte[] tmpData = new byte[READ_SIZE];
+		long recorded = 0;
+
+		long t0 = System.nanoTime();
+		FileOutputStream os = new FileOutputStream(tmp);
+		for (int len : lengths) {
+			System.arraycopy(audio, 0, tmpData, 0, len);
+			recorded += len;
+			os.write(tmpData);
+			totals.written += tmpData.length;
+		}
+		if (mSync) os.getFD().sync();
+		os.close();
+
+		FileInputStream in = new FileInputStream(tmp);
+		FileOutputStream out = new FileOutputStream(wav);
+		long totalAudioLen = in.getChannel().size();
+		out.write(header(totalAudioLen));
+		totals.written += HEADER_SIZE;
+		byte[] wavData = new byte[READ_SIZE];
+		int read;
+		while ((read = in.read(wavData)) != -1) {
+			totals.read += read;
+			out.write(wavData);
+			totals.written += wavData.length;
+		}
+		in.close();
+		if (mSync) out.getFD().sync();
+		out.close();
+		tmp.delete();
+		totals.nanos += System.nanoTime() - t0;
+
+		totals.fileBytes += wav.length();
+		totals.headerError += Math.abs(dataLength(wav) - recorded);
+		wav.delete();
+	}
+
+	private void newWay (int[] lengths, byte[] audio, File dir, int n, GridWatchWavWriter writer, Totals totals)
+			throws IOException {
+		File wav = new File(dir, "new_" + n + ".wav");
+		byte[] buffer = new byte[READ_SIZE];
+		long recorded = 0;
+
+		long t0 = System.nanoTime();
+		writer.open(wav);
+		for (int len : lengths) {
+			System.arraycopy(audio, 0, buffer, 0, len);
+			recorded += len;
+			writer.write(buffer, 0, len);
+		}
+		totals.written += writer.getDataLength() + HEADER_SIZE;
+		writer.close();
+		if (mSync) {
+			// The writer doesn't sync, so do it as the old way did: once
+			// the file is written
+			RandomAccessFile file = new RandomAccessFile(wav, "rw");
+			file.getFD().sync();
+			file.close();
+		}
+		totals.nanos += System.nanoTime() - t0;
+
+		totals.fileBytes += wav.length();
+		totals.headerError += Math.abs(dataLength(wav) - recorded);
+		wav.delete();
+	}
+
+	// The 44 byte PCM header the old code wrote, data length and all
+	private static byte[] header (long totalAudioLen) {
+		long totalDataLen = totalAudioLen + 36;
+		long byteRate = 16 * SAMPLE_FREQUENCY * CHANNELS / 8;
+		byte[] header = new byte[HEADER_SIZE];
+		header[0] = 'R';
+		header[1] = 'I';
+		header[2] = 'F';
+		header[3] = 'F';
+		putInt(header, 4, totalDataLen);
+		header[8] = 'W';
+		header[9] = 'A';
+		header[10] = 'V';
+		header[11] = 'E';
+		header[12] = 'f';
+		header[13] = 'm';
+		header[14] = 't';
+		header[15] = ' ';
+		header[16] = 16;
+		header[20] = 1;
+		header[22] = (byte) CHANNELS;
+		putInt(header, 24, SAMPLE_FREQUENCY);
+		putInt(header, 28, byteRate);
+		header[32] = (byte) (2 * 16 / 8);
+		header[34] = 16;
+		header[36] = 'd';
+		header[37] = 'a';
+		header[38] = 't';
+		header[39] = 'a';
+		putInt(header, 40, totalAudioLen);
+		return header;
+	}
+
+	private static void putInt (byte[] b, int pos, long v) {
+		b[pos] = (byte) v;
+		b[pos + 1] = (byte) (v >> 8);
+		b[pos + 2] = (byte) (v >> 16);
+		b[pos + 3] = (byte) (v >> 24);
+	}
+
+	// The data chunk length in a WAV header
+	private static long dataLength (File wav) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(wav, "r");
+		try {
+			file.seek(40);
+			byte[] b = new byte[4];
+			file.readFully(b);
+			return (b[0] & 0xffl) | (b[1] & 0xffl) << 8 | (b[2] & 0xffl) << 16 | (b[3] & 0xffl) << 24;
+		} finally {
+			file.close();
+		}
+	}
+
+	private void report (String what, Totals totals, int recordings) {
+		System.out.println(String.format(
+				"%-4s written_kb/recording=%.1f read_back_kb/recording=%.1f file_kb=%.1f ms/recording=%.2f header_error_bytes=%d",
+				what, totals.written / 1024.0 / recordings, totals.read / 1024.0 / recordings,
+				totals.fileBytes / 1024.0 / recordings, totals.nanos / 1e6 / recordings, totals.headerError / recordings));
+	}
+
+	private void run () throws IOException {
+		byte[] audio = new byte[READ_SIZE];
+		new Random(3).nextBytes(audio);
+		GridWatchWavWriter writer = new GridWatchWavWriter(SAMPLE_FREQUENCY, CHANNELS, 16, WAV_BUFFER_SIZE);
+
+		System.out.println(String.format("recordings=%d short_reads=%.2f sync=%b dir=%s",
+				mRecordings, mShort, mSync, mDir));
+		for (int pass = 0; pass < 2; pass++) {
+			Random random = new Random(5);
+			Totals old = new Totals();
+			Totals single = new Totals();
+			for (int i = 0; i < mRecordings; i++) {
+				int[] lengths = reads(random);
+				oldWay(lengths, audio, mDir, i, old);
+				newWay(lengths, audio, mDir, i, writer, single);
+			}
+			System.out.println("pass " + pass);
+			report("old", old, mRecordings);
+			report("new", single, mRecordings);
+			if (pass == 1 && single.headerError != 0) {
+				System.out.println("FAIL new header is off by " + single.headerError + " bytes");
+				System.exit(1);
+			}
+		}
+	}
+
+	public static void main (String[] args) throws IOException {
+		GridWatchWavWriterBenchmark benchmark = new GridWatchWavWriterBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--recordings")) benchmark.mRecordings = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--short")) benchmark.mShort = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--sync")) benchmark.mSync = true;
+			else if (args[i].equals("--dir")) benchmark.mDir = new File(args[++i]);
+			else throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		boolean temp = benchmark.mDir == null;
+		if (temp) {
+			benchmark.mDir = File.createTempFile("gridwatch-wav", "");
+			benchmark.mDir.delete();
+		}
+		benchmark.mDir.mkdirs();
+		try {
+			benchmark.run();
+		} finally {
+			if (temp) benchmark.mDir.delete();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package edu.umich.eecs.gridwatch.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Server side of the app's GridWatchCodec. Decodes a binary alert batch
+// into one map of short form fields ("t", "e", "l", ...) per alert, the
+// same fields a form POST carries, so both kinds of upload go through the
+// same checks.
+//
+// The format is described in GridWatchCodec in the Android app; the two
+// must be changed together.
+public class GridWatchWireDecoder {
+
+	public final static String CONTENT_TYPE = "application/x-gridwatch-binary";
+
+	private final static int VERSION = 1;
+	private final static int BATCH_DEFLATE = 0x01;
+	private final static int RECORD_LOCATION = 0x01;
+	private final static int RECORD_FLAPS = 0x02;
+	private final static int RECORD_MAINS = 0x04;
+
+	private final static double FIXED_POINT_SCALE = 1e7;
+	private final static float ACCURACY_SCALE = 10f;
+	private final static float HZ_SCALE = 1000f;
+	private final static float DB_SCALE = 10f;
+	private final static float RATIO_SCALE = 1000f;
+
+	private Inflater mInflater = new Inflater();
+
+	public List<Map<String, String>> decodeBatch (byte[] body) throws IOException {
+		return decodeBatch(body, 0, body.length);
+	}
+
+	// Decode a batch that is len bytes of buf starting at off
+	public List<Map<String, String>> decodeBatch (byte[] buf, int off, int len) throws IOException {
+		Reader in = new Reader(buf, off, len);
+		checkVersion(in.readByte());
+		int flags = in.readByte();
+		long count = in.readVarint();
+		if (count < 0 || count > Integer.MAX_VALUE) throw new IOException("Bad batch count " + count);
+
+		if ((flags & BATCH_DEFLATE) != 0) {
+			byte[] inflated = inflate(buf, in.pos, off + len - in.pos);
+			in = new Reader(inflated, 0, inflated.length);
+		}
+
+		List<Map<String, String>> alerts = new ArrayList<Map<String, String>>((int) Math.min(count, 1024));
+		long previous = 0;
+		for (long i = 0; i < count; i++) {
+			Map<String, String> fields = new HashMap<String, String>();
+			previous = readRecord(in, previous, fields);
+			alerts.add(fields);
+		}
+		return alerts;
+	}
+
+	// Decode a single alert as stored in the app's outbox
+	public Map<String, String> decode (byte[] payload) throws IOException {
+		Reader in = new Reader(payload, 0, payload.length);
+		checkVersion(in.readByte());
+		Map<String, String> fields = new HashMap<String, String>();
+		readRecord(in, 0, fields);
+		return fields;
+	}
+
+	// Returns the record's time, which the next record is relative to
+	private long readRecord (Reader in, long previousTime, Map<String, String> fields) throws IOException {
+		int flags = in.readByte();
+		long time = previousTime + unzigzag(in.readVarint());
+		fields.put("t", String.valueOf(time));
+		fields.put("e", String.valueOf((char) in.readByte()));
+		char connection = (char) in.readByte();
+		if ((flags & RECORD_LOCATION) != 0) {
+			fields.put("l", String.valueOf(unzigzag(in.readVarint()) / FIXED_POINT_SCALE));
+			fields.put("n", String.valueOf(unzigzag(in.readVarint()) / FIXED_POINT_SCALE));
+			fields.put("a", String.valueOf(in.readVarint() / ACCURACY_SCALE));
+			fields.put("g", String.valueOf(time + unzigzag(in.readVarint())));
+		}
+		fields.put("c", String.valueOf(connection));
+		fields.put("h", in.readString());
+		fields.put("u", in.readString());
+		fields.put("v", in.readString());
+		if ((flags & RECORD_FLAPS) != 0) {
+			fields.put("f", String.valueOf(in.readVarint()));
+			fields.put("fb", String.valueOf(time + unzigzag(in.readVarint())));
+			fields.put("fe", String.valueOf(time + unzigzag(in.readVarint())));
+		}
+		if ((flags & RECORD_MAINS) != 0) {
+			fields.put("mh", String.valueOf(unzigzag(in.readVarint()) / HZ_SCALE));
+			fields.put("md", String.valueOf(unzigzag(in.readVarint()) / DB_SCALE));
+			fields.put("m2", String.valueOf(unzigzag(in.readVarint()) / RATIO_SCALE));
+			fields.put("m3", String.valueOf(unzigzag(in.readVarint()) / RATIO_SCALE));
+			fields.put("ms", String.valueOf(unzigzag(in.readVarint()) / DB_SCALE));
+		}
+		return time;
+	}
+
+	private static void checkVersion (int version) throws IOException {
+		if (version != VERSION) {
+			throw new IOException("Unknown alert encoding version " + version);
+		}
+	}
+
+	private static long unzigzag (long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private byte[] inflate (byte[] data, int off, int len) throws IOException {
+		mInflater.reset();
+		mInflater.setInput(data, off, len);
+		byte[] out = new byte[Math.max(256, len * 4)];
+		int total = 0;
+		try {
+			while (!mInflater.finished()) {
+				if (total == out.length) {
+					byte[] bigger = new byte[out.length * 2];
+					System.arraycopy(out, 0, bigger, 0, total);
+					out = bigger;
+				}
+				int n = mInflater.inflate(out, total, out.length - total);
+				if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+					throw new IOException("Truncated batch");
+				}
+				total += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt batch: " + e.getMessage());
+		}
+		byte[] result = new byte[total];
+		System.arraycopy(out, 0, result, 0, total);
+		return result;
+	}
+
+	private static class Reader {
+		byte[] buf;
+		int pos;
+		int end;
+
+		Reader (byte[] buf, int off, int len) {
+			this.buf = buf;
+			this.pos = off;
+			this.end = off + len;
+		}
+
+		int readByte () throws IOException {
+			if (pos >= end) throw new IOException("Alert truncated");
+			return buf[pos++] & 0xff;
+		}
+
+		long readVarint () throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new IOException("Varint too long");
+		}
+
+		String readString () throws IOException {
+			long len = readVarint();
+			if (len < 0 || len > end - pos) throw new IOException("Alert truncated");
+			String s = new String(buf, pos, (int) len, "UTF-8");
+			pos += (int) len;
+			return s;
+		}
+	}
+}
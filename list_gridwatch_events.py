@@ -25,16 +25,26 @@ query = {'profile_id': 'HthZRrHnlC',
 
 pp = pprint.PrettyPrinter(indent=4)
 
+# Offset of the last event seen, on backends that send them (the event
+# store in Server/). Resuming from just after it misses nothing and repeats
+# nothing across a reconnect.
+last_offset = None
+
 class stream_receiver (sioc.BaseNamespace):
 	def on_reconnect (self):
-		del query['time']
+		query.pop('time', None)
+		if last_offset is not None:
+			query['offset'] = last_offset + 1
 		stream_namespace.emit('query', query)
 
 	def on_connect (self):
 		stream_namespace.emit('query', query)
 
 	def on_data (self, *args):
+		global last_offset
 		pkt = args[0]
+		if isinstance(pkt, dict) and 'offset' in pkt:
+			last_offset = pkt['offset']
 		pp.pprint(pkt)
 
 socketIO = sioc.SocketIO(SOCKETIO_HOST, SOCKETIO_PORT)